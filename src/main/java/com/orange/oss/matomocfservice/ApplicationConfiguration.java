@@ -26,17 +26,23 @@ import org.springframework.boot.cloud.CloudPlatform;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.context.event.EventListener;
 import org.springframework.core.env.Environment;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import com.orange.oss.matomocfservice.cfmgr.CfOperationScheduler;
 import com.orange.oss.matomocfservice.cfmgr.CloudFoundryMgr;
 import com.orange.oss.matomocfservice.cfmgr.CloudFoundryMgrImpl;
+import com.orange.oss.matomocfservice.cfmgr.ScheduledCloudFoundryMgr;
 import com.orange.oss.matomocfservice.web.service.ApplicationInformation;
 import com.orange.oss.matomocfservice.web.service.InstanceIdMgr;
 import com.orange.oss.matomocfservice.web.service.MatomoInstanceService;
 import com.orange.oss.matomocfservice.web.service.PlatformService;
 
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
 /**
  * @author P. Déchamboux
  *
@@ -72,11 +78,19 @@ public class ApplicationConfiguration {
 
 	@Bean
 	@ConditionalOnCloudPlatform(CloudPlatform.CLOUD_FOUNDRY)
-	public CloudFoundryMgr cloudFoundryMgr() {
+	public CloudFoundryMgrImpl cloudFoundryMgrImpl() {
 		LOGGER.debug("CONFIG - run in Cloud Foundry");
 		return new CloudFoundryMgrImpl();
 	}
 
+	@Bean
+	@Primary
+	@ConditionalOnCloudPlatform(CloudPlatform.CLOUD_FOUNDRY)
+	public CloudFoundryMgr cloudFoundryMgr(CloudFoundryMgrImpl cloudFoundryMgrImpl, CfOperationScheduler cfOperationScheduler) {
+		LOGGER.debug("CONFIG - schedule CF operations");
+		return new ScheduledCloudFoundryMgr(cloudFoundryMgrImpl, cfOperationScheduler);
+	}
+
 	@Bean
 	@ConditionalOnMissingBean(ApplicationInformation.class)
 	public ApplicationInformation defaultApplicationInformation() {
@@ -94,9 +108,15 @@ public class ApplicationConfiguration {
 	@EventListener(ApplicationReadyEvent.class)
 	public void initializeAfterStartup() {
 		LOGGER.debug("CONFIG::ApplicationConfiguration - run initialization code after application startup has completed");
-		cfMgr.initialize();
+		// CF dependencies are initialized in background while the local managers are
+		Mono<Void> cfready = cfMgr.initialize();
 		instanceIdMgr.initialize();
 		platformService.initialize();
-		matomoInstanceService.initialize();
+		// instances (e.g., the shared one) can only be (re)deployed once CF dependencies are settled,
+		// out of the thread of the last CF call as it accesses the DB and the file system
+		cfready.publishOn(Schedulers.elastic())
+		.then(Mono.fromRunnable(matomoInstanceService::initialize))
+		.doOnError(t -> LOGGER.error("CONFIG::ApplicationConfiguration - cannot initialize Matomo instances", t))
+		.subscribe();
 	}
 }
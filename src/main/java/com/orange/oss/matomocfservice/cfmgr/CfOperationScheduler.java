@@ -0,0 +1,183 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+
+/**
+ * Bound the number of CF operations run at the same time, in total and per lane (pushes, service
+ * creations/deletions, simple calls). Operations that cannot start yet are queued, and when a slot
+ * is released, the queued operation of the lane with the highest priority (i.e., the shortest
+ * operations) starts first.
+ * @author P. Déchamboux
+ *
+ */
+public class CfOperationScheduler {
+	private final static Logger LOGGER = LoggerFactory.getLogger(CfOperationScheduler.class);
+	private final static String WAITTIMER = "matomo.cf.operation.wait";
+
+	/**
+	 * The lanes of CF operations, from the highest priority to the lowest one.
+	 */
+	public enum Lane {
+		SIMPLE,
+		SERVICE,
+		PUSH;
+	}
+
+	private final int maxOperations;
+	private final int laneLimits[];
+	private final int laneRunning[];
+	private final int laneQueued[];
+	private int running = 0;
+	private final AtomicLong taskSeq = new AtomicLong();
+	private final TreeSet<Task> queue = new TreeSet<Task>(Comparator.<Task>comparingInt(t -> t.lane.ordinal()).thenComparingLong(t -> t.seq));
+	private final Timer waitTimers[];
+
+	private class Task {
+		private final Lane lane;
+		private final long seq;
+		private final long enqueued = System.nanoTime();
+		private Runnable start;
+		private Disposable operation = null;
+		private boolean started = false;
+		private boolean cancelled = false;
+
+		Task(Lane lane, long seq) {
+			this.lane = lane;
+			this.seq = seq;
+		}
+	}
+
+	public CfOperationScheduler(int maxOperations, int maxPushes, int maxServiceOperations, int maxSimpleOperations, MeterRegistry registry) {
+		LOGGER.debug("CONFIG::CfOperationScheduler: maxOperations={}, maxPushes={}, maxServiceOperations={}, maxSimpleOperations={}",
+				maxOperations, maxPushes, maxServiceOperations, maxSimpleOperations);
+		this.maxOperations = Math.max(1, maxOperations);
+		this.laneLimits = new int[Lane.values().length];
+		this.laneLimits[Lane.SIMPLE.ordinal()] = Math.max(1, maxSimpleOperations);
+		this.laneLimits[Lane.SERVICE.ordinal()] = Math.max(1, maxServiceOperations);
+		this.laneLimits[Lane.PUSH.ordinal()] = Math.max(1, maxPushes);
+		this.laneRunning = new int[Lane.values().length];
+		this.laneQueued = new int[Lane.values().length];
+		this.waitTimers = new Timer[Lane.values().length];
+		for (Lane lane : Lane.values()) {
+			String tag = lane.name().toLowerCase();
+			registry.gauge("matomo.cf.operation.queued", Tags.of("lane", tag), this, s -> s.getQueued(lane));
+			registry.gauge("matomo.cf.operation.running", Tags.of("lane", tag), this, s -> s.getRunning(lane));
+			waitTimers[lane.ordinal()] = Timer.builder(WAITTIMER).tag("lane", tag).register(registry);
+		}
+	}
+
+	/**
+	 * Run an operation when the limits of its lane allow it.
+	 * @param lane	The lane of the operation
+	 * @param operation	Produce the Mono of the operation, subscribed only once it can start
+	 * @return	The Mono that produces the result of the operation
+	 */
+	public <T> Mono<T> schedule(Lane lane, Supplier<Mono<T>> operation) {
+		return Mono.create(sink -> {
+			Task task = new Task(lane, taskSeq.getAndIncrement());
+			task.start = () -> {
+				waitTimers[lane.ordinal()].record(System.nanoTime() - task.enqueued, TimeUnit.NANOSECONDS);
+				Disposable d = Mono.defer(operation)
+						.doFinally(s -> release(lane))
+						.subscribe(v -> sink.success(v), t -> sink.error(t), () -> sink.success());
+				synchronized (this) {
+					task.operation = d;
+					if (task.cancelled) {
+						d.dispose();
+					}
+				}
+			};
+			sink.onCancel(() -> cancel(task));
+			synchronized (this) {
+				queue.add(task);
+				laneQueued[lane.ordinal()]++;
+			}
+			dispatch();
+		});
+	}
+
+	public synchronized int getQueued(Lane lane) {
+		return laneQueued[lane.ordinal()];
+	}
+
+	public synchronized int getRunning(Lane lane) {
+		return laneRunning[lane.ordinal()];
+	}
+
+	private void cancel(Task task) {
+		Disposable d = null;
+		synchronized (this) {
+			task.cancelled = true;
+			if (!task.started) {
+				if (queue.remove(task)) {
+					laneQueued[task.lane.ordinal()]--;
+				}
+				return;
+			}
+			d = task.operation;
+		}
+		if (d != null) {
+			d.dispose();
+		}
+	}
+
+	private void release(Lane lane) {
+		synchronized (this) {
+			running--;
+			laneRunning[lane.ordinal()]--;
+		}
+		dispatch();
+	}
+
+	private void dispatch() {
+		List<Task> ready = new ArrayList<Task>();
+		synchronized (this) {
+			Iterator<Task> it = queue.iterator();
+			while (it.hasNext() && (running < maxOperations)) {
+				Task task = it.next();
+				if (laneRunning[task.lane.ordinal()] < laneLimits[task.lane.ordinal()]) {
+					it.remove();
+					laneQueued[task.lane.ordinal()]--;
+					laneRunning[task.lane.ordinal()]++;
+					running++;
+					task.started = true;
+					ready.add(task);
+				}
+			}
+		}
+		for (Task task : ready) {
+			task.start.run();
+		}
+	}
+}
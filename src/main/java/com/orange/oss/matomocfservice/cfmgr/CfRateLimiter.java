@@ -0,0 +1,164 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.cloudfoundry.AbstractCloudFoundryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Mono;
+
+/**
+ * Adapt the rate at which requests are sent to the Cloud Controller to its throttling, following
+ * an AIMD scheme: each successful request slightly raises the rate, while a throttled one (HTTP 429)
+ * halves it and suspends all requests for a cool-down period. Other failures, including an
+ * unavailable API (HTTP 503), are left to the operations. Throttled failures that occur
+ * during the same cool-down period are coalesced into a single decrease. Idempotent requests that
+ * are throttled are retried, with a jittered delay, once the cool-down period is over. Requests
+ * go through the limiter from a {@link RateLimitedCloudFoundryClient}.
+ * @author P. Déchamboux
+ *
+ */
+public class CfRateLimiter {
+	private final static Logger LOGGER = LoggerFactory.getLogger(CfRateLimiter.class);
+	private final static double DECREASE = 0.5;
+	private final static long JITTER = TimeUnit.MILLISECONDS.toNanos(500);
+	private final double maxRate;
+	private final double minRate;
+	private final int burst;
+	private final long cooldown;
+	private final int maxRetries;
+	private double rate;
+	private long nextPermit;
+	private long blockedUntil;
+	private final Counter throttledCounter;
+	private final Counter retryCounter;
+
+	/**
+	 * @param maxRate	The maximum number of operations started per second, which is also the initial rate
+	 * @param minRate	The rate below which throttling does not lower the rate anymore
+	 * @param cooldown	The time during which operations are suspended after a throttled one, in seconds
+	 * @param maxRetries	The maximum number of retries of a throttled idempotent operation
+	 * @param registry	The registry to publish the metrics of the limiter to
+	 */
+	public CfRateLimiter(double maxRate, double minRate, int cooldown, int maxRetries, MeterRegistry registry) {
+		LOGGER.debug("CONFIG::CfRateLimiter: maxRate={}, minRate={}, cooldown={}, maxRetries={}", maxRate, minRate, cooldown, maxRetries);
+		this.maxRate = Math.max(0.01, maxRate);
+		this.minRate = Math.min(this.maxRate, Math.max(0.01, minRate));
+		this.burst = Math.max(1, (int) this.maxRate);
+		this.cooldown = TimeUnit.SECONDS.toNanos(Math.max(0, cooldown));
+		this.maxRetries = Math.max(0, maxRetries);
+		this.rate = this.maxRate;
+		this.nextPermit = System.nanoTime();
+		this.blockedUntil = this.nextPermit;
+		registry.gauge("matomo.cf.ratelimit.rate", this, CfRateLimiter::getRate);
+		registry.gauge("matomo.cf.ratelimit.blocked", this, l -> l.isBlocked() ? 1 : 0);
+		this.throttledCounter = registry.counter("matomo.cf.ratelimit.throttled");
+		this.retryCounter = registry.counter("matomo.cf.ratelimit.retries");
+	}
+
+	/**
+	 * Run an operation when the current rate allows it.
+	 * @param operation	Produce the Mono of the operation, subscribed at each attempt
+	 * @param idempotent	Whether the operation can be retried when it is throttled
+	 * @return	The Mono that produces the result of the operation
+	 */
+	public <T> Mono<T> call(Supplier<Mono<T>> operation, boolean idempotent) {
+		return attempt(operation, idempotent, 0);
+	}
+
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	public synchronized boolean isBlocked() {
+		return System.nanoTime() - blockedUntil < 0;
+	}
+
+	/**
+	 * @param t	An error raised by an operation
+	 * @return	Whether the error is (or is caused by) the throttling of the CF API
+	 */
+	static boolean isThrottled(Throwable t) {
+		for (; t != null; t = t.getCause()) {
+			if (t instanceof AbstractCloudFoundryException) {
+				Integer status = ((AbstractCloudFoundryException) t).getStatusCode();
+				return (status != null) && (status == 429);
+			}
+		}
+		return false;
+	}
+
+	private <T> Mono<T> attempt(Supplier<Mono<T>> operation, boolean idempotent, int retry) {
+		return Mono.defer(() -> {
+			Duration wait = acquire();
+			return wait.isZero() ? Mono.defer(operation) : Mono.delay(wait).then(Mono.defer(operation));
+		})
+		.doOnSuccess(v -> increase())
+		.onErrorResume(t -> {
+			if (!isThrottled(t)) {
+				return Mono.error(t);
+			}
+			decrease();
+			if (!idempotent || (retry >= maxRetries)) {
+				LOGGER.warn("CFMGR::CfRateLimiter: throttled operation fails after {} retries", retry);
+				return Mono.error(t);
+			}
+			retryCounter.increment();
+			// spread the retries so that they do not all hit the API when the cool-down ends
+			long jitter = ThreadLocalRandom.current().nextLong((JITTER << Math.min(retry, 4)) + 1);
+			return Mono.delay(Duration.ofNanos(jitter)).then(attempt(operation, idempotent, retry + 1));
+		});
+	}
+
+	private synchronized Duration acquire() {
+		long now = System.nanoTime();
+		long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+		long permit = nextPermit;
+		if (permit - (now - burst * interval) < 0) {
+			// unused permits are kept up to the burst size
+			permit = now - burst * interval;
+		}
+		if (permit - blockedUntil < 0) {
+			permit = blockedUntil;
+		}
+		nextPermit = permit + interval;
+		return (permit - now > 0) ? Duration.ofNanos(permit - now) : Duration.ZERO;
+	}
+
+	private synchronized void increase() {
+		rate = Math.min(maxRate, rate + minRate);
+	}
+
+	private synchronized void decrease() {
+		throttledCounter.increment();
+		long now = System.nanoTime();
+		if (now - blockedUntil < 0) {
+			return;
+		}
+		rate = Math.max(minRate, rate * DECREASE);
+		blockedUntil = now + cooldown;
+		LOGGER.warn("CFMGR::CfRateLimiter: CF API throttled, suspend operations for {}s and lower rate to {}/s",
+				TimeUnit.NANOSECONDS.toSeconds(cooldown), rate);
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Track the readiness of the CF dependencies of the service (SSH endpoint, SMTP service, global
+ * shared DB, ...), which are initialized in parallel at startup, and report it as a health
+ * component: UP once all of them are ready, OUT_OF_SERVICE while some are still pending, and DOWN
+ * if one of them failed. The initialization of a failed dependency is retried in background, with
+ * a delay doubled after each failure, until it succeeds.
+ * @author P. Déchamboux
+ *
+ */
+public class CfReadiness implements HealthIndicator {
+	private final static Logger LOGGER = LoggerFactory.getLogger(CfReadiness.class);
+
+	public enum State {
+		PENDING,
+		READY,
+		FAILED;
+	}
+
+	private final Map<String, State> states = new LinkedHashMap<String, State>();
+	private final Duration minRetryDelay;
+	private final Duration maxRetryDelay;
+
+	public CfReadiness() {
+		this(Duration.ofSeconds(30), Duration.ofMinutes(10));
+	}
+
+	/**
+	 * @param minRetryDelay	The delay before the first retry of a failed initialization
+	 * @param maxRetryDelay	The maximum delay between two retries of a failed initialization
+	 */
+	public CfReadiness(Duration minRetryDelay, Duration maxRetryDelay) {
+		LOGGER.debug("CONFIG::CfReadiness: minRetryDelay={}, maxRetryDelay={}", minRetryDelay, maxRetryDelay);
+		this.minRetryDelay = minRetryDelay;
+		this.maxRetryDelay = (maxRetryDelay.compareTo(minRetryDelay) < 0) ? minRetryDelay : maxRetryDelay;
+	}
+
+	/**
+	 * Track the initialization of a dependency, which is pending until the initialization ends.
+	 * @param name	The name of the dependency
+	 * @param init	The initialization of the dependency
+	 * @return	The Mono that completes when the first initialization attempt ends, successfully or not
+	 */
+	public Mono<Void> track(String name, Mono<?> init) {
+		setState(name, State.PENDING);
+		return attempt(name, init)
+				.onErrorResume(t -> {
+					retryLater(name, init, minRetryDelay);
+					return Mono.empty();
+				});
+	}
+
+	private Mono<Void> attempt(String name, Mono<?> init) {
+		return init
+				.then(Mono.fromRunnable(() -> {
+					LOGGER.debug("CONFIG::CfReadiness: {} ready", name);
+					setState(name, State.READY);
+				}))
+				.doOnError(t -> {
+					LOGGER.error("CONFIG::CfReadiness: " + name + " unavailable!!", t);
+					setState(name, State.FAILED);
+				})
+				.then();
+	}
+
+	private void retryLater(String name, Mono<?> init, Duration delay) {
+		LOGGER.info("CONFIG::CfReadiness: retry to initialize {} in {}s", name, delay.getSeconds());
+		Duration next = delay.multipliedBy(2);
+		Mono.delay(delay)
+		.then(attempt(name, init))
+		.onErrorResume(t -> {
+			retryLater(name, init, (next.compareTo(maxRetryDelay) > 0) ? maxRetryDelay : next);
+			return Mono.empty();
+		})
+		.subscribe();
+	}
+
+	public synchronized boolean isReady(String name) {
+		return states.get(name) == State.READY;
+	}
+
+	public synchronized Map<String, State> getStates() {
+		return new LinkedHashMap<String, State>(states);
+	}
+
+	@Override
+	public Health health() {
+		Map<String, State> current = getStates();
+		Health.Builder builder;
+		if (current.containsValue(State.FAILED)) {
+			builder = Health.down();
+		} else if (current.containsValue(State.PENDING)) {
+			builder = Health.outOfService();
+		} else {
+			builder = Health.up();
+		}
+		for (Map.Entry<String, State> dep : current.entrySet()) {
+			builder.withDetail(dep.getKey(), dep.getValue());
+		}
+		return builder.build();
+	}
+
+	private synchronized void setState(String name, State state) {
+		states.put(name, state);
+	}
+}
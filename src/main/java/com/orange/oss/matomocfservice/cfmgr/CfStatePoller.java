@@ -0,0 +1,225 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+/**
+ * Wait for the end of long-running CF operations (service instance creations, app starts, ...)
+ * with a single polling loop: at each round, the states of all the resources waited for are
+ * fetched in one go per source, which only asks for these resources. The polling interval is
+ * reset to its minimum when a state changes or a new wait begins, and doubled (up to its maximum)
+ * after each round where nothing changed. A fetch that does not end within the request timeout
+ * is abandoned until the next round, so that waits still expire.
+ * @author P. Déchamboux
+ *
+ */
+public class CfStatePoller {
+	private final static Logger LOGGER = LoggerFactory.getLogger(CfStatePoller.class);
+	/**
+	 * The state of a resource that a source does not report anymore.
+	 */
+	public final static String GONE = "GONE";
+
+	/**
+	 * Fetch the current states of a set of resources in one go.
+	 */
+	public interface Source {
+		/**
+		 * @param ids	The ids of the resources
+		 * @return	The Mono that produces the state of each resource found, by id
+		 */
+		Mono<Map<String, String>> getStates(Set<String> ids);
+	}
+
+	private class Waiter {
+		private final Source source;
+		private final String id;
+		private final Predicate<String> done;
+		private final long deadline;
+		private final MonoSink<String> sink;
+		private String state = null;
+
+		Waiter(Source source, String id, Predicate<String> done, long deadline, MonoSink<String> sink) {
+			this.source = source;
+			this.id = id;
+			this.done = done;
+			this.deadline = deadline;
+			this.sink = sink;
+		}
+	}
+
+	private final Duration minInterval;
+	private final Duration maxInterval;
+	private final Duration requestTimeout;
+	private Duration interval;
+	private boolean polling = false;
+	private final List<Waiter> waiters = new ArrayList<Waiter>();
+	private final Counter requestCounter;
+
+	public CfStatePoller(Duration minInterval, Duration maxInterval, Duration requestTimeout, MeterRegistry registry) {
+		LOGGER.debug("CONFIG::CfStatePoller: minInterval={}, maxInterval={}, requestTimeout={}", minInterval, maxInterval, requestTimeout);
+		this.minInterval = minInterval;
+		this.maxInterval = (maxInterval.compareTo(minInterval) < 0) ? minInterval : maxInterval;
+		this.requestTimeout = requestTimeout;
+		this.interval = minInterval;
+		registry.gauge("matomo.cf.poller.waiting", this, CfStatePoller::getWaiting);
+		this.requestCounter = registry.counter("matomo.cf.poller.requests");
+	}
+
+	/**
+	 * Wait for a resource to reach a state.
+	 * @param source	The source that reports the state of the resource
+	 * @param id	The id of the resource for its source
+	 * @param done	Tell whether a state ends the wait
+	 * @param timeout	The maximum duration of the wait
+	 * @return	The Mono that produces the state that ended the wait
+	 */
+	public Mono<String> await(Source source, String id, Predicate<String> done, Duration timeout) {
+		return Mono.create(sink -> {
+			Waiter waiter = new Waiter(source, id, done, System.nanoTime() + timeout.toNanos(), sink);
+			sink.onCancel(() -> {
+				synchronized (this) {
+					waiters.remove(waiter);
+				}
+			});
+			synchronized (this) {
+				waiters.add(waiter);
+				interval = minInterval;
+			}
+			schedule();
+		});
+	}
+
+	public synchronized int getWaiting() {
+		return waiters.size();
+	}
+
+	public synchronized Duration getInterval() {
+		return interval;
+	}
+
+	private void schedule() {
+		Duration delay;
+		synchronized (this) {
+			if (polling || waiters.isEmpty()) {
+				return;
+			}
+			polling = true;
+			delay = interval;
+		}
+		Mono.delay(delay).subscribe(v -> poll());
+	}
+
+	private void poll() {
+		Map<Source, Set<String>> batches = new HashMap<Source, Set<String>>();
+		synchronized (this) {
+			for (Waiter waiter : waiters) {
+				batches.computeIfAbsent(waiter.source, s -> new HashSet<String>()).add(waiter.id);
+			}
+		}
+		Flux.fromIterable(batches.entrySet())
+		.flatMap(batch -> {
+			requestCounter.increment();
+			return Mono.defer(() -> batch.getKey().getStates(batch.getValue()))
+					.timeout(requestTimeout)
+					.map(states -> update(batch.getKey(), batch.getValue(), states))
+					.onErrorResume(t -> {
+						LOGGER.warn("CFMGR::CfStatePoller: cannot fetch states, retry at next round", t);
+						return Mono.just(false);
+					});
+		})
+		.reduce(false, (c1, c2) -> c1 || c2)
+		.subscribe(changed -> {
+			synchronized (this) {
+				interval = changed ? minInterval : interval.multipliedBy(2);
+				if (interval.compareTo(maxInterval) > 0) {
+					interval = maxInterval;
+				}
+				polling = false;
+			}
+			expire();
+			schedule();
+		});
+	}
+
+	private boolean update(Source source, Set<String> ids, Map<String, String> states) {
+		boolean changed = false;
+		List<Waiter> completed = new ArrayList<Waiter>();
+		synchronized (this) {
+			Iterator<Waiter> it = waiters.iterator();
+			while (it.hasNext()) {
+				Waiter waiter = it.next();
+				if ((waiter.source != source) || !ids.contains(waiter.id)) {
+					continue;
+				}
+				String state = states.get(waiter.id);
+				if (state == null) {
+					state = GONE;
+				}
+				if (!state.equals(waiter.state)) {
+					LOGGER.debug("CFMGR::CfStatePoller: id={}, state={}", waiter.id, state);
+					waiter.state = state;
+					changed = true;
+				}
+				if (waiter.done.test(state)) {
+					it.remove();
+					completed.add(waiter);
+				}
+			}
+		}
+		for (Waiter waiter : completed) {
+			waiter.sink.success(waiter.state);
+		}
+		return changed;
+	}
+
+	private void expire() {
+		long now = System.nanoTime();
+		List<Waiter> expired = new ArrayList<Waiter>();
+		synchronized (this) {
+			Iterator<Waiter> it = waiters.iterator();
+			while (it.hasNext()) {
+				Waiter waiter = it.next();
+				if (now - waiter.deadline >= 0) {
+					it.remove();
+					expired.add(waiter);
+				}
+			}
+		}
+		for (Waiter waiter : expired) {
+			waiter.sink.error(new TimeoutException("Still in state " + waiter.state + " after timeout: id=" + waiter.id));
+		}
+	}
+}
@@ -16,11 +16,12 @@
 
 package com.orange.oss.matomocfservice.cfmgr;
 
+import java.util.List;
 import java.util.Map;
+import java.util.function.BiConsumer;
 
 import org.cloudfoundry.operations.applications.ApplicationDetail;
 
-import com.orange.oss.matomocfservice.web.domain.PMatomoInstance;
 import com.orange.oss.matomocfservice.web.domain.Parameters;
 
 import reactor.core.publisher.Mono;
@@ -32,7 +33,7 @@ import reactor.core.publisher.Mono;
 public interface CloudFoundryMgr {
 	public final static long CREATEDBSERV_TIMEOUT = 90; // in minutes
 
-	public void initialize();
+	public Mono<Void> initialize();
 	public boolean isSmtpReady();
 	public boolean isGlobalSharedReady();
 	public String getAppName(String appcode);
@@ -40,15 +41,23 @@ public interface CloudFoundryMgr {
 	public String getInstanceUrl(String uuid);
 	public Mono<Void> deployMatomoCfApp(String instid, String uuid, String planid, Parameters mip, int memsize, int nbinst);
 	public Mono<Void> scaleMatomoCfApp(String instid, int instances, int memsize);
+	public Mono<Void> settleMatomoCfApp(String instid, Parameters mip, int memsize, int nbinst);
+	public Mono<Void> deployNextMatomoCfApp(String instid, String uuid, String planid, Parameters mip, int memsize, int nbinst);
+	public Mono<Void> upgradeNextMatomoInstance(String instid, String uuid, int nbinst);
+	public Mono<Void> switchToNextMatomoCfApp(String instid, String uuid);
+	public Mono<Void> retireMatomoCfApp(String instid, String uuid);
 	public Mono<Void> createDedicatedDb(String instid, String planid);
+	public Mono<Void> awaitDedicatedDb(String instid, String planid);
 	public Mono<Void> deleteDedicatedDb(String instid, String planid);
 	public Mono<Map<String, Object>> getApplicationEnv(String instid);
 	public Mono<ApplicationDetail> deleteMatomoCfApp(String instid, String planid);
-	public Mono<AppConfHolder> getInstanceConfigFile(String instid, String version, boolean clustermode);
-	public boolean initializeMatomoInstance(String appcode, String nuri, String pwd, String planid);
-	public boolean upgradeMatomoInstance(String appcode, String nuri);
+	public Mono<AppConfHolder> getInstanceConfigFile(String instid, String uuid, String version, String planid, boolean clustermode);
+	public Mono<Void> initializeMatomoInstance(String appcode, String nuri, String pwd, String planid);
+	public Mono<Void> seedMatomoInstance(String appcode, String nuri, String pwd, String planid, String version, List<String> schema);
+	public Mono<List<String>> captureDbSchema(String instid, String planid);
+	public Mono<Void> upgradeMatomoInstance(String appcode, String nuri);
 	public String getApiAccessToken(String dbcred, String instid, String planid);
-	public void deleteAssociatedDbSchema(PMatomoInstance pmi);
+	public Mono<Void> deleteAssociatedDbSchema(String dbcred, String instid, String planid, BiConsumer<Integer, Integer> progress);
 
 	public class AppConfHolder {
 		public String appId = null;
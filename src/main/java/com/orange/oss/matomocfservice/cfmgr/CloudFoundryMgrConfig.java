@@ -16,6 +16,8 @@
 
 package com.orange.oss.matomocfservice.cfmgr;
 
+import java.time.Duration;
+
 import org.cloudfoundry.client.CloudFoundryClient;
 import org.cloudfoundry.doppler.DopplerClient;
 import org.cloudfoundry.operations.DefaultCloudFoundryOperations;
@@ -32,6 +34,13 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.ChannelOption;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
 
 /**
  * @author P. Déchamboux
@@ -60,12 +69,12 @@ public class CloudFoundryMgrConfig {
 	}
 	
 	@Bean
-	ReactorCloudFoundryClient cloudFoundryClient(ConnectionContext connectionContext, TokenProvider tokenProvider) {
+	CloudFoundryClient cloudFoundryClient(ConnectionContext connectionContext, TokenProvider tokenProvider, CfRateLimiter cfRateLimiter) {
 		LOGGER.debug("CONFIG - define cloudFoundryClient");
-	    return ReactorCloudFoundryClient.builder()
+	    return RateLimitedCloudFoundryClient.wrap(ReactorCloudFoundryClient.builder()
 	        .connectionContext(connectionContext)
 	        .tokenProvider(tokenProvider)
-	        .build();
+	        .build(), cfRateLimiter);
 	}
 	
 	@Bean
@@ -101,4 +110,94 @@ public class CloudFoundryMgrConfig {
 	            .space(space)
 	            .build();
 	}
+
+	@Bean
+	CfOperationScheduler cfOperationScheduler(@Value("${matomo-service.cf.max-operations:8}") int maxOperations,
+	                                          @Value("${matomo-service.cf.max-pushes:3}") int maxPushes,
+	                                          @Value("${matomo-service.cf.max-service-operations:4}") int maxServiceOperations,
+	                                          @Value("${matomo-service.cf.max-simple-operations:6}") int maxSimpleOperations,
+	                                          MeterRegistry registry) {
+		LOGGER.debug("CONFIG - define cfOperationScheduler");
+	    return new CfOperationScheduler(maxOperations, maxPushes, maxServiceOperations, maxSimpleOperations, registry);
+	}
+
+	@Bean
+	CfRateLimiter cfRateLimiter(@Value("${matomo-service.cf.max-rate:5}") double maxRate,
+	                            @Value("${matomo-service.cf.min-rate:0.2}") double minRate,
+	                            @Value("${matomo-service.cf.throttle-cooldown:10}") int cooldown,
+	                            @Value("${matomo-service.cf.max-retries:4}") int maxRetries,
+	                            MeterRegistry registry) {
+		LOGGER.debug("CONFIG - define cfRateLimiter");
+	    return new CfRateLimiter(maxRate, minRate, cooldown, maxRetries, registry);
+	}
+
+	@Bean
+	CfReadiness cfReadiness(@Value("${matomo-service.cf.dependency-retry-min-delay:30}") int minRetryDelay,
+	                        @Value("${matomo-service.cf.dependency-retry-max-delay:600}") int maxRetryDelay) {
+		LOGGER.debug("CONFIG - define cfReadiness");
+	    return new CfReadiness(Duration.ofSeconds(minRetryDelay), Duration.ofSeconds(maxRetryDelay));
+	}
+
+	@Bean
+	CfStatePoller cfStatePoller(@Value("${matomo-service.cf.poll-min-interval:2}") int minInterval,
+	                            @Value("${matomo-service.cf.poll-max-interval:30}") int maxInterval,
+	                            @Value("${matomo-service.cf.poll-request-timeout:60}") int requestTimeout,
+	                            MeterRegistry registry) {
+		LOGGER.debug("CONFIG - define cfStatePoller");
+	    return new CfStatePoller(Duration.ofSeconds(minInterval), Duration.ofSeconds(maxInterval), Duration.ofSeconds(requestTimeout), registry);
+	}
+
+	@Bean
+	SshSessionPool sshSessionPool(@Value("${matomo-service.ssh.max-sessions:8}") int maxSessions,
+	                              @Value("${matomo-service.ssh.idle-timeout:120}") long idleTimeout,
+	                              @Value("${matomo-service.ssh.connect-timeout:10}") int connectTimeout,
+	                              MeterRegistry registry) {
+		LOGGER.debug("CONFIG - define sshSessionPool");
+	    return new SshSessionPool(maxSessions, idleTimeout * 1000, connectTimeout * 1000, connectTimeout * 3000, registry);
+	}
+
+	@Bean
+	WebClient matomoWebClient(WebClient.Builder builder,
+	                          @Value("${matomo-service.http.max-connections:50}") int maxConnections,
+	                          @Value("${matomo-service.http.connect-timeout:10}") int connectTimeout) {
+		LOGGER.debug("CONFIG - define matomoWebClient");
+		HttpClient httpClient = HttpClient.create(ConnectionProvider.fixed("matomo-instances", maxConnections))
+				.tcpConfiguration(tcp -> tcp.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout * 1000))
+				.keepAlive(true)
+				.followRedirect(true);
+	    return builder
+	    		.clientConnector(new ReactorClientHttpConnector(httpClient))
+	    		.build();
+	}
+
+	@Bean
+	MatomoInstaller matomoInstaller(WebClient matomoWebClient,
+	                                @Value("${matomo-service.installer.step-timeout:120}") int stepTimeout,
+	                                MeterRegistry registry) {
+		LOGGER.debug("CONFIG - define matomoInstaller");
+	    return new MatomoInstaller(matomoWebClient, Duration.ofSeconds(stepTimeout), registry);
+	}
+
+	@Bean
+	MatomoApiClient matomoApiClient(WebClient matomoWebClient,
+	                                @Value("${matomo-service.api.timeout:30}") int timeout,
+	                                MeterRegistry registry) {
+		LOGGER.debug("CONFIG - define matomoApiClient");
+	    return new MatomoApiClient(matomoWebClient, Duration.ofSeconds(timeout), registry);
+	}
+
+	@Bean
+	DbConnectionPools dbConnectionPools(CloudFoundryMgrProperties properties,
+	                                    @Value("${matomo-service.db.max-connections:20}") int maxConnections,
+	                                    @Value("${matomo-service.db.pool-size:2}") int poolSize,
+	                                    @Value("${matomo-service.db.idle-timeout:300}") long idleTimeout,
+	                                    @Value("${matomo-service.db.connect-timeout:10}") long connectTimeout,
+	                                    MeterRegistry registry) {
+		LOGGER.debug("CONFIG - define dbConnectionPools");
+		// the limit reported by the JDBC driver (0 if unknown) also bounds the connections opened by the service
+		if (properties.getMaxDbConnections() > 0) {
+			maxConnections = Math.min(maxConnections, properties.getMaxDbConnections());
+		}
+	    return new DbConnectionPools(maxConnections, poolSize, idleTimeout * 1000, connectTimeout * 1000, registry);
+	}
 }
@@ -15,26 +15,57 @@
  */
 package com.orange.oss.matomocfservice.cfmgr;
 
-import java.io.File;
-import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.nio.file.Files;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
-import java.sql.DatabaseMetaData;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
 
+import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.client.v2.ClientV2Exception;
+import org.cloudfoundry.client.v2.applications.SummaryApplicationRequest;
+import org.cloudfoundry.client.v2.applications.UpdateApplicationRequest;
+import org.cloudfoundry.client.v2.applications.UploadApplicationRequest;
 import org.cloudfoundry.client.v2.info.GetInfoRequest;
+import org.cloudfoundry.client.v2.resourcematch.ListMatchingResourcesRequest;
+import org.cloudfoundry.client.v2.resourcematch.ListMatchingResourcesResponse;
+import org.cloudfoundry.client.v2.resourcematch.Resource;
+import org.cloudfoundry.client.v2.serviceinstances.CreateServiceInstanceRequest;
+import org.cloudfoundry.client.v2.serviceinstances.ListServiceInstancesRequest;
+import org.cloudfoundry.client.v2.serviceplans.ListServicePlansRequest;
+import org.cloudfoundry.client.v2.services.ListServicesRequest;
+import org.cloudfoundry.client.v3.Relationship;
+import org.cloudfoundry.client.v3.ToOneRelationship;
+import org.cloudfoundry.client.v3.Link;
+import org.cloudfoundry.client.v3.applications.ApplicationRelationships;
+import org.cloudfoundry.client.v3.applications.ApplicationResource;
+import org.cloudfoundry.client.v3.applications.CreateApplicationRequest;
+import org.cloudfoundry.client.v3.applications.CreateApplicationResponse;
+import org.cloudfoundry.client.v3.applications.GetApplicationCurrentDropletRequest;
+import org.cloudfoundry.client.v3.applications.GetApplicationCurrentDropletResponse;
+import org.cloudfoundry.client.v3.applications.ListApplicationsRequest;
+import org.cloudfoundry.client.v3.applications.SetApplicationCurrentDropletRequest;
+import org.cloudfoundry.client.v3.applications.UpdateApplicationEnvironmentVariablesRequest;
+import org.cloudfoundry.client.v3.droplets.CopyDropletRequest;
+import org.cloudfoundry.client.v3.droplets.CopyDropletResponse;
+import org.cloudfoundry.client.v3.droplets.DropletRelationships;
+import org.cloudfoundry.client.v3.droplets.DropletResource;
+import org.cloudfoundry.client.v3.droplets.DropletState;
+import org.cloudfoundry.client.v3.droplets.GetDropletRequest;
+import org.cloudfoundry.client.v3.droplets.ListDropletsRequest;
 import org.cloudfoundry.operations.CloudFoundryOperations;
 import org.cloudfoundry.operations.applications.ApplicationDetail;
 import org.cloudfoundry.operations.applications.ApplicationManifest;
@@ -42,31 +73,37 @@ import org.cloudfoundry.operations.applications.DeleteApplicationRequest;
 import org.cloudfoundry.operations.applications.GetApplicationEnvironmentsRequest;
 import org.cloudfoundry.operations.applications.GetApplicationRequest;
 import org.cloudfoundry.operations.applications.PushApplicationManifestRequest;
+import org.cloudfoundry.operations.applications.RenameApplicationRequest;
 import org.cloudfoundry.operations.applications.Route;
 import org.cloudfoundry.operations.applications.ScaleApplicationRequest;
-import org.cloudfoundry.operations.services.CreateServiceInstanceRequest;
+import org.cloudfoundry.operations.applications.StopApplicationRequest;
+import org.cloudfoundry.operations.routes.DeleteRouteRequest;
+import org.cloudfoundry.operations.routes.MapRouteRequest;
+import org.cloudfoundry.operations.routes.UnmapRouteRequest;
+import org.cloudfoundry.operations.services.BindServiceInstanceRequest;
 import org.cloudfoundry.operations.services.DeleteServiceInstanceRequest;
 import org.cloudfoundry.operations.services.GetServiceInstanceRequest;
 import org.cloudfoundry.operations.services.UnbindServiceInstanceRequest;
-import org.cloudfoundry.reactor.client.ReactorCloudFoundryClient;
+import org.cloudfoundry.operations.spaces.GetSpaceRequest;
+import org.cloudfoundry.operations.spaces.SpaceDetail;
+import org.cloudfoundry.util.JobUtils;
+import org.cloudfoundry.util.PaginationUtils;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.client.MultipartBodyBuilder;
-import org.springframework.web.client.RestClientException;
-import org.springframework.web.client.RestTemplate;
 
 import com.orange.oss.matomocfservice.servicebroker.ServiceCatalogConfiguration;
-import com.orange.oss.matomocfservice.web.domain.PMatomoInstance;
 import com.orange.oss.matomocfservice.web.domain.Parameters;
 import com.orange.oss.matomocfservice.web.service.MatomoReleases;
+import com.orange.oss.matomocfservice.web.service.ReleaseIndex;
 
-import net.schmizz.sshj.SSHClient;
-import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
-import net.schmizz.sshj.xfer.FileSystemFile;
+import net.schmizz.sshj.xfer.InMemoryDestFile;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 /**
  * @author P. Déchamboux
@@ -75,92 +112,91 @@ import reactor.core.publisher.Mono;
 public class CloudFoundryMgrImpl extends CloudFoundryMgrAbs {
 	private final static Logger LOGGER = LoggerFactory.getLogger(CloudFoundryMgr.class);
 	private final static String MATOMOINSTANCE_ROOTUSER = "admin";
-	private String sshHost;
-	private int sshPort;
-	private boolean smtpReady = false;
-	private boolean globalSharedReady = false;
+	private final static String MATOMOINSTANCE_ROOTEMAIL = "piwik@orange.com";
+	private final static int DROPTABLES_BATCH = 50;
+	private final static String REFAPP_PREFIX = "REF-";
+	private final static String NEXTAPP_SUFFIX = "-NEXT";
+	private final static String NEXTHOST_SUFFIX = "-next";
+	private final static String CONFIGINI_VAR = "MCFS_CONFIGINI";
+	private final static String BUILDPACK_VAR = "MCFS_BUILDPACK";
+	private final static int STARTUP_TIMEOUT = 180;
+	private final static int STAGING_TIMEOUT = 900;
+	private final static String APP_STARTING = "STARTING";
+	private final static String APP_RUNNING = "RUNNING";
+	private final static String APP_STAGINGFAILED = "STAGING_FAILED";
+	private final static String SERVICE_INPROGRESS = "in progress";
+	private final static String SERVICE_SUCCEEDED = "succeeded";
+	private final static int UPLOAD_TIMEOUT = 300;
+	private final static int RESOURCEMATCH_BATCH = 1000;
+	private final static int CFERR_ALREADYBOUND = 90003;
+	private final static int APPSTATES_CONCURRENCY = 4;
+	private final static int APPSTATES_BATCH = 50;
+	private final static int DROPLETS_PAGESIZE = 500;
+	private final static Duration POLL_DELAY = Duration.ofSeconds(2);
+	private final static String DEP_SSH = "ssh";
+	private final static String DEP_SMTP = "smtp";
+	private final static String DEP_GLOBALSHAREDDB = "globalSharedDb";
+	private volatile String sshHost;
+	private volatile int sshPort;
+	private final Object templateLock = new Object();
+	private final Map<String, Mono<String>> referenceDroplets = new ConcurrentHashMap<String, Mono<String>>();
+	private final Map<String, Mono<String>> servicePlanIds = new ConcurrentHashMap<String, Mono<String>>();
+	private Mono<String> spaceId = null;
+	private final CfStatePoller.Source appStates = this::getAppStates;
+	private final CfStatePoller.Source serviceStates = this::getServiceStates;
 	@Autowired
 	private CloudFoundryOperations cfops;
 	@Autowired
-	private ReactorCloudFoundryClient cfclient;
+	private CloudFoundryClient cfclient;
+	@Autowired
+	private SshSessionPool sshPool;
+	@Autowired
+	private MatomoInstaller installer;
+	@Autowired
+	private DbConnectionPools dbPools;
+	@Autowired
+	private CfStatePoller poller;
+	@Autowired
+	private CfReadiness readiness;
 
 	/**
 	 * Initialize CF manager and especially create the shared database for the dev flavor of
-	 * Matomo service instances.
+	 * Matomo service instances. The dependencies of the service are looked up (and created if
+	 * needed) in parallel, without blocking the caller.
+	 * @return	The Mono that completes once all dependencies are either ready or failed
 	 */
-	public void initialize() {
+	public Mono<Void> initialize() {
 		LOGGER.debug("CFMGR::CloudFoundryMgr-initialize");
-		cfclient.info().get(GetInfoRequest.builder().build())
-		.doOnError(t -> {})
-		.doOnSuccess(infos -> {
-			String host = infos.getApplicationSshEndpoint();
-			int indc = host.indexOf(":");
-			sshHost = host.substring(0, indc);
-			sshPort = Integer.parseInt(host.substring(indc + 1));
-			LOGGER.debug("CONFIG::CloudFoundryMgr-initialize: sshHost={}, sshPort={}", sshHost, sshPort);
-		})
-		.block();
-		// Check if SMTP service has already been created and create otherwise
-		cfops.services().getInstance(GetServiceInstanceRequest.builder()
-				.name(properties.getSmtpCreds().getInstanceServiceName())
-				.build())
-		.doOnError(t -> {
-			LOGGER.debug("CONFIG::CloudFoundryMgr-initialize: create SMTP service instance");
-			cfops.services().createInstance(CreateServiceInstanceRequest.builder()
-					.serviceInstanceName(properties.getSmtpCreds().getInstanceServiceName())
-					.serviceName(properties.getSmtpCreds().getServiceName())
-					.planName(properties.getSmtpCreds().getPlanName())
-					.build())
-			.doOnError(tt -> {
-				LOGGER.error("CONFIG::CloudFoundryMgr-initialize: cannot create SMTP service -> whole service unavailable!!");
-			})
-			.doOnSuccess(v -> {
-				LOGGER.debug("CONFIG::CloudFoundryMgr-initialize: SMTP service instance created");
-				smtpReady = true;
-			})
-			.subscribe();
-		})
-		.doOnSuccess(v -> {
-			LOGGER.debug("CONFIG::CloudFoundryMgr-initialize: SMTP service instance already exist");
-			smtpReady = true;
-		})
-		.block();
-		// Check if global shared DB service has already been created and create otherwise
-		cfops.services().getInstance(GetServiceInstanceRequest.builder()
-				.name(properties.getDbCreds(ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID).getInstanceServiceName(null))
-				.build())
-		.doOnError(t -> {
-			LOGGER.debug("CONFIG::CloudFoundryMgr-initialize: create global shared db service instance");
-			cfops.services().createInstance(CreateServiceInstanceRequest.builder()
-					.serviceInstanceName(properties.getDbCreds(ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID).getInstanceServiceName(null))
-					.serviceName(properties.getDbCreds(ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID).getServiceName())
-					.planName(properties.getDbCreds(ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID).getPlanName())
-					.completionTimeout(Duration.ofMinutes(CREATEDBSERV_TIMEOUT))
-					.build())
-			.timeout(Duration.ofMinutes(CREATEDBSERV_TIMEOUT))
-			.doOnError(tt -> {
-				LOGGER.error("CONFIG::CloudFoundryMgr-initialize: cannot create global shared DB service -> global-shared-db plan unavailable!!");
-			})
-			.doOnSuccess(vv -> {
-				LOGGER.debug("CONFIG::CloudFoundryMgr-initialize: global shared DB service instance created");
-				globalSharedReady = true;
-			})
-			.subscribe();
-		})
-		.doOnSuccess(v -> {
-			LOGGER.debug("CONFIG::CloudFoundryMgr-initialize: global shared DB service instance already exist");
-			globalSharedReady = true;
-		})
-		.subscribe();
-		LOGGER.debug("CONFIG::CloudFoundryMgr-initialize: finished");
+		return Mono.when(
+				readiness.track(DEP_SSH, cfclient.info().get(GetInfoRequest.builder().build())
+						.doOnSuccess(infos -> {
+							String host = infos.getApplicationSshEndpoint();
+							int indc = host.indexOf(":");
+							sshHost = host.substring(0, indc);
+							sshPort = Integer.parseInt(host.substring(indc + 1));
+							LOGGER.debug("CONFIG::CloudFoundryMgr-initialize: sshHost={}, sshPort={}", sshHost, sshPort);
+						})),
+				// Check if SMTP service has already been created and create otherwise
+				readiness.track(DEP_SMTP, getOrCreateServiceInstance(properties.getSmtpCreds().getInstanceServiceName(),
+						properties.getSmtpCreds().getServiceName(),
+						properties.getSmtpCreds().getPlanName())),
+				// Check if global shared DB service has already been created and create otherwise
+				readiness.track(DEP_GLOBALSHAREDDB, getOrCreateServiceInstance(properties.getDbCreds(ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID).getInstanceServiceName(null),
+						properties.getDbCreds(ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID).getServiceName(),
+						properties.getDbCreds(ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID).getPlanName())))
+				.doOnSuccess(v -> LOGGER.debug("CONFIG::CloudFoundryMgr-initialize: finished, {}", readiness.getStates()));
+	}
+
+	private Mono<Void> getOrCreateServiceInstance(String name, String service, String plan) {
+		return requestServiceInstance(name, service, plan).then(awaitServiceInstance(name));
 	}
 
 	public boolean isSmtpReady() {
-		return smtpReady;
+		return readiness.isReady(DEP_SMTP);
 	}
 
 	public boolean isGlobalSharedReady() {
-		return globalSharedReady;
+		return readiness.isReady(DEP_GLOBALSHAREDDB);
 	}
 
 	/**
@@ -170,25 +206,515 @@ public class CloudFoundryMgrImpl extends CloudFoundryMgrAbs {
 	 */
 	public Mono<Void> deployMatomoCfApp(String instid, String uuid, String planid, Parameters mip, int memsize, int nbinst) {
 		LOGGER.debug("CFMGR::deployMatomoCfApp: instId={}", instid);
-		String instpath = MatomoReleases.getVersionPath(mip.getVersion(), instid);
-		LOGGER.debug("File for Matomo bits: " + instpath);
+		return deployApp(getManifest(instid, getAppName(instid), uuid, planid, mip, memsize, nbinst), instid, uuid, mip.getVersion());
+	}
+
+	/**
+	 * Deploy the new version of an instance for a blue-green upgrade, as a sibling app reachable
+	 * through a temporary route. The DB of the instance is not upgraded yet, so the current app
+	 * is unaffected: the new app is removed if it cannot be deployed.
+	 * @param instid	The code name of the instance
+	 * @param uuid	The id of the instance (its route)
+	 * @param planid	The service plan of the instance
+	 * @param mip	The parameters of the instance, including the new version
+	 * @param memsize	The memory size of each app instance
+	 * @param nbinst	The number of app instances
+	 * @return	The Mono to signal the end of the async process (produce nothing indeed)
+	 */
+	public Mono<Void> deployNextMatomoCfApp(String instid, String uuid, String planid, Parameters mip, int memsize, int nbinst) {
+		LOGGER.debug("CFMGR::deployNextMatomoCfApp: instId={}, version={}", instid, mip.getVersion());
+		String nextappname = getAppName(instid) + NEXTAPP_SUFFIX, nexthost = uuid + NEXTHOST_SUFFIX;
+		return deployApp(getManifest(instid, nextappname, nexthost, planid, mip, memsize, nbinst), instid, nexthost, mip.getVersion())
+				.onErrorResume(t -> {
+					LOGGER.error("CFMGR::deployNextMatomoCfApp: new app not deployed, current app left unchanged for instId=" + instid, t);
+					return cfops.applications().delete(DeleteApplicationRequest.builder().name(nextappname).deleteRoutes(true).build())
+							.onErrorResume(tt -> Mono.empty())
+							.then(Mono.error(t));
+				});
+	}
+
+	/**
+	 * Upgrade the DB of an instance through the new app of a blue-green upgrade, and warm up each
+	 * instance of that app. The current app may not run on the upgraded DB anymore: there is no
+	 * way back from a failure, the instance has to be upgraded again.
+	 * @param instid	The code name of the instance
+	 * @param uuid	The id of the instance (its route)
+	 * @param nbinst	The number of app instances
+	 * @return	The Mono to signal the end of the async process (produce nothing indeed)
+	 */
+	public Mono<Void> upgradeNextMatomoInstance(String instid, String uuid, int nbinst) {
+		LOGGER.debug("CFMGR::upgradeNextMatomoInstance: instId={}", instid);
+		String nexthost = uuid + NEXTHOST_SUFFIX;
+		List<MatomoInstaller.Step> warmup = new ArrayList<MatomoInstaller.Step>();
+		for (int i = 0; i < nbinst; i++) {
+			warmup.add(MatomoInstaller.Step.get("warmup", "/matomo.php"));
+		}
+		return upgradeMatomoInstance(instid, nexthost)
+				.then(installer.run(getInstanceUrl(nexthost), warmup))
+				.then()
+				.doOnError(t -> LOGGER.error("CFMGR::upgradeNextMatomoInstance: instId=" + instid + " still runs its previous version on a DB that may be upgraded", t));
+	}
+
+	/**
+	 * Move the route of an instance from its current app to the new app of a blue-green upgrade.
+	 * A move that is already done is skipped, so that it can be run again.
+	 * @param instid	The code name of the instance
+	 * @param uuid	The id of the instance (its route)
+	 * @return	The Mono to signal the end of the async process (produce nothing indeed)
+	 */
+	public Mono<Void> switchToNextMatomoCfApp(String instid, String uuid) {
+		LOGGER.debug("CFMGR::switchToNextMatomoCfApp: instId={}", instid);
+		String appname = getAppName(instid), nextappname = appname + NEXTAPP_SUFFIX, url = uuid + "." + properties.getDomain();
+		return cfops.applications().get(GetApplicationRequest.builder().name(nextappname).build())
+				.filter(app -> !app.getUrls().contains(url))
+				.flatMap(app -> cfops.routes().map(MapRouteRequest.builder()
+						.applicationName(nextappname)
+						.domain(properties.getDomain())
+						.host(uuid)
+						.build()))
+				.then(cfops.applications().get(GetApplicationRequest.builder().name(appname).build())
+						.filter(app -> app.getUrls().contains(url))
+						.flatMap(app -> cfops.routes().unmap(UnmapRouteRequest.builder()
+								.applicationName(appname)
+								.domain(properties.getDomain())
+								.host(uuid)
+								.build())));
+	}
+
+	/**
+	 * Replace the current app of an instance by the new app of a blue-green upgrade, once the
+	 * route of the instance has been moved to it: the temporary route and the current app are
+	 * deleted, then the new app takes the name of the current one. What is already done is
+	 * skipped, so that it can be run again.
+	 * @param instid	The code name of the instance
+	 * @param uuid	The id of the instance (its route)
+	 * @return	The Mono to signal the end of the async process (produce nothing indeed)
+	 */
+	public Mono<Void> retireMatomoCfApp(String instid, String uuid) {
+		LOGGER.debug("CFMGR::retireMatomoCfApp: instId={}", instid);
+		String appname = getAppName(instid), nextappname = appname + NEXTAPP_SUFFIX;
+		return cfops.routes().delete(DeleteRouteRequest.builder().domain(properties.getDomain()).host(uuid + NEXTHOST_SUFFIX).build())
+				.onErrorResume(IllegalArgumentException.class, t -> Mono.empty())
+				.then(cfops.applications().get(GetApplicationRequest.builder().name(nextappname).build())
+						.onErrorResume(IllegalArgumentException.class, t -> {
+							LOGGER.debug("CFMGR::retireMatomoCfApp: {} already renamed", nextappname);
+							return Mono.empty();
+						}))
+				.flatMap(app -> cfops.applications().delete(DeleteApplicationRequest.builder().name(appname).build())
+						.onErrorResume(IllegalArgumentException.class, t -> Mono.empty())
+						.then(cfops.applications().rename(RenameApplicationRequest.builder().name(nextappname).newName(appname).build())));
+	}
+
+	private ApplicationManifest getManifest(String instid, String appname, String host, String planid, Parameters mip, int memsize, int nbinst) {
 		ApplicationManifest.Builder manifestbuilder;
 		manifestbuilder = ApplicationManifest.builder()
-				.name(getAppName(instid))
-				.path(Paths.get(instpath))
-				.route(Route.builder().route(uuid + "." + properties.getDomain()).build())
+				.name(appname)
+				.route(Route.builder().route(host + "." + properties.getDomain()).build())
 				.buildpack(properties.getPhpBuildpack())
 				.memory(memsize)
-				.timeout(180)
+				.timeout(STARTUP_TIMEOUT)
 				.instances(nbinst)
 				.environmentVariable("TZ", mip.getTimeZone());
 		List<String> services = new ArrayList<String>();
 		properties.getSmtpCreds().addVars(manifestbuilder).addService(services);
 		properties.getDbCreds(planid).addVars(manifestbuilder).addService(services, getAppName(instid));
 		manifestbuilder.services(services);
+		return manifestbuilder.build();
+	}
+
+	Mono<Void> deployApp(ApplicationManifest manifest, String instid, String host, String version) {
+		if (isDropletDeployed(version)) {
+			return deployFromDroplet(manifest, instid, host, version);
+		}
+		List<ReleaseIndex.Entry> index = properties.isResourceMatch() ? MatomoReleases.getDeployableIndex(version, instid) : null;
+		if (index != null) {
+			return deployFromIndex(manifest, instid, host, version, index);
+		}
+		Path instpath = MatomoReleases.getDeployablePath(version, instid);
+		LOGGER.debug("File for Matomo bits: " + instpath);
+		// the config file, if any, goes with the environment as the bits may be shared by instances
 		return cfops.applications().pushManifest(PushApplicationManifestRequest.builder()
-				.manifest(manifestbuilder.build())
-				.build());
+				.manifest(ApplicationManifest.builder().from(manifest).environmentVariables(getAppEnvironment(manifest, version, instid)).path(instpath).build())
+				.noStart(true)
+				.build())
+				.then(startMatomoCfApp(manifest.getName()));
+	}
+
+	/**
+	 * Tell if the apps of a Matomo version run a copy of the droplet staged for that version. This
+	 * requires its release to have the .profile script that installs the config file passed
+	 * through the environment, otherwise the bits of each instance are pushed.
+	 */
+	private boolean isDropletDeployed(String version) {
+		if (!properties.isDropletCache()) {
+			return false;
+		}
+		if (!MatomoReleases.hasProfileScript(version)) {
+			LOGGER.warn("CFMGR::isDropletDeployed: release {} has no .profile script to install the config file, push bits instead", version);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Deploy an instance app from a copy of the droplet staged for its Matomo version: the app is
+	 * created (with its route and service bindings) if it does not exist yet, and only its
+	 * environment is updated otherwise. The config file of the instance, if any, is passed through
+	 * the environment and installed by the .profile script of the release.
+	 */
+	private Mono<Void> deployFromDroplet(ApplicationManifest manifest, String instid, String uuid, String version) {
+		String appname = manifest.getName();
+		Map<String, String> env = getAppEnvironment(manifest, version, instid);
+		return getReferenceDroplet(version)
+				.flatMap(refdroplet -> getOrCreateApp(manifest, env, uuid)
+						.flatMap(appid -> cfclient.dropletsV3().copy(CopyDropletRequest.builder()
+								.sourceDropletId(refdroplet)
+								.relationships(DropletRelationships.builder()
+										.application(ToOneRelationship.builder().data(Relationship.builder().id(appid).build()).build())
+										.build())
+								.build())
+								.map(CopyDropletResponse::getId)
+								.flatMap(this::waitForDroplet)
+								.flatMap(droplet -> {
+									LOGGER.debug("CFMGR::deployFromDroplet: app={}, droplet={}", appname, droplet);
+									return cfclient.applicationsV3().setCurrentDroplet(SetApplicationCurrentDropletRequest.builder()
+											.applicationId(appid)
+											.data(Relationship.builder().id(droplet).build())
+											.build());
+								})))
+				.then(restartMatomoCfApp(appname, manifest.getInstances(), manifest.getMemory()));
+	}
+
+	/**
+	 * Deploy an instance app from its bits, using the content index of its release: the files
+	 * that the CF blobstore already has are referenced by their SHA-1 instead of being uploaded.
+	 */
+	private Mono<Void> deployFromIndex(ApplicationManifest manifest, String instid, String uuid, String version, List<ReleaseIndex.Entry> index) {
+		return getOrCreateApp(manifest, getAppEnvironment(manifest, version, instid), uuid)
+				.flatMap(appid -> cfclient.applicationsV2().update(UpdateApplicationRequest.builder()
+						.applicationId(appid)
+						.buildpack(manifest.getBuildpack())
+						.healthCheckTimeout(manifest.getTimeout())
+						.build())
+						.then(uploadMatomoBits(appid, instid, index)))
+				.then(restartMatomoCfApp(manifest.getName(), manifest.getInstances(), manifest.getMemory()));
+	}
+
+	/**
+	 * Upload the bits of an instance app: files already in the CF blobstore are referenced by their
+	 * SHA-1 and mode, the other ones are put in the uploaded archive. Cloud Controller only pools
+	 * files from a minimum size (64 KiB by default), so smaller files are not submitted to resource
+	 * matching: as most Matomo files are smaller, the archive still holds most files of the release,
+	 * but only a part of its bytes (the split is logged for each upload).
+	 */
+	Mono<Void> uploadMatomoBits(String appid, String instid, List<ReleaseIndex.Entry> index) {
+		long minsize = properties.getResourceMatchMinSize();
+		return Flux.fromIterable(index)
+				.filter(entry -> entry.getSize() >= minsize)
+				.buffer(RESOURCEMATCH_BATCH)
+				.concatMap(batch -> cfclient.resourceMatch().list(ListMatchingResourcesRequest.builder()
+						.resources(batch.stream()
+								.map(entry -> Resource.builder().hash(entry.getSha1()).size(entry.getSize()).build())
+								.collect(Collectors.toList()))
+						.build()))
+				.flatMapIterable(ListMatchingResourcesResponse::getResources)
+				.map(Resource::getHash)
+				.collect(Collectors.toSet())
+				.flatMap(known -> {
+					List<org.cloudfoundry.client.v2.applications.Resource> matched = new ArrayList<org.cloudfoundry.client.v2.applications.Resource>();
+					List<ReleaseIndex.Entry> missing = new ArrayList<ReleaseIndex.Entry>();
+					long matchedbytes = 0, bytes = 0;
+					for (ReleaseIndex.Entry entry : index) {
+						if (known.contains(entry.getSha1())) {
+							matched.add(org.cloudfoundry.client.v2.applications.Resource.builder()
+									.hash(entry.getSha1())
+									.path(entry.getPath())
+									.size(entry.getSize())
+									.mode(entry.getMode())
+									.build());
+							matchedbytes += entry.getSize();
+						} else {
+							missing.add(entry);
+							bytes += entry.getSize();
+						}
+					}
+					LOGGER.info("CFMGR::uploadMatomoBits: instId={}, matched {} files ({} bytes), uploaded {} files ({} bytes)",
+							instid, matched.size(), matchedbytes, missing.size(), bytes);
+					return cfclient.applicationsV2().upload(UploadApplicationRequest.builder()
+							.applicationId(appid)
+							.application(MatomoReleases.buildDeltaArchive(instid, missing))
+							.resources(matched)
+							.async(true)
+							.build())
+							.flatMap(job -> JobUtils.waitForCompletion(cfclient, Duration.ofSeconds(UPLOAD_TIMEOUT), job))
+							.doFinally(s -> MatomoReleases.deleteDeltaArchive(instid));
+				});
+	}
+
+	private Map<String, String> getAppEnvironment(ApplicationManifest manifest, String version, String instid) {
+		Map<String, String> env = new HashMap<String, String>();
+		for (Map.Entry<String, Object> var : manifest.getEnvironmentVariables().entrySet()) {
+			env.put(var.getKey(), String.valueOf(var.getValue()));
+		}
+		addConfigIni(env, version, instid);
+		return env;
+	}
+
+	/**
+	 * Get the id of an instance app, creating it if it does not exist yet. An existing app may be
+	 * left over by a deployment that failed or was interrupted after its creation, so its service
+	 * bindings and its route are applied again when they are missing.
+	 */
+	private Mono<String> getOrCreateApp(ApplicationManifest manifest, Map<String, String> env, String uuid) {
+		String appname = manifest.getName();
+		return cfops.applications().get(GetApplicationRequest.builder().name(appname).build())
+				.onErrorResume(IllegalArgumentException.class, t -> Mono.empty())
+				.flatMap(app -> cfclient.applicationsV3().updateEnvironmentVariables(UpdateApplicationEnvironmentVariablesRequest.builder()
+						.applicationId(app.getId())
+						.vars(env)
+						.build())
+						.then(bindAppAndMapRoute(manifest, uuid, app.getUrls().contains(uuid + "." + properties.getDomain())))
+						.thenReturn(app.getId()))
+				.switchIfEmpty(Mono.defer(() -> {
+					LOGGER.debug("CFMGR::getOrCreateApp: create app {}", appname);
+					return getSpaceId()
+							.flatMap(spaceid -> cfclient.applicationsV3().create(CreateApplicationRequest.builder()
+									.name(appname)
+									.environmentVariables(env)
+									.relationships(ApplicationRelationships.builder()
+											.space(ToOneRelationship.builder().data(Relationship.builder().id(spaceid).build()).build())
+											.build())
+									.build()))
+							.map(CreateApplicationResponse::getId)
+							.flatMap(appid -> bindAppAndMapRoute(manifest, uuid, false).thenReturn(appid));
+				}));
+	}
+
+	private Mono<Void> bindAppAndMapRoute(ApplicationManifest manifest, String host, boolean mapped) {
+		List<String> services = (manifest.getServices() == null) ? new ArrayList<String>() : manifest.getServices();
+		return Flux.fromIterable(services)
+				.concatMap(service -> cfops.services().bind(BindServiceInstanceRequest.builder()
+						.applicationName(manifest.getName())
+						.serviceInstanceName(service)
+						.build())
+						.onErrorResume(t -> (t instanceof ClientV2Exception) && Integer.valueOf(CFERR_ALREADYBOUND).equals(((ClientV2Exception) t).getCode()), t -> {
+							LOGGER.debug("CFMGR::bindAppAndMapRoute: app {} already bound to {}", manifest.getName(), service);
+							return Mono.empty();
+						}))
+				.then(mapped ? Mono.<Void>empty() : cfops.routes().map(MapRouteRequest.builder()
+						.applicationName(manifest.getName())
+						.domain(properties.getDomain())
+						.host(host)
+						.build())
+						.then());
+	}
+
+	private synchronized Mono<String> getSpaceId() {
+		if (spaceId == null) {
+			spaceId = cfops.spaces().get(GetSpaceRequest.builder().name(properties.getSpace()).build())
+					.map(SpaceDetail::getId)
+					.cache();
+		}
+		return spaceId;
+	}
+
+	/**
+	 * Get the droplet staged for a Matomo version with the current PHP buildpack. It is staged once
+	 * by pushing the release bits to a reference app, which is then stopped and only kept to hold
+	 * the droplet: it is reused as is after a restart of the service. The buildpack it has been
+	 * staged with is recorded in its environment, as CF may report the name of the detected
+	 * buildpack instead of the requested one.
+	 * @param version	The Matomo version
+	 * @return	The Mono that produces the droplet id
+	 */
+	private Mono<String> getReferenceDroplet(String version) {
+		String key = version + "@" + properties.getPhpBuildpack();
+		return referenceDroplets.computeIfAbsent(key, k -> {
+			String refapp = getAppName(REFAPP_PREFIX + version.replace('.', '-'));
+			return cfops.applications().getEnvironments(GetApplicationEnvironmentsRequest.builder().name(refapp).build())
+					.filter(envs -> properties.getPhpBuildpack().equals(envs.getUserProvided().get(BUILDPACK_VAR)))
+					.flatMap(envs -> cfops.applications().get(GetApplicationRequest.builder().name(refapp).build()))
+					.onErrorResume(IllegalArgumentException.class, t -> Mono.empty())
+					.switchIfEmpty(Mono.defer(() -> {
+						LOGGER.info("CFMGR::getReferenceDroplet: stage Matomo {} with buildpack {}", version, properties.getPhpBuildpack());
+						return cfops.applications().pushManifest(PushApplicationManifestRequest.builder()
+								.manifest(ApplicationManifest.builder()
+										.name(refapp)
+										.path(MatomoReleases.getReleaseFile(version, ""))
+										.noRoute(true)
+										.buildpack(properties.getPhpBuildpack())
+										.environmentVariable(BUILDPACK_VAR, properties.getPhpBuildpack())
+										.memory(Parameters.MINMEMORYSIZE)
+										.timeout(STARTUP_TIMEOUT)
+										.instances(1)
+										.build())
+								.build())
+								.then(cfops.applications().stop(StopApplicationRequest.builder().name(refapp).build()))
+								.then(cfops.applications().get(GetApplicationRequest.builder().name(refapp).build()));
+					}))
+					.flatMap(app -> cfclient.applicationsV3().getCurrentDroplet(GetApplicationCurrentDropletRequest.builder()
+							.applicationId(app.getId())
+							.build()))
+					.map(GetApplicationCurrentDropletResponse::getId)
+					.doOnSuccess(droplet -> LOGGER.debug("CFMGR::getReferenceDroplet: version={}, droplet={}", version, droplet))
+					.doOnError(t -> {
+						LOGGER.error("CFMGR::getReferenceDroplet: cannot stage Matomo " + version, t);
+						referenceDroplets.remove(k);
+					})
+					.cache();
+		});
+	}
+
+	private Mono<String> waitForDroplet(String droplet) {
+		return cfclient.dropletsV3().get(GetDropletRequest.builder().dropletId(droplet).build())
+				.flatMap(d -> {
+					if ((d.getState() == DropletState.FAILED) || (d.getState() == DropletState.EXPIRED)) {
+						return Mono.<String>error(new IllegalStateException("Droplet " + droplet + " in state " + d.getState()));
+					}
+					return (d.getState() == DropletState.STAGED) ? Mono.just(droplet) : Mono.<String>empty();
+				})
+				.repeatWhenEmpty(repeats -> repeats.delayElements(POLL_DELAY))
+				.timeout(Duration.ofSeconds(STARTUP_TIMEOUT));
+	}
+
+	/**
+	 * Settle the app of an instance once installed: the environment is updated with the config
+	 * file of the instance before the app is scaled and restarted on the droplet already staged.
+	 * Bits are only uploaded again, and thus restaged, for a release without the .profile script
+	 * that installs the config file from the environment, as it must then go with the bits.
+	 * @param instid	The code name of the instance
+	 * @param mip	The parameters of the instance
+	 * @param memsize	The memory size of each app instance
+	 * @param nbinst	The number of app instances
+	 * @return	The Mono to signal the end of the async process (produce nothing indeed)
+	 */
+	public Mono<Void> settleMatomoCfApp(String instid, Parameters mip, int memsize, int nbinst) {
+		LOGGER.debug("CFMGR::settleMatomoCfApp: instId={}, instances={}, memsize={}", instid, nbinst, memsize);
+		String appname = getAppName(instid);
+		Map<String, String> env = new HashMap<String, String>();
+		env.put("TZ", mip.getTimeZone());
+		addConfigIni(env, mip.getVersion(), instid);
+		return cfops.applications().get(GetApplicationRequest.builder().name(appname).build())
+				.flatMap(app -> cfclient.applicationsV3().updateEnvironmentVariables(UpdateApplicationEnvironmentVariablesRequest.builder()
+						.applicationId(app.getId())
+						.vars(env)
+						.build())
+						.then(MatomoReleases.hasProfileScript(mip.getVersion()) ? Mono.<Void>empty() : uploadDeployable(app.getId(), instid, mip.getVersion())))
+				.then(restartMatomoCfApp(appname, nbinst, memsize));
+	}
+
+	/**
+	 * Upload the bits of an instance (including its config file) to its existing app, using the
+	 * content index of its release if any.
+	 */
+	private Mono<Void> uploadDeployable(String appid, String instid, String version) {
+		return Mono.defer(() -> {
+			List<ReleaseIndex.Entry> index = properties.isResourceMatch() ? MatomoReleases.getDeployableIndex(version, instid) : null;
+			if (index != null) {
+				return uploadMatomoBits(appid, instid, index);
+			}
+			return cfclient.applicationsV2().upload(UploadApplicationRequest.builder()
+					.applicationId(appid)
+					.application(MatomoReleases.getDeployablePath(version, instid))
+					.async(true)
+					.build())
+					.flatMap(job -> JobUtils.waitForCompletion(cfclient, Duration.ofSeconds(UPLOAD_TIMEOUT), job));
+		});
+	}
+
+	private Mono<Void> restartMatomoCfApp(String appname, int nbinst, int memsize) {
+		// scale while stopped so that the app only restarts once
+		return cfops.applications().stop(StopApplicationRequest.builder().name(appname).build())
+				.then(cfops.applications().scale(ScaleApplicationRequest.builder()
+						.name(appname)
+						.instances(nbinst)
+						.memoryLimit(memsize)
+						.build()))
+				.then(startMatomoCfApp(appname));
+	}
+
+	/**
+	 * Start an app (staging it first if needed) and wait for one of its instances to run, the
+	 * wait being shared with the other ones through the state poller.
+	 */
+	private Mono<Void> startMatomoCfApp(String appname) {
+		return cfops.applications().get(GetApplicationRequest.builder().name(appname).build())
+				.map(ApplicationDetail::getId)
+				.flatMap(appid -> cfclient.applicationsV2().update(UpdateApplicationRequest.builder()
+						.applicationId(appid)
+						.state("STARTED")
+						.build())
+						.then(poller.await(appStates, appid, state -> !APP_STARTING.equals(state), Duration.ofSeconds(STAGING_TIMEOUT + STARTUP_TIMEOUT))))
+				.flatMap(state -> APP_RUNNING.equals(state)
+						? Mono.<Void>empty()
+						: Mono.<Void>error(new IllegalStateException("App " + appname + " cannot start: " + state)));
+	}
+
+	/**
+	 * Get the state of the apps waited for. The apps that still exist and their latest droplets
+	 * are listed in one go (a request per batch of apps), so that an app is starting while its
+	 * droplet is not staged yet, and fails if its staging failed. The CF API cannot list running
+	 * instance counts by app, so they are only fetched from the summaries of the apps whose
+	 * droplet is staged. An app that does not exist anymore is not reported.
+	 */
+	Mono<Map<String, String>> getAppStates(Set<String> appids) {
+		Flux<List<String>> batches = Flux.fromIterable(new ArrayList<String>(appids)).buffer(APPSTATES_BATCH).cache();
+		Mono<Set<String>> existing = batches
+				.flatMap(ids -> PaginationUtils.requestClientV3Resources(page -> cfclient.applicationsV3().list(ListApplicationsRequest.builder()
+						.applicationIds(ids)
+						.page(page)
+						.perPage(APPSTATES_BATCH)
+						.build())))
+				.map(ApplicationResource::getId)
+				.collect(Collectors.toSet());
+		Mono<Map<String, DropletResource>> droplets = batches
+				.flatMap(ids -> PaginationUtils.requestClientV3Resources(page -> cfclient.dropletsV3().list(ListDropletsRequest.builder()
+						.applicationIds(ids)
+						.page(page)
+						.perPage(DROPLETS_PAGESIZE)
+						.build())))
+				.<Map<String, DropletResource>>collect(HashMap::new, (latest, droplet) -> latest.merge(getDropletAppId(droplet), droplet,
+						(d1, d2) -> (d1.getCreatedAt().compareTo(d2.getCreatedAt()) >= 0) ? d1 : d2));
+		return Mono.zip(existing, droplets)
+				.flatMap(found -> {
+					Map<String, String> states = new HashMap<String, String>();
+					List<String> staged = new ArrayList<String>();
+					for (String appid : found.getT1()) {
+						DropletResource droplet = found.getT2().get(appid);
+						if ((droplet != null) && (droplet.getState() == DropletState.STAGED)) {
+							staged.add(appid);
+						} else {
+							states.put(appid, ((droplet != null) && (droplet.getState() == DropletState.FAILED)) ? APP_STAGINGFAILED : APP_STARTING);
+						}
+					}
+					return Flux.fromIterable(staged)
+							.flatMap(appid -> cfclient.applicationsV2().summary(SummaryApplicationRequest.builder().applicationId(appid).build())
+									.onErrorResume(t -> (t instanceof ClientV2Exception) && Integer.valueOf(404).equals(((ClientV2Exception) t).getStatusCode()),
+											t -> Mono.empty()),
+									APPSTATES_CONCURRENCY)
+							.doOnNext(app -> states.put(app.getId(),
+									((app.getRunningInstances() != null) && (app.getRunningInstances() > 0)) ? APP_RUNNING : APP_STARTING))
+							.then(Mono.just(states));
+				});
+	}
+
+	private static String getDropletAppId(DropletResource droplet) {
+		Link app = droplet.getLinks().get("app");
+		if (app == null) {
+			return "";
+		}
+		return app.getHref().substring(app.getHref().lastIndexOf('/') + 1);
+	}
+
+	/**
+	 * The config file of an instance is passed through the environment of its app and installed
+	 * at startup by the .profile script of the release.
+	 */
+	private void addConfigIni(Map<String, String> env, String version, String instid) {
+		byte configini[] = MatomoReleases.getConfigIni(version, instid);
+		if (configini != null) {
+			env.put(CONFIGINI_VAR, Base64.getEncoder().encodeToString(configini));
+		}
 	}
 
 	public Mono<Void> scaleMatomoCfApp(String instid, int instances, int memsize) {
@@ -201,18 +727,94 @@ public class CloudFoundryMgrImpl extends CloudFoundryMgrAbs {
 	}
 
 	/**
-	 * Launch the creation of a dedicated DB for a particular Matomo instance.
+	 * Launch the creation of a dedicated DB for a particular Matomo instance, unless it already
+	 * exists (e.g., when the creation is resumed after a restart of the service). Only the request
+	 * is sent to CF: the end of the creation is waited for with {@link #awaitDedicatedDb(String, String)}.
 	 * @param instid	The code name of the instance
 	 * @return	The Mono to signal the end of the async process (produce nothing indeed)
 	 */
 	public Mono<Void> createDedicatedDb(String instid, String planid) {
 		LOGGER.debug("CFMGR::createDedicatedDb: instId={}", instid);
-		return cfops.services().createInstance(CreateServiceInstanceRequest.builder()
-					.serviceInstanceName(properties.getDbCreds(planid).getInstanceServiceName(getAppName(instid)))
-					.serviceName(properties.getDbCreds(planid).getServiceName())
-					.planName(properties.getDbCreds(planid).getPlanName())
-					.completionTimeout(Duration.ofMinutes(CREATEDBSERV_TIMEOUT))
-					.build());
+		return requestServiceInstance(properties.getDbCreds(planid).getInstanceServiceName(getAppName(instid)),
+				properties.getDbCreds(planid).getServiceName(),
+				properties.getDbCreds(planid).getPlanName());
+	}
+
+	/**
+	 * Wait for the dedicated DB of a particular Matomo instance to be created.
+	 * @param instid	The code name of the instance
+	 * @param planid	The service plan of the instance
+	 * @return	The Mono to signal the end of the creation (produce nothing indeed)
+	 */
+	public Mono<Void> awaitDedicatedDb(String instid, String planid) {
+		LOGGER.debug("CFMGR::awaitDedicatedDb: instId={}", instid);
+		return awaitServiceInstance(properties.getDbCreds(planid).getInstanceServiceName(getAppName(instid)));
+	}
+
+	/**
+	 * Request the creation of a service instance if it does not exist yet: the last operation of
+	 * an existing one (possibly a creation still in progress) is then only waited for.
+	 */
+	private Mono<Void> requestServiceInstance(String name, String service, String plan) {
+		return cfops.services().getInstance(GetServiceInstanceRequest.builder().name(name).build())
+				.doOnSuccess(si -> LOGGER.debug("CFMGR::requestServiceInstance: service instance {} already exist", name))
+				.then()
+				.onErrorResume(IllegalArgumentException.class, t -> {
+					LOGGER.debug("CFMGR::requestServiceInstance: create service instance {}", name);
+					return getSpaceId()
+							.zipWith(getServicePlanId(service, plan))
+							.flatMap(ids -> cfclient.serviceInstances().create(CreateServiceInstanceRequest.builder()
+									.name(name)
+									.spaceId(ids.getT1())
+									.servicePlanId(ids.getT2())
+									.acceptsIncomplete(true)
+									.build()))
+							.then();
+				});
+	}
+
+	/**
+	 * Wait for the last operation on a service instance to end, the wait being shared with the
+	 * other ones through the state poller.
+	 */
+	private Mono<Void> awaitServiceInstance(String name) {
+		return poller.await(serviceStates, name, s -> !SERVICE_INPROGRESS.equals(s), Duration.ofMinutes(CREATEDBSERV_TIMEOUT))
+				.flatMap(state -> SERVICE_SUCCEEDED.equals(state)
+						? Mono.<Void>empty()
+						: Mono.<Void>error(new IllegalStateException("Service instance " + name + " cannot be created: " + state)));
+	}
+
+	private Mono<String> getServicePlanId(String service, String plan) {
+		return servicePlanIds.computeIfAbsent(service + "/" + plan, k -> PaginationUtils
+				.requestClientV2Resources(page -> cfclient.services().list(ListServicesRequest.builder()
+						.label(service)
+						.page(page)
+						.build()))
+				.flatMap(s -> PaginationUtils.requestClientV2Resources(page -> cfclient.servicePlans().list(ListServicePlansRequest.builder()
+						.serviceId(s.getMetadata().getId())
+						.page(page)
+						.build())))
+				.filter(p -> plan.equals(p.getEntity().getName()))
+				.map(p -> p.getMetadata().getId())
+				.next()
+				.switchIfEmpty(Mono.error(new IllegalArgumentException("No plan " + plan + " for service " + service)))
+				.doOnError(t -> servicePlanIds.remove(k))
+				.cache());
+	}
+
+	/**
+	 * Get the state of the last operation of service instances of the space with a single
+	 * request filtered on their names.
+	 */
+	private Mono<Map<String, String>> getServiceStates(Set<String> names) {
+		return getSpaceId()
+				.flatMapMany(spaceid -> PaginationUtils.requestClientV2Resources(page -> cfclient.serviceInstances().list(ListServiceInstancesRequest.builder()
+						.spaceId(spaceid)
+						.names(names)
+						.page(page)
+						.build())))
+				.collectMap(si -> si.getEntity().getName(),
+						si -> (si.getEntity().getLastOperation() == null) ? SERVICE_SUCCEEDED : si.getEntity().getLastOperation().getState());
 	}
 
 	/**
@@ -242,10 +844,12 @@ public class CloudFoundryMgrImpl extends CloudFoundryMgrAbs {
 	}
 
 	/**
-	 * Launch the deletion of the CF app for an instance of Matomo service.
+	 * Delete the CF app for an instance of Matomo service: it is unbound from its DB, then deleted
+	 * with its routes. The app is deleted even if the unbinding fails, whereas a failed deletion
+	 * is signaled.
 	 * @param instid	The name of the Matomo instance as it is exposed to the Web
 	 * @param planid	The service plan of the Matomo instance
-	 * @return	The Mono to signal the end of the async process (produce nothing indeed)
+	 * @return	The Mono to signal the end of the async process (produce the deleted app)
 	 */
 	public Mono<ApplicationDetail> deleteMatomoCfApp(String instid, String planid) {
 		final String NOID = "none";
@@ -263,83 +867,97 @@ public class CloudFoundryMgrImpl extends CloudFoundryMgrAbs {
 					.requestedState("none")
 					.runningInstances(1)
 					.build());
-		}).doOnSuccess(ad -> {
+		}).flatMap(ad -> {
 			if (ad.getId().equals(NOID)) { // resume from not exist: OK but do nothing
-				return;
+				return Mono.just(ad);
 			}
 			LOGGER.debug("CFMGR::deleteMatomoCfApp: app exist");
-			cfops.services().unbind(UnbindServiceInstanceRequest.builder()
+			return cfops.services().unbind(UnbindServiceInstanceRequest.builder()
 					.serviceInstanceName(properties.getDbCreds(planid).getInstanceServiceName(getAppName(instid)))
 					.applicationName(getAppName(instid)).build())
+			.onErrorResume(t -> {
+				LOGGER.error("CFMGR::deleteMatomoCfApp: problem to unbind from DB, delete app anyway.", t);
+				return Mono.empty();
+			})
+			.then(cfops.applications().delete(
+					DeleteApplicationRequest.builder().deleteRoutes(true).name(getAppName(instid)).build()))
 			.doOnError(t -> {
-				LOGGER.error("CFMGR::deleteMatomoCfApp: problem to unbind from DB.", t);
-				cfops.applications().delete(
-						DeleteApplicationRequest.builder().deleteRoutes(true).name(getAppName(instid)).build())
-				.doOnError(tt -> {
-					LOGGER.error("CFMGR::deleteMatomoCfApp: problem to delete app (no unbind).", tt);
-				}).doOnSuccess(vv -> {
-					LOGGER.debug("CFMGR::deleteMatomoCfApp: app unbound and deleted.");
-				}).subscribe();
+				LOGGER.error("CFMGR::deleteMatomoCfApp: problem to delete app.", t);
 			}).doOnSuccess(v -> {
-				cfops.applications().delete(
-						DeleteApplicationRequest.builder().deleteRoutes(true).name(getAppName(instid)).build())
-				.doOnError(tt -> {
-					LOGGER.error("CFMGR::deleteMatomoCfApp: problem to delete app (after unbind).", tt);
-				}).doOnSuccess(vv -> {
-					LOGGER.debug("CFMGR::deleteMatomoCfApp: app unbound and deleted.");
-				}).subscribe();
-			}).subscribe();
+				LOGGER.debug("CFMGR::deleteMatomoCfApp: app unbound and deleted.");
+			}).thenReturn(ad);
 		});
 	}
 
-	public Mono<AppConfHolder> getInstanceConfigFile(String instid, String version, boolean clustermode) {
+	/**
+	 * Get the config file of a Matomo instance once installed. It is either generated from the
+	 * credentials of the services bound to the instance app, or retrieved from the instance
+	 * container through SSH. In both cases, it is also stored in the workspace of the instance.
+	 * @param instid	The code name of the instance
+	 * @param uuid	The id of the instance (its route)
+	 * @param version	The Matomo version of the instance
+	 * @param planid	The service plan of the instance
+	 * @param clustermode	Tell if the instance runs in cluster mode
+	 * @return	The Mono that produces the config file content
+	 */
+	public Mono<AppConfHolder> getInstanceConfigFile(String instid, String uuid, String version, String planid, boolean clustermode) {
 		LOGGER.debug("CFMGR::getInstanceConfigFile: instid={}, version={}, clusterMode={}", instid, version, clustermode);
+		if (properties.isConfigFromSsh()) {
+			if (!readiness.isReady(DEP_SSH)) {
+				return Mono.error(new IllegalStateException("SSH endpoint of CF not known yet (retry later on)"));
+			}
+			return retrieveInstanceConfigFile(instid, version, clustermode);
+		}
+		return getApplicationEnv(instid).map(env -> {
+			@SuppressWarnings("unchecked")
+			Map<String, Object> vcapservices = (Map<String, Object>)env.get("VCAP_SERVICES");
+			Map<String, String> dbcreds = properties.getDbCreds(planid).getCredentials(vcapservices);
+			if (dbcreds == null) {
+				throw new IllegalStateException("No DB service bound to app " + getAppName(instid));
+			}
+			AppConfHolder appconf = new AppConfHolder();
+			appconf.fileContent = new MatomoConfigGenerator(version)
+					.database(dbcreds, getTablePrefix(instid, planid))
+					.trustedHost(uuid + "." + properties.getDomain())
+					.smtp(properties.getSmtpCreds().getCredentials(vcapservices))
+					.clusterMode(clustermode)
+					.debug(properties.getMatomoDebug())
+					.generate();
+			MatomoReleases.setConfigIni(version, instid, appconf.fileContent);
+			return appconf;
+		});
+	}
+
+	private Mono<AppConfHolder> retrieveInstanceConfigFile(String instid, String version, boolean clustermode) {
 		AppConfHolder appidh = new AppConfHolder();
 		return Mono.create(sink -> {
 			cfops.applications().get(GetApplicationRequest.builder().name(getAppName(instid)).build())
 			.doOnError(t -> {sink.error(t);})
 			.doOnSuccess(appinfo -> {
 				appidh.appId = appinfo.getId();
-				cfops.advanced().sshCode()
-				.doOnError(t -> {sink.error(t);})
-				.doOnSuccess(pwd -> {
-					LOGGER.debug("CFMGR::getInstanceConfigFile: user={}, pwd={}", "cf:" + appidh.appId + "/0", pwd);
-					@SuppressWarnings("resource")
-					SSHClient ssh = new SSHClient();
-					ssh.addHostKeyVerifier(new PromiscuousVerifier());
-					try {
-						ssh.loadKnownHosts();
-						ssh.connect(sshHost, sshPort);
-						ssh.authPassword("cf:" + appidh.appId + "/0", pwd);
-						String target = MatomoReleases.getVersionPath(version, instid) + File.separator + "config" + File.separator;
-						ssh.newSCPFileTransfer().download("/home/vcap/app/htdocs/config/config.ini.php", new FileSystemFile(target));
-						Path pcf = Paths.get(target + "config.ini.php");
-						if (properties.getMatomoDebug()) {
-							Files.write(pcf, "\n[Tracker]\ndebug = 1\nenable_sql_profiler = 1\n".getBytes(), StandardOpenOption.APPEND);
-						}
-						if (clustermode) {
-							List<String> allLines = Files.readAllLines(pcf);
-							Files.write(pcf, "".getBytes());
-							for (String line : allLines) {
-								Files.write(pcf, (line + "\n").getBytes(), StandardOpenOption.APPEND);
-								if (line.startsWith("[General]")) {
-									LOGGER.debug("CFMGR::getInstanceConfigFile: add configuration for cluster mode support");
-									Files.write(pcf, "session_save_handler = dbtable\n".getBytes(), StandardOpenOption.APPEND);
-									Files.write(pcf, "multi_server_environment = 1\n".getBytes(), StandardOpenOption.APPEND);									
-								}
-							}
-						}
-						appidh.fileContent = Files.readAllBytes(Paths.get(target + "config.ini.php"));
-						sink.success(appidh);
-					} catch (Exception e) {
-						sink.error(e);
-					} finally {
-						try {
-							ssh.disconnect();
-						} catch (IOException e) {
-							sink.error(e);
+				String user = "cf:" + appidh.appId + "/0";
+				LOGGER.debug("CFMGR::getInstanceConfigFile: user={}", user);
+				sshPool.execute(sshHost, sshPort, user, cfops.advanced().sshCode(), ssh -> {
+					ByteArrayOutputStream bos = new ByteArrayOutputStream();
+					ssh.newSCPFileTransfer().download("/home/vcap/app/htdocs/config/config.ini.php", new InMemoryDestFile() {
+						@Override
+						public OutputStream getOutputStream() {
+							return bos;
 						}
+					});
+					return bos.toByteArray();
+				})
+				.doOnError(t -> {sink.error(t);})
+				.doOnSuccess(content -> {
+					if (clustermode) {
+						LOGGER.debug("CFMGR::getInstanceConfigFile: add configuration for cluster mode support");
 					}
+					appidh.fileContent = new MatomoConfigEditor(content)
+							.clusterMode(clustermode)
+							.trackerDebug(properties.getMatomoDebug())
+							.toBytes();
+					MatomoReleases.setConfigIni(version, instid, appidh.fileContent);
+					sink.success(appidh);
 				})
 				.subscribe();
 			})
@@ -348,125 +966,150 @@ public class CloudFoundryMgrImpl extends CloudFoundryMgrAbs {
 	}
 
 	/**
-	 * 
-	 * @param appcode
-	 * @param nuri
-	 * @param pwd
-	 * @return		true if the instance has been intialized correctly
+	 * Run the installation wizard of a newly deployed Matomo instance.
+	 * @param appcode	The code name of the instance
+	 * @param nuri	The id of the instance (its route)
+	 * @param pwd	The password of the admin user
+	 * @param planid	The service plan of the instance
+	 * @return		The Mono to signal the end of the installation (produce nothing indeed)
 	 */
-	public boolean initializeMatomoInstance(String appcode, String nuri, String pwd, String planid) {
+	public Mono<Void> initializeMatomoInstance(String appcode, String nuri, String pwd, String planid) {
 		LOGGER.debug("CFMGR::initializeMatomoInstance: appCode={}", appcode);
-		RestTemplate restTemplate = new RestTemplate();
-		try {
-			URI uri = new URI("https://" + nuri + "." + properties.getDomain()), calluri;
-			LOGGER.debug("Base URI: {}", uri.toString());
-			String res = restTemplate.getForObject(calluri = uri, String.class);
-			LOGGER.debug("After GET on <{}>", calluri.toString());
-			res = restTemplate.getForObject(calluri = URI.create(uri.toString() + "/index.php?action=systemCheck"),
-					String.class);
-			LOGGER.debug("After GET on <{}>", calluri.toString());
-			res = restTemplate.getForObject(calluri = URI.create(uri.toString() + "/index.php?action=databaseSetup"),
-					String.class);
-			LOGGER.debug("After GET on <{}>", calluri.toString());
+		String uri = "https://" + nuri + "." + properties.getDomain();
+		LOGGER.debug("Base URI: {}", uri);
+		String prefix = getTablePrefix(appcode, planid);
+		List<MatomoInstaller.Step> steps = new ArrayList<MatomoInstaller.Step>();
+		steps.add(MatomoInstaller.Step.get("home", ""));
+		steps.add(MatomoInstaller.Step.get("systemCheck", "/index.php?action=systemCheck"));
+		steps.add(MatomoInstaller.Step.get("databaseSetupForm", "/index.php?action=databaseSetup"));
+		steps.add(MatomoInstaller.Step.post("databaseSetup", "/index.php?action=databaseSetup", res -> {
 			Document d = Jsoup.parse(res);
-			if (d == null) {
-				LOGGER.error("CFMGR::initializeMatomoInstance: error while decoding JSON from GET databaseSetup.");
-				return false;
-			}
 			MultipartBodyBuilder mbb = new MultipartBodyBuilder();
 			mbb.part("type", d.getElementById("type-0").attr("value"));
 			mbb.part("host", d.getElementById("host-0").attr("value"));
 			mbb.part("username", d.getElementById("username-0").attr("value"));
 			mbb.part("password", d.getElementById("password-0").attr("value"));
 			mbb.part("dbname", d.getElementById("dbname-0").attr("value"));
-			mbb.part("tables_prefix", getTablePrefix(appcode, planid) + "_");
+			mbb.part("tables_prefix", prefix + "_");
 			mbb.part("adapter", "PDO\\MYSQL");
 			mbb.part("submit", "Suivant+%C2%BB");
-			res = restTemplate.postForObject(calluri = URI.create(uri.toString() + "/index.php?action=databaseSetup"),
-					mbb.build(), String.class);
-			LOGGER.debug("After POST on <{}>", calluri.toString());
-			res = restTemplate.getForObject(
-					calluri = URI.create(uri.toString() + "/index.php?action=tablesCreation&module=Installation"),
-					String.class);
-			LOGGER.debug("After GET on <{}>", calluri.toString());
-			res = restTemplate.getForObject(
-					calluri = URI.create(uri.toString() + "/index.php?action=setupSuperUser&module=Installation"),
-					String.class);
-			LOGGER.debug("After GET on <{}>", calluri.toString());
-			mbb = new MultipartBodyBuilder();
+			return mbb.build();
+		}));
+		steps.add(MatomoInstaller.Step.get("tablesCreation", "/index.php?action=tablesCreation&module=Installation"));
+		steps.add(MatomoInstaller.Step.get("setupSuperUserForm", "/index.php?action=setupSuperUser&module=Installation"));
+		steps.add(MatomoInstaller.Step.post("setupSuperUser", "/index.php?action=setupSuperUser&module=Installation", res -> {
+			MultipartBodyBuilder mbb = new MultipartBodyBuilder();
 			mbb.part("login", MATOMOINSTANCE_ROOTUSER);
 			mbb.part("password", pwd);
 			mbb.part("password_bis", pwd);
-			mbb.part("email", "piwik@orange.com");
+			mbb.part("email", MATOMOINSTANCE_ROOTEMAIL);
 			mbb.part("subscribe_newsletter_piwikorg", "0");
 			mbb.part("subscribe_newsletter_professionalservices", "0");
 			mbb.part("submit", "Suivant+%C2%BB");
-			res = restTemplate.postForObject(
-					calluri = URI.create(uri.toString() + "/index.php?action=setupSuperUser&module=Installation"),
-					mbb.build(), String.class);
-			LOGGER.debug("After POST on <{}>", calluri.toString());
-			mbb = new MultipartBodyBuilder();
+			return mbb.build();
+		}));
+		steps.add(MatomoInstaller.Step.post("firstWebsiteSetup", "/index.php?action=firstWebsiteSetup&module=Installation", res -> {
+			MultipartBodyBuilder mbb = new MultipartBodyBuilder();
 			mbb.part("siteName", appcode);
-			mbb.part("url", uri.toASCIIString());
+			mbb.part("url", uri);
 			mbb.part("timezone", "Europe/Paris");
 			mbb.part("ecommerce", "0");
 			mbb.part("submit", "Suivant+%C2%BB");
-			res = restTemplate.postForObject(
-					calluri = URI.create(uri.toString() + "/index.php?action=firstWebsiteSetup&module=Installation"),
-					mbb.build(), String.class);
-			LOGGER.debug("After POST on <{}>", calluri.toString());
-			res = restTemplate.getForObject(calluri = URI.create(
-					uri.toString() + "/index.php?action=finished" + "&clientProtocol=https" + "&module=Installation"
-							+ "&site_idSite=4" + "&site_name=" + getTablePrefix(appcode, planid)),
-					String.class);
-			LOGGER.debug("After GET on <{}>", calluri.toString());
-			mbb = new MultipartBodyBuilder();
+			return mbb.build();
+		}));
+		String finished = "/index.php?action=finished&clientProtocol=https&module=Installation&site_idSite=4&site_name=" + prefix;
+		steps.add(MatomoInstaller.Step.get("finishedForm", finished));
+		steps.add(MatomoInstaller.Step.post("finished", finished, res -> {
+			MultipartBodyBuilder mbb = new MultipartBodyBuilder();
 			mbb.part("do_not_track", "1");
 			mbb.part("anonymise_ip", "1");
 			mbb.part("submit", "Continuer+vers+Matomo+%C2%BB");
-			res = restTemplate.postForObject(calluri = URI.create(uri.toString()
-					+ "/index.php?action=finished&clientProtocol=https&module=Installation&site_idSite=4&site_name="
-					+ getTablePrefix(appcode, planid)), mbb.build(), String.class);
-			LOGGER.debug("After POST on <{}>", calluri.toString());
-			res = restTemplate.getForObject(calluri = uri, String.class);
-			LOGGER.debug("After GET on <{}>", calluri.toString());
-		} catch (RestClientException e) {
-			e.printStackTrace();
-			LOGGER.error("CFMGR::initializeMatomoInstance: error while calling service instance through HTTP.", e);
-			return false;
-		} catch (URISyntaxException e) {
-			LOGGER.error("CFMGR::initializeMatomoInstance: wrong URI for calling service instance through HTTP.", e);
-			return false;
-		}
-		return true;
+			return mbb.build();
+		}));
+		steps.add(MatomoInstaller.Step.get("installed", ""));
+		return installer.run(uri, steps).then();
+	}
+
+	/**
+	 * Initialize the database of a newly deployed Matomo instance from the schema captured on a
+	 * previous installation of the same version, instead of running the installation wizard.
+	 * On the global shared DB plan, the tables are cloned from template tables of the version kept
+	 * in the shared database.
+	 * @param appcode	The code name of the instance
+	 * @param nuri	The id of the instance (its route)
+	 * @param pwd	The password of the admin user
+	 * @param planid	The service plan of the instance
+	 * @param version	The Matomo version of the instance
+	 * @param schema	The statements of the schema snapshot
+	 * @return		The Mono to signal the end of the initialization (produce nothing indeed)
+	 */
+	public Mono<Void> seedMatomoInstance(String appcode, String nuri, String pwd, String planid, String version, List<String> schema) {
+		LOGGER.debug("CFMGR::seedMatomoInstance: appCode={}, version={}, nbStatements={}", appcode, version, schema.size());
+		String prefix = getTablePrefix(appcode, planid) + "_";
+		return getJdbcUrl(appcode, planid).publishOn(Schedulers.elastic()).doOnNext(jdbcurl -> {
+			try (Connection conn = dbPools.getConnection(jdbcurl)) {
+				if (planid.equals(ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID)) {
+					String template = getTemplatePrefix(version);
+					synchronized (templateLock) {
+						MatomoSchemaSnapshot.ensureTemplate(conn, template, schema);
+					}
+					MatomoSchemaSnapshot.cloneTemplate(conn, template, prefix);
+				} else {
+					MatomoSchemaSnapshot.apply(conn, prefix, schema);
+				}
+				MatomoSchemaSnapshot.setupSuperUserAndSite(conn, prefix, MATOMOINSTANCE_ROOTUSER, pwd, MATOMOINSTANCE_ROOTEMAIL, appcode, getInstanceUrl(nuri));
+			} catch (SQLException e) {
+				LOGGER.error("CFMGR::seedMatomoInstance: SQL problem.", e);
+				throw new RuntimeException("SQL pb in CFMGR::seedMatomoInstance", e);
+			}
+		}).then();
 	}
 
 	/**
-	 * 
-	 * @param appcode
-	 * @param nuri
-	 * @return		true if the instance has been upgraded correctly
+	 * Capture the schema of a Matomo instance that has just been installed by the wizard.
+	 * @param instid	The code name of the instance
+	 * @param planid	The service plan of the instance
+	 * @return	The Mono that produces the statements of the schema snapshot
 	 */
-	public boolean upgradeMatomoInstance(String appcode, String nuri) {
+	public Mono<List<String>> captureDbSchema(String instid, String planid) {
+		LOGGER.debug("CFMGR::captureDbSchema: instId={}", instid);
+		String prefix = getTablePrefix(instid, planid) + "_";
+		return getJdbcUrl(instid, planid).publishOn(Schedulers.elastic()).map(jdbcurl -> {
+			try (Connection conn = dbPools.getConnection(jdbcurl)) {
+				return MatomoSchemaSnapshot.capture(conn, prefix);
+			} catch (SQLException e) {
+				LOGGER.error("CFMGR::captureDbSchema: SQL problem.", e);
+				throw new RuntimeException("SQL pb in CFMGR::captureDbSchema", e);
+			}
+		});
+	}
+
+	private String getTemplatePrefix(String version) {
+		return MATOMO_AUPREFIX + "TPL" + version.replace('.', '_') + "_";
+	}
+
+	private Mono<String> getJdbcUrl(String instid, String planid) {
+		return getApplicationEnv(instid).map(env -> {
+			@SuppressWarnings("unchecked")
+			Map<String, Object> vcapservices = (Map<String, Object>)env.get("VCAP_SERVICES");
+			return properties.getDbCreds(planid).getJdbcUrl(vcapservices);
+		});
+	}
+
+	/**
+	 * Run the upgrade procedure of a Matomo instance that has been redeployed with a new version.
+	 * @param appcode	The code name of the instance
+	 * @param nuri	The id of the instance (its route)
+	 * @return		The Mono to signal the end of the upgrade (produce nothing indeed)
+	 */
+	public Mono<Void> upgradeMatomoInstance(String appcode, String nuri) {
 		LOGGER.debug("CFMGR::upgradeMatomoInstance: appCode={}", appcode);
-		RestTemplate restTemplate = new RestTemplate();
-		try {
-			URI uri = new URI("https://" + nuri + "." + properties.getDomain()), calluri;
-			LOGGER.debug("Base URI: {}", uri.toString());
-			restTemplate.getForObject(calluri = uri, String.class);
-			LOGGER.debug("After GET on <{}>", calluri.toString());
-			restTemplate.getForObject(calluri = URI.create(uri.toString() + "/index.php?updateCorePlugins=1"),
-					String.class);
-			LOGGER.debug("After GET on <{}>", calluri.toString());
-		} catch (RestClientException e) {
-			e.printStackTrace();
-			LOGGER.error("CFMGR::upgradeMatomoInstance: error while calling service instance through HTTP.", e);
-			return false;
-		} catch (URISyntaxException e) {
-			LOGGER.error("CFMGR::upgradeMatomoInstance: wrong URI for calling service instance through HTTP.", e);
-			return false;
-		}
-		return true;
+		String uri = "https://" + nuri + "." + properties.getDomain();
+		LOGGER.debug("Base URI: {}", uri);
+		List<MatomoInstaller.Step> steps = new ArrayList<MatomoInstaller.Step>();
+		steps.add(MatomoInstaller.Step.get("home", ""));
+		steps.add(MatomoInstaller.Step.get("updateCorePlugins", "/index.php?updateCorePlugins=1"));
+		return installer.run(uri, steps).then();
 	}
 
 	public String getApiAccessToken(String dbcred, String instid, String planid) {
@@ -475,16 +1118,13 @@ public class CloudFoundryMgrImpl extends CloudFoundryMgrAbs {
 		Connection conn = null;
 		Statement stmt = null;
 		try {
-			Class.forName("org.mariadb.jdbc.Driver");
-			conn = DriverManager.getConnection(dbcred);
+			conn = dbPools.getConnection(dbcred);
 			stmt = conn.createStatement();
 			stmt.execute("SELECT token_auth FROM " + getTablePrefix(instid, planid) + "_user WHERE login='" + MATOMOINSTANCE_ROOTUSER + "'");
 			if (!stmt.getResultSet().first()) {
 				LOGGER.error("Cannot retrieve the credentials of the admin user (resultset issue).");
 			}
 			token = stmt.getResultSet().getString(1);
-		} catch (ClassNotFoundException e) {
-			LOGGER.error("Cannot retrieve the credentials of the admin user (driver not found).", e);
 		} catch (SQLException e) {
 			LOGGER.error("Cannot retrieve the credentials of the admin user (sql problem).", e);
 		} finally {
@@ -502,45 +1142,53 @@ public class CloudFoundryMgrImpl extends CloudFoundryMgrAbs {
 		return token;
 	}
 
-	public void deleteAssociatedDbSchema(PMatomoInstance pmi) {
-		LOGGER.debug("CFMGR::deleteAssociatedDbSchema: appCode={}", pmi.getIdUrlStr());
-		if (pmi.getDbCred() == null) {
-			return;
+	/**
+	 * Drop the tables of a Matomo instance in the background, in batches of tables.
+	 * @param dbcred	The JDBC URL of the database of the instance (nothing to drop if null)
+	 * @param instid	The code name of the instance
+	 * @param planid	The service plan of the instance
+	 * @param progress	Called after each batch with the number of tables dropped and the total (may be null)
+	 * @return	The Mono to signal the end of the teardown (produce nothing indeed)
+	 */
+	public Mono<Void> deleteAssociatedDbSchema(String dbcred, String instid, String planid, BiConsumer<Integer, Integer> progress) {
+		LOGGER.debug("CFMGR::deleteAssociatedDbSchema: appCode={}", instid);
+		if (dbcred == null) {
+			return Mono.empty();
 		}
-        Connection conn = null;
-        Statement stmt = null;
-		try {
-			Class.forName("org.mariadb.jdbc.Driver");
-			//LOGGER.debug("SERV::deleteAssociatedDbSchema: jdbcUrl={}", pmi.getDbCred());
-			conn = DriverManager.getConnection(pmi.getDbCred());
-			DatabaseMetaData m = conn.getMetaData();
-			ResultSet tables = m.getTables(null, null, "%", null);
-			while (tables.next()) {
-				if (! tables.getString(3).startsWith(getTablePrefix(pmi.getIdUrlStr(), pmi.getPlanId()))) {
-					continue;
+		String prefix = getTablePrefix(instid, planid) + "_";
+		return Mono.fromRunnable(() -> {
+			try (Connection conn = dbPools.getConnection(dbcred)) {
+				List<String> tables = new ArrayList<String>();
+				try (PreparedStatement ps = conn.prepareStatement("SELECT table_name FROM information_schema.tables WHERE table_schema = DATABASE() AND table_name LIKE ? ESCAPE '!'")) {
+					ps.setString(1, escapeLike(prefix) + "%");
+					try (ResultSet rs = ps.executeQuery()) {
+						while (rs.next()) {
+							tables.add(rs.getString(1));
+						}
+					}
 				}
-				stmt = conn.createStatement();
-				stmt.execute("DROP TABLE " + tables.getString(3));
-				stmt.close();
-			}
-		} catch (ClassNotFoundException e) {
-			LOGGER.error("CFMGR::deleteAssociatedDbSchema: cannot find JDBC driver.");
-			e.printStackTrace();
-			throw new RuntimeException("Cannot remove tables of deleted Matomo service instance (DRIVER).", e);
-		} catch (SQLException e) {
-			LOGGER.error("CFMGR::deleteAssociatedDbSchema: SQL problem -> {}", e.getMessage());
-			e.printStackTrace();
-			throw new RuntimeException("Cannot remove tables of deleted Matomo service instance (SQL EXEC).", e);
-		} finally {
-			try {
-				if (conn != null) {
-					conn.close();
+				LOGGER.debug("CFMGR::deleteAssociatedDbSchema: {} tables to drop for {}", tables.size(), instid);
+				try (Statement stmt = conn.createStatement()) {
+					for (int from = 0; from < tables.size(); from += DROPTABLES_BATCH) {
+						int to = Math.min(tables.size(), from + DROPTABLES_BATCH);
+						StringBuilder sb = new StringBuilder("DROP TABLE IF EXISTS ");
+						for (int t = from; t < to; t++) {
+							sb.append((t > from) ? ", `" : "`").append(tables.get(t)).append('`');
+						}
+						stmt.execute(sb.toString());
+						if (progress != null) {
+							progress.accept(to, tables.size());
+						}
+					}
 				}
 			} catch (SQLException e) {
-				LOGGER.error("CFMGR::deleteAssociatedDbSchema: SQL problem while closing connexion -> {}", e.getMessage());
-				e.printStackTrace();
-				throw new RuntimeException("Cannot remove tables of deleted Matomo service instance (CNX CLOSE).", e);
+				LOGGER.error("CFMGR::deleteAssociatedDbSchema: SQL problem -> {}", e.getMessage());
+				throw new RuntimeException("Cannot remove tables of deleted Matomo service instance (SQL EXEC).", e);
 			}
-		}
+		}).subscribeOn(Schedulers.elastic()).then();
+	}
+
+	private static String escapeLike(String val) {
+		return val.replace("!", "!!").replace("%", "!%").replace("_", "!_");
 	}
 }
@@ -18,6 +18,7 @@ package com.orange.oss.matomocfservice.cfmgr;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -36,6 +37,7 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.util.Assert;
 
 import com.orange.oss.matomocfservice.servicebroker.ServiceCatalogConfiguration;
+import com.orange.oss.matomocfservice.web.service.MatomoReleases;
 
 /**
  * @author P. Déchamboux
@@ -50,6 +52,20 @@ public class CloudFoundryMgrProperties {
 	private final static String SERVICESUFFIX = "-DB";
 	@Value("${matomo-service.matomo-debug:false}")
 	private boolean matomoDebug;
+	@Value("${matomo-service.workspace-mode:copy}")
+	private String workspaceMode;
+	@Value("${matomo-service.config-source:generate}")
+	private String configSource;
+	@Value("${matomo-service.droplet-cache:false}")
+	private boolean dropletCache;
+	@Value("${matomo-service.resource-match:true}")
+	private boolean resourceMatch;
+	@Value("${matomo-service.resource-match-min-size:65536}")
+	private long resourceMatchMinSize;
+	@Value("${matomo-service.upgrade-mode:in-place}")
+	private String upgradeMode;
+	@Value("${cf.space}")
+	private String cfSpace;
 	@Value("${matomo-service.smtp.creds}")
 	private String smtpCredsStr;
 	private SmtpCreds smtpCreds = null;
@@ -83,6 +99,60 @@ public class CloudFoundryMgrProperties {
 		return this.matomoDebug;
 	}
 
+	public MatomoReleases.WorkspaceMode getWorkspaceMode() {
+		try {
+			return MatomoReleases.WorkspaceMode.valueOf(this.workspaceMode.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			LOGGER.error("CONFIG::unknown workspace mode \"{}\" -> use copy mode", this.workspaceMode);
+			return MatomoReleases.WorkspaceMode.COPY;
+		}
+	}
+
+	/**
+	 * Tell if the config file of an instance is retrieved from its container through SSH after
+	 * Matomo installation, or generated by the service itself.
+	 */
+	public boolean isConfigFromSsh() {
+		return "ssh".equalsIgnoreCase(this.configSource.trim());
+	}
+
+	/**
+	 * Tell if instance apps run a copy of a droplet staged once per Matomo version, rather than
+	 * being staged from their own bits.
+	 */
+	public boolean isDropletCache() {
+		return this.dropletCache;
+	}
+
+	/**
+	 * Tell if instance apps are pushed with the content index of their release, so that only the
+	 * files missing from the CF blobstore are uploaded.
+	 */
+	public boolean isResourceMatch() {
+		return this.resourceMatch;
+	}
+
+	/**
+	 * The size under which Cloud Controller does not pool files (its resource_pool.minimum_size):
+	 * smaller files can never be matched and are always uploaded.
+	 */
+	public long getResourceMatchMinSize() {
+		return this.resourceMatchMinSize;
+	}
+
+	/**
+	 * Tell if the version of an instance is upgraded by deploying the new version next to the
+	 * current app and moving the route of the instance to it, rather than by pushing over the
+	 * current app.
+	 */
+	public boolean isBlueGreenUpgrade() {
+		return "blue-green".equalsIgnoreCase(this.upgradeMode.trim());
+	}
+
+	public String getSpace() {
+		return this.cfSpace;
+	}
+
 	public String getDomain() {
 		return this.serviceDomain;
 	}
@@ -155,6 +225,22 @@ public class CloudFoundryMgrProperties {
 			return this;
 		}
 
+		/**
+		 * Get the actual SMTP settings from the environment of an app bound to the SMTP service.
+		 * @param vcapServices	The VCAP_SERVICES of the app
+		 * @return	Values for "host" and "port", or null if the service is not bound
+		 */
+		public Map<String, String> getCredentials(Map<String, Object> vcapServices) {
+			Map<String, Object> creds = getServiceCredentials(vcapServices, this.service);
+			if (creds == null) {
+				return null;
+			}
+			Map<String, String> res = new HashMap<String, String>();
+			res.put("host", credValue(creds, this.host));
+			res.put("port", credValue(creds, this.port));
+			return res;
+		}
+
 		public SmtpCreds addService(List<String> services) {
 			services.add(SMTPINSTNAME);
 			return this;
@@ -234,6 +320,26 @@ public class CloudFoundryMgrProperties {
 			return this.plan;
 		}
 
+		/**
+		 * Get the actual DB credentials from the environment of an app bound to the DB service.
+		 * @param vcapServices	The VCAP_SERVICES of the app
+		 * @return	Values for "name", "host", "port", "user" and "password", or null if the service is not bound
+		 */
+		public Map<String, String> getCredentials(Map<String, Object> vcapServices) {
+			Map<String, Object> creds = getServiceCredentials(vcapServices, this.service);
+			if (creds == null) {
+				return null;
+			}
+			Map<String, String> res = new HashMap<String, String>();
+			res.put("name", credValue(creds, this.name));
+			res.put("host", credValue(creds, this.host));
+			String port = credValue(creds, this.port);
+			res.put("port", port == null ? "3306" : port);
+			res.put("user", credValue(creds, this.user));
+			res.put("password", credValue(creds, this.password));
+			return res;
+		}
+
 		public String getJdbcUrl(Map<String, Object> vcapServices) {
 			StringBuffer sb = new StringBuffer("jdbc:mysql://");
 			if (this.service != null) {
@@ -251,6 +357,23 @@ public class CloudFoundryMgrProperties {
 		}
 	}
 
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> getServiceCredentials(Map<String, Object> vcapServices, String service) {
+		if ((vcapServices == null) || (service == null)) {
+			return null;
+		}
+		List<Object> instances = (List<Object>)vcapServices.get(service);
+		if ((instances == null) || instances.isEmpty()) {
+			return null;
+		}
+		return (Map<String, Object>)((Map<String, Object>)instances.get(0)).get("credentials");
+	}
+
+	private static String credValue(Map<String, Object> creds, String key) {
+		Object val = creds.get(key);
+		return val == null ? null : val.toString();
+	}
+
 	public String toString() {
 		StringBuffer sb = new StringBuffer("{service-domain: \"");
 		sb.append(serviceDomain);
@@ -269,6 +392,7 @@ public class CloudFoundryMgrProperties {
     @PostConstruct
     public void afterInitialize() {
     	LOGGER.debug("CONFIG::properties: " + this.toString());
+    	MatomoReleases.setWorkspaceMode(getWorkspaceMode());
     	EntityManager em = null;
     	try {
 			em = entityManagerFactory.createEntityManager();
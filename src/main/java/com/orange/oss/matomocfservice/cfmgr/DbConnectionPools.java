@@ -0,0 +1,253 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Keep small connection pools to the databases of Matomo instances, one per JDBC URL, so that
+ * direct SQL accesses reuse authenticated connections. Pools that have not been used for some
+ * time are closed, and the total number of connections the pools can open is capped: when all
+ * pools are in use, a new one waits for a pool to be freed. Pools are opened and closed outside
+ * of the lock of the pools, so that a slow database only delays its own accesses.
+ * @author P. Déchamboux
+ *
+ */
+public class DbConnectionPools {
+	private final static Logger LOGGER = LoggerFactory.getLogger(DbConnectionPools.class);
+	private final static String DRIVER = "org.mariadb.jdbc.Driver";
+	// pools become unused when their connections are given back, which is not notified
+	private final static long POOLWAIT_MS = 100;
+	// pools ordered from the least recently used to the most recently used
+	private final Map<String, PooledDb> pools = new LinkedHashMap<String, PooledDb>(16, 0.75f, true);
+	private final AtomicInteger poolSeq = new AtomicInteger();
+	private final String driver;
+	private final int maxPools;
+	private final int poolSize;
+	private final long idleTimeoutMs;
+	private final long connectTimeoutMs;
+	private final MeterRegistry registry;
+	private final ScheduledExecutorService evictor;
+
+	public DbConnectionPools(int maxConnections, int poolSize, long idleTimeoutMs, long connectTimeoutMs, MeterRegistry registry) {
+		this(DRIVER, maxConnections, poolSize, idleTimeoutMs, connectTimeoutMs, registry);
+	}
+
+	DbConnectionPools(String driver, int maxConnections, int poolSize, long idleTimeoutMs, long connectTimeoutMs, MeterRegistry registry) {
+		LOGGER.debug("CONFIG::DbConnectionPools: maxConnections={}, poolSize={}, idleTimeout={}ms", maxConnections, poolSize, idleTimeoutMs);
+		this.driver = driver;
+		this.poolSize = Math.max(1, Math.min(poolSize, maxConnections));
+		this.maxPools = Math.max(1, maxConnections / this.poolSize);
+		this.idleTimeoutMs = idleTimeoutMs;
+		this.connectTimeoutMs = connectTimeoutMs;
+		this.registry = registry;
+		registry.gauge("matomo.db.pools", pools, p -> size());
+		this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "db-pools-evictor");
+			t.setDaemon(true);
+			return t;
+		});
+		this.evictor.scheduleWithFixedDelay(this::evictIdle, idleTimeoutMs, Math.max(1000, idleTimeoutMs / 2), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Get a connection to a database: the caller must close it to give it back to the pool.
+	 * @param jdbcurl	The JDBC URL of the database (with its credentials)
+	 * @return	The connection
+	 * @throws SQLException
+	 */
+	public Connection getConnection(String jdbcurl) throws SQLException {
+		HikariDataSource ds = getPool(jdbcurl);
+		try {
+			return ds.getConnection();
+		} catch (SQLException e) {
+			// the pool may have been evicted in between: retry with a new one
+			if (ds.isClosed()) {
+				return getPool(jdbcurl).getConnection();
+			}
+			throw e;
+		}
+	}
+
+	@PreDestroy
+	public void close() {
+		LOGGER.debug("CFMGR::DbConnectionPools: close");
+		evictor.shutdownNow();
+		List<PooledDb> closed;
+		synchronized (pools) {
+			closed = new ArrayList<PooledDb>(pools.values());
+			pools.clear();
+		}
+		closeAll(closed);
+	}
+
+	private HikariDataSource getPool(String jdbcurl) throws SQLException {
+		long deadline = System.currentTimeMillis() + connectTimeoutMs;
+		List<PooledDb> evicted = new ArrayList<PooledDb>();
+		PooledDb p;
+		boolean created = false;
+		synchronized (pools) {
+			while ((p = pools.get(jdbcurl)) == null) {
+				if ((pools.size() < maxPools) || evictOneUnused(evicted)) {
+					// the pool is opened once the lock is released
+					p = new PooledDb();
+					pools.put(jdbcurl, p);
+					created = true;
+					break;
+				}
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					throw new SQLException("CFMGR::DbConnectionPools: no DB pool freed within " + connectTimeoutMs + "ms (max=" + maxPools + ")");
+				}
+				try {
+					pools.wait(Math.min(remaining, POOLWAIT_MS));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("CFMGR::DbConnectionPools: interrupted while waiting for a DB pool", e);
+				}
+			}
+			p.lastUsed = System.currentTimeMillis();
+		}
+		closeAll(evicted);
+		if (created) {
+			try {
+				p.ds.complete(newDataSource(jdbcurl));
+			} catch (RuntimeException e) {
+				// e.g., database unreachable: next accesses will try again
+				synchronized (pools) {
+					pools.remove(jdbcurl, p);
+					pools.notifyAll();
+				}
+				p.ds.completeExceptionally(e);
+				throw new SQLException("CFMGR::DbConnectionPools: cannot open DB pool", e);
+			}
+		}
+		try {
+			return p.ds.get(connectTimeoutMs, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			throw new SQLException("CFMGR::DbConnectionPools: cannot open DB pool", e.getCause());
+		} catch (TimeoutException e) {
+			throw new SQLException("CFMGR::DbConnectionPools: DB pool not opened within " + connectTimeoutMs + "ms", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("CFMGR::DbConnectionPools: interrupted while waiting for a DB pool", e);
+		}
+	}
+
+	private HikariDataSource newDataSource(String jdbcurl) {
+		HikariConfig hc = new HikariConfig();
+		hc.setPoolName("matomo-db-" + poolSeq.incrementAndGet());
+		hc.setDriverClassName(driver);
+		hc.setJdbcUrl(jdbcurl);
+		hc.setMaximumPoolSize(poolSize);
+		hc.setMinimumIdle(0);
+		hc.setIdleTimeout(Math.max(10000, idleTimeoutMs));
+		hc.setConnectionTimeout(connectTimeoutMs);
+		hc.setMetricRegistry(registry);
+		LOGGER.debug("CFMGR::DbConnectionPools: new pool {}", hc.getPoolName());
+		return new HikariDataSource(hc);
+	}
+
+	/**
+	 * Remove the least recently used pool that has no connection in use: it has to be closed
+	 * by the caller, once the lock of the pools is released.
+	 */
+	private boolean evictOneUnused(List<PooledDb> evicted) {
+		for (Iterator<PooledDb> it = pools.values().iterator(); it.hasNext();) {
+			PooledDb p = it.next();
+			if (!p.inUse()) {
+				it.remove();
+				evicted.add(p);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void evictIdle() {
+		long limit = System.currentTimeMillis() - idleTimeoutMs;
+		List<PooledDb> evicted = new ArrayList<PooledDb>();
+		synchronized (pools) {
+			for (Iterator<PooledDb> it = pools.values().iterator(); it.hasNext();) {
+				PooledDb p = it.next();
+				if ((p.lastUsed < limit) && !p.inUse()) {
+					it.remove();
+					evicted.add(p);
+				}
+			}
+			if (!evicted.isEmpty()) {
+				pools.notifyAll();
+			}
+		}
+		closeAll(evicted);
+	}
+
+	private void closeAll(List<PooledDb> closed) {
+		for (PooledDb p : closed) {
+			HikariDataSource ds = p.getDataSource();
+			if (ds != null) {
+				LOGGER.debug("CFMGR::DbConnectionPools: close pool {}", ds.getPoolName());
+				ds.close();
+			}
+		}
+	}
+
+	private int size() {
+		synchronized (pools) {
+			return pools.size();
+		}
+	}
+
+	private static class PooledDb {
+		final CompletableFuture<HikariDataSource> ds = new CompletableFuture<HikariDataSource>();
+		long lastUsed;
+
+		HikariDataSource getDataSource() {
+			return (ds.isDone() && !ds.isCompletedExceptionally()) ? ds.join() : null;
+		}
+
+		/**
+		 * A pool being opened is in use.
+		 */
+		boolean inUse() {
+			HikariDataSource d = getDataSource();
+			return (d == null) || ((d.getHikariPoolMXBean() != null) && (d.getHikariPoolMXBean().getActiveConnections() > 0));
+		}
+	}
+}
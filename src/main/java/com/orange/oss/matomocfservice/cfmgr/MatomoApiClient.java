@@ -0,0 +1,258 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import reactor.core.publisher.Mono;
+
+/**
+ * Call the HTTP API of Matomo instances on the shared Web client. Several calls can be sent
+ * within a single HTTP request with the bulk API of Matomo, and responses are read with a
+ * streaming JSON parser.
+ * @author P. Déchamboux
+ *
+ */
+public class MatomoApiClient {
+	private final static Logger LOGGER = LoggerFactory.getLogger(MatomoApiClient.class);
+	private final static String CALLTIMER = "matomo.api.call";
+	private final static String BULKMETHOD = "API.getBulkRequest";
+	private final static JsonFactory JSONFACTORY = new JsonFactory();
+	private final WebClient webClient;
+	private final Duration timeout;
+	private final MeterRegistry registry;
+
+	/**
+	 * A call to a method of the Matomo API.
+	 */
+	public static class Call {
+		private final String method;
+		private final Map<String, String> params = new LinkedHashMap<String, String>();
+
+		public Call(String method) {
+			this.method = method;
+		}
+
+		public Call param(String name, String value) {
+			params.put(name, value);
+			return this;
+		}
+
+		public String getMethod() {
+			return this.method;
+		}
+	}
+
+	/**
+	 * The result of a call: either an error, or a success with an optional value.
+	 */
+	public static class Result {
+		private boolean error = false;
+		private String message = null;
+		private String value = null;
+
+		public boolean isError() {
+			return this.error;
+		}
+
+		public String getMessage() {
+			return this.message;
+		}
+
+		public String getValue() {
+			return this.value;
+		}
+	}
+
+	public MatomoApiClient(WebClient webClient, Duration timeout, MeterRegistry registry) {
+		this.webClient = webClient;
+		this.timeout = timeout;
+		this.registry = registry;
+	}
+
+	/**
+	 * Make a single call to the API of a Matomo instance.
+	 * @param baseuri	The base URI of the Matomo instance
+	 * @param token	The token of the user making the call
+	 * @param call	The call
+	 * @return	The Mono that produces the result of the call
+	 */
+	public Mono<Result> call(String baseuri, String token, Call call) {
+		MultiValueMap<String, String> form = form(call.method, token);
+		form.setAll(call.params);
+		return post(baseuri, call.method, form).map(res -> {
+			List<Result> results = parse(res, false);
+			if (results.size() != 1) {
+				throw new IllegalStateException("CFMGR::MatomoApiClient: unexpected response to " + call.method);
+			}
+			return results.get(0);
+		});
+	}
+
+	/**
+	 * Make several calls to the API of a Matomo instance within one HTTP request. Calls are run
+	 * in order by Matomo, and a failing call does not prevent the next ones to run.
+	 * @param baseuri	The base URI of the Matomo instance
+	 * @param token	The token of the user making the calls
+	 * @param calls	The calls
+	 * @return	The Mono that produces the results of the calls, in order
+	 */
+	public Mono<List<Result>> bulk(String baseuri, String token, List<Call> calls) {
+		MultiValueMap<String, String> form = form(BULKMETHOD, token);
+		for (int i = 0; i < calls.size(); i++) {
+			form.add("urls[" + i + "]", query(calls.get(i)));
+		}
+		return post(baseuri, BULKMETHOD, form).map(res -> {
+			List<Result> results = parse(res, true);
+			if (results.size() != calls.size()) {
+				throw new IllegalStateException("CFMGR::MatomoApiClient: " + results.size() + " results for " + calls.size() + " calls");
+			}
+			return results;
+		});
+	}
+
+	private Mono<String> post(String baseuri, String method, MultiValueMap<String, String> form) {
+		return Mono.defer(() -> {
+			long start = System.nanoTime();
+			return webClient.post()
+					.uri(URI.create(baseuri + "/index.php"))
+					.body(BodyInserters.fromFormData(form))
+					.retrieve()
+					.bodyToMono(String.class)
+					.timeout(timeout)
+					.doOnSuccess(res -> {
+						record(method, "success", start);
+						LOGGER.debug("CFMGR::MatomoApiClient: {} response: {}", method, res);
+					})
+					.doOnError(t -> {
+						record(method, "error", start);
+						LOGGER.error("CFMGR::MatomoApiClient: " + method + " failed on <" + baseuri + ">.", t);
+					});
+		});
+	}
+
+	private MultiValueMap<String, String> form(String method, String token) {
+		MultiValueMap<String, String> form = new LinkedMultiValueMap<String, String>();
+		form.add("module", "API");
+		form.add("method", method);
+		form.add("format", "json");
+		form.add("token_auth", token);
+		return form;
+	}
+
+	private static String query(Call call) {
+		try {
+			StringBuilder sb = new StringBuilder("method=").append(URLEncoder.encode(call.method, "UTF-8"));
+			for (Map.Entry<String, String> p : call.params.entrySet()) {
+				sb.append('&').append(URLEncoder.encode(p.getKey(), "UTF-8"))
+				.append('=').append(URLEncoder.encode(p.getValue(), "UTF-8"));
+			}
+			return sb.toString();
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not supported", e);
+		}
+	}
+
+	/**
+	 * Read a response of the API: a single result, or an array of results for a bulk request.
+	 * A result is an object with either "result" and "message" fields, or a "value" field.
+	 */
+	static List<Result> parse(String response, boolean bulk) {
+		List<Result> results = new ArrayList<Result>();
+		try (JsonParser jp = JSONFACTORY.createParser(response)) {
+			JsonToken tok = jp.nextToken();
+			if (bulk) {
+				if (tok != JsonToken.START_ARRAY) {
+					// the bulk request itself failed (e.g., wrong token)
+					results.add(readResult(jp, tok));
+					throw new IllegalStateException("CFMGR::MatomoApiClient: bulk request failed: " + results.get(0).message);
+				}
+				while ((tok = jp.nextToken()) != JsonToken.END_ARRAY) {
+					results.add(readResult(jp, tok));
+				}
+			} else {
+				results.add(readResult(jp, tok));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("IO pb in CFMGR::MatomoApiClient", e);
+		}
+		return results;
+	}
+
+	private static Result readResult(JsonParser jp, JsonToken tok) throws IOException {
+		Result res = new Result();
+		if (tok != JsonToken.START_OBJECT) {
+			// only scalar values are kept from results that are not objects
+			if (tok == JsonToken.START_ARRAY) {
+				jp.skipChildren();
+			} else {
+				res.value = jp.getText();
+			}
+			return res;
+		}
+		while (jp.nextToken() == JsonToken.FIELD_NAME) {
+			String field = jp.getCurrentName();
+			JsonToken vtok = jp.nextToken();
+			if (vtok == JsonToken.START_OBJECT || vtok == JsonToken.START_ARRAY) {
+				jp.skipChildren();
+				continue;
+			}
+			switch (field) {
+			case "result":
+				res.error = "error".equals(jp.getText());
+				break;
+			case "message":
+				res.message = jp.getText();
+				break;
+			case "value":
+				res.value = jp.getText();
+				break;
+			default:
+			}
+		}
+		return res;
+	}
+
+	private void record(String method, String outcome, long start) {
+		Timer.builder(CALLTIMER)
+		.tag("method", method)
+		.tag("outcome", outcome)
+		.register(registry)
+		.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Edit the content of a Matomo config.ini.php file in memory: the file is parsed into sections,
+ * edits are applied to them, and the result is serialized once. Lines that are not edited
+ * (comments, other keys) are kept as they are.
+ * @author P. Déchamboux
+ *
+ */
+public class MatomoConfigEditor {
+	private final static Logger LOGGER = LoggerFactory.getLogger(MatomoConfigEditor.class);
+	public final static String GENERAL = "General";
+	public final static String TRACKER = "Tracker";
+	private final List<String> header = new ArrayList<String>();
+	private final Map<String, List<String>> sections = new LinkedHashMap<String, List<String>>();
+
+	public MatomoConfigEditor(byte content[]) {
+		Assert.notNull(content, "config file content should be defined");
+		List<String> cur = header;
+		for (String line : new String(content, StandardCharsets.UTF_8).split("\r?\n", -1)) {
+			String tline = line.trim();
+			if (tline.startsWith("[") && tline.endsWith("]")) {
+				cur = sections.computeIfAbsent(tline.substring(1, tline.length() - 1).trim(), k -> new ArrayList<String>());
+				continue;
+			}
+			cur.add(line);
+		}
+		// the split produces a last empty line for a terminating new line: serialize adds it back
+		if (!cur.isEmpty() && cur.get(cur.size() - 1).isEmpty()) {
+			cur.remove(cur.size() - 1);
+		}
+	}
+
+	/**
+	 * Set or replace a single key of a section (the section is created if needed).
+	 * @param section	The name of the section
+	 * @param key	The key
+	 * @param value	The value: strings are quoted, booleans become 1 or 0, other values are written as they are
+	 * @return	This editor
+	 */
+	public MatomoConfigEditor set(String section, String key, Object value) {
+		Assert.notNull(value, "value should be defined");
+		List<String> lines = sections.computeIfAbsent(section, k -> new ArrayList<String>());
+		String line = key + " = " + format(value);
+		int idx = indexOf(lines, key);
+		if (idx >= 0) {
+			lines.set(idx, line);
+		} else {
+			lines.add(insertionPoint(lines), line);
+		}
+		return this;
+	}
+
+	/**
+	 * Replace all values of an array key of a section (i.e., "key[] = ...").
+	 * @param section	The name of the section
+	 * @param key	The key without brackets
+	 * @param values	The values of the array
+	 * @return	This editor
+	 */
+	public MatomoConfigEditor setArray(String section, String key, List<?> values) {
+		List<String> lines = sections.computeIfAbsent(section, k -> new ArrayList<String>());
+		String akey = key + "[]";
+		int idx = indexOf(lines, akey);
+		int pos = (idx >= 0) ? idx : insertionPoint(lines);
+		while ((idx = indexOf(lines, akey)) >= 0) {
+			lines.remove(idx);
+		}
+		for (Object v : values) {
+			lines.add(pos++, akey + " = " + format(v));
+		}
+		return this;
+	}
+
+	/**
+	 * Remove a key (single or array) from a section.
+	 * @param section	The name of the section
+	 * @param key	The key without brackets
+	 * @return	This editor
+	 */
+	public MatomoConfigEditor remove(String section, String key) {
+		List<String> lines = sections.get(section);
+		if (lines != null) {
+			int idx;
+			while (((idx = indexOf(lines, key)) >= 0) || ((idx = indexOf(lines, key + "[]")) >= 0)) {
+				lines.remove(idx);
+			}
+		}
+		return this;
+	}
+
+	public String get(String section, String key) {
+		List<String> lines = sections.get(section);
+		if (lines == null) {
+			return null;
+		}
+		int idx = indexOf(lines, key);
+		if (idx < 0) {
+			return null;
+		}
+		String val = lines.get(idx).substring(lines.get(idx).indexOf('=') + 1).trim();
+		if ((val.length() >= 2) && val.startsWith("\"") && val.endsWith("\"")) {
+			val = val.substring(1, val.length() - 1).replace("\\\"", "\"");
+		}
+		return val;
+	}
+
+	/**
+	 * Settings for running several instances of the Matomo app (sessions stored in DB).
+	 */
+	public MatomoConfigEditor clusterMode(boolean clustermode) {
+		LOGGER.debug("CFMGR::MatomoConfigEditor:clusterMode: {}", clustermode);
+		if (clustermode) {
+			return set(GENERAL, "session_save_handler", "dbtable").set(GENERAL, "multi_server_environment", 1);
+		}
+		return remove(GENERAL, "session_save_handler").remove(GENERAL, "multi_server_environment");
+	}
+
+	/**
+	 * Settings for debugging the Matomo tracker.
+	 */
+	public MatomoConfigEditor trackerDebug(boolean debug) {
+		LOGGER.debug("CFMGR::MatomoConfigEditor:trackerDebug: {}", debug);
+		if (debug) {
+			return set(TRACKER, "debug", 1).set(TRACKER, "enable_sql_profiler", 1);
+		}
+		return remove(TRACKER, "debug").remove(TRACKER, "enable_sql_profiler");
+	}
+
+	public byte[] toBytes() {
+		StringBuilder sb = new StringBuilder();
+		for (String line : header) {
+			sb.append(line).append('\n');
+		}
+		for (Map.Entry<String, List<String>> section : sections.entrySet()) {
+			sb.append('[').append(section.getKey()).append("]\n");
+			for (String line : section.getValue()) {
+				sb.append(line).append('\n');
+			}
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String format(Object value) {
+		if (value instanceof Boolean) {
+			return ((Boolean) value) ? "1" : "0";
+		}
+		if (value instanceof Number) {
+			return value.toString();
+		}
+		return "\"" + value.toString().replace("\"", "\\\"") + "\"";
+	}
+
+	private static int indexOf(List<String> lines, String key) {
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i);
+			int eq = line.indexOf('=');
+			if ((eq > 0) && !line.trim().startsWith(";") && line.substring(0, eq).trim().equals(key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * New keys go after the last non blank line of a section, so that blank lines separating
+	 * sections are kept.
+	 */
+	private static int insertionPoint(List<String> lines) {
+		int pos = lines.size();
+		while ((pos > 0) && lines.get(pos - 1).trim().isEmpty()) {
+			pos--;
+		}
+		return pos;
+	}
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import com.orange.oss.matomocfservice.web.service.MatomoReleases;
+
+/**
+ * Generate the config.ini.php file of a Matomo instance from a template, with the settings the
+ * installation wizard would have written in the instance container.
+ * @author P. Déchamboux
+ *
+ */
+public class MatomoConfigGenerator {
+	private final static Logger LOGGER = LoggerFactory.getLogger(MatomoConfigGenerator.class);
+	private final static String TEMPLATE = "/matomo/config.ini.php.tmpl";
+	private final static String GLOBALINI = "config/global.ini.php";
+	private final static Pattern PLACEHOLDER = Pattern.compile("\\{\\{([A-Z_]+)\\}\\}");
+	private final static Pattern PLUGIN = Pattern.compile("^\\s*Plugins\\[\\]\\s*=\\s*\"?([A-Za-z0-9_]+)\"?\\s*$");
+	private final static SecureRandom RANDOM = new SecureRandom();
+	private static String template = null;
+	private static Map<String, List<String>> releasePlugins = new HashMap<String, List<String>>();
+	private final String version;
+	private final Map<String, String> values = new HashMap<String, String>();
+	private boolean clusterMode = false;
+	private boolean debug = false;
+
+	public MatomoConfigGenerator(String version) {
+		Assert.notNull(version, "version should be defined");
+		this.version = version;
+	}
+
+	public MatomoConfigGenerator database(Map<String, String> dbcreds, String tablesPrefix) {
+		Assert.notNull(dbcreds, "DB credentials should be defined");
+		values.put("DB_HOST", dbcreds.get("host"));
+		values.put("DB_PORT", dbcreds.get("port"));
+		values.put("DB_USER", dbcreds.get("user"));
+		values.put("DB_PASSWORD", dbcreds.get("password"));
+		values.put("DB_NAME", dbcreds.get("name"));
+		values.put("TABLES_PREFIX", tablesPrefix + "_");
+		return this;
+	}
+
+	public MatomoConfigGenerator trustedHost(String host) {
+		values.put("TRUSTED_HOST", host);
+		return this;
+	}
+
+	public MatomoConfigGenerator smtp(Map<String, String> smtpcreds) {
+		if (smtpcreds != null) {
+			values.put("MAIL", "[mail]\ntransport = \"smtp\"\nport = " + smtpcreds.get("port")
+					+ "\ntype = \"Plain\"\nhost = \"" + escape(smtpcreds.get("host")) + "\"\n\n");
+		}
+		return this;
+	}
+
+	public MatomoConfigGenerator clusterMode(boolean clusterMode) {
+		this.clusterMode = clusterMode;
+		return this;
+	}
+
+	public MatomoConfigGenerator debug(boolean debug) {
+		this.debug = debug;
+		return this;
+	}
+
+	/**
+	 * Produce the content of the config file.
+	 * @return	The content of config.ini.php
+	 */
+	public byte[] generate() {
+		LOGGER.debug("CFMGR::MatomoConfigGenerator:generate: version={}, clusterMode={}, debug={}", version, clusterMode, debug);
+		Map<String, String> raw = new HashMap<String, String>();
+		raw.put("SALT", newSalt());
+		raw.put("MAIL", values.containsKey("MAIL") ? values.get("MAIL") : "");
+		StringBuilder plugins = new StringBuilder(), installed = new StringBuilder();
+		for (String plugin : getReleasePlugins(version)) {
+			plugins.append("Plugins[] = \"").append(plugin).append("\"\n");
+			installed.append("PluginsInstalled[] = \"").append(plugin).append("\"\n");
+		}
+		raw.put("PLUGINS", plugins.toString());
+		raw.put("PLUGINS_INSTALLED", installed.toString());
+		Matcher m = PLACEHOLDER.matcher(getTemplate());
+		StringBuffer sb = new StringBuffer();
+		while (m.find()) {
+			String key = m.group(1);
+			String val;
+			if (raw.containsKey(key)) {
+				val = raw.get(key);
+			} else if (values.get(key) != null) {
+				val = escape(values.get(key));
+			} else {
+				throw new IllegalStateException("CFMGR::MatomoConfigGenerator: no value for " + key);
+			}
+			m.appendReplacement(sb, Matcher.quoteReplacement(val));
+		}
+		m.appendTail(sb);
+		return new MatomoConfigEditor(sb.toString().getBytes(StandardCharsets.UTF_8))
+				.clusterMode(clusterMode)
+				.trackerDebug(debug)
+				.toBytes();
+	}
+
+	private static String escape(String val) {
+		return val.replace("\"", "\\\"");
+	}
+
+	private static String newSalt() {
+		byte salt[] = new byte[16];
+		RANDOM.nextBytes(salt);
+		StringBuilder sb = new StringBuilder();
+		for (byte b : salt) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	private static synchronized String getTemplate() {
+		if (template == null) {
+			try (InputStream is = MatomoConfigGenerator.class.getResourceAsStream(TEMPLATE)) {
+				if (is == null) {
+					throw new IllegalStateException("CFMGR::MatomoConfigGenerator: missing template " + TEMPLATE);
+				}
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				byte buf[] = new byte[4096];
+				int n;
+				while ((n = is.read(buf)) > 0) {
+					bos.write(buf, 0, n);
+				}
+				template = new String(bos.toByteArray(), StandardCharsets.UTF_8);
+			} catch (IOException e) {
+				LOGGER.error("CFMGR::MatomoConfigGenerator: cannot read template.", e);
+				throw new RuntimeException("IO pb in CFMGR::MatomoConfigGenerator", e);
+			}
+		}
+		return template;
+	}
+
+	/**
+	 * The plugins activated by default in a release are the ones the installation wizard marks as
+	 * installed: get them from the global.ini.php file of the release.
+	 */
+	private static synchronized List<String> getReleasePlugins(String version) {
+		List<String> plugins = releasePlugins.get(version);
+		if (plugins != null) {
+			return plugins;
+		}
+		plugins = new ArrayList<String>();
+		Path globini = MatomoReleases.getReleaseFile(version, GLOBALINI);
+		try {
+			boolean inplugins = false;
+			for (String line : Files.readAllLines(globini, StandardCharsets.UTF_8)) {
+				String tline = line.trim();
+				if (tline.startsWith("[")) {
+					inplugins = tline.equals("[Plugins]");
+					continue;
+				}
+				Matcher m = PLUGIN.matcher(tline);
+				if (inplugins && m.matches()) {
+					plugins.add(m.group(1));
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.error("CFMGR::MatomoConfigGenerator: cannot read global.ini.php of release " + version, e);
+			throw new RuntimeException("IO pb in CFMGR::MatomoConfigGenerator", e);
+		}
+		releasePlugins.put(version, plugins);
+		return plugins;
+	}
+}
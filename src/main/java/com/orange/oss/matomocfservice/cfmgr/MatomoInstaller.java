@@ -0,0 +1,131 @@
+/**
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import reactor.core.publisher.Mono;
+
+/**
+ * Drive the Web pages of a Matomo instance (e.g., the installation wizard) as a sequence of
+ * steps, each step being an HTTP call that can use the page returned by the previous one. Steps
+ * run without blocking on the shared Web client, each one with its own timeout and latency metrics.
+ * @author P. Déchamboux
+ *
+ */
+public class MatomoInstaller {
+	private final static Logger LOGGER = LoggerFactory.getLogger(MatomoInstaller.class);
+	private final static String STEPTIMER = "matomo.installer.step";
+	private final WebClient webClient;
+	private final Duration stepTimeout;
+	private final MeterRegistry registry;
+
+	/**
+	 * A step of a Matomo Web procedure: a GET, or a POST of a form built from the previous page.
+	 */
+	public static class Step {
+		private final String name;
+		private final HttpMethod method;
+		private final String path;
+		private final Function<String, MultiValueMap<String, HttpEntity<?>>> form;
+
+		private Step(String name, HttpMethod method, String path, Function<String, MultiValueMap<String, HttpEntity<?>>> form) {
+			this.name = name;
+			this.method = method;
+			this.path = path;
+			this.form = form;
+		}
+
+		public static Step get(String name, String path) {
+			return new Step(name, HttpMethod.GET, path, null);
+		}
+
+		public static Step post(String name, String path, Function<String, MultiValueMap<String, HttpEntity<?>>> form) {
+			return new Step(name, HttpMethod.POST, path, form);
+		}
+
+		public String getName() {
+			return this.name;
+		}
+	}
+
+	public MatomoInstaller(WebClient webClient, Duration stepTimeout, MeterRegistry registry) {
+		this.webClient = webClient;
+		this.stepTimeout = stepTimeout;
+		this.registry = registry;
+	}
+
+	/**
+	 * Run a sequence of steps against a Matomo instance: the sequence stops at the first failing step.
+	 * @param baseuri	The base URI of the Matomo instance
+	 * @param steps	The steps to run in order
+	 * @return	The Mono that produces the page returned by the last step
+	 */
+	public Mono<String> run(String baseuri, List<Step> steps) {
+		Mono<String> chain = Mono.just("");
+		for (Step step : steps) {
+			chain = chain.flatMap(prev -> execute(baseuri, step, prev));
+		}
+		return chain;
+	}
+
+	private Mono<String> execute(String baseuri, Step step, String prev) {
+		return Mono.defer(() -> {
+			long start = System.nanoTime();
+			URI calluri = URI.create(baseuri + step.path);
+			WebClient.RequestHeadersSpec<?> req;
+			if (step.method == HttpMethod.POST) {
+				req = webClient.post().uri(calluri).body(BodyInserters.fromMultipartData(step.form.apply(prev)));
+			} else {
+				req = webClient.get().uri(calluri);
+			}
+			return req.retrieve()
+					.bodyToMono(String.class)
+					.defaultIfEmpty("")
+					.timeout(stepTimeout)
+					.doOnSuccess(res -> {
+						record(step, "success", start);
+						LOGGER.debug("After {} on <{}>", step.method, calluri);
+					})
+					.doOnError(t -> {
+						record(step, "error", start);
+						LOGGER.error("CFMGR::MatomoInstaller: step " + step.name + " failed on <" + calluri + ">.", t);
+					});
+		});
+	}
+
+	private void record(Step step, String outcome, long start) {
+		Timer.builder(STEPTIMER)
+		.tag("step", step.name)
+		.tag("outcome", outcome)
+		.register(registry)
+		.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.crypto.bcrypt.BCrypt;
+
+/**
+ * Capture the schema and the seed rows produced by the installation wizard of a Matomo
+ * instance, and replay them in the database of a new instance with its own table prefix.
+ * Table names are stored relative to a placeholder, so that a snapshot does not depend on
+ * the instance it was taken from. Only known rows are captured, without the values that are
+ * specific to that instance: the snapshot holds no data of the tenant it was taken from.
+ * @author P. Déchamboux
+ *
+ */
+public class MatomoSchemaSnapshot {
+	private final static Logger LOGGER = LoggerFactory.getLogger(MatomoSchemaSnapshot.class);
+	public final static String PREFIX_PLACEHOLDER = "{{TABLE_PREFIX}}";
+	private final static int BATCH_SIZE = 50;
+	private final static int ROWS_PER_INSERT = 100;
+	// the only rows kept from the installed instance: the versions of its components, its super
+	// user and its first site, whose instance specific columns are reset
+	private final static Map<String, SeedRows> SEED_ROWS = new HashMap<String, SeedRows>();
+	// tables created on demand by Matomo
+	private final static String ARCHIVE_TABLES = "archive_";
+	// table that marks complete template tables, with the fingerprint of their snapshot
+	private final static String MARKER_TABLE = "mcfs_snapshot";
+	private final static SecureRandom RANDOM = new SecureRandom();
+
+	static {
+		SEED_ROWS.put("option", new SeedRows("option_name LIKE 'version!_%' ESCAPE '!'"));
+		SEED_ROWS.put("user", new SeedRows("superuser_access = 1", "password", "token_auth", "email"));
+		SEED_ROWS.put("site", new SeedRows("idsite = 1", "name", "main_url"));
+	}
+
+	private MatomoSchemaSnapshot() {
+	}
+
+	/**
+	 * The rows of a table to be captured, and the columns whose values are not captured.
+	 */
+	private static class SeedRows {
+		private final String where;
+		private final List<String> resetColumns;
+
+		SeedRows(String where, String... resetColumns) {
+			this.where = where;
+			this.resetColumns = Arrays.asList(resetColumns);
+		}
+	}
+
+	/**
+	 * Produce the statements that recreate the tables of an instance and their rows.
+	 * @param conn	The connection to the database of the instance
+	 * @param prefix	The table prefix of the instance (with its trailing "_")
+	 * @return	The list of statements with table names relative to {@link #PREFIX_PLACEHOLDER}
+	 * @throws SQLException
+	 */
+	public static List<String> capture(Connection conn, String prefix) throws SQLException {
+		List<String> tables = listTables(conn, prefix);
+		List<String> statements = new ArrayList<String>();
+		try (Statement stmt = conn.createStatement()) {
+			for (String table : tables) {
+				String name = table.substring(prefix.length());
+				try (ResultSet rs = stmt.executeQuery("SHOW CREATE TABLE `" + table + "`")) {
+					if (!rs.next()) {
+						throw new SQLException("No definition for table " + table);
+					}
+					statements.add(rs.getString(2).replace("`" + prefix, "`" + PREFIX_PLACEHOLDER));
+				}
+				captureRows(stmt, table, name, statements);
+			}
+		}
+		LOGGER.debug("CFMGR::MatomoSchemaSnapshot:capture: {} tables, {} statements", tables.size(), statements.size());
+		return statements;
+	}
+
+	/**
+	 * Create the tables of a new instance from a snapshot.
+	 * @param conn	The connection to the database of the new instance
+	 * @param prefix	The table prefix of the new instance (with its trailing "_")
+	 * @param statements	The statements of the snapshot
+	 * @throws SQLException
+	 */
+	public static void apply(Connection conn, String prefix, List<String> statements) throws SQLException {
+		try (Statement stmt = conn.createStatement()) {
+			int n = 0;
+			for (String s : statements) {
+				stmt.addBatch(s.replace("`" + PREFIX_PLACEHOLDER, "`" + prefix));
+				if (++n % BATCH_SIZE == 0) {
+					stmt.executeBatch();
+				}
+			}
+			if (n % BATCH_SIZE != 0) {
+				stmt.executeBatch();
+			}
+		}
+		LOGGER.debug("CFMGR::MatomoSchemaSnapshot:apply: {} statements with prefix {}", statements.size(), prefix);
+	}
+
+	/**
+	 * Make sure that the template tables of a version exist in a database shared by several
+	 * instances: they are created from the snapshot the first time, when a previous creation
+	 * has been interrupted, or when the snapshot has changed. Complete template tables are
+	 * marked with the fingerprint of their snapshot, the marker being created last.
+	 * @param conn	The connection to the shared database
+	 * @param template	The table prefix of the template (with its trailing "_")
+	 * @param statements	The statements of the snapshot
+	 * @throws SQLException
+	 */
+	public static void ensureTemplate(Connection conn, String template, List<String> statements) throws SQLException {
+		String fingerprint = fingerprint(statements);
+		List<String> tables = listTables(conn, template);
+		String found = tables.contains(template + MARKER_TABLE) ? readFingerprint(conn, template) : null;
+		if (fingerprint.equals(found)) {
+			return;
+		}
+		LOGGER.info("CFMGR::MatomoSchemaSnapshot:ensureTemplate: create template tables {} (snapshot {}, found {})", template, fingerprint, found);
+		dropTables(conn, tables);
+		apply(conn, template, statements);
+		try (Statement stmt = conn.createStatement()) {
+			stmt.execute("CREATE TABLE `" + template + MARKER_TABLE + "` (fingerprint VARCHAR(40) NOT NULL)");
+		}
+		try (PreparedStatement ps = conn.prepareStatement("INSERT INTO `" + template + MARKER_TABLE + "` VALUES (?)")) {
+			ps.setString(1, fingerprint);
+			ps.executeUpdate();
+		}
+	}
+
+	/**
+	 * Create the tables of a new instance as copies of the template tables of its version, all
+	 * within the database server. As table creations cannot be part of a transaction in MySQL,
+	 * the tables of the instance left by an interrupted clone are dropped before cloning, and the
+	 * tables already cloned are dropped when the clone fails.
+	 * @param conn	The connection to the shared database
+	 * @param template	The table prefix of the template (with its trailing "_")
+	 * @param prefix	The table prefix of the new instance (with its trailing "_")
+	 * @throws SQLException
+	 */
+	public static void cloneTemplate(Connection conn, String template, String prefix) throws SQLException {
+		List<String> tables = listTables(conn, template);
+		tables.remove(template + MARKER_TABLE);
+		dropTables(conn, listTables(conn, prefix));
+		try (Statement stmt = conn.createStatement()) {
+			for (String table : tables) {
+				String name = table.substring(template.length());
+				stmt.addBatch("CREATE TABLE `" + prefix + name + "` LIKE `" + table + "`");
+				// template tables only hold the seed rows of the snapshot
+				stmt.addBatch("INSERT INTO `" + prefix + name + "` SELECT * FROM `" + table + "`");
+			}
+			stmt.executeBatch();
+		} catch (SQLException e) {
+			LOGGER.warn("CFMGR::MatomoSchemaSnapshot:cloneTemplate: clone of {} to {} failed, drop cloned tables", template, prefix);
+			try {
+				dropTables(conn, listTables(conn, prefix));
+			} catch (SQLException ee) {
+				e.addSuppressed(ee);
+			}
+			throw e;
+		}
+		LOGGER.debug("CFMGR::MatomoSchemaSnapshot:cloneTemplate: {} tables cloned from {} to {}", tables.size(), template, prefix);
+	}
+
+	private static void dropTables(Connection conn, List<String> tables) throws SQLException {
+		if (tables.isEmpty()) {
+			return;
+		}
+		try (Statement stmt = conn.createStatement()) {
+			for (String table : tables) {
+				stmt.addBatch("DROP TABLE `" + table + "`");
+			}
+			stmt.executeBatch();
+		}
+	}
+
+	private static String readFingerprint(Connection conn, String template) throws SQLException {
+		try (Statement stmt = conn.createStatement();
+				ResultSet rs = stmt.executeQuery("SELECT fingerprint FROM `" + template + MARKER_TABLE + "`")) {
+			return rs.next() ? rs.getString(1) : null;
+		}
+	}
+
+	static String fingerprint(List<String> statements) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			for (String s : statements) {
+				md.update(s.getBytes(StandardCharsets.UTF_8));
+				md.update((byte) '\n');
+			}
+			return hex(md.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 not supported", e);
+		}
+	}
+
+	/**
+	 * Set the values that the installation wizard derives from the instance, and that are not
+	 * part of the snapshot: the password, token and email of the super user, the first Web site
+	 * and the URL of the instance.
+	 * @param conn	The connection to the database of the new instance
+	 * @param prefix	The table prefix of the new instance (with its trailing "_")
+	 * @param login	The login of the super user
+	 * @param pwd	The password of the super user
+	 * @param email	The email of the super user
+	 * @param sitename	The name of the first Web site
+	 * @param url	The URL of the instance
+	 * @throws SQLException
+	 */
+	public static void setupSuperUserAndSite(Connection conn, String prefix, String login, String pwd, String email, String sitename, String url) throws SQLException {
+		try (PreparedStatement ps = conn.prepareStatement("UPDATE `" + prefix + "user` SET password=?, token_auth=?, email=? WHERE login=?")) {
+			// Matomo stores the bcrypt hash of the MD5 of the password
+			ps.setString(1, BCrypt.hashpw(md5(pwd), BCrypt.gensalt()));
+			ps.setString(2, randomHex(16));
+			ps.setString(3, email);
+			ps.setString(4, login);
+			if (ps.executeUpdate() != 1) {
+				throw new SQLException("No super user " + login + " in snapshot");
+			}
+		}
+		try (PreparedStatement ps = conn.prepareStatement("UPDATE `" + prefix + "site` SET name=?, main_url=?, ts_created=NOW() ORDER BY idsite LIMIT 1")) {
+			ps.setString(1, sitename);
+			ps.setString(2, url);
+			ps.executeUpdate();
+		}
+		try (PreparedStatement ps = conn.prepareStatement("INSERT INTO `" + prefix + "option` (option_name, option_value, autoload) VALUES ('piwikUrl', ?, 1)"
+				+ " ON DUPLICATE KEY UPDATE option_value=VALUES(option_value)")) {
+			ps.setString(1, url + "/");
+			ps.executeUpdate();
+		}
+	}
+
+	private static List<String> listTables(Connection conn, String prefix) throws SQLException {
+		List<String> tables = new ArrayList<String>();
+		DatabaseMetaData m = conn.getMetaData();
+		try (ResultSet rs = m.getTables(conn.getCatalog(), null, "%", new String[] {"TABLE"})) {
+			while (rs.next()) {
+				String table = rs.getString(3);
+				if (table.startsWith(prefix) && !table.substring(prefix.length()).startsWith(ARCHIVE_TABLES)) {
+					tables.add(table);
+				}
+			}
+		}
+		Collections.sort(tables);
+		return tables;
+	}
+
+	/**
+	 * Add the inserts of the seed rows of a table, if any.
+	 * @param stmt	The statement to query the database of the instance
+	 * @param table	The name of the table
+	 * @param name	The name of the table without the prefix of the instance
+	 * @param statements	The statements of the snapshot
+	 * @throws SQLException
+	 */
+	static void captureRows(Statement stmt, String table, String name, List<String> statements) throws SQLException {
+		SeedRows seed = SEED_ROWS.get(name);
+		if (seed == null) {
+			return;
+		}
+		try (ResultSet rs = stmt.executeQuery("SELECT * FROM `" + table + "` WHERE " + seed.where)) {
+			addInserts(statements, name, rs, seed.resetColumns);
+		}
+	}
+
+	private static void addInserts(List<String> statements, String name, ResultSet rs, List<String> resetColumns) throws SQLException {
+		ResultSetMetaData md = rs.getMetaData();
+		boolean reset[] = new boolean[md.getColumnCount() + 1];
+		for (int i = 1; i <= md.getColumnCount(); i++) {
+			reset[i] = resetColumns.contains(md.getColumnLabel(i).toLowerCase());
+		}
+		StringBuilder sb = null;
+		int rows = 0;
+		while (rs.next()) {
+			if (sb == null) {
+				sb = new StringBuilder("INSERT INTO `").append(PREFIX_PLACEHOLDER).append(name).append("` VALUES ");
+			} else {
+				sb.append(',');
+			}
+			sb.append('(');
+			for (int i = 1; i <= md.getColumnCount(); i++) {
+				if (i > 1) {
+					sb.append(',');
+				}
+				sb.append(reset[i] ? "''" : literal(md.getColumnType(i), rs, i));
+			}
+			sb.append(')');
+			if (++rows % ROWS_PER_INSERT == 0) {
+				statements.add(sb.toString());
+				sb = null;
+			}
+		}
+		if (sb != null) {
+			statements.add(sb.toString());
+		}
+	}
+
+	private static String literal(int type, ResultSet rs, int col) throws SQLException {
+		switch (type) {
+		case Types.BINARY:
+		case Types.VARBINARY:
+		case Types.LONGVARBINARY:
+		case Types.BLOB:
+			return binaryLiteral(rs.getBytes(col));
+		case Types.BIT:
+		case Types.BOOLEAN:
+		case Types.TINYINT:
+		case Types.SMALLINT:
+		case Types.INTEGER:
+		case Types.BIGINT:
+		case Types.FLOAT:
+		case Types.REAL:
+		case Types.DOUBLE:
+		case Types.NUMERIC:
+		case Types.DECIMAL:
+			String num = rs.getString(col);
+			return (num == null) ? "NULL" : num;
+		default:
+			return stringLiteral(rs.getString(col));
+		}
+	}
+
+	static String binaryLiteral(byte val[]) {
+		if (val == null) {
+			return "NULL";
+		}
+		if (val.length == 0) {
+			return "''";
+		}
+		return "X'" + hex(val) + "'";
+	}
+
+	static String stringLiteral(String val) {
+		if (val == null) {
+			return "NULL";
+		}
+		StringBuilder sb = new StringBuilder(val.length() + 2).append('\'');
+		for (char c : val.toCharArray()) {
+			switch (c) {
+			case '\\': sb.append("\\\\"); break;
+			case '\'': sb.append("\\'"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\0': sb.append("\\0"); break;
+			case '\032': sb.append("\\Z"); break;
+			default: sb.append(c);
+			}
+		}
+		return sb.append('\'').toString();
+	}
+
+	private static String md5(String val) {
+		try {
+			return hex(MessageDigest.getInstance("MD5").digest(val.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 not supported", e);
+		}
+	}
+
+	private static String randomHex(int nbbytes) {
+		byte val[] = new byte[nbbytes];
+		RANDOM.nextBytes(val);
+		return hex(val);
+	}
+
+	private static String hex(byte val[]) {
+		StringBuilder sb = new StringBuilder(val.length * 2);
+		for (byte b : val) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+}
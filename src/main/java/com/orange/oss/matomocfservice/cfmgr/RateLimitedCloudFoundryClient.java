@@ -0,0 +1,155 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.client.v2.applications.ApplicationEnvironmentRequest;
+import org.cloudfoundry.client.v2.applications.ApplicationInstancesRequest;
+import org.cloudfoundry.client.v2.applications.GetApplicationRequest;
+import org.cloudfoundry.client.v2.applications.SummaryApplicationRequest;
+import org.cloudfoundry.client.v2.info.GetInfoRequest;
+import org.cloudfoundry.client.v2.jobs.GetJobRequest;
+import org.cloudfoundry.client.v2.organizations.ListOrganizationSpacesRequest;
+import org.cloudfoundry.client.v2.organizations.ListOrganizationsRequest;
+import org.cloudfoundry.client.v2.resourcematch.ListMatchingResourcesRequest;
+import org.cloudfoundry.client.v2.serviceinstances.GetServiceInstanceRequest;
+import org.cloudfoundry.client.v2.serviceinstances.ListServiceInstancesRequest;
+import org.cloudfoundry.client.v2.serviceplans.GetServicePlanRequest;
+import org.cloudfoundry.client.v2.serviceplans.ListServicePlansRequest;
+import org.cloudfoundry.client.v2.services.GetServiceRequest;
+import org.cloudfoundry.client.v2.services.ListServicesRequest;
+import org.cloudfoundry.client.v2.spaces.GetSpaceRequest;
+import org.cloudfoundry.client.v2.spaces.ListSpaceApplicationsRequest;
+import org.cloudfoundry.client.v2.spaces.ListSpaceServiceInstancesRequest;
+import org.cloudfoundry.client.v2.stacks.GetStackRequest;
+import org.cloudfoundry.client.v3.applications.GetApplicationCurrentDropletRequest;
+import org.cloudfoundry.client.v3.applications.ListApplicationsRequest;
+import org.cloudfoundry.client.v3.droplets.GetDropletRequest;
+import org.cloudfoundry.client.v3.droplets.ListDropletsRequest;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Pace each request sent to the Cloud Controller with a {@link CfRateLimiter}: the client and the
+ * APIs it gives access to are wrapped so that every request is subscribed only once the limiter
+ * allows it. The read requests sent by the service, directly or through the CF operations, are
+ * retried when they are throttled; any other request is not, as a higher level operation may have
+ * to check what it did first. Streamed results (Flux) are not paced.
+ * @author P. Déchamboux
+ *
+ */
+final class RateLimitedCloudFoundryClient implements InvocationHandler {
+	/**
+	 * The types of the requests that can be sent again when throttled.
+	 */
+	private final static Set<Class<?>> RETRIED_REQUESTS = Collections.unmodifiableSet(new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+			ApplicationEnvironmentRequest.class,
+			ApplicationInstancesRequest.class,
+			GetApplicationCurrentDropletRequest.class,
+			GetApplicationRequest.class,
+			GetDropletRequest.class,
+			GetInfoRequest.class,
+			GetJobRequest.class,
+			GetServiceInstanceRequest.class,
+			GetServicePlanRequest.class,
+			GetServiceRequest.class,
+			GetSpaceRequest.class,
+			GetStackRequest.class,
+			ListApplicationsRequest.class,
+			ListDropletsRequest.class,
+			ListMatchingResourcesRequest.class,
+			ListOrganizationSpacesRequest.class,
+			ListOrganizationsRequest.class,
+			ListServiceInstancesRequest.class,
+			ListServicePlansRequest.class,
+			ListServicesRequest.class,
+			ListSpaceApplicationsRequest.class,
+			ListSpaceServiceInstancesRequest.class,
+			SummaryApplicationRequest.class)));
+	private final Object target;
+	private final CfRateLimiter limiter;
+	private final Map<Method, Object> apis = new ConcurrentHashMap<Method, Object>();
+
+	private RateLimitedCloudFoundryClient(Object target, CfRateLimiter limiter) {
+		this.target = target;
+		this.limiter = limiter;
+	}
+
+	/**
+	 * @param client	The client that actually sends the requests
+	 * @param limiter	The limiter that paces the requests
+	 * @return	The client whose requests are paced by the limiter
+	 */
+	static CloudFoundryClient wrap(CloudFoundryClient client, CfRateLimiter limiter) {
+		return wrap(CloudFoundryClient.class, client, limiter);
+	}
+
+	private static <T> T wrap(Class<T> api, Object target, CfRateLimiter limiter) {
+		return api.cast(Proxy.newProxyInstance(api.getClassLoader(), new Class<?>[] {api}, new RateLimitedCloudFoundryClient(target, limiter)));
+	}
+
+	static boolean isIdempotent(Method method) {
+		return (method.getParameterCount() == 1) && RETRIED_REQUESTS.contains(method.getParameterTypes()[0]);
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		Class<?> type = method.getReturnType();
+		if (Mono.class.isAssignableFrom(type)) {
+			return limiter.call(() -> request(method, args), isIdempotent(method));
+		}
+		if (type.isInterface() && type.getName().startsWith("org.cloudfoundry.client.") && (method.getParameterCount() == 0)) {
+			return apis.computeIfAbsent(method, m -> wrap(type, invokeTarget(m, null), limiter));
+		}
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Mono<Object> request(Method method, Object[] args) {
+		try {
+			return (Mono<Object>) method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			return Mono.error(e.getCause());
+		} catch (IllegalAccessException e) {
+			return Mono.error(e);
+		}
+	}
+
+	private Object invokeTarget(Method method, Object[] args) {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import org.cloudfoundry.operations.applications.ApplicationDetail;
+
+import com.orange.oss.matomocfservice.cfmgr.CfOperationScheduler.Lane;
+import com.orange.oss.matomocfservice.web.domain.Parameters;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Run the operations of a CF manager that go through the CF API under the control of a
+ * {@link CfOperationScheduler}: pushes, service creations/deletions and simple calls get their
+ * own lane. Once started, each of their requests is paced by the {@link CfRateLimiter} of the CF
+ * client. Operations that only talk to Matomo instances or to their databases are not delayed,
+ * neither are the waits for asynchronous CF operations, so that they do not hold a slot of their
+ * lane.
+ * @author P. Déchamboux
+ *
+ */
+public class ScheduledCloudFoundryMgr implements CloudFoundryMgr {
+	private final CloudFoundryMgr delegate;
+	private final CfOperationScheduler scheduler;
+
+	public ScheduledCloudFoundryMgr(CloudFoundryMgr delegate, CfOperationScheduler scheduler) {
+		this.delegate = delegate;
+		this.scheduler = scheduler;
+	}
+
+	private <T> Mono<T> run(Lane lane, Supplier<Mono<T>> operation) {
+		return scheduler.schedule(lane, operation);
+	}
+
+	@Override
+	public Mono<Void> initialize() {
+		return delegate.initialize();
+	}
+
+	@Override
+	public boolean isSmtpReady() {
+		return delegate.isSmtpReady();
+	}
+
+	@Override
+	public boolean isGlobalSharedReady() {
+		return delegate.isGlobalSharedReady();
+	}
+
+	@Override
+	public String getAppName(String appcode) {
+		return delegate.getAppName(appcode);
+	}
+
+	@Override
+	public String getTablePrefix(String appcode, String planid) {
+		return delegate.getTablePrefix(appcode, planid);
+	}
+
+	@Override
+	public String getInstanceUrl(String uuid) {
+		return delegate.getInstanceUrl(uuid);
+	}
+
+	@Override
+	public Mono<Void> deployMatomoCfApp(String instid, String uuid, String planid, Parameters mip, int memsize, int nbinst) {
+		return run(Lane.PUSH, () -> delegate.deployMatomoCfApp(instid, uuid, planid, mip, memsize, nbinst));
+	}
+
+	@Override
+	public Mono<Void> scaleMatomoCfApp(String instid, int instances, int memsize) {
+		return run(Lane.SIMPLE, () -> delegate.scaleMatomoCfApp(instid, instances, memsize));
+	}
+
+	@Override
+	public Mono<Void> settleMatomoCfApp(String instid, Parameters mip, int memsize, int nbinst) {
+		// restarting an app may stage it again
+		return run(Lane.PUSH, () -> delegate.settleMatomoCfApp(instid, mip, memsize, nbinst));
+	}
+
+	@Override
+	public Mono<Void> deployNextMatomoCfApp(String instid, String uuid, String planid, Parameters mip, int memsize, int nbinst) {
+		return run(Lane.PUSH, () -> delegate.deployNextMatomoCfApp(instid, uuid, planid, mip, memsize, nbinst));
+	}
+
+	@Override
+	public Mono<Void> upgradeNextMatomoInstance(String instid, String uuid, int nbinst) {
+		return delegate.upgradeNextMatomoInstance(instid, uuid, nbinst);
+	}
+
+	@Override
+	public Mono<Void> switchToNextMatomoCfApp(String instid, String uuid) {
+		return run(Lane.SIMPLE, () -> delegate.switchToNextMatomoCfApp(instid, uuid));
+	}
+
+	@Override
+	public Mono<Void> retireMatomoCfApp(String instid, String uuid) {
+		return run(Lane.SIMPLE, () -> delegate.retireMatomoCfApp(instid, uuid));
+	}
+
+	@Override
+	public Mono<Void> createDedicatedDb(String instid, String planid) {
+		return run(Lane.SERVICE, () -> delegate.createDedicatedDb(instid, planid));
+	}
+
+	@Override
+	public Mono<Void> awaitDedicatedDb(String instid, String planid) {
+		return delegate.awaitDedicatedDb(instid, planid);
+	}
+
+	@Override
+	public Mono<Void> deleteDedicatedDb(String instid, String planid) {
+		return run(Lane.SERVICE, () -> delegate.deleteDedicatedDb(instid, planid));
+	}
+
+	@Override
+	public Mono<Map<String, Object>> getApplicationEnv(String instid) {
+		return run(Lane.SIMPLE, () -> delegate.getApplicationEnv(instid));
+	}
+
+	@Override
+	public Mono<ApplicationDetail> deleteMatomoCfApp(String instid, String planid) {
+		return run(Lane.SIMPLE, () -> delegate.deleteMatomoCfApp(instid, planid));
+	}
+
+	@Override
+	public Mono<AppConfHolder> getInstanceConfigFile(String instid, String uuid, String version, String planid, boolean clustermode) {
+		return run(Lane.SIMPLE, () -> delegate.getInstanceConfigFile(instid, uuid, version, planid, clustermode));
+	}
+
+	@Override
+	public Mono<Void> initializeMatomoInstance(String appcode, String nuri, String pwd, String planid) {
+		return delegate.initializeMatomoInstance(appcode, nuri, pwd, planid);
+	}
+
+	@Override
+	public Mono<Void> seedMatomoInstance(String appcode, String nuri, String pwd, String planid, String version, List<String> schema) {
+		return delegate.seedMatomoInstance(appcode, nuri, pwd, planid, version, schema);
+	}
+
+	@Override
+	public Mono<List<String>> captureDbSchema(String instid, String planid) {
+		return delegate.captureDbSchema(instid, planid);
+	}
+
+	@Override
+	public Mono<Void> upgradeMatomoInstance(String appcode, String nuri) {
+		return delegate.upgradeMatomoInstance(appcode, nuri);
+	}
+
+	@Override
+	public String getApiAccessToken(String dbcred, String instid, String planid) {
+		return delegate.getApiAccessToken(dbcred, instid, planid);
+	}
+
+	@Override
+	public Mono<Void> deleteAssociatedDbSchema(String dbcred, String instid, String planid, BiConsumer<Integer, Integer> progress) {
+		return delegate.deleteAssociatedDbSchema(dbcred, instid, planid, progress);
+	}
+}
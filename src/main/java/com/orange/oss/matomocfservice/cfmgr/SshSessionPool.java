@@ -0,0 +1,277 @@
+/**
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Keep authenticated connections to the CF SSH proxy so that they can be reused for later
+ * transfers on the same application instance, instead of paying a one-time code, a connect and an
+ * authentication for each of them. The number of connections opened to the proxy is capped.
+ * @author P. Déchamboux
+ *
+ */
+public class SshSessionPool {
+	private final static Logger LOGGER = LoggerFactory.getLogger(SshSessionPool.class);
+	private final Map<String, Deque<PooledSsh>> idleSessions = new HashMap<String, Deque<PooledSsh>>();
+	private final Semaphore permits;
+	private final int maxSessions;
+	private final long idleTimeoutMs;
+	private final int connectTimeoutMs;
+	private final long acquireTimeoutMs;
+	private final ScheduledExecutorService evictor;
+	private final Timer connectTimer;
+	private final Timer authTimer;
+	private final Timer transferTimer;
+
+	/**
+	 * Action to perform with an authenticated SSH connection.
+	 */
+	@FunctionalInterface
+	public interface SshAction<T> {
+		T apply(SSHClient ssh) throws IOException;
+	}
+
+	public SshSessionPool(int maxSessions, long idleTimeoutMs, int connectTimeoutMs, long acquireTimeoutMs, MeterRegistry registry) {
+		LOGGER.debug("CONFIG::SshSessionPool: maxSessions={}, idleTimeout={}ms", maxSessions, idleTimeoutMs);
+		this.maxSessions = maxSessions;
+		this.permits = new Semaphore(maxSessions, true);
+		this.idleTimeoutMs = idleTimeoutMs;
+		this.connectTimeoutMs = connectTimeoutMs;
+		this.acquireTimeoutMs = acquireTimeoutMs;
+		this.connectTimer = registry.timer("matomo.ssh.connect");
+		this.authTimer = registry.timer("matomo.ssh.auth");
+		this.transferTimer = registry.timer("matomo.ssh.transfer");
+		registry.gauge("matomo.ssh.sessions.open", permits, p -> this.maxSessions - p.availablePermits());
+		this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "ssh-pool-evictor");
+			t.setDaemon(true);
+			return t;
+		});
+		this.evictor.scheduleWithFixedDelay(this::evictIdle, idleTimeoutMs, Math.max(1000, idleTimeoutMs / 2), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Run an action on an authenticated connection for a user of the SSH proxy: an idle
+	 * connection for that user is reused if any, otherwise a new one is opened with a fresh
+	 * one-time code. The connection goes back to the pool when the action succeeds, and is
+	 * closed when it fails.
+	 * @param host	The SSH proxy host
+	 * @param port	The SSH proxy port
+	 * @param user	The user for the SSH proxy (i.e., "cf:APPGUID/INSTINDEX")
+	 * @param code	The one-time code to use if a new connection is needed
+	 * @param action	The action to perform
+	 * @return	The result of the action
+	 */
+	public <T> Mono<T> execute(String host, int port, String user, Mono<String> code, SshAction<T> action) {
+		return Mono.fromCallable(() -> acquire(user))
+				.subscribeOn(Schedulers.elastic())
+				.flatMap(pooled -> {
+					if (pooled.ssh != null) {
+						LOGGER.debug("CFMGR::SshSessionPool: reuse connection for user={}", user);
+						return Mono.just(pooled);
+					}
+					return code.publishOn(Schedulers.elastic())
+							.map(pwd -> connect(pooled, host, port, pwd))
+							.doOnError(t -> permits.release());
+				})
+				.map(pooled -> {
+					long start = System.nanoTime();
+					try {
+						T res = action.apply(pooled.ssh);
+						transferTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+						release(pooled);
+						return res;
+					} catch (IOException e) {
+						disconnect(pooled);
+						throw new RuntimeException("IO pb in CFMGR::SshSessionPool", e);
+					} catch (RuntimeException e) {
+						disconnect(pooled);
+						throw e;
+					}
+				});
+	}
+
+	@PreDestroy
+	public void close() {
+		LOGGER.debug("CFMGR::SshSessionPool: close");
+		evictor.shutdownNow();
+		List<PooledSsh> closed = new ArrayList<PooledSsh>();
+		synchronized (idleSessions) {
+			for (Deque<PooledSsh> dq : idleSessions.values()) {
+				closed.addAll(dq);
+			}
+			idleSessions.clear();
+		}
+		disconnectAll(closed);
+	}
+
+	PooledSsh acquire(String user) throws InterruptedException {
+		PooledSsh pooled = takeIdle(user);
+		if (pooled != null) {
+			return pooled;
+		}
+		if (!permits.tryAcquire()) {
+			// free a slot held by an idle connection of another user before waiting
+			if (!evictOneIdle() || !permits.tryAcquire()) {
+				if (!permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+					throw new IllegalStateException("CFMGR::SshSessionPool: too many SSH connections to the proxy (max=" + maxSessions + ")");
+				}
+			}
+		}
+		return new PooledSsh(user);
+	}
+
+	private PooledSsh connect(PooledSsh pooled, String host, int port, String pwd) {
+		SSHClient ssh = new SSHClient();
+		ssh.addHostKeyVerifier(new PromiscuousVerifier());
+		ssh.setConnectTimeout(connectTimeoutMs);
+		try {
+			ssh.loadKnownHosts();
+			long start = System.nanoTime();
+			ssh.connect(host, port);
+			long connected = System.nanoTime();
+			connectTimer.record(connected - start, TimeUnit.NANOSECONDS);
+			ssh.authPassword(pooled.user, pwd);
+			authTimer.record(System.nanoTime() - connected, TimeUnit.NANOSECONDS);
+		} catch (IOException e) {
+			try {
+				ssh.disconnect();
+			} catch (IOException e1) {
+				// ignore exception here
+			}
+			throw new RuntimeException("IO pb in CFMGR::SshSessionPool", e);
+		}
+		pooled.ssh = ssh;
+		return pooled;
+	}
+
+	private PooledSsh takeIdle(String user) {
+		List<PooledSsh> broken = new ArrayList<PooledSsh>();
+		try {
+			synchronized (idleSessions) {
+				Deque<PooledSsh> dq = idleSessions.get(user);
+				while ((dq != null) && !dq.isEmpty()) {
+					PooledSsh p = dq.pollFirst();
+					if (p.ssh.isConnected() && p.ssh.isAuthenticated()) {
+						return p;
+					}
+					broken.add(p);
+				}
+				return null;
+			}
+		} finally {
+			disconnectAll(broken);
+		}
+	}
+
+	void release(PooledSsh pooled) {
+		pooled.lastUsed = System.currentTimeMillis();
+		synchronized (idleSessions) {
+			idleSessions.computeIfAbsent(pooled.user, k -> new ArrayDeque<PooledSsh>()).addFirst(pooled);
+		}
+	}
+
+	/**
+	 * Close connections taken out of the pool: never called while holding the pool lock, as a
+	 * slow peer would then block every borrower.
+	 */
+	private void disconnectAll(List<PooledSsh> pooled) {
+		for (PooledSsh p : pooled) {
+			disconnect(p);
+		}
+	}
+
+	private void disconnect(PooledSsh pooled) {
+		try {
+			pooled.ssh.disconnect();
+		} catch (IOException e) {
+			// ignore exception here
+		} finally {
+			permits.release();
+		}
+	}
+
+	private boolean evictOneIdle() {
+		PooledSsh oldest = null;
+		synchronized (idleSessions) {
+			for (Deque<PooledSsh> dq : idleSessions.values()) {
+				PooledSsh p = dq.peekLast();
+				if ((p != null) && ((oldest == null) || (p.lastUsed < oldest.lastUsed))) {
+					oldest = p;
+				}
+			}
+			if (oldest == null) {
+				return false;
+			}
+			idleSessions.get(oldest.user).removeLast();
+		}
+		disconnect(oldest);
+		return true;
+	}
+
+	void evictIdle() {
+		long limit = System.currentTimeMillis() - idleTimeoutMs;
+		List<PooledSsh> evicted = new ArrayList<PooledSsh>();
+		synchronized (idleSessions) {
+			for (Iterator<Deque<PooledSsh>> it = idleSessions.values().iterator(); it.hasNext();) {
+				Deque<PooledSsh> dq = it.next();
+				while (!dq.isEmpty() && (dq.peekLast().lastUsed < limit)) {
+					PooledSsh p = dq.pollLast();
+					LOGGER.debug("CFMGR::SshSessionPool: evict idle connection for user={}", p.user);
+					evicted.add(p);
+				}
+				if (dq.isEmpty()) {
+					it.remove();
+				}
+			}
+		}
+		disconnectAll(evicted);
+	}
+
+	static class PooledSsh {
+		final String user;
+		SSHClient ssh = null;
+		long lastUsed;
+
+		PooledSsh(String user) {
+			this.user = user;
+		}
+	}
+}
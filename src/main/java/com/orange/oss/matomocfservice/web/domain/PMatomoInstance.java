@@ -16,12 +16,17 @@
 
 package com.orange.oss.matomocfservice.web.domain;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.Table;
 
+import org.hibernate.annotations.DynamicUpdate;
 import org.springframework.cloud.servicebroker.model.instance.OperationState;
 
 import com.orange.oss.matomocfservice.servicebroker.ServiceCatalogConfiguration;
@@ -33,6 +38,7 @@ import com.orange.oss.matomocfservice.servicebroker.ServiceCatalogConfiguration;
  */
 @Entity
 @Table(name = "matomoinstances")
+@DynamicUpdate
 public class PMatomoInstance extends POperationStatus {
 	private final static int LENGTH_IDURL = 16;
 	private final static int LENGTH_SERVDEFID = 128;
@@ -46,6 +52,7 @@ public class PMatomoInstance extends POperationStatus {
 	private final static int LENGTH_TOKENAUTH = 48;
 	private final static int LENGTH_INSTINITFILE = 4096;
 	private final static int LENGTH_TIMEZONE = 48;
+	private final static int LENGTH_STEPS = 128;
 	
 	private int idUrl;
 
@@ -92,6 +99,12 @@ public class PMatomoInstance extends POperationStatus {
 	@JoinColumn(name = "shared_matomo_instance_id")
 	private PMatomoInstance sharedInstance;
 
+	@Column(length = LENGTH_STEPS)
+	private String provisioningStep;
+
+	@Column(length = LENGTH_INSTVERS)
+	private String targetVersion;
+
 	protected PMatomoInstance() {
 		super();
 		this.idUrl = -1;
@@ -111,6 +124,8 @@ public class PMatomoInstance extends POperationStatus {
 		this.memorySize = 0;
 		this.timeZone = null;
 		this.sharedInstance = null;
+		this.provisioningStep = null;
+		this.targetVersion = null;
 	}
 
 	public PMatomoInstance(String uuid, int idUrl, String name, PlatformKind pfkind, String pfapi, String planid, PPlatform pf, Parameters mip) {
@@ -306,6 +321,37 @@ public class PMatomoInstance extends POperationStatus {
 		return this.tokenAuth;
 	}
 
+	/**
+	 * @return	The completed steps of the operation in progress
+	 */
+	public List<String> getProvisioningSteps() {
+		if (this.provisioningStep == null) {
+			return new ArrayList<String>();
+		}
+		return new ArrayList<String>(Arrays.asList(this.provisioningStep.split(",")));
+	}
+
+	public void addProvisioningStep(String step) {
+		this.provisioningStep = (this.provisioningStep == null) ? step : this.provisioningStep + "," + step;
+		super.touch();
+	}
+
+	public void clearProvisioningSteps() {
+		this.provisioningStep = null;
+		super.touch();
+	}
+
+	/**
+	 * @return	The version the instance is being upgraded to by the operation in progress, or null if none
+	 */
+	public String getTargetVersion() {
+		return this.targetVersion;
+	}
+
+	public void setTargetVersion(String version) {
+		this.targetVersion = version;
+	}
+
 	public Parameters getParameters() {
 		return new Parameters()
 				.version(getInstalledVersion())
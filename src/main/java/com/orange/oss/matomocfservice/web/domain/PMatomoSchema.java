@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.web.domain;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+
+import org.json.JSONArray;
+
+/**
+ * The schema (tables and seed rows) produced by the installation of a given Matomo version, as
+ * a list of SQL statements where table names are relative to a placeholder prefix.
+ * @author P. Déchamboux
+ *
+ */
+@Entity
+@Table(name = "matomoschemas")
+public class PMatomoSchema {
+	private final static int LENGTH_VERSION = 8;
+
+	@Id
+	@Column(length = LENGTH_VERSION, updatable = false, nullable = false)
+	private String version;
+
+	private final ZonedDateTime createTime;
+
+	private int nbStatements;
+
+	@Lob
+	private byte[] content;
+
+	protected PMatomoSchema() {
+		this.version = null;
+		this.createTime = null;
+	}
+
+	public PMatomoSchema(String version, List<String> statements) {
+		this.version = version;
+		this.createTime = ZonedDateTime.now();
+		this.nbStatements = statements.size();
+		this.content = new JSONArray(statements).toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	public String getVersion() {
+		return this.version;
+	}
+
+	public ZonedDateTime getCreateTime() {
+		return this.createTime;
+	}
+
+	public int getNbStatements() {
+		return this.nbStatements;
+	}
+
+	public List<String> getStatements() {
+		JSONArray ja = new JSONArray(new String(this.content, StandardCharsets.UTF_8));
+		List<String> statements = new ArrayList<String>(ja.length());
+		for (int i = 0; i < ja.length(); i++) {
+			statements.add(ja.getString(i));
+		}
+		return statements;
+	}
+}
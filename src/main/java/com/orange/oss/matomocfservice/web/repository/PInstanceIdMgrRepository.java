@@ -19,6 +19,9 @@ package com.orange.oss.matomocfservice.web.repository;
 import java.util.Optional;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import com.orange.oss.matomocfservice.web.domain.PInstanceIdMgr;
@@ -30,4 +33,8 @@ import com.orange.oss.matomocfservice.web.domain.PInstanceIdMgr;
 @Repository
 public interface PInstanceIdMgrRepository extends JpaRepository<PInstanceIdMgr, Integer> {
 	Optional<PInstanceIdMgr> findById(Integer id);
+
+	@Modifying(clearAutomatically = true)
+	@Query("update PInstanceIdMgr m set m.nbAllocated = m.nbAllocated + :delta where m.id = :id")
+	int addNbAllocated(@Param("id") Integer id, @Param("delta") int delta);
 }
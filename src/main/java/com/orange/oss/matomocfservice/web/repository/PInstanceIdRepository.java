@@ -19,7 +19,11 @@ package com.orange.oss.matomocfservice.web.repository;
 import java.util.List;
 import java.util.Optional;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import com.orange.oss.matomocfservice.web.domain.PInstanceId;
@@ -32,4 +36,21 @@ import com.orange.oss.matomocfservice.web.domain.PInstanceId;
 public interface PInstanceIdRepository extends JpaRepository<PInstanceId, String> {
 	Optional<PInstanceId> findById(int id);
 	List<PInstanceId> findByAllocatedAndIdGreaterThan(boolean alloc, int firstid);
+
+	/**
+	 * @param firstid	The lowest ID to look for
+	 * @param page	The number of IDs to get
+	 * @return	The free IDs from the given one, in increasing order
+	 */
+	@Query("select i.id from PInstanceId i where i.allocated = false and i.id >= :first order by i.id")
+	List<Integer> findFreeIds(@Param("first") int firstid, Pageable page);
+
+	/**
+	 * Change the allocation of an ID only if it is not already in the requested state, as one
+	 * atomic update of its row.
+	 * @return	The number of IDs changed (0 if changed meanwhile by another transaction)
+	 */
+	@Modifying(clearAutomatically = true)
+	@Query("update PInstanceId i set i.allocated = :alloc where i.id = :id and i.allocated <> :alloc")
+	int setAllocated(@Param("id") int id, @Param("alloc") boolean alloc);
 }
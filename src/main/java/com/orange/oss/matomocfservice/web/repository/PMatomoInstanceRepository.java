@@ -19,7 +19,10 @@ package com.orange.oss.matomocfservice.web.repository;
 import java.util.List;
 import java.util.Optional;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import com.orange.oss.matomocfservice.web.domain.PMatomoInstance;
@@ -35,4 +38,32 @@ public interface PMatomoInstanceRepository extends JpaRepository<PMatomoInstance
 	Optional<PMatomoInstance> findByName(String name);
 	List<PMatomoInstance> findByPlatform(PPlatform pf);
 	List<PMatomoInstance> findByPlatformAndLastOperation(PPlatform pf, String lastop);
+
+	/**
+	 * The fields of an instance needed to decide whether it has to be upgraded at startup.
+	 */
+	interface UpgradeCandidate {
+		String getUuid();
+		String getPlatformId();
+		String getPlanId();
+		String getInstalledVersion();
+		boolean getAutomaticVersionUpgrade();
+	}
+
+	/**
+	 * Get a page of the installed instances (i.e., with a config file) whose last operation is in
+	 * a given state, without loading the instances themselves. Pages are ordered by instance ID and
+	 * start after a given one, so that the scan is not disturbed by instances changing meanwhile.
+	 */
+	@Query("select i.uuid as uuid, i.platform.id as platformId, i.planId as planId, i.installedVersion as installedVersion,"
+			+ " i.automaticVersionUpgrade as automaticVersionUpgrade from PMatomoInstance i"
+			+ " where i.lastOperationState = :state and i.configFileContent is not null and i.uuid > :after order by i.uuid")
+	List<UpgradeCandidate> findUpgradeCandidates(@Param("state") String state, @Param("after") String after, Pageable page);
+
+	/**
+	 * Get the IDs of the instances whose last operation is in a given state, except the instances
+	 * of a given plan, without loading the instances themselves.
+	 */
+	@Query("select i.uuid from PMatomoInstance i where i.lastOperationState = :state and i.planId <> :planid")
+	List<String> findUuidsByState(@Param("state") String state, @Param("planid") String excludedplanid);
 }
@@ -16,25 +16,22 @@
 
 package com.orange.oss.matomocfservice.web.service;
 
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
 import javax.persistence.EntityManager;
 
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cloud.servicebroker.model.instance.OperationState;
-import org.springframework.http.client.MultipartBodyBuilder;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestClientException;
-import org.springframework.web.client.RestTemplate;
 
 import com.orange.oss.matomocfservice.cfmgr.CloudFoundryMgrProperties;
+import com.orange.oss.matomocfservice.cfmgr.MatomoApiClient;
 import com.orange.oss.matomocfservice.web.domain.PBinding;
 import com.orange.oss.matomocfservice.web.domain.PMatomoInstance;
 import com.orange.oss.matomocfservice.web.domain.POperationStatus;
@@ -65,6 +62,8 @@ public class BindingService extends OperationStatusService {
 	private PMatomoInstanceRepository pmatomoInstanceRepo;
 	@Autowired
 	private CloudFoundryMgrProperties properties;
+	@Autowired
+	private MatomoApiClient apiClient;
 
 	public Map<String, Object> getCredentials(String bindid, String instid) {
 		Map<String, Object> credentials = new HashMap<String, Object>();
@@ -100,6 +99,8 @@ public class BindingService extends OperationStatusService {
 		LOGGER.debug("SERV::createBinding: bindId={}, instid={}, appid={}", bindid, instid, appid);
 		EntityManager em = beginTx();
 		PBinding pb = null;
+		String sn, tu, am;
+		boolean newsite = false;
 		try {
 			Optional<PBinding> opb = pbindingRepo.findById(bindid);
 			if (opb.isPresent()) {
@@ -110,15 +111,15 @@ public class BindingService extends OperationStatusService {
 				return "Cannot bind: Matomo service instance does not exist!!";
 			}
 			LOGGER.debug("PARAMETERS: " + parameters.toString());
-			String sn = (String) parameters.get(PARAM_SITENAME);
+			sn = (String) parameters.get(PARAM_SITENAME);
 			if (sn == null) {
 				return "Cannot bind: site name parameter should be provided";
 			}
-			String tu = (String) parameters.get(PARAM_TRACKEDURL);
+			tu = (String) parameters.get(PARAM_TRACKEDURL);
 			if (tu == null) {
 				return "Cannot bind: tracked URL parameter should be provided";
 			}
-			String am = (String) parameters.get(PARAM_ADMINEMAIL);
+			am = (String) parameters.get(PARAM_ADMINEMAIL);
 			if (am == null) {
 				return "Cannot bind: admin email parameter should be provided";
 			}
@@ -145,19 +146,37 @@ public class BindingService extends OperationStatusService {
 				pb = new PBinding(bindid, opmi.get(), appid, sn, tu, am, opmi.get().getPlatform(),
 						getMatomoUrl(opmi.get()));
 				pbindingRepo.save(pb);
-				defineNewMatomoSite(pb, (String) parameters.get(PARAM_SITENAME),
-						(String) parameters.get(PARAM_TRACKEDURL), (String) parameters.get(PARAM_ADMINEMAIL));
+				newsite = true;
+			} else {
+				pb.setLastOperationState(OperationState.SUCCEEDED);
+				pbindingRepo.save(pb);
 			}
-			pb.setLastOperationState(OperationState.SUCCEEDED);
-			pbindingRepo.save(pb);
 		} catch (RuntimeException e) {
 			if (pb != null) {
 				pb.setLastOperationState(OperationState.FAILED);
 				pbindingRepo.save(pb);
 			}
+			return null;
 		} finally {
 			commitTx(em);
 		}
+		if (newsite) {
+			// the Matomo instance is called out of the transaction, which is only reopened to record the outcome
+			OperationState state = OperationState.SUCCEEDED;
+			try {
+				pb.setSiteId(defineNewMatomoSite(pb, sn, tu, am));
+			} catch (RuntimeException e) {
+				LOGGER.error("SERV::createBinding: cannot define new site for binding " + bindid, e);
+				state = OperationState.FAILED;
+			}
+			em = beginTx();
+			try {
+				pb.setLastOperationState(state);
+				pbindingRepo.save(pb);
+			} finally {
+				commitTx(em);
+			}
+		}
 		return null;
 	}
 
@@ -194,49 +213,37 @@ public class BindingService extends OperationStatusService {
 		return null;
 	}
 
-	private void defineNewMatomoSite(PBinding pb, String sitename, String trackedurl, String adminemail) {
+	private int defineNewMatomoSite(PBinding pb, String sitename, String trackedurl, String adminemail) {
 		PMatomoInstance pmi = pb.getPMatomoInstance();
 		LOGGER.debug("SERV::defineNewMatomoSite: instId={}, siteName{}, trackedUrl={}", pmi.getUuid(), sitename, trackedurl);
-		RestTemplate restTemplate = new RestTemplate();
-		try {
-			URI uri = new URI("https://" + getMatomoUrl(pmi) + "/index.php");
-			MultipartBodyBuilder mbb = new MultipartBodyBuilder();
-			mbb.part("module", "API");
-			mbb.part("method", "SitesManager.addSite");
-			mbb.part("siteName", sitename);
-			mbb.part("urls", trackedurl);
-			mbb.part("format", "json");
-			mbb.part("token_auth", pmi.getTokenAuth());
-			String res = restTemplate.postForObject(uri, mbb.build(), String.class);
-			LOGGER.debug("AddSite Response: " + res);
-			JSONObject jres = new JSONObject(res);
-			pb.setSiteId((Integer) jres.get("value"));
-			mbb = new MultipartBodyBuilder();
-			mbb.part("module", "API");
-			mbb.part("method", "UsersManager.addUser");
-			mbb.part("userLogin", pb.getUserName());
-			mbb.part("password", pb.getPassword());
-			mbb.part("email", adminemail);
-			mbb.part("initialIdSite", "");
-			mbb.part("format", "json");
-			mbb.part("token_auth", pmi.getTokenAuth());
-			res = restTemplate.postForObject(uri, mbb.build(), String.class);
-			LOGGER.debug("AddUser Response: " + res);
-			mbb = new MultipartBodyBuilder();
-			mbb.part("module", "API");
-			mbb.part("method", "UsersManager.setUserAccess");
-			mbb.part("userLogin", pb.getUserName());
-			mbb.part("access", "admin");
-			mbb.part("idSites", Integer.toString(pb.getSiteId()));
-			mbb.part("format", "json");
-			mbb.part("token_auth", pmi.getTokenAuth());
-			res = restTemplate.postForObject(uri, mbb.build(), String.class);
-			LOGGER.debug("SetUserAccess Response: " + res);
-		} catch (RestClientException e) {
-			throw new RuntimeException("Fail to create a new site when binding.", e);
-		} catch (URISyntaxException e) {
-			throw new RuntimeException("Fail to create a new site when binding.", e);
+		String baseuri = "https://" + getMatomoUrl(pmi);
+		// the id of the new site is needed to give access to the new user: 2 round trips
+		MatomoApiClient.Result res = apiClient.call(baseuri, pmi.getTokenAuth(),
+				new MatomoApiClient.Call("SitesManager.addSite")
+				.param("siteName", sitename)
+				.param("urls", trackedurl))
+				.block();
+		if (res == null || res.isError() || res.getValue() == null) {
+			throw new RuntimeException("Fail to create a new site when binding: " + ((res == null) ? "no response" : res.getMessage()));
+		}
+		int siteid = Integer.parseInt(res.getValue());
+		List<MatomoApiClient.Call> calls = new ArrayList<MatomoApiClient.Call>();
+		calls.add(new MatomoApiClient.Call("UsersManager.addUser")
+				.param("userLogin", pb.getUserName())
+				.param("password", pb.getPassword())
+				.param("email", adminemail)
+				.param("initialIdSite", ""));
+		calls.add(new MatomoApiClient.Call("UsersManager.setUserAccess")
+				.param("userLogin", pb.getUserName())
+				.param("access", "admin")
+				.param("idSites", Integer.toString(siteid)));
+		List<MatomoApiClient.Result> results = apiClient.bulk(baseuri, pmi.getTokenAuth(), calls).block();
+		for (int i = 0; i < calls.size(); i++) {
+			if (results.get(i).isError()) {
+				throw new RuntimeException("Fail to create a new site when binding: " + calls.get(i).getMethod() + " -> " + results.get(i).getMessage());
+			}
 		}
+		return siteid;
 	}
 
 //	private void deleteMatomoSite(PBinding pb) {
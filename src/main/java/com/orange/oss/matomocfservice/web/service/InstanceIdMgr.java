@@ -25,6 +25,7 @@ import javax.transaction.Transactional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 
 import com.orange.oss.matomocfservice.cfmgr.CloudFoundryMgrProperties;
@@ -40,6 +41,7 @@ import com.orange.oss.matomocfservice.web.repository.PInstanceIdRepository;
 @Service
 public class InstanceIdMgr {
 	private final static Logger LOGGER = LoggerFactory.getLogger(InstanceIdMgr.class);
+	private final static int FREEIDS_PAGESIZE = 8;
 	@Autowired
 	PInstanceIdRepository piiRepo;
 	@Autowired
@@ -79,38 +81,28 @@ public class InstanceIdMgr {
 	@Transactional
 	public int allocateInstanceId() {
 		LOGGER.debug("SERV::InstanceIdMgr-allocateInstanceId");
-		int id = ThreadLocalRandom.current().nextInt(0, cfMgrProp.getMaxServiceInstances());
-		Optional<PInstanceId> opii = piiRepo.findById(id);
-		PInstanceId pii = null;
-		if (!opii.get().isAllocated()) {
-			pii = opii.get();
-		} else {
-			List<PInstanceId> freePiis = piiRepo.findByAllocatedAndIdGreaterThan(false, id);
-			for (PInstanceId spii : freePiis) {
-				if (!spii.isAllocated()) {
-					pii = spii;
-					break;
+		// free IDs are looked for a few at a time from a random one, then from the first one
+		int first = ThreadLocalRandom.current().nextInt(0, cfMgrProp.getMaxServiceInstances());
+		boolean wrapped = (first == 0);
+		while (true) {
+			List<Integer> freeids = piiRepo.findFreeIds(first, PageRequest.of(0, FREEIDS_PAGESIZE));
+			for (int id : freeids) {
+				// an ID found free may have been allocated by a concurrent create since: only the
+				// update that actually allocates it succeeds, so that no lock is needed here
+				if (piiRepo.setAllocated(id, true) == 1) {
+					piimRepo.addNbAllocated(PInstanceIdMgr.UNIQUEID, 1);
+					return id;
 				}
 			}
-			if (pii == null) {
-				freePiis = piiRepo.findByAllocatedAndIdGreaterThan(false, -1);
-				for (PInstanceId spii : freePiis) {
-					if (!spii.isAllocated()) {
-						pii = spii;
-						break;
-					}
-				}
+			if (freeids.size() == FREEIDS_PAGESIZE) {
+				first = freeids.get(FREEIDS_PAGESIZE - 1) + 1;
+			} else if (!wrapped) {
+				wrapped = true;
+				first = 0;
+			} else {
+				throw new RuntimeException("Cannot allocate more ID");
 			}
 		}
-		if (pii == null) {
-			throw new RuntimeException("Cannot allocate more ID");
-		}
-		pii.setAllocated(true);
-		piiRepo.save(pii);
-		Optional<PInstanceIdMgr> opiim = piimRepo.findById(PInstanceIdMgr.UNIQUEID);
-		opiim.get().incNbAllocated();
-		piimRepo.save(opiim.get());
-		return pii.getId();
 	}
 
 	@Transactional
@@ -119,15 +111,10 @@ public class InstanceIdMgr {
 		if ((id < 0) || (id >= cfMgrProp.getMaxServiceInstances())) {
 			throw new RuntimeException("Cannot free ID: out of range");
 		}
-		Optional<PInstanceId> opii = piiRepo.findById(id);
-		if (!opii.get().isAllocated()) {
+		if (piiRepo.setAllocated(id, false) == 0) {
 			throw new RuntimeException("Cannot free ID: not allocated");
 		}
-		opii.get().setAllocated(false);
-		piiRepo.save(opii.get());
-		Optional<PInstanceIdMgr> opiim = piimRepo.findById(PInstanceIdMgr.UNIQUEID);
-		opiim.get().decNbAllocated();
-		piimRepo.save(opiim.get());		
+		piimRepo.addNbAllocated(PInstanceIdMgr.UNIQUEID, -1);
 	}
 
 	@Transactional
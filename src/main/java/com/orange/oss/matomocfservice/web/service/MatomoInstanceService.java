@@ -18,33 +18,42 @@ package com.orange.oss.matomocfservice.web.service;
 
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.LockModeType;
 
-import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cloud.servicebroker.model.instance.OperationState;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 
 import com.orange.oss.matomocfservice.cfmgr.CloudFoundryMgr;
 import com.orange.oss.matomocfservice.cfmgr.CloudFoundryMgrProperties;
+import com.orange.oss.matomocfservice.cfmgr.MatomoConfigEditor;
 import com.orange.oss.matomocfservice.servicebroker.ServiceCatalogConfiguration;
 import com.orange.oss.matomocfservice.web.domain.PMatomoInstance;
 import com.orange.oss.matomocfservice.web.domain.PMatomoInstance.PlatformKind;
 import com.orange.oss.matomocfservice.web.domain.POperationStatus;
-import com.orange.oss.matomocfservice.web.domain.POperationStatus.OpCode;
 import com.orange.oss.matomocfservice.web.domain.PPlatform;
 import com.orange.oss.matomocfservice.web.domain.Parameters;
 import com.orange.oss.matomocfservice.web.repository.PMatomoInstanceRepository;
+import com.orange.oss.matomocfservice.web.repository.PMatomoInstanceRepository.UpgradeCandidate;
 
 import io.jsonwebtoken.lang.Assert;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.scheduler.Schedulers;
 
 /**
  * @author P. Déchamboux
@@ -63,12 +72,103 @@ public class MatomoInstanceService extends OperationStatusService {
 	private CloudFoundryMgrProperties properties;
 	@Autowired
 	private PlatformService pfs;
+	@Autowired
+	private MatomoSchemaService schemaService;
 	private boolean sharedReady = false;
 	private final InstIds NOPEINSTIDS = new InstIds(null, null);
+	private final Consumer<PMatomoInstance> NOPEFINISH = pmi -> {};
+	private final static List<String> NOPESTEPS = Collections.emptyList();
 	private final static String SHAREDINSTANCENAME = "MCFS-SharedMatomoInstance";
 	private final static String SHAREDINSTANCEINITUUID = SHAREDINSTANCENAME;
 	private final static int SHAREDDEFAULTNBAPPINSTANCE = 3;
 	private final static int SHAREDDEFAULTMEMSIZE = 512;
+	private final static int CREATELOCKSTRIPES = 64;
+	private final static int SCANPAGESIZE = 100;
+	private final Object createLocks[] = new Object[CREATELOCKSTRIPES];
+	private final Map<String, MonoProcessor<Void>> operations = new ConcurrentHashMap<String, MonoProcessor<Void>>();
+	private final static String STEP_WORKSPACE = "workspace";
+	private final static String STEP_CREATEDB = "createDb";
+	private final static String STEP_DEPLOY = "deployApp";
+	private final static String STEP_INSTALL = "install";
+	private final static String STEP_FETCHCONFIG = "fetchConfig";
+	private final static String STEP_SETTLE = "settleApp";
+	private final static String STEP_TOKEN = "getToken";
+	private final static String STEP_UPGRADE = "upgrade";
+	private final static String STEP_DEPLOYNEXT = "deployNextApp";
+	private final static String STEP_UPGRADENEXT = "upgradeNext";
+	private final static String STEP_SWITCH = "switchRoute";
+	private final static String STEP_RETIRE = "retireApp";
+	private final static String STEP_SCALE = "scaleApp";
+	private final static String STEP_DROPSCHEMA = "dropSchema";
+	private final static String STEP_DELETEAPP = "deleteApp";
+	private final static String STEP_DELETEDB = "deleteDb";
+
+	public MatomoInstanceService() {
+		for (int i = 0; i < CREATELOCKSTRIPES; i++) {
+			createLocks[i] = new Object();
+		}
+	}
+
+	/**
+	 * A unit of work on an instance: field changes and a state transition collected during a phase
+	 * of an operation, then written at once. The row of the instance is locked (select for update)
+	 * while the changes are applied to its current content, so that the changes made by
+	 * concurrent callbacks on the same instance are serialized instead of overwriting each other,
+	 * and only the columns that have changed are updated.
+	 */
+	private class InstanceUpdate {
+		private final String uuid;
+		private final List<Consumer<PMatomoInstance>> changes = new ArrayList<Consumer<PMatomoInstance>>();
+		private Predicate<PMatomoInstance> condition = pmi -> true;
+		private OperationState state = null;
+
+		InstanceUpdate(String uuid) {
+			this.uuid = uuid;
+		}
+
+		InstanceUpdate when(Predicate<PMatomoInstance> condition) {
+			this.condition = condition;
+			return this;
+		}
+
+		InstanceUpdate set(Consumer<PMatomoInstance> change) {
+			this.changes.add(change);
+			return this;
+		}
+
+		InstanceUpdate state(OperationState state) {
+			this.state = state;
+			return this;
+		}
+
+		/**
+		 * @return	The updated instance, or null if the condition of the update does not hold
+		 */
+		PMatomoInstance flush() {
+			EntityManager em = beginTx();
+			try {
+				PMatomoInstance pmi = em.find(PMatomoInstance.class, this.uuid, LockModeType.PESSIMISTIC_WRITE);
+				if (pmi == null) {
+					throw new EntityNotFoundException("Matomo Instance with ID=" + this.uuid + " not known");
+				}
+				if (!this.condition.test(pmi)) {
+					return null;
+				}
+				for (Consumer<PMatomoInstance> change : this.changes) {
+					change.accept(pmi);
+				}
+				if (this.state != null) {
+					applyOperationState(pmi, this.state);
+				}
+				return pmi;
+			} catch (RuntimeException e) {
+				em.getTransaction().setRollbackOnly();
+				throw e;
+			} finally {
+				commitTx(em);
+			}
+		}
+	}
 
 	private class InstIds implements Runnable {
 		String id;
@@ -101,8 +201,7 @@ public class MatomoInstanceService extends OperationStatusService {
 				.cfInstances(pmi.getInstances())
 				.memorySize(pmi.getMemorySize())
 				.timeZone(null)
-				.version(MatomoReleases.getLatestReleaseName()))
-		.subscribe();
+				.version(MatomoReleases.getLatestReleaseName()));
 	}
 
 	/**
@@ -110,35 +209,16 @@ public class MatomoInstanceService extends OperationStatusService {
 	 */
 	public void initialize() {
 		LOGGER.debug("SERV::MatomoInstanceService:initialize - latestVersion={}", MatomoReleases.getLatestReleaseName());
-		List<InstIds> inst2process = new ArrayList<InstIds>();
-		EntityManager em = beginTx();
-		try {
-			for (PMatomoInstance pmi : miRepo.findAll()) {
-				if (!pmi.getAutomaticVersionUpgrade()) {
-					if (MatomoReleases.isVersionAvailable(pmi.getInstalledVersion())) {
-						continue;						
-					}
-				}
-				if ((pmi.getConfigFileContent() != null) && (pmi.getLastOperationState() == OperationState.SUCCEEDED)) {
-					LOGGER.debug("SERV::initialize: reactivate instance {}, version={}", pmi.getIdUrlStr(), pmi.getInstalledVersion());
-					if (MatomoReleases.isHigherVersion(MatomoReleases.getLatestReleaseName(), pmi.getInstalledVersion())) {
-						// need to upgrade to latest version
-						inst2process.add(new InstIds(pmi.getUuid(), pmi.getPlatform().getId()));
-					}
-				}
-			}
-		} catch (Exception e) {
-			LOGGER.error("Problem while looking at the Matomo instances to be automatically upgraded at service startup", e);
-		} finally {
-			commitTx(em);
-		}
-		// start upgrading service instance (automatic upgrade mode) to the most recent
-		// version in background, one at a time each five minutes
-		Flux.interval(Duration.ZERO, Duration.ofMinutes(5))
-		.map(tick ->  inst2process.get(tick.intValue()))
-		.doOnNext(this::observeInstanceForUpgrade)
-		.take(inst2process.size())
-		.subscribe();
+		resumeOperations();
+		// look for the instances to upgrade in background, then start upgrading service instances
+		// (automatic upgrade mode) to the most recent version, one at a time each five minutes
+		Mono.fromCallable(this::findInstancesToUpgrade)
+		.subscribeOn(Schedulers.elastic())
+		.flatMapMany(inst2process -> Flux.interval(Duration.ZERO, Duration.ofMinutes(5))
+				.map(tick ->  inst2process.get(tick.intValue()))
+				.take(inst2process.size()))
+		.subscribe(this::observeInstanceForUpgrade,
+				t -> LOGGER.error("Problem while looking at the Matomo instances to be automatically upgraded at service startup", t));
 		Optional<PMatomoInstance> opmi = miRepo.findByName(SHAREDINSTANCENAME);
 		if (opmi.isPresent()) {
 			LOGGER.debug("Matomo Instance for shared plan already exist");
@@ -152,6 +232,33 @@ public class MatomoInstanceService extends OperationStatusService {
 				new Parameters().autoVersionUpgrade(true).cfInstances(SHAREDDEFAULTNBAPPINSTANCE).memorySize(SHAREDDEFAULTMEMSIZE));
 	}
 
+	/**
+	 * Scan the installed instances page by page, only reading the fields needed to decide
+	 * whether they have to be upgraded.
+	 */
+	private List<InstIds> findInstancesToUpgrade() {
+		List<InstIds> inst2process = new ArrayList<InstIds>();
+		String latest = MatomoReleases.getLatestReleaseName();
+		List<UpgradeCandidate> page = miRepo.findUpgradeCandidates(OperationState.SUCCEEDED.getValue(), "", PageRequest.of(0, SCANPAGESIZE));
+		while (!page.isEmpty()) {
+			for (UpgradeCandidate cand : page) {
+				if (!cand.getAutomaticVersionUpgrade() && MatomoReleases.isVersionAvailable(cand.getInstalledVersion())) {
+					continue;
+				}
+				LOGGER.debug("SERV::findInstancesToUpgrade: reactivate instance {}, version={}", cand.getUuid(), cand.getInstalledVersion());
+				if (MatomoReleases.isHigherVersion(latest, cand.getInstalledVersion())) {
+					// need to upgrade to latest version
+					inst2process.add(new InstIds(cand.getUuid(), cand.getPlatformId()));
+				}
+			}
+			if (page.size() < SCANPAGESIZE) {
+				break;
+			}
+			page = miRepo.findUpgradeCandidates(OperationState.SUCCEEDED.getValue(), page.get(page.size() - 1).getUuid(), PageRequest.of(0, SCANPAGESIZE));
+		}
+		return inst2process;
+	}
+
 	public PMatomoInstance getMatomoInstance(String instanceId, String platformId) {
 		Assert.notNull(instanceId, "instance id mustn't be null");
 		Assert.notNull(platformId, "platform id mustn't be null");
@@ -230,96 +337,39 @@ public class MatomoInstanceService extends OperationStatusService {
 			LOGGER.error("Cannot create instance (PLANSHARED_UUID): service unavailable / no Matomo shared instance (retry later on)");
 			return "Cannot create any kind of instance: service unavailable / no Matomo shared instance (retry later on)";
 		}
-		synchronized (this) {
+		// creates of different instances only contend on the DB, while creates of the same
+		// instance are serialized here (and by the primary key of the instance across nodes)
+		synchronized (getCreateLock(uuid)) {
 			EntityManager em = beginTx();
+			int idurl = -1;
 			try {
-				if (getMatomoInstance(uuid, pfid) != null) {
-					LOGGER.error("Matomo Instance with ID=" + uuid + " already exists in Platform with ID=" + pfid);
-					return "Matomo Instance with ID=" + uuid + " already exists in Platform with ID=" + pfid;
+				if (miRepo.existsById(uuid)) {
+					LOGGER.error("Matomo Instance with ID=" + uuid + " already exists");
+					return "Matomo Instance with ID=" + uuid + " already exists";
 				}
 				PPlatform ppf = getPPlatform(pfid);
+				idurl = instanceIdMgr.allocateInstanceId();
 				if (planid.equals(ServiceCatalogConfiguration.PLANSHARED_UUID)) {
-					pmi = new PMatomoInstance(uuid, instanceIdMgr.allocateInstanceId(), instname, pfkind, apiinfolocation,
+					pmi = new PMatomoInstance(uuid, idurl, instname, pfkind, apiinfolocation,
 							planid, ppf, parameters, miRepo.findByName(SHAREDINSTANCENAME).get());
-					savePMatomoInstance(pmi, OperationState.SUCCEEDED);
+					insertPMatomoInstance(em, pmi, OperationState.SUCCEEDED);
 					return null;
 				} else {
-					pmi = new PMatomoInstance(uuid, instanceIdMgr.allocateInstanceId(), instname, pfkind, apiinfolocation,
+					pmi = new PMatomoInstance(uuid, idurl, instname, pfkind, apiinfolocation,
 							planid, ppf, parameters);
-					savePMatomoInstance(pmi, OperationState.IN_PROGRESS);
+					insertPMatomoInstance(em, pmi, OperationState.IN_PROGRESS);
 				}
 			} catch (Exception e) {
+				em.getTransaction().setRollbackOnly();
+				if (idurl != -1) {
+					instanceIdMgr.freeInstanceId(idurl);
+				}
 				return "Error while initializing creation: " + e.getMessage();
 			} finally {
 				commitTx(em);
 			}
 		}
-		final String idurlstr = pmi.getIdUrlStr();
-		final boolean clustmode = pmi.getClusterMode();
-		MatomoReleases.createLinkedTree(parameters.getVersion(), idurlstr);
-		Mono<Void> createdb = uuid.equals(SHAREDINSTANCEINITUUID)
-				? cfMgr.createDedicatedDb(idurlstr, ServiceCatalogConfiguration.PLANSHARED_UUID)
-						: (properties.getDbCreds(planid).isDedicatedDb())
-						? cfMgr.createDedicatedDb(idurlstr, planid)
-								: Mono.empty();
-		createdb.timeout(Duration.ofMinutes(CloudFoundryMgr.CREATEDBSERV_TIMEOUT))
-		.doOnError(t -> {
-			EntityManager em = beginTx();
-			PMatomoInstance npmi = miRepo.getOne(uuid);
-			em.unwrap(Session.class).update(npmi);
-			LOGGER.error("Create dedicated DB for instance \"" + npmi.getUuid() + "\" failed.", t);
-			savePMatomoInstance(npmi, OperationState.FAILED);
-			commitTx(em);
-		}).doOnSuccess(v -> {
-			LOGGER.debug("Create dedicated DB phase for \"" + uuid + "\" succeeded.");
-			cfMgr.deployMatomoCfApp(idurlstr, uuid, planid, parameters, Parameters.MINMEMORYSIZE, 1)
-				.doOnError(tt -> {
-					EntityManager nem = beginTx();
-					PMatomoInstance npmi = miRepo.getOne(uuid);
-					nem.unwrap(Session.class).update(npmi);
-					LOGGER.error("Async create app instance (phase 1) \"" + uuid + "\" failed.", tt);
-					MatomoReleases.deleteLinkedTree(idurlstr);
-					savePMatomoInstance(npmi, OperationState.FAILED);
-					commitTx(nem);
-				}).doOnSuccess(vv -> {
-					EntityManager nem = beginTx();
-					PMatomoInstance npmi = miRepo.getOne(uuid);
-					nem.unwrap(Session.class).update(npmi);
-					if (npmi.getLastOperationState() == OperationState.FAILED) {
-						LOGGER.debug("Async create app too late (phase 1) \"" + uuid + "\": already failed");
-					} else {
-						LOGGER.debug("Async create app instance (phase 1) \"" + uuid + "\" succeeded");
-						cfMgr.deleteAssociatedDbSchema(npmi); // make sure the DB situation is clean
-						if (!cfMgr.initializeMatomoInstance(idurlstr, uuid, npmi.getPassword(),
-								npmi.getPlanId())) {
-							MatomoReleases.deleteLinkedTree(idurlstr);
-							savePMatomoInstance(npmi, OperationState.FAILED);
-							commitTx(nem);
-						} else {
-							commitTx(nem);
-							cfMgr.getInstanceConfigFile(idurlstr, parameters.getVersion(), clustmode)
-							.doOnError(ttt -> {
-								EntityManager nnem = beginTx();
-								PMatomoInstance nnpmi = miRepo.getOne(uuid);
-								nnem.unwrap(Session.class).update(nnpmi);
-								LOGGER.debug("Cannot retrieve config file from Matomo instance.", ttt);
-								MatomoReleases.deleteLinkedTree(idurlstr);
-								savePMatomoInstance(nnpmi, OperationState.FAILED);
-								commitTx(nnem);
-							}).doOnSuccess(ach -> {
-								EntityManager nnem = beginTx();
-								PMatomoInstance nnpmi = miRepo.getOne(uuid);
-								nnem.unwrap(Session.class).update(nnpmi);
-								nnpmi.setConfigFileContent(ach.fileContent);
-								savePMatomoInstance(nnpmi, null);
-								commitTx(nnem);
-								settleMatomoInstance(nnpmi, NOPEINSTIDS, parameters, true,
-										properties.getDbCreds(nnpmi.getPlanId())).subscribe();
-							}).subscribe();
-						}
-					}
-				}).subscribe();
-		}).subscribe();
+		runWorkflow(uuid, createWorkflow(pmi, parameters), NOPESTEPS, NOPEINSTIDS, this::onCreated);
 		return null;
 	}
 
@@ -338,79 +388,47 @@ public class MatomoInstanceService extends OperationStatusService {
 				LOGGER.warn("SERV::deleteMatomoInstance: KO -> wrong platform.");
 				return null;
 			}
+			// the state read above is checked again on the locked row, so that a concurrent
+			// operation on the instance cannot be started meanwhile
 			if ((pmi.getLastOperation() == POperationStatus.OpCode.DELETE_SERVICE_INSTANCE) &&
 					(pmi.getLastOperationState() == OperationState.FAILED)) {
-				LOGGER.error("SERV::deleteMatomoInstance: deletion already failed -> force delete.");
-				instanceIdMgr.freeInstanceId(pmi.getIdUrl());
-				pmi.setConfigFileContent(null);
-				savePMatomoInstance(pmi, OperationState.SUCCEEDED);
-				return "Error: deletion already failed on platform with ID=" + platformId + " for Matomo service instance with ID=" + uuid + ": force deletion!";
+				PMatomoInstance fpmi = new InstanceUpdate(uuid)
+						.when(npmi -> (npmi.getLastOperation() == POperationStatus.OpCode.DELETE_SERVICE_INSTANCE)
+								&& (npmi.getLastOperationState() == OperationState.FAILED))
+						.set(npmi -> npmi.setConfigFileContent(null))
+						.state(OperationState.SUCCEEDED)
+						.flush();
+				if (fpmi != null) {
+					LOGGER.error("SERV::deleteMatomoInstance: deletion already failed -> force delete.");
+					instanceIdMgr.freeInstanceId(fpmi.getIdUrl());
+					return "Error: deletion already failed on platform with ID=" + platformId + " for Matomo service instance with ID=" + uuid + ": force deletion!";
+				}
 			}
-			if (pmi.getLastOperationState() == OperationState.IN_PROGRESS) {
+			final boolean shared = pmi.isSharedPlan();
+			pmi = new InstanceUpdate(uuid)
+					.when(npmi -> npmi.getLastOperationState() != OperationState.IN_PROGRESS)
+					.set(npmi -> {
+						npmi.setLastOperation(POperationStatus.OpCode.DELETE_SERVICE_INSTANCE);
+						if (shared) {
+							npmi.setConfigFileContent(null);
+						}
+					})
+					.state(shared ? OperationState.SUCCEEDED : OperationState.IN_PROGRESS)
+					.flush();
+			if (pmi == null) {
 				LOGGER.debug("SERV::deleteMatomoInstance: KO -> operation in progress.");
 				return "Error: cannot delete Matomo service instance with ID=" + uuid + ": operation already in progress.";
 			}
-			pmi.setLastOperation(POperationStatus.OpCode.DELETE_SERVICE_INSTANCE);
-			if (pmi.isSharedPlan()) {
-				pmi.setConfigFileContent(null);
-				savePMatomoInstance(pmi, OperationState.SUCCEEDED);
+			if (shared) {
 				return "Delete completed for instance with ID=" + uuid;
 			}
-			savePMatomoInstance(pmi, OperationState.IN_PROGRESS);
-			// delete data associated with the instance under deletion
-			cfMgr.deleteAssociatedDbSchema(pmi);
 		} catch (Exception e) {
 			LOGGER.warn("SERV::deleteMatomoInstance: KO -> Exception: " + e.getMessage());
 			return null;
 		} finally {
 			commitTx(em);
 		}
-		cfMgr.deleteMatomoCfApp(pmi.getIdUrlStr(), pmi.getPlanId())
-		.doOnError(t -> {
-			EntityManager nem = beginTx();
-			PMatomoInstance npmi = miRepo.getOne(uuid);
-			nem.unwrap(Session.class).update(npmi);
-			LOGGER.debug("Async delete app instance \"{}\" failed -> {}", npmi.getUuid(), t.getMessage());
-			savePMatomoInstance(npmi, OperationState.FAILED);
-			commitTx(nem);
-		})
-		.doOnSuccess(v -> {
-			EntityManager nem = beginTx();
-			PMatomoInstance npmi = miRepo.getOne(uuid);
-			nem.unwrap(Session.class).update(npmi);
-			LOGGER.debug("Async delete app instance \"" + npmi.getUuid() + "\" succeeded");
-			if (properties.getDbCreds(npmi.getPlanId()).isDedicatedDb()) {
-				cfMgr.deleteDedicatedDb(npmi.getIdUrlStr(), npmi.getPlanId())
-				.doOnError(tt -> {
-					EntityManager nnem = beginTx();
-					PMatomoInstance nnpmi = miRepo.getOne(uuid);
-					nnem.unwrap(Session.class).update(nnpmi);
-					LOGGER.error("Delete dedicated DB for instance \"{}\" failed: please delete manually service instance {}.", 
-							nnpmi.getUuid(),
-							properties.getDbCreds(nnpmi.getPlanId()));
-					tt.printStackTrace();
-					savePMatomoInstance(nnpmi, OperationState.FAILED);
-					commitTx(nnem);
-				})
-				.doOnSuccess(vv -> {
-					EntityManager nnem = beginTx();
-					PMatomoInstance nnpmi = miRepo.getOne(uuid);
-					nnem.unwrap(Session.class).update(nnpmi);
-					LOGGER.debug("Delete dedicated DB for instance \"" + nnpmi.getUuid() + "\" succeeded.");
-					instanceIdMgr.freeInstanceId(nnpmi.getIdUrl());
-					nnpmi.setConfigFileContent(null);
-					savePMatomoInstance(nnpmi, OperationState.SUCCEEDED);					
-					commitTx(nnem);
-				})
-				.subscribe();
-			} else {
-				instanceIdMgr.freeInstanceId(npmi.getIdUrl());
-				npmi.setConfigFileContent(null);
-				savePMatomoInstance(npmi, OperationState.SUCCEEDED);
-			}
-			commitTx(nem);
-		})
-		.subscribe();
+		runWorkflow(uuid, deleteWorkflow(pmi), NOPESTEPS, NOPEINSTIDS, this::onDeleted);
 		return "Delete launched for instance with ID=" + uuid;
 	}
 
@@ -436,11 +454,18 @@ public class MatomoInstanceService extends OperationStatusService {
 			if (pmi.isSharedPlan()) {
 				return null;
 			}
-			pmi.setLastOperation(POperationStatus.OpCode.UPDATE_SERVICE_INSTANCE);
-			savePMatomoInstance(pmi, OperationState.IN_PROGRESS);
+			// all the changes requested are written at once, unless an operation has been started
+			// on the instance since it was read
+			InstanceUpdate update = new InstanceUpdate(uuid)
+					.when(npmi -> npmi.getLastOperationState() != OperationState.IN_PROGRESS)
+					.set(npmi -> {
+						npmi.setLastOperation(POperationStatus.OpCode.UPDATE_SERVICE_INSTANCE);
+						npmi.setTargetVersion(null);
+					})
+					.state(OperationState.IN_PROGRESS);
 			if (pmi.getAutomaticVersionUpgrade() != parameters.isAutoVersionUpgrade()) {
-				pmi.setAutomaticVersionUpgrade(parameters.isAutoVersionUpgrade());
-				savePMatomoInstance(pmi, null);
+				final boolean autoupgrade = parameters.isAutoVersionUpgrade();
+				update.set(npmi -> npmi.setAutomaticVersionUpgrade(autoupgrade));
 				if (parameters.isAutoVersionUpgrade()) {
 					parameters.setVersion(MatomoReleases.getLatestReleaseName());
 				}
@@ -449,8 +474,8 @@ public class MatomoInstanceService extends OperationStatusService {
 				parameters.setTimeZone(null);
 			} else {
 				LOGGER.debug("Change Matomo instance timezone from {} to {}.", pmi.getTimeZone(), parameters.getTimeZone());
-				pmi.setTimeZone(parameters.getTimeZone());
-				savePMatomoInstance(pmi, null);
+				final String timezone = parameters.getTimeZone();
+				update.set(npmi -> npmi.setTimeZone(timezone));
 			}
 			if (pmi.getInstances() == parameters.getCfInstances()) {
 				parameters.setCfInstances(-1);
@@ -459,15 +484,20 @@ public class MatomoInstanceService extends OperationStatusService {
 				parameters.setCfInstances(-1);
 			} else {
 				LOGGER.debug("Upgrade Matomo instance nodes from {} to {}.", pmi.getInstances(), parameters.getCfInstances());
-				pmi.setIntances(parameters.getCfInstances());
-				savePMatomoInstance(pmi, null);			
+				final int instances = parameters.getCfInstances();
+				update.set(npmi -> npmi.setIntances(instances));
 			}
 			if (pmi.getMemorySize() == parameters.getMemorySize()) {
 				parameters.setMemorySize(-1);
 			} else {
 				LOGGER.debug("Upgrade Matomo instance nodes memory from {}MB to {}MB.", pmi.getMemorySize(), parameters.getMemorySize());
-				pmi.setMemorySize(parameters.getMemorySize());
-				savePMatomoInstance(pmi, null);			
+				final int memsize = parameters.getMemorySize();
+				update.set(npmi -> npmi.setMemorySize(memsize));
+			}
+			pmi = update.flush();
+			if (pmi == null) {
+				LOGGER.debug("SERV::updateMatomoInstance: KO -> operation in progress.");
+				return null;
 			}
 		} catch (Exception e) {
 			return "KO -> Exception: " + e.getMessage();
@@ -476,157 +506,343 @@ public class MatomoInstanceService extends OperationStatusService {
 		}
 		if (MatomoReleases.isHigherVersion(parameters.getVersion(), pmi.getInstalledVersion())) {
 			LOGGER.debug("Upgrade Matomo instance from version {} to {}.", pmi.getInstalledVersion(), parameters.getVersion());
-			updateMatomoInstanceActual(pmi, NOPEINSTIDS, parameters).subscribe();
+			updateMatomoInstanceActual(pmi, NOPEINSTIDS, parameters);
 		} else if (parameters.getTimeZone() != null) {
 			LOGGER.debug("Change Matomo instance timezone from {} to {}.", pmi.getTimeZone(), parameters.getTimeZone());
-			updateMatomoInstanceActual(pmi, NOPEINSTIDS, parameters).subscribe();
+			updateMatomoInstanceActual(pmi, NOPEINSTIDS, parameters);
 		} else if ((parameters.getCfInstances() != -1) || (parameters.getMemorySize() != -1)) {
 			// only scale app nodes and/or memory size
-			cfMgr.scaleMatomoCfApp(pmi.getIdUrlStr(), pmi.getInstances(), pmi.getMemorySize())
-			.doOnError(t -> {
-				EntityManager nem = beginTx();
-				PMatomoInstance npmi = miRepo.getOne(uuid);
-				nem.unwrap(Session.class).update(npmi);
-				savePMatomoInstance(npmi, OperationState.FAILED);
-				commitTx(nem);
-			})
-			.doOnSuccess(v -> {
-				EntityManager nem = beginTx();
-				PMatomoInstance npmi = miRepo.getOne(uuid);
-				nem.unwrap(Session.class).update(npmi);
-				savePMatomoInstance(npmi, OperationState.SUCCEEDED);
-				commitTx(nem);
-			}).subscribe();
+			runWorkflow(uuid, scaleWorkflow(pmi), NOPESTEPS, NOPEINSTIDS, NOPEFINISH);
 		} else {
 			// finally nothing to do
-			em = beginTx();
-			savePMatomoInstance(pmi, OperationState.SUCCEEDED);
-			commitTx(em);
+			new InstanceUpdate(uuid).state(OperationState.SUCCEEDED).flush();
 		}
 		return null;
 	}
 
 	// PRIVATE METHODS --------------------------------------------------------------------------------
 	
-	private Mono<Object> updateMatomoInstanceActual(PMatomoInstance pmi, InstIds instids, Parameters mip) {
+	private void updateMatomoInstanceActual(PMatomoInstance pmi, InstIds instids, Parameters mip) {
 		String uuid = pmi.getUuid();
-		LOGGER.debug("SERV::updateMatomoInstanceActual: matomoInstance={}, newVersion={}", pmi.getUuid(), mip.getVersion());
-		if (pmi.getLastOperation() != OpCode.UPDATE_SERVICE_INSTANCE) {
-			pmi.setLastOperation(POperationStatus.OpCode.UPDATE_SERVICE_INSTANCE);
-			savePMatomoInstance(pmi, OperationState.IN_PROGRESS);
-		}
-		return Mono.create(sink -> {
-			MatomoReleases.createLinkedTree(mip.getVersion(), pmi.getIdUrlStr());
-			MatomoReleases.setConfigIni(mip.getVersion(), pmi.getIdUrlStr(), pmi.getConfigFileContent());
-			cfMgr.deployMatomoCfApp(pmi.getIdUrlStr(), pmi.getUuid(), pmi.getPlanId(), mip, Parameters.MINMEMORYSIZE, 1)
-			.doOnError(t -> {sink.error(t);})
-			.doOnSuccess(v -> {sink.success();})
-			.subscribe();
+		LOGGER.debug("SERV::updateMatomoInstanceActual: matomoInstance={}, newVersion={}", uuid, mip.getVersion());
+		new InstanceUpdate(uuid)
+		.set(npmi -> {
+			npmi.setLastOperation(POperationStatus.OpCode.UPDATE_SERVICE_INSTANCE);
+			npmi.clearProvisioningSteps();
+			npmi.setTargetVersion(mip.getVersion());
 		})
+		.state(OperationState.IN_PROGRESS)
+		.flush();
+		// align the config file with the current settings of the service for the instance
+		byte[] conf = getAlignedConfigFile(pmi);
+		prepareWorkspace(mip.getVersion(), pmi.getIdUrlStr(), conf);
+		runWorkflow(uuid, updateWorkflow(pmi, mip, conf, NOPESTEPS), NOPESTEPS, instids, NOPEFINISH);
+	}
+
+	/**
+	 * Resume the operations that were in progress on instances when the service was stopped,
+	 * after the last step they had completed.
+	 */
+	private void resumeOperations() {
+		List<String> toresume = new ArrayList<String>();
+		EntityManager em = beginTx();
+		try {
+			// only the IDs are read: the instances are loaded one at a time when resumed
+			toresume = miRepo.findUuidsByState(OperationState.IN_PROGRESS.getValue(), ServiceCatalogConfiguration.PLANSHARED_UUID);
+		} catch (Exception e) {
+			LOGGER.error("Problem while looking at the operations to be resumed at service startup", e);
+		} finally {
+			commitTx(em);
+		}
+		for (String uuid : toresume) {
+			resumeOperation(uuid);
+		}
+	}
+
+	private void resumeOperation(String uuid) {
+		EntityManager em = beginTx();
+		try {
+			PMatomoInstance pmi = em.find(PMatomoInstance.class, uuid);
+			List<String> done = pmi.getProvisioningSteps();
+			InstIds instids = pmi.isLocked() ? new InstIds(uuid, pmi.getPlatform().getId()) : NOPEINSTIDS;
+			LOGGER.info("SERV::resumeOperation: instance={}, operation={}, completedSteps={}", uuid, pmi.getLastOperation(), done);
+			switch (pmi.getLastOperation()) {
+			case CREATE_SERVICE_INSTANCE:
+				// the workspace of the instance is local to the service: build it again, with the
+				// config file if it has already been fetched
+				if (done.contains(STEP_WORKSPACE)) {
+					prepareWorkspace(pmi.getParameters().getVersion(), pmi.getIdUrlStr(), pmi.getConfigFileContent());
+				}
+				runWorkflow(uuid, createWorkflow(pmi, pmi.getParameters()), done, instids, this::onCreated);
+				break;
+			case UPDATE_SERVICE_INSTANCE:
+				if (pmi.getTargetVersion() == null) {
+					runWorkflow(uuid, scaleWorkflow(pmi), done, instids, NOPEFINISH);
+				} else {
+					byte[] conf = getAlignedConfigFile(pmi);
+					prepareWorkspace(pmi.getTargetVersion(), pmi.getIdUrlStr(), conf);
+					runWorkflow(uuid, updateWorkflow(pmi, pmi.getParameters().version(pmi.getTargetVersion()), conf, done),
+							done, instids, NOPEFINISH);
+				}
+				break;
+			case DELETE_SERVICE_INSTANCE:
+				runWorkflow(uuid, deleteWorkflow(pmi), done, instids, this::onDeleted);
+				break;
+			default:
+				LOGGER.warn("SERV::resumeOperation: cannot resume operation {} on instance {}", pmi.getLastOperation(), uuid);
+				new InstanceUpdate(uuid).state(OperationState.FAILED).flush();
+			}
+		} catch (Exception e) {
+			LOGGER.error("SERV::resumeOperation: cannot resume operation on instance " + uuid, e);
+			new InstanceUpdate(uuid).state(OperationState.FAILED).flush();
+		} finally {
+			commitTx(em);
+		}
+	}
+
+	private ProvisioningWorkflow createWorkflow(PMatomoInstance pmi, Parameters mip) {
+		final String uuid = pmi.getUuid();
+		final String idurlstr = pmi.getIdUrlStr();
+		final String planid = pmi.getPlanId();
+		final boolean clustmode = pmi.getClusterMode();
+		final String pwd = pmi.getPassword();
+		// the creation of the DB service is launched first, and goes on while the workspace of
+		// the instance is built
+		return new ProvisioningWorkflow(uuid)
+				.step(STEP_CREATEDB, () -> {
+					String dbplanid = uuid.equals(SHAREDINSTANCEINITUUID) ? ServiceCatalogConfiguration.PLANSHARED_UUID : planid;
+					if (!uuid.equals(SHAREDINSTANCEINITUUID) && !properties.getDbCreds(planid).isDedicatedDb()) {
+						return Mono.empty();
+					}
+					return cfMgr.createDedicatedDb(idurlstr, dbplanid)
+							.then(Mono.defer(() -> cfMgr.awaitDedicatedDb(idurlstr, dbplanid)))
+							.timeout(Duration.ofMinutes(CloudFoundryMgr.CREATEDBSERV_TIMEOUT));
+				})
+				.step(STEP_WORKSPACE, ProvisioningWorkflow.after(), () -> Mono.fromRunnable(() -> MatomoReleases.createLinkedTree(mip.getVersion(), idurlstr))
+						.subscribeOn(Schedulers.elastic()))
+				.step(STEP_DEPLOY, ProvisioningWorkflow.after(STEP_WORKSPACE, STEP_CREATEDB), () -> cfMgr.deployMatomoCfApp(idurlstr, uuid, planid, mip, Parameters.MINMEMORYSIZE, 1))
+				// make sure the DB situation is clean before installing, the DB credentials being
+				// known from the app once bound to the DB
+				.step(STEP_INSTALL, () -> Mono.defer(() -> cfMgr.getApplicationEnv(idurlstr))
+						.flatMap(env -> {
+							String dbcred = getDbCred(planid, env);
+							new InstanceUpdate(uuid).set(npmi -> npmi.setDbCred(dbcred)).flush();
+							return cfMgr.deleteAssociatedDbSchema(dbcred, idurlstr, planid, null);
+						})
+						.then(Mono.defer(() -> schemaService.installMatomoInstance(idurlstr, uuid, pwd, planid, mip.getVersion()))))
+				.step(STEP_FETCHCONFIG, () -> cfMgr.getInstanceConfigFile(idurlstr, uuid, mip.getVersion(), planid, clustmode)
+						.doOnNext(ach -> new InstanceUpdate(uuid).set(npmi -> npmi.setConfigFileContent(ach.fileContent)).flush()))
+				.step(STEP_SETTLE, () -> cfMgr.settleMatomoCfApp(idurlstr, mip, pmi.getMemorySize(), pmi.getInstances()))
+				// the token is read from the DB once installed, while the config file is settled
+				.step(STEP_TOKEN, ProvisioningWorkflow.after(STEP_INSTALL), () -> cfMgr.getApplicationEnv(idurlstr).flatMap(env -> retrieveApiToken(uuid, env)));
+	}
+
+	/**
+	 * Fetch the API token of a new instance from its database, as it cannot be obtained through the API.
+	 */
+	private Mono<Void> retrieveApiToken(String uuid, Map<String, Object> env) {
+		LOGGER.debug("Get Matomo Instance API Credentials");
+		PMatomoInstance pmi = miRepo.findById(uuid).get();
+		String dbcred = getDbCred(pmi.getPlanId(), env);
+		String token = cfMgr.getApiAccessToken(dbcred, pmi.getIdUrlStr(), pmi.getPlanId());
+		// the DB credentials are kept even without token, to clean the DB on delete
+		InstanceUpdate update = new InstanceUpdate(uuid).set(npmi -> npmi.setDbCred(dbcred));
+		if (token == null) {
+			update.flush();
+			return Mono.error(new IllegalStateException("Cannot get API token of instance " + uuid));
+		}
+		update.set(npmi -> npmi.setTokenAuth(token)).flush();
+		return Mono.empty();
+	}
+
+	@SuppressWarnings("unchecked")
+	private String getDbCred(String planid, Map<String, Object> env) {
+		return properties.getDbCreds(planid).getJdbcUrl((Map<String, Object>)env.get("VCAP_SERVICES"));
+	}
+
+	private ProvisioningWorkflow updateWorkflow(PMatomoInstance pmi, Parameters mip, byte[] conf, List<String> done) {
+		final String uuid = pmi.getUuid();
+		final String idurlstr = pmi.getIdUrlStr();
+		ProvisioningWorkflow workflow = new ProvisioningWorkflow(uuid);
+		if (done.contains(STEP_DEPLOYNEXT) ||
+				(done.isEmpty() && properties.isBlueGreenUpgrade() && !mip.getVersion().equals(pmi.getInstalledVersion()))) {
+			// once the DB is upgraded through the new app, a failure leaves the instance failed:
+			// the current app is not expected to run on the upgraded DB
+			return workflow
+					.step(STEP_DEPLOYNEXT, () -> cfMgr.deployNextMatomoCfApp(idurlstr, uuid, pmi.getPlanId(), mip, pmi.getMemorySize(), pmi.getInstances()))
+					.step(STEP_UPGRADENEXT, () -> cfMgr.upgradeNextMatomoInstance(idurlstr, uuid, pmi.getInstances()))
+					.step(STEP_SWITCH, () -> cfMgr.switchToNextMatomoCfApp(idurlstr, uuid)
+							.then(Mono.fromRunnable(() -> setInstalledVersion(uuid, mip.getVersion(), conf))))
+					.step(STEP_RETIRE, () -> cfMgr.retireMatomoCfApp(idurlstr, uuid));
+		}
+		return workflow
+				.step(STEP_DEPLOY, () -> cfMgr.deployMatomoCfApp(idurlstr, uuid, pmi.getPlanId(), mip, Parameters.MINMEMORYSIZE, 1))
+				.step(STEP_UPGRADE, () -> cfMgr.upgradeMatomoInstance(idurlstr, uuid)
+						.then(Mono.fromRunnable(() -> setInstalledVersion(uuid, mip.getVersion(), conf))))
+				.step(STEP_SETTLE, () -> cfMgr.settleMatomoCfApp(idurlstr, mip, pmi.getMemorySize(), pmi.getInstances()));
+	}
+
+	private ProvisioningWorkflow scaleWorkflow(PMatomoInstance pmi) {
+		return new ProvisioningWorkflow(pmi.getUuid())
+				.step(STEP_SCALE, () -> cfMgr.scaleMatomoCfApp(pmi.getIdUrlStr(), pmi.getInstances(), pmi.getMemorySize()));
+	}
+
+	private ProvisioningWorkflow deleteWorkflow(PMatomoInstance pmi) {
+		final String uuid = pmi.getUuid();
+		final String idurlstr = pmi.getIdUrlStr();
+		final String planid = pmi.getPlanId();
+		final String dbcred = pmi.getDbCred();
+		// delete data associated with the instance under deletion and its app, then its DB
+		return new ProvisioningWorkflow(uuid)
+				.step(STEP_DROPSCHEMA, () -> cfMgr.deleteAssociatedDbSchema(dbcred, idurlstr, planid,
+						(dropped, total) -> setOperationProgress(uuid, dropped + "/" + total + " tables dropped")))
+				.step(STEP_DELETEAPP, ProvisioningWorkflow.after(), () -> cfMgr.deleteMatomoCfApp(idurlstr, planid))
+				.step(STEP_DELETEDB, ProvisioningWorkflow.after(STEP_DROPSCHEMA, STEP_DELETEAPP), () -> properties.getDbCreds(planid).isDedicatedDb()
+						? cfMgr.deleteDedicatedDb(idurlstr, planid)
+								.doOnError(t -> LOGGER.error("Delete dedicated DB for instance \"{}\" failed: please delete manually service instance {}.",
+										uuid, properties.getDbCreds(planid)))
+								: Mono.empty());
+	}
+
+	/**
+	 * Run the steps of an operation on an instance, recording each completed step in the DB.
+	 * @param uuid	The id of the instance
+	 * @param workflow	The steps of the operation
+	 * @param done	The completed steps if the operation is resumed
+	 * @param instids	Unlock the instance once the operation is over
+	 * @param finish	Complete the instance on success, within the transaction that ends the operation
+	 */
+	private void runWorkflow(String uuid, ProvisioningWorkflow workflow, List<String> done, InstIds instids, Consumer<PMatomoInstance> finish) {
+		MonoProcessor<Void> over = MonoProcessor.create();
+		operations.put(uuid, over);
+		workflow.resume(done, step -> checkpoint(uuid, step))
 		.doOnError(t -> {
-			EntityManager nem = beginTx();
-			PMatomoInstance npmi = miRepo.getOne(uuid);
-			nem.unwrap(Session.class).update(npmi);
-			LOGGER.debug("Async upgrade app instance \"" + npmi.getUuid() + "\" failed.", t);
+			PMatomoInstance npmi = new InstanceUpdate(uuid)
+					.set(upmi -> {
+						LOGGER.error("Async operation " + upmi.getLastOperation() + " on instance \"" + uuid + "\" failed after steps " + upmi.getProvisioningSteps() + ".", t);
+						upmi.clearProvisioningSteps();
+						upmi.setTargetVersion(null);
+					})
+					.state(OperationState.FAILED)
+					.flush();
 			MatomoReleases.deleteLinkedTree(npmi.getIdUrlStr());
-			savePMatomoInstance(npmi, OperationState.FAILED);
-			commitTx(nem);
 			instids.run();
 		})
 		.doOnSuccess(v -> {
-			EntityManager nem = beginTx();
-			PMatomoInstance npmi = miRepo.getOne(uuid);
-			nem.unwrap(Session.class).update(npmi);
-			LOGGER.debug("Async upgrade app instance (phase 1) \"" + npmi.getUuid() + "\" succeeded");
-			if (!cfMgr.upgradeMatomoInstance(npmi.getIdUrlStr(), npmi.getUuid())) {
-				MatomoReleases.deleteLinkedTree(npmi.getIdUrlStr());
-				savePMatomoInstance(npmi, OperationState.FAILED);
-				commitTx(nem);
-				instids.run();
-			} else {
-				npmi.setInstalledVersion(mip.getVersion());
-				savePMatomoInstance(npmi, null);
-				commitTx(nem);
-				settleMatomoInstance(npmi, instids, mip, false, properties.getDbCreds(npmi.getPlanId())).subscribe();
-			}
-		});
+			PMatomoInstance npmi = new InstanceUpdate(uuid)
+					.set(upmi -> {
+						finish.accept(upmi);
+						upmi.clearProvisioningSteps();
+						upmi.setTargetVersion(null);
+					})
+					.state(OperationState.SUCCEEDED)
+					.flush();
+			MatomoReleases.deleteLinkedTree(npmi.getIdUrlStr());
+			LOGGER.debug("Async operation " + npmi.getLastOperation() + " on instance \"" + uuid + "\" succeeded");
+			instids.run();
+		})
+		// the failure has been recorded with the instance
+		.onErrorResume(t -> Mono.empty())
+		.doFinally(s -> {
+			clearOperationProgress(uuid);
+			operations.remove(uuid, over);
+			over.onComplete();
+		})
+		.subscribe();
 	}
 
-	@SuppressWarnings("unchecked")
-	private Mono<Void> settleMatomoInstance(PMatomoInstance pmi, InstIds instids, Parameters mip, boolean retrievetoken, CloudFoundryMgrProperties.DbCreds dbCreds) {
-		String uuid = pmi.getUuid(), instname = pmi.getName();
-		return cfMgr.deployMatomoCfApp(pmi.getIdUrlStr(), pmi.getUuid(), pmi.getPlanId(), mip, pmi.getMemorySize(), pmi.getInstances())
-				.doOnError(t -> {
-					EntityManager nem = beginTx();
-					PMatomoInstance npmi = miRepo.getOne(uuid);
-					nem.unwrap(Session.class).update(npmi);
-					LOGGER.debug("Async settle app instance (phase 2.1) \"" + npmi.getUuid() + "\" failed.", t);
-					MatomoReleases.deleteLinkedTree(npmi.getIdUrlStr());
-					savePMatomoInstance(npmi, OperationState.FAILED);
-					commitTx(nem);
-					instids.run();
-				})
-				.doOnSuccess(v -> {
-					EntityManager nem = beginTx();
-					PMatomoInstance npmi = miRepo.getOne(uuid);
-					nem.unwrap(Session.class).update(npmi);
-					MatomoReleases.deleteLinkedTree(npmi.getIdUrlStr());
-					if (retrievetoken) {
-						LOGGER.debug("Get Matomo Instance API Credentials");
-						commitTx(nem);
-						cfMgr.getApplicationEnv(npmi.getIdUrlStr())
-						.doOnError(t -> {
-							EntityManager nnem = beginTx();
-							PMatomoInstance nnpmi = miRepo.getOne(uuid);
-							nnem.unwrap(Session.class).update(nnpmi);
-							LOGGER.debug("Async settle app instance (phase 2.2) \"" + nnpmi.getUuid() + "\" failed.", t);
-							t.printStackTrace();
-							savePMatomoInstance(nnpmi, OperationState.FAILED);
-							commitTx(nnem);
-						})
-						.doOnSuccess(env -> {
-							// dirty: fetch token_auth from the database as I can't succeed to do it with
-							// the API :-(
-							EntityManager nnem = beginTx();
-							PMatomoInstance nnpmi = miRepo.getOne(uuid);
-							nnem.unwrap(Session.class).update(nnpmi);
-							nnpmi.setDbCred(dbCreds.getJdbcUrl((Map<String, Object>)env.get("VCAP_SERVICES")));
-							String token = cfMgr.getApiAccessToken(nnpmi.getDbCred(), nnpmi.getIdUrlStr(), nnpmi.getPlanId());
-							if (token == null) {
-								savePMatomoInstance(nnpmi, OperationState.FAILED);
-								LOGGER.debug("Async settle app instance (phase 2) \"" + nnpmi.getUuid() + "\" failed");
-							} else {
-								nnpmi.setTokenAuth(token);
-								savePMatomoInstance(nnpmi, OperationState.SUCCEEDED);
-								if (instname.equals(SHAREDINSTANCENAME) && uuid.equals(SHAREDINSTANCEINITUUID)) {
-									sharedReady = true;
-								}
-								LOGGER.debug("Async settle app instance (phase 2) \"" + nnpmi.getUuid() + "\" succeeded");
-							}
-							commitTx(nnem);
-						})
-						.doOnTerminate(instids)
-						.subscribe();
-					} else {
-						savePMatomoInstance(npmi, OperationState.SUCCEEDED);
-						LOGGER.debug("Async settle app instance (phase 2) \"" + npmi.getUuid() + "\" succeeded");
-						commitTx(nem);
-						instids.run();
-					}
-				});
+	/**
+	 * Wait for the operation running on an instance, as its steps go on in the background.
+	 * @param uuid	The id of the instance
+	 * @return	The Mono that completes once the operation is over, whatever its outcome (at once if
+	 * 			no operation is running on the instance)
+	 */
+	Mono<Void> awaitOperation(String uuid) {
+		MonoProcessor<Void> over = operations.get(uuid);
+		return (over == null) ? Mono.empty() : over;
+	}
+
+	// steps running concurrently record their completion one at a time, as the row of the
+	// instance is locked by each update
+	private boolean checkpoint(String uuid, String step) {
+		PMatomoInstance pmi = new InstanceUpdate(uuid)
+				.when(npmi -> npmi.getLastOperationState() == OperationState.IN_PROGRESS)
+				.set(npmi -> npmi.addProvisioningStep(step))
+				.flush();
+		if (pmi == null) {
+			LOGGER.warn("SERV::checkpoint: operation on instance {} is no more in progress", uuid);
+			return false;
+		}
+		return true;
+	}
+
+	private void onCreated(PMatomoInstance pmi) {
+		if (pmi.getName().equals(SHAREDINSTANCENAME) && pmi.getUuid().equals(SHAREDINSTANCEINITUUID)) {
+			sharedReady = true;
+		}
+	}
+
+	private void onDeleted(PMatomoInstance pmi) {
+		instanceIdMgr.freeInstanceId(pmi.getIdUrl());
+		pmi.setConfigFileContent(null);
+	}
+
+	private void prepareWorkspace(String version, String idurlstr, byte[] conf) {
+		MatomoReleases.createLinkedTree(version, idurlstr);
+		if (conf != null) {
+			MatomoReleases.setConfigIni(version, idurlstr, conf);
+		}
+	}
+
+	private byte[] getAlignedConfigFile(PMatomoInstance pmi) {
+		return (pmi.getConfigFileContent() == null) ? null
+				: new MatomoConfigEditor(pmi.getConfigFileContent())
+				.clusterMode(pmi.getClusterMode())
+				.trackerDebug(properties.getMatomoDebug())
+				.toBytes();
+	}
+
+	private void setInstalledVersion(String uuid, String version, byte[] conf) {
+		new InstanceUpdate(uuid)
+		.set(npmi -> {
+			npmi.setInstalledVersion(version);
+			npmi.setConfigFileContent(conf);
+		})
+		.flush();
+	}
+
+	private Object getCreateLock(String uuid) {
+		return createLocks[(uuid.hashCode() & Integer.MAX_VALUE) % CREATELOCKSTRIPES];
+	}
+
+	/**
+	 * Insert a new instance: unlike a save, it fails if an instance with the same id exists.
+	 */
+	private void insertPMatomoInstance(EntityManager em, PMatomoInstance pmi, OperationState os) {
+		pmi.setLastOperationState(os);
+		em.persist(pmi);
+		em.flush();
 	}
 
 	private PMatomoInstance savePMatomoInstance(PMatomoInstance pmi, OperationState os) {
-		if (os == null) {
-			miRepo.save(pmi);
-		} else if (os == OperationState.IN_PROGRESS) {
-			pmi.setLastOperationState(os);
+		if ((os == null) || applyOperationState(pmi, os)) {
 			miRepo.save(pmi);
-		} else if ((pmi.getLastOperationState() == OperationState.IN_PROGRESS)
+		}
+		return pmi;
+	}
+
+	/**
+	 * Change the state of the last operation on an instance: a completed operation (succeeded)
+	 * can only be changed by starting a new one.
+	 * @return	True if the state has been changed
+	 */
+	private boolean applyOperationState(PMatomoInstance pmi, OperationState os) {
+		if ((os == OperationState.IN_PROGRESS)
+				|| (pmi.getLastOperationState() == OperationState.IN_PROGRESS)
 				|| (pmi.getLastOperationState() == OperationState.FAILED)) {
 			pmi.setLastOperationState(os);
-			miRepo.save(pmi);
+			return true;
 		}
-		return pmi;
+		return false;
 	}
 }
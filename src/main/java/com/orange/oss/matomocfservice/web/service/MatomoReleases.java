@@ -19,18 +19,30 @@ package com.orange.oss.matomocfservice.web.service;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.nio.file.CopyOption;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
-import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
 import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.Assert;
@@ -49,7 +61,18 @@ public class MatomoReleases {
 	private final static String VERSIONSFILE = File.separator + "Versions";
 	private final static String DEFVERSIONFILE = File.separator + "DefaultVersion";
 	private final static String LATESTVERSIONFILE = File.separator + "LatestVersion";
+	private final static String ARCHIVESDIR = "archives";
+	private final static String ARCHIVESUFFIX = ".zip";
+	private final static String RELARCHIVEPREFIX = "release-";
+	private final static String CONFIGDIR = "config";
+	private final static String INDEXSUFFIX = ".sha1";
+	private final static String DELTASUFFIX = "-delta" + ARCHIVESUFFIX;
+	private final static String PROFILESCRIPT = ".profile";
 	private static Path tempDir = null;
+	private static Path archivesDir = null;
+	private static WorkspaceMode workspaceMode = WorkspaceMode.COPY;
+	private static Map<String, FutureTask<Path>> releaseArchives = new ConcurrentHashMap<String, FutureTask<Path>>();
+	private static Map<String, ReleaseIndex> releaseIndexes = new ConcurrentHashMap<String, ReleaseIndex>();
 	private static String defaultRel = null;
 	private static String latestRel = null;
 	private static String releasePath = null;
@@ -60,6 +83,7 @@ public class MatomoReleases {
 		try {
 			defaultRel = null;
 			tempDir = Files.createTempDirectory("matomo");
+			archivesDir = Files.createDirectories(tempDir.resolve(ARCHIVESDIR));
 			String versions;
 			LOGGER.debug("SERV::MatomoReleases: initialize - tempDir={}", tempDir.toString());
 			if (!new File("/home/vcap").exists()) {
@@ -104,6 +128,9 @@ public class MatomoReleases {
 				}
 			}
 			Parameters.setDefaultVersion(defaultRel);
+			for (MatomoReleaseSpec release : releases) {
+				loadReleaseIndex(release.getName());
+			}
 		} catch (IOException e) {
 			LOGGER.error("SERV::MatomoReleases: initialize: problem while manipulating files within service container -> " + e.getMessage());
 			e.printStackTrace();
@@ -139,6 +166,33 @@ public class MatomoReleases {
 //		releases = null;
 //	}
 
+	/**
+	 * The way per-instance workspaces are materialized from a Matomo release:
+	 * <ul>
+	 * <li>COPY: the whole release tree is copied for each instance and pushed as a directory,</li>
+	 * <li>LINK: release files are hard-linked into the instance workspace, except the "config"
+	 * directory which gets real copies as it is the only one written by the service (falls back
+	 * to copies when links cannot be created, e.g., temp dir on another device),</li>
+	 * <li>ARCHIVE: one zip is built and cached per release, the instance workspace only holds
+	 * the "config" overlay that is merged with the entries of that zip into a new one at push time.</li>
+	 * </ul>
+	 */
+	public enum WorkspaceMode {
+		COPY,
+		LINK,
+		ARCHIVE;
+	}
+
+	public static void setWorkspaceMode(WorkspaceMode mode) {
+		Assert.notNull(mode, "workspace mode should be defined");
+		LOGGER.debug("SERV::setWorkspaceMode: mode={}", mode);
+		workspaceMode = mode;
+	}
+
+	public static WorkspaceMode getWorkspaceMode() {
+		return workspaceMode;
+	}
+
 	public static String getDefaultReleaseName() {
 		return defaultRel;
 	}
@@ -210,6 +264,29 @@ public class MatomoReleases {
 		return tempDir.toString() + File.separator + instId + "-" + version;
 	}
 
+	/**
+	 * Get a file from the prepared tree of a Matomo release.
+	 * @param version	The Matomo release
+	 * @param relpath	The path of the file relative to the root of the release
+	 * @return	The path of the file
+	 */
+	public static Path getReleaseFile(String version, String relpath) {
+		Assert.notNull(version, "version should be defined");		
+		Assert.notNull(relpath, "file path should be defined");		
+		return Paths.get(releasePath, version).resolve(relpath);
+	}
+
+	/**
+	 * Tell if a Matomo release has the .profile script that installs at startup the config file
+	 * passed through the environment of an app. Releases generated before this script was added
+	 * do not have it.
+	 * @param version	The Matomo release
+	 * @return	True if the config file of an instance can be passed through its environment
+	 */
+	public static boolean hasProfileScript(String version) {
+		return Files.isRegularFile(getReleaseFile(version, PROFILESCRIPT));
+	}
+
 	public static void setConfigIni(String version, String instId, byte filecontent[]) {
 		Assert.notNull(version, "version should be defined");		
 		Assert.notNull(instId, "instance id should be defined");		
@@ -223,6 +300,27 @@ public class MatomoReleases {
 		}
 	}
 
+	/**
+	 * Get the config file stored in the workspace of an instance.
+	 * @param version	The Matomo version of the instance
+	 * @param instId	The code name of the instance
+	 * @return	The content of config.ini.php, or null if the instance has not been configured yet
+	 */
+	public static byte[] getConfigIni(String version, String instId) {
+		Assert.notNull(version, "version should be defined");
+		Assert.notNull(instId, "instance id should be defined");
+		Path confpath = Paths.get(getVersionPath(version, instId) + "/config/config.ini.php");
+		if (!Files.exists(confpath)) {
+			return null;
+		}
+		try {
+			return Files.readAllBytes(confpath);
+		} catch (IOException e) {
+			LOGGER.error("SERV::MatomoReleases:getConfigIni: problem while reading config file.", e);
+			throw new RuntimeException("IO pb in SERV::getConfigIni", e);
+		}
+	}
+
 	public static void createLinkedTree(String version, String instId) {
 		Assert.notNull(version, "version should be defined");		
 		Assert.notNull(instId, "instance id should be defined");		
@@ -241,25 +339,17 @@ public class MatomoReleases {
 			}
 			Path sourcePath = Paths.get(versdir);
 			Path targetPath = Paths.get(instdir);
-			Files.walkFileTree(sourcePath, new SimpleFileVisitor<Path>() {
-				@Override
-				public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs)
-						throws IOException {
-					Files.createDirectories(targetPath.resolve(sourcePath.relativize(dir)));
-					return FileVisitResult.CONTINUE;
-				}
-				@Override
-				public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
-					CopyOption[] options = new CopyOption[]{
-						      StandardCopyOption.REPLACE_EXISTING,
-						      StandardCopyOption.COPY_ATTRIBUTES
-						    };
-					Files.copy(file, targetPath.resolve(sourcePath.relativize(file)), options);
-//					Files.createLink(targetPath.resolve(sourcePath.relativize(file)), file);
-					return FileVisitResult.CONTINUE;
-				}
-			});
-		} catch (IOException e) {
+			if (workspaceMode == WorkspaceMode.ARCHIVE) {
+				// release bits come from the cached archive: only keep room for the config overlay
+				getReleaseArchive(version);
+				Files.createDirectories(targetPath.resolve(CONFIGDIR));
+				return;
+			}
+			Path configPath = sourcePath.resolve(CONFIGDIR);
+			TreeMaterializer.Stats stats = TreeMaterializer.copyTree(sourcePath, targetPath,
+					(workspaceMode == WorkspaceMode.LINK) ? file -> !file.startsWith(configPath) : null);
+			LOGGER.info("SERV::createLinkedTree: workspace for instId={} materialized {}", instId, stats);
+		} catch (IOException | UncheckedIOException e) {
 			LOGGER.error("SERV::MatomoReleases: createLinkedTree: problem while manipulating files within service container.", e);
 			throw new RuntimeException("IO pb in SERV::createLinkedTree", e);
 		}
@@ -269,31 +359,242 @@ public class MatomoReleases {
 		Assert.notNull(instId, "instance id should be defined");		
 		LOGGER.debug("SERV::deleteLinkedTree: instId={}", instId);
 		String vpath = getVersionPath(null, instId);
-		Path sourcePath = Paths.get(vpath);
+		if (vpath == null) {
+			LOGGER.debug("SERV::deleteLinkedTree: no workspace for instId={}", instId);
+			return;
+		}
+		deleteInstanceArchive(vpath);
+		TreeMaterializer.Stats stats = TreeMaterializer.deleteTree(Paths.get(vpath));
+		LOGGER.debug("SERV::deleteLinkedTree: workspace for instId={} removed {}", instId, stats);
+	}
+
+	/**
+	 * Get the path of the bits to be pushed for an instance: either its workspace directory, or
+	 * the cached release archive, shared by all the instances of the release as their config file
+	 * is passed through the environment and installed by the .profile script of the release. For
+	 * a release without that script, an archive is made of the release archive plus the instance
+	 * config overlay.
+	 * @param version	The Matomo version of the instance
+	 * @param instId	The code name of the instance
+	 * @return	The path to a directory or to a zip file
+	 */
+	public static Path getDeployablePath(String version, String instId) {
+		Assert.notNull(version, "version should be defined");		
+		Assert.notNull(instId, "instance id should be defined");		
+		if (workspaceMode != WorkspaceMode.ARCHIVE) {
+			return Paths.get(getVersionPath(version, instId));
+		}
+		LOGGER.debug("SERV::getDeployablePath: version={}, instId={}", version, instId);
+		if (hasProfileScript(version)) {
+			return getReleaseArchive(version);
+		}
+		Path overlay = Paths.get(getVersionPath(version, instId));
+		Path instarch = archivesDir.resolve(overlay.getFileName().toString() + ARCHIVESUFFIX);
+		// a single pass: overlay files first, then the entries of the release archive that are not
+		// overlaid, copied still compressed and with their modes
+		try (ZipFile release = new ZipFile(getReleaseArchive(version).toFile());
+				ZipArchiveOutputStream zos = new ZipArchiveOutputStream(instarch.toFile())) {
+			Set<String> overlaid = new HashSet<String>();
+			if (Files.isDirectory(overlay)) {
+				Files.walkFileTree(overlay, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+						String name = overlay.relativize(file).toString().replace(File.separatorChar, '/');
+						overlaid.add(name);
+						zos.putArchiveEntry(newZipEntry(file, name));
+						Files.copy(file, zos);
+						zos.closeArchiveEntry();
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			}
+			Enumeration<ZipArchiveEntry> entries = release.getEntriesInPhysicalOrder();
+			while (entries.hasMoreElements()) {
+				ZipArchiveEntry entry = entries.nextElement();
+				if (!overlaid.contains(entry.getName())) {
+					try (InputStream is = release.getRawInputStream(entry)) {
+						zos.addRawArchiveEntry(entry, is);
+					}
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.error("SERV::MatomoReleases: getDeployablePath: problem while building instance archive.", e);
+			throw new RuntimeException("IO pb in SERV::getDeployablePath", e);
+		}
+		return instarch;
+	}
+
+	/**
+	 * Get the archive of a Matomo release, building it the first time it is requested. The build
+	 * runs out of the map of archives, so that requests for other releases are not blocked, while
+	 * concurrent requests for the same release wait for the same build.
+	 * @param version	The Matomo version
+	 * @return	The path to the cached zip file
+	 */
+	static Path getReleaseArchive(String version) {
+		Assert.notNull(version, "version should be defined");		
+		if (!isVersionAvailable(version)) {
+			throw new RuntimeException("Matomo " + version + ": unavailable release");
+		}
+		FutureTask<Path> build = new FutureTask<Path>(() -> buildReleaseArchive(version));
+		FutureTask<Path> archive = releaseArchives.putIfAbsent(version, build);
+		if (archive == null) {
+			archive = build;
+			build.run();
+		}
 		try {
+			return archive.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for the archive of release " + version, e);
+		} catch (ExecutionException e) {
+			// a failed build is tried again at the next request
+			releaseArchives.remove(version, archive);
+			throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+		}
+	}
+
+	private static Path buildReleaseArchive(String version) {
+		Path sourcePath = Paths.get(releasePath + File.separator + version);
+		Path archive = archivesDir.resolve(RELARCHIVEPREFIX + version + ARCHIVESUFFIX);
+		LOGGER.debug("SERV::buildReleaseArchive: zip <{}> to <{}>", sourcePath, archive);
+		long start = System.currentTimeMillis();
+		try (ZipArchiveOutputStream zos = new ZipArchiveOutputStream(archive.toFile())) {
 			Files.walkFileTree(sourcePath, new SimpleFileVisitor<Path>() {
 				@Override
-				public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
-					try {
-						new File(file.toString()).delete();
-					} catch (Exception e) {
-						// ignore exception here
+				public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs)
+						throws IOException {
+					if (!dir.equals(sourcePath)) {
+						zos.putArchiveEntry(newZipEntry(dir, sourcePath.relativize(dir).toString().replace(File.separatorChar, '/') + "/"));
+						zos.closeArchiveEntry();
 					}
 					return FileVisitResult.CONTINUE;
 				}
 				@Override
-				public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
-					try {
-						new File(dir.toString()).delete();
-					} catch (Exception e) {
-						// ignore exception here
-					}
+				public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+					zos.putArchiveEntry(newZipEntry(file, sourcePath.relativize(file).toString().replace(File.separatorChar, '/')));
+					Files.copy(file, zos);
+					zos.closeArchiveEntry();
 					return FileVisitResult.CONTINUE;
 				}
 			});
 		} catch (IOException e) {
-			LOGGER.error("SERV::MatomoReleases: deleteLinkedTree: problem while manipulating files within service container: ignore.", e);
+			LOGGER.error("SERV::MatomoReleases: buildReleaseArchive: problem while zipping release " + version + ".", e);
+			try {
+				Files.deleteIfExists(archive);
+			} catch (IOException ee) {
+				// ignore exception here
+			}
+			throw new RuntimeException("IO pb in SERV::buildReleaseArchive", e);
+		}
+		LOGGER.debug("SERV::buildReleaseArchive: release {} archived in {}ms", version, System.currentTimeMillis() - start);
+		return archive;
+	}
+
+	/**
+	 * Build a zip entry for a file that keeps its permissions, as java.util.zip does not.
+	 */
+	static ZipArchiveEntry newZipEntry(Path file, String name) throws IOException {
+		ZipArchiveEntry entry = new ZipArchiveEntry(file.toFile(), name);
+		entry.setUnixMode(getUnixMode(file));
+		return entry;
+	}
+
+	/**
+	 * @return	The Unix mode of a file (type and permission bits)
+	 */
+	static int getUnixMode(Path file) throws IOException {
+		boolean dir = Files.isDirectory(file);
+		int mode = dir ? 040000 : 0100000;
+		try {
+			for (PosixFilePermission perm : Files.getPosixFilePermissions(file)) {
+				// permissions are declared from owner read (0400) to others execute (0001)
+				mode |= 1 << (8 - perm.ordinal());
+			}
+		} catch (UnsupportedOperationException e) {
+			mode |= dir ? 0755 : 0644;
+		}
+		return mode;
+	}
+
+	private static void loadReleaseIndex(String version) {
+		try {
+			releaseIndexes.put(version, ReleaseIndex.load(Paths.get(releasePath, version), Paths.get(releasePath, version + INDEXSUFFIX)));
+		} catch (IOException e) {
+			// instances of this release are then pushed without the help of the index
+			LOGGER.error("SERV::MatomoReleases: loadReleaseIndex: cannot index release " + version + ".", e);
+		}
+	}
+
+	/**
+	 * Get the content index of the bits to be pushed for an instance: the index of its release,
+	 * where the files of the "config" directory of the instance workspace replace the ones of
+	 * the release.
+	 * @param version	The Matomo version of the instance
+	 * @param instId	The code name of the instance
+	 * @return	The entries of the files to push, or null if the release could not be indexed
+	 */
+	public static List<ReleaseIndex.Entry> getDeployableIndex(String version, String instId) {
+		Assert.notNull(version, "version should be defined");		
+		Assert.notNull(instId, "instance id should be defined");		
+		ReleaseIndex index = releaseIndexes.get(version);
+		if (index == null) {
+			return null;
+		}
+		Map<String, ReleaseIndex.Entry> entries = new LinkedHashMap<String, ReleaseIndex.Entry>();
+		for (ReleaseIndex.Entry entry : index.getEntries()) {
+			entries.put(entry.getPath(), entry);
+		}
+		Path overlay = Paths.get(getVersionPath(version, instId)).resolve(CONFIGDIR);
+		if (Files.isDirectory(overlay)) {
+			try {
+				for (ReleaseIndex.Entry entry : ReleaseIndex.compute(overlay, CONFIGDIR + "/")) {
+					entries.put(entry.getPath(), entry);
+				}
+			} catch (IOException e) {
+				LOGGER.error("SERV::MatomoReleases: getDeployableIndex: problem while indexing instance config.", e);
+				throw new RuntimeException("IO pb in SERV::getDeployableIndex", e);
+			}
+		}
+		return new ArrayList<ReleaseIndex.Entry>(entries.values());
+	}
+
+	/**
+	 * Build the archive of the files of an instance that have to be uploaded, i.e., the ones the
+	 * CF blobstore does not have yet, keeping their modes.
+	 * @param instId	The code name of the instance
+	 * @param entries	The files to put in the archive
+	 * @return	The path to the zip file
+	 */
+	public static Path buildDeltaArchive(String instId, List<ReleaseIndex.Entry> entries) {
+		Assert.notNull(instId, "instance id should be defined");		
+		Path delta = archivesDir.resolve(instId + DELTASUFFIX);
+		try (ZipArchiveOutputStream zos = new ZipArchiveOutputStream(delta.toFile())) {
+			for (ReleaseIndex.Entry entry : entries) {
+				zos.putArchiveEntry(newZipEntry(entry.getFile(), entry.getPath()));
+				Files.copy(entry.getFile(), zos);
+				zos.closeArchiveEntry();
+			}
+		} catch (IOException e) {
+			LOGGER.error("SERV::MatomoReleases: buildDeltaArchive: problem while zipping files of " + instId + ".", e);
+			throw new RuntimeException("IO pb in SERV::buildDeltaArchive", e);
+		}
+		return delta;
+	}
+
+	public static void deleteDeltaArchive(String instId) {
+		try {
+			Files.deleteIfExists(archivesDir.resolve(instId + DELTASUFFIX));
+		} catch (IOException e) {
+			LOGGER.error("SERV::MatomoReleases: deleteDeltaArchive: cannot delete archive for " + instId + ": ignore.", e);
+		}
+	}
+
+	private static void deleteInstanceArchive(String vpath) {
+		try {
+			Files.deleteIfExists(archivesDir.resolve(Paths.get(vpath).getFileName().toString() + ARCHIVESUFFIX));
+		} catch (IOException e) {
+			LOGGER.error("SERV::MatomoReleases: deleteInstanceArchive: cannot delete archive for " + vpath + ": ignore.", e);
 		}
-		new File(vpath).delete();
 	}
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.web.service;
+
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.orange.oss.matomocfservice.cfmgr.CloudFoundryMgr;
+import com.orange.oss.matomocfservice.cfmgr.CloudFoundryMgrProperties;
+import com.orange.oss.matomocfservice.web.domain.PMatomoSchema;
+import com.orange.oss.matomocfservice.web.repository.PMatomoSchemaRepository;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Install the database of new Matomo instances. The first instance of a given version is
+ * installed with the installation wizard, and its schema is captured. Next instances of the
+ * same version get their schema directly from that snapshot.
+ * @author P. Déchamboux
+ *
+ */
+@Service
+public class MatomoSchemaService {
+	private final static Logger LOGGER = LoggerFactory.getLogger(MatomoSchemaService.class);
+	@Autowired
+	private PMatomoSchemaRepository msRepo;
+	@Autowired
+	private CloudFoundryMgr cfMgr;
+	@Autowired
+	private CloudFoundryMgrProperties properties;
+
+	/**
+	 * Install the database of a newly deployed Matomo instance.
+	 * @param appcode	The code name of the instance
+	 * @param uuid	The id of the instance (its route)
+	 * @param pwd	The password of the admin user
+	 * @param planid	The service plan of the instance
+	 * @param version	The Matomo version of the instance
+	 * @return	The Mono to signal the end of the installation (produce nothing indeed)
+	 */
+	public Mono<Void> installMatomoInstance(String appcode, String uuid, String pwd, String planid, String version) {
+		// the config file is written by the wizard when it is retrieved from the instance container
+		if (properties.isConfigFromSsh()) {
+			return cfMgr.initializeMatomoInstance(appcode, uuid, pwd, planid);
+		}
+		Optional<PMatomoSchema> opms = msRepo.findById(version);
+		if (opms.isPresent()) {
+			LOGGER.debug("SERV::installMatomoInstance: seed instance {} from schema snapshot of version {}", appcode, version);
+			return cfMgr.seedMatomoInstance(appcode, uuid, pwd, planid, version, opms.get().getStatements());
+		}
+		LOGGER.debug("SERV::installMatomoInstance: no schema snapshot for version {}, run installation wizard", version);
+		return cfMgr.initializeMatomoInstance(appcode, uuid, pwd, planid)
+				.then(Mono.defer(() -> captureSchema(appcode, planid, version)));
+	}
+
+	/**
+	 * A failure to capture the schema does not fail the installation: next instances will simply
+	 * use the wizard again.
+	 */
+	private Mono<Void> captureSchema(String appcode, String planid, String version) {
+		return cfMgr.captureDbSchema(appcode, planid)
+				.doOnSuccess(statements -> {
+					if (statements == null || msRepo.existsById(version)) {
+						return;
+					}
+					msRepo.save(new PMatomoSchema(version, statements));
+					LOGGER.info("SERV::captureSchema: schema snapshot of version {} stored ({} statements)", version, statements.size());
+				})
+				.onErrorResume(t -> {
+					LOGGER.warn("SERV::captureSchema: cannot capture schema snapshot of version " + version, t);
+					return Mono.empty();
+				})
+				.then();
+	}
+}
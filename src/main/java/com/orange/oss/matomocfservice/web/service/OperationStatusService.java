@@ -18,7 +18,9 @@ package com.orange.oss.matomocfservice.web.service;
 
 import java.time.Duration;
 import java.time.ZonedDateTime;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
@@ -51,6 +53,8 @@ public abstract class OperationStatusService {
 	private ApplicationInformation applicationInformation;
 	@Autowired
 	EntityManagerFactory entityManagerFactory;
+	// progress of long running operations, reported with their status while they are in progress
+	private final static Map<String, String> operationProgresses = new ConcurrentHashMap<String, String>();
 
 	@Transactional
 	public OperationAndState getLastOperationAndState(String id, String platformId) {
@@ -83,6 +87,11 @@ public abstract class OperationStatusService {
 		OperationAndState opandst2fill = new OperationAndState();
 		opandst2fill.setOperation(pos.getLastOperation());
 		opandst2fill.setState(pos.getLastOperationState());
+		if (pos.getLastOperationState() == OperationState.IN_PROGRESS) {
+			opandst2fill.setProgress(operationProgresses.get(id));
+		} else {
+			operationProgresses.remove(id);
+		}
 		return opandst2fill;
 	}
 
@@ -130,13 +139,32 @@ public abstract class OperationStatusService {
 		return true;
 	}
 
+	/**
+	 * Record the progress of the operation in progress on a service instance or binding.
+	 * @param id	The id of the service instance or binding
+	 * @param progress	A short description of the progress
+	 */
+	protected void setOperationProgress(String id, String progress) {
+		operationProgresses.put(id, progress);
+	}
+
+	/**
+	 * Forget the progress of an operation once it is over, whether its status is polled or not.
+	 * @param id	The id of the service instance or binding
+	 */
+	protected void clearOperationProgress(String id) {
+		operationProgresses.remove(id);
+	}
+
 	public static class OperationAndState {
 		private POperationStatus.OpCode opCode;
 		private OperationState opState;
+		private String progress;
 
 		public OperationAndState() {
 			opCode = null;
 			opState = null;
+			progress = null;
 		}
 
 		public POperationStatus.OpCode getOperation() {
@@ -144,6 +172,11 @@ public abstract class OperationStatusService {
 		}
 
 		public String getOperationMessage() {
+			String msg = getOperationName();
+			return (progress == null) ? msg : msg + " (" + progress + ")";
+		}
+
+		private String getOperationName() {
 			switch (opCode) {
 			case CREATE_SERVICE_INSTANCE:
 				return "Create Matomo Service Instance";
@@ -170,6 +203,10 @@ public abstract class OperationStatusService {
 		void setState(OperationState opState) {
 			this.opState = opState;
 		}
+
+		void setProgress(String progress) {
+			this.progress = progress;
+		}
 	}
 
 	protected PPlatform getPPlatform(String platformId) {
@@ -191,7 +228,15 @@ public abstract class OperationStatusService {
 
 	protected void commitTx(EntityManager em) {
 		LOGGER.debug("Commit TX: {}", em);
-		em.getTransaction().commit();
-		em.close();
+		try {
+			if (em.getTransaction().getRollbackOnly()) {
+				LOGGER.debug("Rollback TX: {}", em);
+				em.getTransaction().rollback();
+			} else {
+				em.getTransaction().commit();
+			}
+		} finally {
+			em.close();
+		}
 	}
 }
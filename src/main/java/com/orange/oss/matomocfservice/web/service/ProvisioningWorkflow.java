@@ -0,0 +1,209 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.web.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Run the steps of a long-running operation on a service instance as a dependency graph: a step
+ * starts as soon as the steps it depends on are completed, so that independent steps run
+ * concurrently. Each completed step is checkpointed (e.g., in the DB of the service), so that an
+ * operation that has been interrupted by a restart of the service can be resumed without running
+ * its completed steps again. Steps must thus be safe to run again when they have been interrupted.
+ * @author P. Déchamboux
+ *
+ */
+public class ProvisioningWorkflow {
+	private final static Logger LOGGER = LoggerFactory.getLogger(ProvisioningWorkflow.class);
+	private final String id;
+	private final Map<String, Step> steps = new LinkedHashMap<String, Step>();
+	private final Map<String, Long> starts = new ConcurrentHashMap<String, Long>();
+	private final Map<String, Long> ends = new ConcurrentHashMap<String, Long>();
+	private String last = null;
+
+	private static class Step {
+		private final String name;
+		private final List<String> after;
+		private final Supplier<Mono<?>> action;
+
+		private Step(String name, List<String> after, Supplier<Mono<?>> action) {
+			this.name = name;
+			this.after = after;
+			this.action = action;
+		}
+	}
+
+	/**
+	 * @param id	The id of the service instance the operation applies to
+	 */
+	public ProvisioningWorkflow(String id) {
+		this.id = id;
+	}
+
+	/**
+	 * @param names	The names of steps
+	 * @return	The list of the steps, to declare the dependencies of a step
+	 */
+	public static List<String> after(String... names) {
+		return Arrays.asList(names);
+	}
+
+	/**
+	 * Add a step that depends on the step previously added, if any.
+	 * @param name	The name of the step, as it is checkpointed
+	 * @param action	Produce the Mono of the step, subscribed only when the step starts
+	 * @return	The workflow
+	 */
+	public ProvisioningWorkflow step(String name, Supplier<Mono<?>> action) {
+		return step(name, (last == null) ? after() : after(last), action);
+	}
+
+	/**
+	 * Add a step that depends on a given set of steps, which must have been added before.
+	 * @param name	The name of the step, as it is checkpointed
+	 * @param after	The names of the steps that must be completed before this one starts
+	 * @param action	Produce the Mono of the step, subscribed only when the step starts
+	 * @return	The workflow
+	 */
+	public ProvisioningWorkflow step(String name, List<String> after, Supplier<Mono<?>> action) {
+		if (steps.containsKey(name)) {
+			throw new IllegalArgumentException("Step " + name + " already defined for instance " + id);
+		}
+		for (String dep : after) {
+			if (!steps.containsKey(dep)) {
+				throw new IllegalArgumentException("Step " + name + " depends on unknown step " + dep + " for instance " + id);
+			}
+		}
+		steps.put(name, new Step(name, after, action));
+		last = name;
+		return this;
+	}
+
+	public List<String> getSteps() {
+		return new ArrayList<String>(steps.keySet());
+	}
+
+	/**
+	 * Run the steps of the workflow that have not been completed yet: each step starts as soon as
+	 * the steps it depends on are completed. On the failure of a step, the steps that are running
+	 * are let to complete, and the steps that depend on it are not run.
+	 * @param done	The names of the completed steps
+	 * @param checkpoint	Record the completion of a step: the workflow stops with an error if
+	 * 					it returns false (e.g., the operation has been failed meanwhile)
+	 * @return	The Mono that completes once all steps have been checkpointed
+	 */
+	public Mono<Void> resume(Collection<String> done, Predicate<String> checkpoint) {
+		for (String name : done) {
+			if (!steps.containsKey(name)) {
+				return Mono.error(new IllegalStateException("Unknown step " + name + " for instance " + id));
+			}
+		}
+		if (!done.isEmpty()) {
+			LOGGER.info("SERV::ProvisioningWorkflow: resume instance {} after steps {}", id, done);
+		}
+		starts.clear();
+		ends.clear();
+		Map<String, Mono<Void>> nodes = new LinkedHashMap<String, Mono<Void>>();
+		for (Step step : steps.values()) {
+			if (done.contains(step.name)) {
+				nodes.put(step.name, Mono.empty());
+				continue;
+			}
+			List<Mono<Void>> deps = new ArrayList<Mono<Void>>();
+			for (String dep : step.after) {
+				deps.add(nodes.get(dep));
+			}
+			nodes.put(step.name, Mono.when(deps)
+					.then(Mono.defer(() -> {
+						LOGGER.debug("SERV::ProvisioningWorkflow: instance={}, step={}", id, step.name);
+						starts.put(step.name, System.currentTimeMillis());
+						return step.action.get().then();
+					}))
+					.then(Mono.defer(() -> {
+						ends.put(step.name, System.currentTimeMillis());
+						return checkpoint.test(step.name)
+								? Mono.<Void>empty()
+								: Mono.<Void>error(new IllegalStateException("Operation on instance " + id + " stopped after step " + step.name));
+					}))
+					.cache());
+		}
+		AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		return Flux.fromIterable(nodes.values())
+				.flatMap(node -> node.onErrorResume(t -> {
+					failure.compareAndSet(null, t);
+					return Mono.empty();
+				}))
+				.then(Mono.defer(() -> {
+					if (failure.get() != null) {
+						return Mono.<Void>error(failure.get());
+					}
+					LOGGER.info("SERV::ProvisioningWorkflow: instance {} critical path {}", id, formatCriticalPath());
+					return Mono.<Void>empty();
+				}));
+	}
+
+	/**
+	 * Get the critical path of the last run of the workflow: starting from the step that completed
+	 * last, go up the dependency that completed last, as it is the one that delayed the step.
+	 * @return	The steps of the critical path, in execution order
+	 */
+	public List<String> getCriticalPath() {
+		List<String> path = new ArrayList<String>();
+		String cur = latest(ends.keySet());
+		while (cur != null) {
+			path.add(0, cur);
+			cur = latest(steps.get(cur).after);
+		}
+		return path;
+	}
+
+	private String latest(Collection<String> names) {
+		String found = null;
+		for (String name : names) {
+			Long end = ends.get(name);
+			if ((end != null) && ((found == null) || (end > ends.get(found)))) {
+				found = name;
+			}
+		}
+		return found;
+	}
+
+	private String formatCriticalPath() {
+		StringBuilder sb = new StringBuilder();
+		for (String name : getCriticalPath()) {
+			if (sb.length() > 0) {
+				sb.append(" > ");
+			}
+			sb.append(name).append(" (").append((ends.get(name) - starts.get(name)) / 1000).append("s)");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.web.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The content index of a tree of files (i.e., a Matomo release): the SHA-1 and size of each file,
+ * which is what CF resource matching needs to tell which files are already in its blobstore. The
+ * index of a release is produced with the release (see piwik2cf.sh) in the format of sha1sum, and
+ * computed only if missing.
+ * @author P. Déchamboux
+ *
+ */
+public class ReleaseIndex {
+	private final static Logger LOGGER = LoggerFactory.getLogger(ReleaseIndex.class);
+	private final static int SHA1LENGTH = 40;
+	private final List<Entry> entries;
+
+	/**
+	 * A file of the tree, identified by its content.
+	 */
+	public static class Entry {
+		private final String path;
+		private final Path file;
+		private final String sha1;
+		private final long size;
+
+		Entry(String path, Path file, String sha1, long size) {
+			this.path = path;
+			this.file = file;
+			this.sha1 = sha1;
+			this.size = size;
+		}
+
+		/**
+		 * @return	The path of the file relative to the root of the tree, with "/" as separator
+		 */
+		public String getPath() {
+			return this.path;
+		}
+
+		public Path getFile() {
+			return this.file;
+		}
+
+		public String getSha1() {
+			return this.sha1;
+		}
+
+		public long getSize() {
+			return this.size;
+		}
+
+		/**
+		 * @return	The permissions of the file in octal, as CF resource matching expects them
+		 */
+		public String getMode() {
+			try {
+				return Integer.toOctalString(MatomoReleases.getUnixMode(this.file) & 0777);
+			} catch (IOException e) {
+				LOGGER.error("SERV::ReleaseIndex:getMode: cannot read permissions of <" + this.file + ">.", e);
+				throw new RuntimeException("IO pb in SERV::ReleaseIndex:getMode", e);
+			}
+		}
+	}
+
+	private ReleaseIndex(List<Entry> entries) {
+		this.entries = Collections.unmodifiableList(entries);
+	}
+
+	public List<Entry> getEntries() {
+		return this.entries;
+	}
+
+	/**
+	 * Load the index of a tree from its index file, or compute it when the file does not exist and
+	 * try to store it for next time.
+	 * @param root	The root of the tree
+	 * @param indexfile	The index file of the tree
+	 * @return	The index
+	 * @throws IOException	When the tree cannot be read
+	 */
+	static ReleaseIndex load(Path root, Path indexfile) throws IOException {
+		long start = System.currentTimeMillis();
+		List<Entry> entries = new ArrayList<Entry>();
+		if (Files.isReadable(indexfile)) {
+			for (String line : Files.readAllLines(indexfile, StandardCharsets.UTF_8)) {
+				if (line.length() <= SHA1LENGTH + 2) {
+					continue;
+				}
+				String path = line.substring(SHA1LENGTH + 2);
+				Path file = root.resolve(path);
+				entries.add(new Entry(path, file, line.substring(0, SHA1LENGTH), Files.size(file)));
+			}
+			LOGGER.debug("SERV::ReleaseIndex:load: {} files read from <{}> in {}ms", entries.size(), indexfile, System.currentTimeMillis() - start);
+			return new ReleaseIndex(entries);
+		}
+		entries = compute(root, "");
+		StringBuilder sb = new StringBuilder();
+		for (Entry entry : entries) {
+			sb.append(entry.getSha1()).append("  ").append(entry.getPath()).append('\n');
+		}
+		try {
+			Files.write(indexfile, sb.toString().getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			LOGGER.warn("SERV::ReleaseIndex:load: cannot store index <{}> -> {}", indexfile, e.getMessage());
+		}
+		LOGGER.debug("SERV::ReleaseIndex:load: {} files indexed from <{}> in {}ms", entries.size(), root, System.currentTimeMillis() - start);
+		return new ReleaseIndex(entries);
+	}
+
+	/**
+	 * Compute the entries of a tree.
+	 * @param root	The root of the tree
+	 * @param prefix	The prefix to add to the relative path of each file (e.g., "config/")
+	 * @return	The entries of the files of the tree
+	 * @throws IOException	When the tree cannot be read
+	 */
+	static List<Entry> compute(Path root, String prefix) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+				String path = prefix + root.relativize(file).toString().replace(File.separatorChar, '/');
+				entries.add(new Entry(path, file, sha1(file), attrs.size()));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return entries;
+	}
+
+	static String sha1(Path file) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 not supported", e);
+		}
+		try (InputStream is = Files.newInputStream(file)) {
+			byte buf[] = new byte[8192];
+			int n;
+			while ((n = is.read(buf)) > 0) {
+				md.update(buf, 0, n);
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : md.digest()) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.orange.oss.matomocfservice.web.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Materialize and remove directory trees (i.e., instance workspaces) with a fork-join pool: each
+ * directory is processed as a task and its sub-directories are forked, while file contents are
+ * moved with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+ * @author P. Déchamboux
+ *
+ */
+final class TreeMaterializer {
+	private final static Logger LOGGER = LoggerFactory.getLogger(TreeMaterializer.class);
+	private final static ForkJoinPool POOL = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors() * 2));
+	private final static Map<FileStore, Boolean> linkSupport = new ConcurrentHashMap<FileStore, Boolean>();
+
+	private TreeMaterializer() {
+	}
+
+	/**
+	 * Copy a tree, hard-linking the files accepted by the link filter when the file system allows it.
+	 * A file that cannot be linked is copied.
+	 * @param source	The root of the tree to copy
+	 * @param target	The root of the tree to create
+	 * @param linkFilter	Tells which files can be hard-linked instead of copied (null for none)
+	 * @return	The statistics of the copy
+	 */
+	static Stats copyTree(Path source, Path target, Predicate<Path> linkFilter) {
+		Stats stats = new Stats();
+		try {
+			Files.createDirectories(target);
+			Predicate<Path> filter = ((linkFilter != null) && areLinksSupported(source, target)) ? linkFilter : null;
+			POOL.invoke(new CopyDirTask(source, target, filter, stats));
+		} catch (IOException e) {
+			stats.done();
+			throw new UncheckedIOException(e);
+		} catch (UncheckedIOException e) {
+			stats.done();
+			throw e;
+		}
+		return stats.done();
+	}
+
+	/**
+	 * Delete a tree, ignoring the files that cannot be deleted.
+	 * @param root	The root of the tree to delete
+	 * @return	The statistics of the deletion
+	 */
+	static Stats deleteTree(Path root) {
+		Stats stats = new Stats();
+		if (Files.isDirectory(root, LinkOption.NOFOLLOW_LINKS)) {
+			POOL.invoke(new DeleteDirTask(root, stats));
+		}
+		return stats.done();
+	}
+
+	/**
+	 * Tell if files of a tree can be hard-linked into another one: both must be on the same file
+	 * system, and that file system must support links, which is probed once with a test link.
+	 * @param source	The root of the tree to link from
+	 * @param target	The existing root of the tree to link into
+	 * @return	True if links can be made
+	 */
+	static boolean areLinksSupported(Path source, Path target) {
+		try {
+			FileStore store = Files.getFileStore(target);
+			if (!store.equals(Files.getFileStore(source))) {
+				return false;
+			}
+			Boolean supported = linkSupport.get(store);
+			if (supported == null) {
+				supported = probeLink(target);
+				linkSupport.putIfAbsent(store, supported);
+			}
+			return supported;
+		} catch (IOException e) {
+			LOGGER.warn("SERV::TreeMaterializer: cannot tell if <{}> supports hard links ({}): copy files.", target, e.getMessage());
+			return false;
+		}
+	}
+
+	private static boolean probeLink(Path dir) throws IOException {
+		Path probe = Files.createTempFile(dir, ".link", ".probe");
+		Path link = dir.resolve(probe.getFileName().toString() + ".lnk");
+		try {
+			Files.createLink(link, probe);
+			return true;
+		} catch (IOException | UnsupportedOperationException | SecurityException e) {
+			LOGGER.warn("SERV::TreeMaterializer: no hard links on the file system of <{}> ({}): copy files.", dir, e.getMessage());
+			return false;
+		} finally {
+			Files.deleteIfExists(link);
+			Files.deleteIfExists(probe);
+		}
+	}
+
+	private static List<Path> listDir(Path dir) throws IOException {
+		List<Path> entries = new ArrayList<Path>();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+			for (Path p : ds) {
+				entries.add(p);
+			}
+		}
+		return entries;
+	}
+
+	private static class CopyDirTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Path source;
+		private final Path target;
+		private final Predicate<Path> linkFilter;
+		private final Stats stats;
+
+		CopyDirTask(Path source, Path target, Predicate<Path> linkFilter, Stats stats) {
+			this.source = source;
+			this.target = target;
+			this.linkFilter = linkFilter;
+			this.stats = stats;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				Files.createDirectories(target);
+				stats.dirs.incrementAndGet();
+				List<CopyDirTask> subtasks = new ArrayList<CopyDirTask>();
+				for (Path p : listDir(source)) {
+					Path t = target.resolve(p.getFileName().toString());
+					if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+						subtasks.add(new CopyDirTask(p, t, linkFilter, stats));
+					} else {
+						copyFile(p, t);
+					}
+				}
+				invokeAll(subtasks);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private void copyFile(Path file, Path dest) throws IOException {
+			if (Files.isSymbolicLink(file)) {
+				Files.copy(file, dest, LinkOption.NOFOLLOW_LINKS, StandardCopyOption.REPLACE_EXISTING);
+				stats.files.incrementAndGet();
+				return;
+			}
+			if ((linkFilter != null) && linkFilter.test(file)) {
+				try {
+					Files.deleteIfExists(dest);
+					Files.createLink(dest, file);
+					stats.links.incrementAndGet();
+					return;
+				} catch (IOException | UnsupportedOperationException | SecurityException e) {
+					LOGGER.warn("SERV::TreeMaterializer: cannot hard-link <{}> ({}): copy it.", file, e.getMessage());
+				}
+			}
+			try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+					FileChannel out = FileChannel.open(dest, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				long size = in.size();
+				long pos = 0;
+				while (pos < size) {
+					pos += in.transferTo(pos, size - pos, out);
+				}
+				stats.bytes.addAndGet(size);
+			}
+			try {
+				Files.setPosixFilePermissions(dest, Files.getPosixFilePermissions(file));
+			} catch (UnsupportedOperationException e) {
+				// not a POSIX file system: keep default permissions
+			}
+			Files.setLastModifiedTime(dest, Files.getLastModifiedTime(file));
+			stats.files.incrementAndGet();
+		}
+	}
+
+	private static class DeleteDirTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Path dir;
+		private final Stats stats;
+
+		DeleteDirTask(Path dir, Stats stats) {
+			this.dir = dir;
+			this.stats = stats;
+		}
+
+		@Override
+		protected void compute() {
+			List<DeleteDirTask> subtasks = new ArrayList<DeleteDirTask>();
+			List<Path> entries;
+			try {
+				entries = listDir(dir);
+			} catch (IOException e) {
+				LOGGER.debug("SERV::TreeMaterializer: problem while listing <{}>: {}", dir, e.getMessage());
+				entries = new ArrayList<Path>();
+			}
+			for (Path p : entries) {
+				if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+					subtasks.add(new DeleteDirTask(p, stats));
+					continue;
+				}
+				try {
+					// size of the entry itself, a link may be dangling
+					long size = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).size();
+					if (Files.deleteIfExists(p)) {
+						stats.files.incrementAndGet();
+						stats.bytes.addAndGet(size);
+					}
+				} catch (IOException e) {
+					// ignore exception here: delete as much as possible
+					LOGGER.debug("SERV::TreeMaterializer: problem while deleting <{}>: {}", p, e.getMessage());
+				}
+			}
+			invokeAll(subtasks);
+			try {
+				if (Files.deleteIfExists(dir)) {
+					stats.dirs.incrementAndGet();
+				}
+			} catch (IOException e) {
+				// ignore exception here
+			}
+		}
+	}
+
+	/**
+	 * What has been handled by a tree operation.
+	 */
+	static class Stats {
+		private final long start = System.currentTimeMillis();
+		private long duration = -1;
+		final AtomicLong dirs = new AtomicLong();
+		final AtomicLong files = new AtomicLong();
+		final AtomicLong links = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+
+		Stats done() {
+			duration = System.currentTimeMillis() - start;
+			return this;
+		}
+
+		long getDuration() {
+			return duration;
+		}
+
+		long getFiles() {
+			return files.get();
+		}
+
+		long getLinks() {
+			return links.get();
+		}
+
+		long getBytes() {
+			return bytes.get();
+		}
+
+		@Override
+		public String toString() {
+			return "{dirs: " + dirs.get() + ", files: " + files.get() + ", links: " + links.get()
+				+ ", bytes: " + bytes.get() + ", duration: " + duration + "ms}";
+		}
+	}
+}
@@ -267,6 +267,11 @@ fi
 # Disable Composer
 echo "/composer.*" >${SOURCEDIR}/.cfignore
 
+# Install the config file passed through the environment when the app runs a droplet shared by several instances
+echo 'if [ -n "${MCFS_CONFIGINI}" ]; then
+  echo "${MCFS_CONFIGINI}" | base64 -d >${HOME}/htdocs/config/config.ini.php
+fi' >${SOURCEDIR}/.profile
+
 # Add PHP config for CF
 mkdir -p ${SOURCEDIR}/.bp-config/php/php.ini.d
 echo "{
@@ -279,6 +284,8 @@ extension=pdo_mysql.so
 extension=mbstring.so
 " >${SOURCEDIR}/.bp-config/php/php.ini.d/matomo.ini
 (cd ${SOURCEDIR}; cp -r . ${RELEASEDIR} >/dev/null)
+# Index the content of the release for CF resource matching
+(cd ${RELEASEDIR}; find . -type f -printf '%P\n' | sort | xargs -d '\n' sha1sum >${GENERATE_DIR}/${PIWIKVERSION}.sha1)
 /bin/echo -e "	- ${YELLOW}Update supported versions${NOCOL}"
 if [ $LATEST -eq 1 ] ; then
 	(cd ${GENERATE_DIR}; rm -f LatestVersion; echo -n "${PIWIKVERSION}" >LatestVersion)
@@ -22,12 +22,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 import org.cloudfoundry.operations.applications.ApplicationDetail;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.orange.oss.matomocfservice.web.domain.PMatomoInstance;
 import com.orange.oss.matomocfservice.web.domain.Parameters;
 
 import reactor.core.publisher.Mono;
@@ -49,8 +49,9 @@ public class CloudFoundryMgr4Test extends CloudFoundryMgrAbs {
 	}
 
 	@Override
-	public void initialize() {
+	public Mono<Void> initialize() {
 		LOGGER.debug("CFMGR-TEST::CloudFoundryMgr-initialize");
+		return Mono.empty();
 	}
 
 	@Override
@@ -95,6 +96,45 @@ public class CloudFoundryMgr4Test extends CloudFoundryMgrAbs {
 		return Mono.create(sink -> {sink.success();});
 	}
 
+	@Override
+	public Mono<Void> settleMatomoCfApp(String instid, Parameters mip, int memsize, int nbinst) {
+		LOGGER.debug("CFMGR-TEST::settleMatomoCfApp: instId={}", instid);
+		// settling an app is the second deployment step of an instance
+		if (respMask.failedDeployCfAppAtOccur()) {
+			LOGGER.debug("CFMGR-TEST::settleMatomoCfApp: create a Mono for error");
+			return Mono.error(new TimeoutException("Timeout after some time"));
+		}
+		return Mono.create(sink -> {sink.success();});
+	}
+
+	@Override
+	public Mono<Void> deployNextMatomoCfApp(String instid, String uuid, String planid, Parameters mip, int memsize, int nbinst) {
+		LOGGER.debug("CFMGR-TEST::deployNextMatomoCfApp: instId={}, version={}", instid, mip.getVersion());
+		if (respMask.failedDeployCfAppAtOccur()) {
+			LOGGER.debug("CFMGR-TEST::deployNextMatomoCfApp: create a Mono for error");
+			return Mono.error(new TimeoutException("Timeout after some time"));
+		}
+		return Mono.create(sink -> {sink.success();});
+	}
+
+	@Override
+	public Mono<Void> upgradeNextMatomoInstance(String instid, String uuid, int nbinst) {
+		LOGGER.debug("CFMGR-TEST::upgradeNextMatomoInstance: instId={}", instid);
+		return Mono.empty();
+	}
+
+	@Override
+	public Mono<Void> switchToNextMatomoCfApp(String instid, String uuid) {
+		LOGGER.debug("CFMGR-TEST::switchToNextMatomoCfApp: instId={}", instid);
+		return Mono.empty();
+	}
+
+	@Override
+	public Mono<Void> retireMatomoCfApp(String instid, String uuid) {
+		LOGGER.debug("CFMGR-TEST::retireMatomoCfApp: instId={}", instid);
+		return Mono.empty();
+	}
+
 	@Override
 	public Mono<Void> scaleMatomoCfApp(String instid, int instances, int memsize) {
 		LOGGER.debug("CFMGR-TEST::scaleMatomoCfApp: instId={}, instances={}, memsize={}", instid, instances, memsize);
@@ -113,6 +153,12 @@ public class CloudFoundryMgr4Test extends CloudFoundryMgrAbs {
 		return Mono.create(sink -> {sink.success();});
 	}
 
+	@Override
+	public Mono<Void> awaitDedicatedDb(String instid, String planid) {
+		LOGGER.debug("CFMGR-TEST::awaitDedicatedDb: instId={}, planid={}", instid, planid);
+		return Mono.empty();
+	}
+
 	@Override
 	public Mono<Void> deleteDedicatedDb(String instid, String planid) {
 		LOGGER.debug("CFMGR-TEST::deleteDedicatedDb: instId={}, planid={}", instid, planid);
@@ -154,7 +200,7 @@ public class CloudFoundryMgr4Test extends CloudFoundryMgrAbs {
 	}
 
 	@Override
-	public Mono<AppConfHolder> getInstanceConfigFile(String instid, String version, boolean clustermode) {
+	public Mono<AppConfHolder> getInstanceConfigFile(String instid, String uuid, String version, String planid, boolean clustermode) {
 		LOGGER.debug("CFMGR-TEST::getInstanceConfigFile: instid={}, version={}, clusterMode={}", instid, version, clustermode);
 		if (respMask.failedGetConfFile()) {
 			return Mono.error(new IOException("Pb in file transfer"));
@@ -166,15 +212,38 @@ public class CloudFoundryMgr4Test extends CloudFoundryMgrAbs {
 	}
 
 	@Override
-	public boolean initializeMatomoInstance(String appcode, String nuri, String pwd, String planid) {
+	public Mono<Void> initializeMatomoInstance(String appcode, String nuri, String pwd, String planid) {
 		LOGGER.debug("CFMGR-TEST::initializeMatomoInstance");
-		return !respMask.failedInitializeMatomoInstance();
+		if (respMask.failedInitializeMatomoInstance()) {
+			return Mono.error(new IOException("Pb in installation wizard"));
+		}
+		return Mono.empty();
 	}
 
 	@Override
-	public boolean upgradeMatomoInstance(String appcode, String nuri) {
+	public Mono<Void> seedMatomoInstance(String appcode, String nuri, String pwd, String planid, String version, List<String> schema) {
+		LOGGER.debug("CFMGR-TEST::seedMatomoInstance");
+		if (respMask.failedInitializeMatomoInstance()) {
+			return Mono.error(new IOException("Pb in schema initialization"));
+		}
+		return Mono.empty();
+	}
+
+	@Override
+	public Mono<List<String>> captureDbSchema(String instid, String planid) {
+		LOGGER.debug("CFMGR-TEST::captureDbSchema");
+		List<String> schema = new ArrayList<String>();
+		schema.add("CREATE TABLE `" + MatomoSchemaSnapshot.PREFIX_PLACEHOLDER + "user` (`login` varchar(100) NOT NULL)");
+		return Mono.just(schema);
+	}
+
+	@Override
+	public Mono<Void> upgradeMatomoInstance(String appcode, String nuri) {
 		LOGGER.debug("CFMGR-TEST::upgradeMatomoInstance");
-		return respMask.updateMatomoInstanceOK();
+		if (!respMask.updateMatomoInstanceOK()) {
+			return Mono.error(new IOException("Pb in upgrade procedure"));
+		}
+		return Mono.empty();
 	}
 
 	@Override
@@ -187,7 +256,8 @@ public class CloudFoundryMgr4Test extends CloudFoundryMgrAbs {
 	}
 
 	@Override
-	public void deleteAssociatedDbSchema(PMatomoInstance pmi) {
+	public Mono<Void> deleteAssociatedDbSchema(String dbcred, String instid, String planid, BiConsumer<Integer, Integer> progress) {
 		LOGGER.debug("CFMGR-TEST::deleteAssociatedDbSchema");
+		return Mono.empty();
 	}
 }
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.orange.oss.matomocfservice.cfmgr.CfOperationScheduler.Lane;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Mono;
+
+/**
+ * @author P. Déchamboux
+ *
+ */
+public class TestCfOperationScheduler {
+	private final static Duration LONGOP = Duration.ofMillis(200);
+
+	private Mono<Long> operation(CfOperationScheduler scheduler, Lane lane, String name, List<String> started, Duration duration) {
+		return scheduler.schedule(lane, () -> {
+			started.add(name);
+			return Mono.delay(duration);
+		});
+	}
+
+	@Test
+	void testShortOperationsFirst() {
+		CfOperationScheduler scheduler = new CfOperationScheduler(1, 2, 2, 2, new SimpleMeterRegistry());
+		List<String> started = Collections.synchronizedList(new ArrayList<String>());
+		Mono.when(operation(scheduler, Lane.PUSH, "push1", started, LONGOP),
+				operation(scheduler, Lane.PUSH, "push2", started, Duration.ZERO),
+				operation(scheduler, Lane.SERVICE, "service", started, Duration.ZERO),
+				operation(scheduler, Lane.SIMPLE, "simple", started, Duration.ZERO))
+		.block(Duration.ofSeconds(10));
+		Assertions.assertEquals(Arrays.asList("push1", "simple", "service", "push2"), started);
+		Assertions.assertEquals(0, scheduler.getRunning(Lane.PUSH));
+		Assertions.assertEquals(0, scheduler.getQueued(Lane.PUSH));
+	}
+
+	@Test
+	void testLaneLimit() {
+		CfOperationScheduler scheduler = new CfOperationScheduler(4, 1, 2, 2, new SimpleMeterRegistry());
+		List<String> started = Collections.synchronizedList(new ArrayList<String>());
+		Mono.when(operation(scheduler, Lane.PUSH, "push1", started, LONGOP),
+				operation(scheduler, Lane.PUSH, "push2", started, Duration.ZERO)
+				.doOnSubscribe(s -> Assertions.assertEquals(1, scheduler.getQueued(Lane.PUSH))),
+				operation(scheduler, Lane.SIMPLE, "simple", started, Duration.ZERO))
+		.block(Duration.ofSeconds(10));
+		// the second push waits for the first one while the simple call runs at once
+		Assertions.assertEquals(Arrays.asList("push1", "simple", "push2"), started);
+		Assertions.assertEquals(0, scheduler.getRunning(Lane.SIMPLE));
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cloudfoundry.client.v2.ClientV2Exception;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Mono;
+
+/**
+ * @author P. Déchamboux
+ *
+ */
+public class TestCfRateLimiter {
+	private final static Duration TIMEOUT = Duration.ofSeconds(10);
+
+	private ClientV2Exception throttled() {
+		return new ClientV2Exception(429, 10013, "Rate Limit Exceeded", "CF-RateLimitExceeded");
+	}
+
+	@Test
+	void testRetryIdempotent() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		CfRateLimiter limiter = new CfRateLimiter(10, 1, 0, 2, registry);
+		AtomicInteger attempts = new AtomicInteger();
+		String res = limiter.call(() -> (attempts.incrementAndGet() < 3) ? Mono.<String>error(throttled()) : Mono.just("done"), true)
+				.block(TIMEOUT);
+		Assertions.assertEquals("done", res);
+		Assertions.assertEquals(3, attempts.get());
+		Assertions.assertEquals(2.0, registry.get("matomo.cf.ratelimit.retries").counter().count());
+		Assertions.assertEquals(2.0, registry.get("matomo.cf.ratelimit.throttled").counter().count());
+	}
+
+	@Test
+	void testNoRetry() {
+		CfRateLimiter limiter = new CfRateLimiter(10, 1, 0, 2, new SimpleMeterRegistry());
+		AtomicInteger attempts = new AtomicInteger();
+		Assertions.assertThrows(ClientV2Exception.class,
+				() -> limiter.call(() -> {
+					attempts.incrementAndGet();
+					return Mono.<Void>error(throttled());
+				}, false).block(TIMEOUT));
+		Assertions.assertEquals(1, attempts.get());
+		Assertions.assertThrows(IllegalStateException.class,
+				() -> limiter.call(() -> {
+					attempts.incrementAndGet();
+					return Mono.<Void>error(new IllegalStateException("not throttled"));
+				}, true).block(TIMEOUT));
+		Assertions.assertEquals(2, attempts.get());
+	}
+
+	@Test
+	void testUnavailableNotThrottled() {
+		CfRateLimiter limiter = new CfRateLimiter(10, 1, 1, 2, new SimpleMeterRegistry());
+		Assertions.assertThrows(ClientV2Exception.class,
+				() -> limiter.call(() -> Mono.<Void>error(new ClientV2Exception(503, 10015, "Service Unavailable", "CF-ServiceUnavailable")), true).block(TIMEOUT));
+		Assertions.assertEquals(10.0, limiter.getRate());
+		Assertions.assertFalse(limiter.isBlocked());
+	}
+
+	@Test
+	void testCoalescedDecrease() {
+		CfRateLimiter limiter = new CfRateLimiter(8, 1, 1, 0, new SimpleMeterRegistry());
+		AtomicInteger failures = new AtomicInteger();
+		Mono<Void> call = limiter.call(() -> Mono.<Void>error(throttled()), true)
+				.onErrorResume(t -> {
+					failures.incrementAndGet();
+					return Mono.empty();
+				});
+		// the three calls run within the burst and fail in the same cool-down period
+		Mono.when(call, call, call).block(TIMEOUT);
+		Assertions.assertEquals(3, failures.get());
+		Assertions.assertEquals(4.0, limiter.getRate());
+		Assertions.assertTrue(limiter.isBlocked());
+		limiter.call(() -> Mono.just(true), false).block(TIMEOUT);
+		Assertions.assertFalse(limiter.isBlocked());
+		Assertions.assertEquals(5.0, limiter.getRate());
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.actuate.health.Status;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+/**
+ * @author P. Déchamboux
+ *
+ */
+public class TestCfReadiness {
+
+	@Test
+	void testStates() {
+		CfReadiness readiness = new CfReadiness();
+		MonoProcessor<Void> smtp = MonoProcessor.create();
+		Mono<Void> all = Mono.when(readiness.track("smtp", smtp),
+				readiness.track("db", Mono.error(new IllegalStateException("no db"))));
+		all.subscribe();
+		Assertions.assertFalse(readiness.isReady("smtp"));
+		Assertions.assertFalse(readiness.isReady("db"));
+		Assertions.assertEquals(Status.DOWN, readiness.health().getStatus());
+		smtp.onComplete();
+		Assertions.assertTrue(readiness.isReady("smtp"));
+		Assertions.assertEquals(CfReadiness.State.FAILED, readiness.getStates().get("db"));
+	}
+
+	@Test
+	void testPending() {
+		CfReadiness readiness = new CfReadiness();
+		MonoProcessor<Void> ssh = MonoProcessor.create();
+		readiness.track("ssh", ssh).subscribe();
+		Assertions.assertEquals(Status.OUT_OF_SERVICE, readiness.health().getStatus());
+		ssh.onComplete();
+		Assertions.assertEquals(Status.UP, readiness.health().getStatus());
+		Assertions.assertEquals(CfReadiness.State.READY, readiness.health().getDetails().get("ssh"));
+	}
+
+	@Test
+	void testRetryFailed() throws InterruptedException {
+		CfReadiness readiness = new CfReadiness(Duration.ofMillis(50), Duration.ofMillis(100));
+		AtomicInteger attempts = new AtomicInteger();
+		Mono<Void> smtp = Mono.defer(() -> (attempts.incrementAndGet() < 3)
+				? Mono.<Void>error(new IllegalStateException("broker unavailable"))
+				: Mono.<Void>empty());
+		readiness.track("smtp", smtp).block(Duration.ofSeconds(5));
+		// a transient failure at startup does not last until the next restart
+		Assertions.assertEquals(CfReadiness.State.FAILED, readiness.getStates().get("smtp"));
+		for (int i = 0; (i < 100) && !readiness.isReady("smtp"); i++) {
+			Thread.sleep(50);
+		}
+		Assertions.assertTrue(readiness.isReady("smtp"));
+		Assertions.assertEquals(3, attempts.get());
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
+
+/**
+ * @author P. Déchamboux
+ *
+ */
+public class TestCfStatePoller {
+	private final static Duration MININTERVAL = Duration.ofMillis(50);
+	private final static Duration TIMEOUT = Duration.ofSeconds(10);
+
+	@Test
+	void testBatchedWaits() {
+		CfStatePoller poller = new CfStatePoller(MININTERVAL, Duration.ofMillis(200), TIMEOUT, new SimpleMeterRegistry());
+		Map<String, String> states = new ConcurrentHashMap<String, String>();
+		AtomicInteger requests = new AtomicInteger();
+		states.put("db1", "in progress");
+		states.put("db2", "in progress");
+		CfStatePoller.Source source = ids -> {
+			// each resource completes at the second round that sees it
+			Map<String, String> res = new HashMap<String, String>();
+			for (String id : ids) {
+				if (states.containsKey(id)) {
+					res.put(id, states.get(id));
+					states.put(id, "succeeded");
+				}
+			}
+			requests.incrementAndGet();
+			return Mono.just(res);
+		};
+		Mono<String> w1 = poller.await(source, "db1", s -> !"in progress".equals(s), TIMEOUT);
+		Mono<String> w2 = poller.await(source, "db2", s -> !"in progress".equals(s), TIMEOUT);
+		Tuple2<String, String> ended = Mono.zip(w1, w2).block(TIMEOUT);
+		Assertions.assertEquals("succeeded", ended.getT1());
+		Assertions.assertEquals("succeeded", ended.getT2());
+		Assertions.assertEquals(2, requests.get());
+		Assertions.assertEquals(0, poller.getWaiting());
+		Assertions.assertEquals(CfStatePoller.GONE, poller.await(source, "db3", s -> true, TIMEOUT).block(TIMEOUT));
+	}
+
+	@Test
+	void testTimeout() {
+		CfStatePoller poller = new CfStatePoller(MININTERVAL, MININTERVAL, TIMEOUT, new SimpleMeterRegistry());
+		CfStatePoller.Source source = ids -> {
+			Map<String, String> res = new HashMap<String, String>();
+			for (String id : ids) {
+				res.put(id, "in progress");
+			}
+			return Mono.just(res);
+		};
+		Throwable t = Assertions.assertThrows(RuntimeException.class,
+				() -> poller.await(source, "db1", s -> !"in progress".equals(s), Duration.ofMillis(200)).block(TIMEOUT));
+		Assertions.assertTrue(t.getCause() instanceof TimeoutException);
+		Assertions.assertEquals(0, poller.getWaiting());
+		Assertions.assertEquals(MININTERVAL, poller.getInterval());
+	}
+
+	@Test
+	void testHungRequest() {
+		CfStatePoller poller = new CfStatePoller(MININTERVAL, MININTERVAL, Duration.ofMillis(100), new SimpleMeterRegistry());
+		AtomicInteger requests = new AtomicInteger();
+		CfStatePoller.Source source = ids -> {
+			requests.incrementAndGet();
+			return Mono.never();
+		};
+		// the waits still expire, and the next rounds still run
+		Throwable t = Assertions.assertThrows(RuntimeException.class,
+				() -> poller.await(source, "db1", s -> !"in progress".equals(s), Duration.ofMillis(300)).block(TIMEOUT));
+		Assertions.assertTrue(t.getCause() instanceof TimeoutException);
+		Assertions.assertTrue(requests.get() > 1);
+		Assertions.assertEquals(0, poller.getWaiting());
+	}
+}
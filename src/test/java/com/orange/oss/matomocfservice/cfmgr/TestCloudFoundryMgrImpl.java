@@ -0,0 +1,400 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.client.v2.ClientV2Exception;
+import org.cloudfoundry.client.v2.applications.SummaryApplicationResponse;
+import org.cloudfoundry.client.v2.resourcematch.ListMatchingResourcesResponse;
+import org.cloudfoundry.client.v2.resourcematch.Resource;
+import org.cloudfoundry.client.v3.Link;
+import org.cloudfoundry.client.v3.applications.ApplicationResource;
+import org.cloudfoundry.client.v3.applications.GetApplicationCurrentDropletResponse;
+import org.cloudfoundry.client.v3.applications.ListApplicationsResponse;
+import org.cloudfoundry.client.v3.droplets.CopyDropletResponse;
+import org.cloudfoundry.client.v3.droplets.DropletResource;
+import org.cloudfoundry.client.v3.droplets.DropletState;
+import org.cloudfoundry.client.v3.droplets.GetDropletResponse;
+import org.cloudfoundry.client.v3.droplets.ListDropletsResponse;
+import org.cloudfoundry.operations.CloudFoundryOperations;
+import org.cloudfoundry.operations.applications.ApplicationDetail;
+import org.cloudfoundry.operations.applications.ApplicationEnvironments;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+import org.cloudfoundry.operations.applications.DeleteApplicationRequest;
+import org.cloudfoundry.operations.applications.GetApplicationEnvironmentsRequest;
+import org.cloudfoundry.operations.applications.GetApplicationRequest;
+import org.cloudfoundry.operations.applications.RenameApplicationRequest;
+import org.cloudfoundry.operations.routes.DeleteRouteRequest;
+import org.cloudfoundry.operations.routes.MapRouteRequest;
+import org.cloudfoundry.operations.routes.UnmapRouteRequest;
+import org.cloudfoundry.operations.services.ServiceInstance;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.orange.oss.matomocfservice.web.domain.Parameters;
+import com.orange.oss.matomocfservice.web.service.MatomoReleases;
+import com.orange.oss.matomocfservice.web.service.ReleaseIndex;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Check the sequences of CF requests issued by the CF manager, against a mocked CF.
+ * @author P. Déchamboux
+ *
+ */
+public class TestCloudFoundryMgrImpl {
+	private final static String BUILDPACK = "php_buildpack";
+	private final static String INSTID = "000000101";
+	private final static String UUID = "inst-uuid";
+	private final static String DOMAIN = "example.com";
+	private final static String APPID = "app-guid";
+	private final static String REFAPPID = "refapp-guid";
+	private final static String REFDROPLET = "refdroplet-guid";
+	private final static String NEWDROPLET = "newdroplet-guid";
+	private CloudFoundryMgrImpl cfmgr;
+	private CloudFoundryOperations cfops;
+	private CloudFoundryClient cfclient;
+	private CfStatePoller poller;
+	private CloudFoundryMgrProperties properties;
+	private String version;
+	private String appname;
+	private String refappname;
+
+	@BeforeEach
+	void setUp() {
+		cfmgr = new CloudFoundryMgrImpl();
+		cfops = mock(CloudFoundryOperations.class, Mockito.RETURNS_DEEP_STUBS);
+		cfclient = mock(CloudFoundryClient.class, Mockito.RETURNS_DEEP_STUBS);
+		poller = mock(CfStatePoller.class);
+		properties = mock(CloudFoundryMgrProperties.class, Mockito.RETURNS_DEEP_STUBS);
+		when(properties.isDropletCache()).thenReturn(true);
+		when(properties.getPhpBuildpack()).thenReturn(BUILDPACK);
+		when(properties.getDomain()).thenReturn(DOMAIN);
+		ReflectionTestUtils.setField(cfmgr, "properties", properties);
+		ReflectionTestUtils.setField(cfmgr, "cfops", cfops);
+		ReflectionTestUtils.setField(cfmgr, "cfclient", cfclient);
+		ReflectionTestUtils.setField(cfmgr, "poller", poller);
+		version = MatomoReleases.getDefaultReleaseName();
+		appname = cfmgr.getAppName(INSTID);
+		refappname = cfmgr.getAppName("REF-" + version.replace('.', '-'));
+		when(cfops.applications().get(argThat(named(appname)))).thenReturn(Mono.just(getAppDetail(appname, APPID)));
+		when(cfops.applications().get(argThat(named(refappname)))).thenReturn(Mono.just(getAppDetail(refappname, REFAPPID)));
+		when(cfops.applications().stop(any())).thenReturn(Mono.empty());
+		when(cfops.applications().scale(any())).thenReturn(Mono.empty());
+		when(cfclient.applicationsV2().update(any())).thenReturn(Mono.empty());
+		when(cfops.services().bind(any())).thenReturn(Mono.empty());
+		when(cfops.routes().map(any())).thenReturn(Mono.just(1));
+		when(poller.await(any(), anyString(), any(), any())).thenReturn(Mono.just("RUNNING"));
+	}
+
+	private static ArgumentMatcher<GetApplicationRequest> named(String name) {
+		return req -> (req != null) && name.equals(req.getName());
+	}
+
+	private static ApplicationDetail getAppDetail(String name, String id, String... urls) {
+		return ApplicationDetail.builder()
+				.name(name)
+				.id(id)
+				.stack("cflinuxfs3")
+				.diskQuota(1024)
+				.instances(1)
+				.memoryLimit(1024)
+				.requestedState("STOPPED")
+				.runningInstances(0)
+				.urls(Arrays.asList(urls))
+				.build();
+	}
+
+	private ApplicationManifest getManifest(String... services) {
+		return ApplicationManifest.builder()
+				.name(appname)
+				.buildpack(BUILDPACK)
+				.memory(512)
+				.instances(1)
+				.environmentVariable("TZ", "Europe/Paris")
+				.services(services)
+				.build();
+	}
+
+	private void mockDroplets(Map<String, Object> refenv) {
+		ApplicationEnvironments envs = mock(ApplicationEnvironments.class);
+		when(envs.getUserProvided()).thenReturn(refenv);
+		when(cfops.applications().getEnvironments(any(GetApplicationEnvironmentsRequest.class))).thenReturn(Mono.just(envs));
+		when(cfops.applications().pushManifest(any())).thenReturn(Mono.empty());
+		when(cfclient.applicationsV3().updateEnvironmentVariables(any())).thenReturn(Mono.empty());
+		GetApplicationCurrentDropletResponse current = mock(GetApplicationCurrentDropletResponse.class);
+		when(current.getId()).thenReturn(REFDROPLET);
+		when(cfclient.applicationsV3().getCurrentDroplet(any())).thenReturn(Mono.just(current));
+		CopyDropletResponse copy = mock(CopyDropletResponse.class);
+		when(copy.getId()).thenReturn(NEWDROPLET);
+		when(cfclient.dropletsV3().copy(any())).thenReturn(Mono.just(copy));
+		GetDropletResponse staged = mock(GetDropletResponse.class);
+		when(staged.getState()).thenReturn(DropletState.STAGED);
+		when(cfclient.dropletsV3().get(any())).thenReturn(Mono.just(staged));
+		when(cfclient.applicationsV3().setCurrentDroplet(any())).thenReturn(Mono.empty());
+	}
+
+	@Test
+	void testDropletFromReferenceApp() {
+		Assertions.assertTrue(MatomoReleases.hasProfileScript(version), "Release should pass the config file through the environment");
+		Map<String, Object> refenv = new HashMap<String, Object>();
+		refenv.put("MCFS_BUILDPACK", BUILDPACK);
+		mockDroplets(refenv);
+		cfmgr.deployApp(getManifest(), INSTID, INSTID, version).block(Duration.ofSeconds(10));
+		verify(cfops.applications(), never()).pushManifest(any());
+		verify(cfclient.dropletsV3()).copy(argThat(req -> REFDROPLET.equals(req.getSourceDropletId())
+				&& APPID.equals(req.getRelationships().getApplication().getData().getId())));
+		verify(cfclient.applicationsV3()).setCurrentDroplet(argThat(req -> APPID.equals(req.getApplicationId())
+				&& NEWDROPLET.equals(req.getData().getId())));
+	}
+
+	@Test
+	void testDropletRestagedForOtherBuildpack() {
+		// a reference app staged with another buildpack only reports the detected one
+		mockDroplets(Collections.<String, Object>emptyMap());
+		cfmgr.deployApp(getManifest(), INSTID, INSTID, version).block(Duration.ofSeconds(10));
+		verify(cfops.applications()).pushManifest(argThat(req -> refappname.equals(req.getManifests().get(0).getName())
+				&& BUILDPACK.equals(req.getManifests().get(0).getEnvironmentVariables().get("MCFS_BUILDPACK"))));
+		verify(cfclient.applicationsV3()).setCurrentDroplet(argThat(req -> NEWDROPLET.equals(req.getData().getId())));
+	}
+
+	@Test
+	void testExistingAppGetsBindingsAndRoute() {
+		// a previous deployment stopped right after the app was created
+		mockDroplets(Collections.<String, Object>singletonMap("MCFS_BUILDPACK", BUILDPACK));
+		when(cfops.services().bind(argThat(req -> (req != null) && "db".equals(req.getServiceInstanceName()))))
+				.thenReturn(Mono.error(new ClientV2Exception(400, 90003, "The app is already bound to the service.", "CF-ServiceBindingAppServiceTaken")));
+		cfmgr.deployApp(getManifest("db", "smtp"), INSTID, UUID, version).block(Duration.ofSeconds(10));
+		verify(cfops.services()).bind(argThat(req -> appname.equals(req.getApplicationName()) && "smtp".equals(req.getServiceInstanceName())));
+		verify(cfops.routes()).map(argThat(req -> appname.equals(req.getApplicationName()) && UUID.equals(req.getHost())));
+	}
+
+	@Test
+	void testExistingAppKeepsRoute() {
+		when(cfops.applications().get(argThat(named(appname)))).thenReturn(Mono.just(getAppDetail(appname, APPID, UUID + "." + DOMAIN)));
+		mockDroplets(Collections.<String, Object>singletonMap("MCFS_BUILDPACK", BUILDPACK));
+		cfmgr.deployApp(getManifest(), INSTID, UUID, version).block(Duration.ofSeconds(10));
+		verify(cfops.routes(), never()).map(any(MapRouteRequest.class));
+	}
+
+	@Test
+	void testAppStatesOfAwaitedAppsOnly() {
+		List<ApplicationResource> apps = new ArrayList<ApplicationResource>();
+		for (String appid : Arrays.asList(APPID, "staging-guid", "failed-guid")) {
+			ApplicationResource app = mock(ApplicationResource.class);
+			when(app.getId()).thenReturn(appid);
+			apps.add(app);
+		}
+		ListApplicationsResponse applist = mock(ListApplicationsResponse.class, Mockito.RETURNS_DEEP_STUBS);
+		when(applist.getResources()).thenReturn(apps);
+		when(applist.getPagination().getTotalPages()).thenReturn(1);
+		when(cfclient.applicationsV3().list(any())).thenReturn(Mono.just(applist));
+		List<DropletResource> droplets = Arrays.asList(
+				getDroplet(APPID, DropletState.FAILED, "2019-10-01T10:00:00Z"),
+				getDroplet(APPID, DropletState.STAGED, "2019-10-02T10:00:00Z"),
+				getDroplet("staging-guid", DropletState.STAGING, "2019-10-02T10:00:00Z"),
+				getDroplet("failed-guid", DropletState.FAILED, "2019-10-02T10:00:00Z"));
+		ListDropletsResponse dropletlist = mock(ListDropletsResponse.class, Mockito.RETURNS_DEEP_STUBS);
+		when(dropletlist.getResources()).thenReturn(droplets);
+		when(dropletlist.getPagination().getTotalPages()).thenReturn(1);
+		when(cfclient.dropletsV3().list(any())).thenReturn(Mono.just(dropletlist));
+		SummaryApplicationResponse running = mock(SummaryApplicationResponse.class);
+		when(running.getId()).thenReturn(APPID);
+		when(running.getRunningInstances()).thenReturn(1);
+		when(cfclient.applicationsV2().summary(any())).thenReturn(Mono.just(running));
+		Map<String, String> states = cfmgr.getAppStates(new HashSet<String>(Arrays.asList(APPID, "staging-guid", "failed-guid", "gone-guid")))
+				.block(Duration.ofSeconds(10));
+		Map<String, String> expected = new HashMap<String, String>();
+		expected.put(APPID, "RUNNING");
+		expected.put("staging-guid", "STARTING");
+		expected.put("failed-guid", "STAGING_FAILED");
+		Assertions.assertEquals(expected, states);
+		verify(cfclient.applicationsV3()).list(argThat(req -> req.getApplicationIds().size() == 4));
+		verify(cfclient.dropletsV3()).list(any());
+		// running instances are only asked for the apps whose droplet is staged
+		verify(cfclient.applicationsV2()).summary(argThat(req -> APPID.equals(req.getApplicationId())));
+		verify(cfclient.applicationsV2(), Mockito.times(1)).summary(any());
+		verify(cfclient.spaces(), never()).getSummary(any());
+	}
+
+	private static DropletResource getDroplet(String appid, DropletState state, String created) {
+		DropletResource droplet = mock(DropletResource.class);
+		when(droplet.getState()).thenReturn(state);
+		when(droplet.getCreatedAt()).thenReturn(created);
+		when(droplet.getLinks()).thenReturn(Collections.singletonMap("app", Link.builder().href("https://api.example.com/v3/apps/" + appid).build()));
+		return droplet;
+	}
+
+	@Test
+	void testCreateDbResumed() {
+		// the service was restarted while the DB of the instance was being created
+		when(properties.getDbCreds("plan").getInstanceServiceName(appname)).thenReturn("db-" + INSTID);
+		when(cfops.services().getInstance(argThat(req -> (req != null) && ("db-" + INSTID).equals(req.getName()))))
+				.thenReturn(Mono.just(mock(ServiceInstance.class)));
+		when(poller.await(any(), anyString(), any(), any())).thenReturn(Mono.just("succeeded"));
+		cfmgr.createDedicatedDb(INSTID, "plan").then(cfmgr.awaitDedicatedDb(INSTID, "plan")).block(Duration.ofSeconds(10));
+		verify(cfclient.serviceInstances(), never()).create(any());
+		verify(poller).await(any(), Mockito.eq("db-" + INSTID), any(), any());
+	}
+
+	@Test
+	void testUploadMatchesPooledFilesOnly() {
+		when(properties.getResourceMatchMinSize()).thenReturn(65536L);
+		ReleaseIndex.Entry small = null, large = null;
+		for (ReleaseIndex.Entry entry : MatomoReleases.getDeployableIndex(version, INSTID)) {
+			if ((small == null) && (entry.getSize() < 65536L)) {
+				small = entry;
+			} else if ((large == null) && (entry.getSize() >= 65536L)) {
+				large = entry;
+			}
+		}
+		Assertions.assertNotNull(small);
+		Assertions.assertNotNull(large);
+		List<ReleaseIndex.Entry> index = new ArrayList<ReleaseIndex.Entry>();
+		index.add(small);
+		index.add(large);
+		ListMatchingResourcesResponse known = mock(ListMatchingResourcesResponse.class);
+		when(known.getResources()).thenReturn(Collections.singletonList(Resource.builder().hash(large.getSha1()).size(large.getSize()).build()));
+		when(cfclient.resourceMatch().list(any())).thenReturn(Mono.just(known));
+		when(cfclient.applicationsV2().upload(any())).thenReturn(Mono.empty());
+		String largesha1 = large.getSha1(), largemode = large.getMode();
+		cfmgr.uploadMatomoBits(APPID, INSTID, index).block(Duration.ofSeconds(10));
+		// files under the pooling size of CF are not worth matching
+		verify(cfclient.resourceMatch()).list(argThat(req -> (req.getResources().size() == 1)
+				&& largesha1.equals(req.getResources().get(0).getHash())));
+		verify(cfclient.applicationsV2()).upload(argThat(req -> (req.getResources().size() == 1)
+				&& largesha1.equals(req.getResources().get(0).getHash())
+				&& largemode.equals(req.getResources().get(0).getMode())));
+	}
+
+	@Test
+	void testSettleKeepsBitsWithoutDropletCache() {
+		Assumptions.assumeTrue(MatomoReleases.hasProfileScript(version), "Release without .profile script");
+		when(properties.isDropletCache()).thenReturn(false);
+		when(cfclient.applicationsV3().updateEnvironmentVariables(any())).thenReturn(Mono.empty());
+		MatomoReleases.createLinkedTree(version, INSTID);
+		try {
+			MatomoReleases.setConfigIni(version, INSTID, "config".getBytes());
+			cfmgr.settleMatomoCfApp(INSTID, new Parameters().version(version).timeZone("Europe/Paris"), 512, 1).block(Duration.ofSeconds(10));
+			verify(cfclient.applicationsV3()).updateEnvironmentVariables(argThat(req -> req.getVars().containsKey("MCFS_CONFIGINI")));
+			verify(cfclient.applicationsV2(), never()).upload(any());
+			verify(cfops.applications()).scale(argThat(req -> appname.equals(req.getName()) && (req.getInstances() == 1)));
+		} finally {
+			MatomoReleases.deleteLinkedTree(INSTID);
+		}
+	}
+
+	@Test
+	void testSettleKeepsDroplet() {
+		when(cfclient.applicationsV3().updateEnvironmentVariables(any())).thenReturn(Mono.empty());
+		cfmgr.settleMatomoCfApp(INSTID, new Parameters().version(version).timeZone("Europe/Paris"), 512, 1).block(Duration.ofSeconds(10));
+		verify(cfclient.applicationsV2(), never()).upload(any());
+	}
+
+	@Test
+	void testDeployNextFailureRemovesNextApp() {
+		when(properties.isDropletCache()).thenReturn(false);
+		when(cfops.applications().pushManifest(any())).thenReturn(Mono.error(new IllegalStateException("Staging failed")));
+		when(cfops.applications().delete(any())).thenReturn(Mono.empty());
+		Assertions.assertThrows(IllegalStateException.class, () -> {
+			cfmgr.deployNextMatomoCfApp(INSTID, UUID, "plan", new Parameters().version(version).timeZone("Europe/Paris"), 512, 1).block(Duration.ofSeconds(10));
+		});
+		verify(cfops.applications()).delete(argThat(req -> (appname + "-NEXT").equals(req.getName())));
+	}
+
+	@Test
+	void testSwitchToNextApp() {
+		when(cfops.applications().get(argThat(named(appname + "-NEXT")))).thenReturn(Mono.just(getAppDetail(appname + "-NEXT", "next-guid", UUID + "-next." + DOMAIN)));
+		when(cfops.applications().get(argThat(named(appname)))).thenReturn(Mono.just(getAppDetail(appname, APPID, UUID + "." + DOMAIN)));
+		when(cfops.routes().map(any())).thenReturn(Mono.empty());
+		when(cfops.routes().unmap(any())).thenReturn(Mono.empty());
+		cfmgr.switchToNextMatomoCfApp(INSTID, UUID).block(Duration.ofSeconds(10));
+		verify(cfops.routes()).map(argThat(req -> (appname + "-NEXT").equals(req.getApplicationName()) && UUID.equals(req.getHost())));
+		verify(cfops.routes()).unmap(argThat(req -> appname.equals(req.getApplicationName()) && UUID.equals(req.getHost())));
+	}
+
+	@Test
+	void testSwitchToNextAppAgain() {
+		// the route has already been moved before the step could be recorded
+		when(cfops.applications().get(argThat(named(appname + "-NEXT")))).thenReturn(Mono.just(getAppDetail(appname + "-NEXT", "next-guid", UUID + "-next." + DOMAIN, UUID + "." + DOMAIN)));
+		cfmgr.switchToNextMatomoCfApp(INSTID, UUID).block(Duration.ofSeconds(10));
+		verify(cfops.routes(), never()).map(any(MapRouteRequest.class));
+		verify(cfops.routes(), never()).unmap(any(UnmapRouteRequest.class));
+	}
+
+	@Test
+	void testRetireCurrentApp() {
+		when(cfops.applications().get(argThat(named(appname + "-NEXT")))).thenReturn(Mono.just(getAppDetail(appname + "-NEXT", "next-guid", UUID + "." + DOMAIN)));
+		when(cfops.routes().delete(any())).thenReturn(Mono.empty());
+		when(cfops.applications().delete(any())).thenReturn(Mono.empty());
+		when(cfops.applications().rename(any())).thenReturn(Mono.empty());
+		cfmgr.retireMatomoCfApp(INSTID, UUID).block(Duration.ofSeconds(10));
+		verify(cfops.routes()).delete(argThat(req -> (UUID + "-next").equals(req.getHost())));
+		verify(cfops.applications()).delete(argThat(req -> appname.equals(req.getName())));
+		verify(cfops.applications()).rename(argThat(req -> (appname + "-NEXT").equals(req.getName()) && appname.equals(req.getNewName())));
+	}
+
+	@Test
+	void testRetireCurrentAppAgain() {
+		// the new app has already replaced the current one before the step could be recorded
+		when(cfops.applications().get(argThat(named(appname + "-NEXT")))).thenReturn(Mono.error(new IllegalArgumentException("App does not exist")));
+		when(cfops.routes().delete(any())).thenReturn(Mono.error(new IllegalArgumentException("Route does not exist")));
+		cfmgr.retireMatomoCfApp(INSTID, UUID).block(Duration.ofSeconds(10));
+		verify(cfops.applications(), never()).delete(any(DeleteApplicationRequest.class));
+		verify(cfops.applications(), never()).rename(any(RenameApplicationRequest.class));
+		verify(cfops.routes()).delete(any(DeleteRouteRequest.class));
+	}
+
+	@Test
+	void testDeleteAppAfterUnbind() {
+		when(cfops.services().unbind(any())).thenReturn(Mono.error(new IllegalArgumentException("Not bound")));
+		when(cfops.applications().delete(any())).thenReturn(Mono.empty());
+		Assertions.assertEquals(APPID, cfmgr.deleteMatomoCfApp(INSTID, "plan").block(Duration.ofSeconds(10)).getId());
+		InOrder order = Mockito.inOrder(cfops.services(), cfops.applications());
+		order.verify(cfops.services()).unbind(argThat(req -> appname.equals(req.getApplicationName())));
+		order.verify(cfops.applications()).delete(argThat(req -> appname.equals(req.getName()) && req.getDeleteRoutes()));
+	}
+
+	@Test
+	void testDeleteAppFailureSignaled() {
+		when(cfops.services().unbind(any())).thenReturn(Mono.empty());
+		when(cfops.applications().delete(any())).thenReturn(Mono.error(new IllegalStateException("Cannot delete")));
+		Assertions.assertThrows(IllegalStateException.class, () -> cfmgr.deleteMatomoCfApp(INSTID, "plan").block(Duration.ofSeconds(10)));
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * @author P. Déchamboux
+ *
+ */
+public class TestDbConnectionPools {
+	private final static String H2DRIVER = "org.h2.Driver";
+	private final static String DB1 = "jdbc:h2:mem:pools1";
+	private final static String DB2 = "jdbc:h2:mem:pools2";
+	// fails as soon as it is opened
+	private final static String UNKNOWNDB = "jdbc:h2:file:/nonexistent/pools;IFEXISTS=TRUE";
+
+	private CompletableFuture<Long> connectLater(DbConnectionPools pools, String jdbcurl) {
+		return CompletableFuture.supplyAsync(() -> {
+			long start = System.currentTimeMillis();
+			try (Connection conn = pools.getConnection(jdbcurl)) {
+				return System.currentTimeMillis() - start;
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		});
+	}
+
+	@Test
+	void testReusePool() throws SQLException {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		DbConnectionPools pools = new DbConnectionPools(H2DRIVER, 4, 2, 60000, 1000, registry);
+		try {
+			pools.getConnection(DB1).close();
+			pools.getConnection(DB1).close();
+			Assertions.assertEquals(1.0, registry.get("matomo.db.pools").gauge().value());
+		} finally {
+			pools.close();
+		}
+	}
+
+	@Test
+	void testWaitForFreePool() throws Exception {
+		DbConnectionPools pools = new DbConnectionPools(H2DRIVER, 1, 1, 60000, 5000, new SimpleMeterRegistry());
+		try {
+			Connection conn = pools.getConnection(DB1);
+			CompletableFuture<Long> waiting = connectLater(pools, DB2);
+			Thread.sleep(300);
+			Assertions.assertFalse(waiting.isDone(), "The only pool is in use");
+			conn.close();
+			Assertions.assertTrue(waiting.get(5, TimeUnit.SECONDS) >= 300);
+		} finally {
+			pools.close();
+		}
+	}
+
+	@Test
+	void testNoPoolFreed() throws SQLException {
+		DbConnectionPools pools = new DbConnectionPools(H2DRIVER, 1, 1, 60000, 200, new SimpleMeterRegistry());
+		try (Connection conn = pools.getConnection(DB1)) {
+			Assertions.assertThrows(SQLException.class, () -> pools.getConnection(DB2));
+		} finally {
+			pools.close();
+		}
+	}
+
+	@Test
+	void testFailedPoolReleasesItsSlot() throws SQLException {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		DbConnectionPools pools = new DbConnectionPools(H2DRIVER, 1, 1, 60000, 1000, registry);
+		try {
+			Assertions.assertThrows(SQLException.class, () -> pools.getConnection(UNKNOWNDB));
+			Assertions.assertEquals(0.0, registry.get("matomo.db.pools").gauge().value());
+			pools.getConnection(DB1).close();
+		} finally {
+			pools.close();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author P. Déchamboux
+ *
+ */
+public class TestMatomoApiClient {
+	@Test
+	void testParseSingle() {
+		List<MatomoApiClient.Result> results = MatomoApiClient.parse("{\"value\":12}", false);
+		Assertions.assertEquals(1, results.size());
+		Assertions.assertFalse(results.get(0).isError());
+		Assertions.assertEquals("12", results.get(0).getValue());
+	}
+
+	@Test
+	void testParseBulk() {
+		List<MatomoApiClient.Result> results = MatomoApiClient.parse("[{\"result\":\"success\",\"message\":\"ok\"},"
+				+ "{\"result\":\"error\",\"message\":\"Unknown user\"},[1,2],{\"value\":{\"a\":1}}]", true);
+		Assertions.assertEquals(4, results.size());
+		Assertions.assertFalse(results.get(0).isError());
+		Assertions.assertTrue(results.get(1).isError());
+		Assertions.assertEquals("Unknown user", results.get(1).getMessage());
+		Assertions.assertFalse(results.get(2).isError());
+		Assertions.assertNull(results.get(3).getValue());
+	}
+
+	@Test
+	void testParseBulkFailure() {
+		Assertions.assertThrows(IllegalStateException.class,
+				() -> MatomoApiClient.parse("{\"result\":\"error\",\"message\":\"You can't access this resource\"}", true));
+	}
+}
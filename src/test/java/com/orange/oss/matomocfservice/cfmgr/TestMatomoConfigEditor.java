@@ -0,0 +1,79 @@
+/**
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author P. Déchamboux
+ *
+ */
+public class TestMatomoConfigEditor {
+	private final static String CONFINI = "; <?php exit; ?> DO NOT REMOVE THIS LINE\n"
+			+ "[database]\n"
+			+ "host = \"fakeHostName\"\n"
+			+ "\n"
+			+ "[General]\n"
+			+ "salt = \"0123456789\"\n"
+			+ "trusted_hosts[] = \"myinst.mydomain.com\"\n"
+			+ "\n"
+			+ "[PluginsInstalled]\n"
+			+ "PluginsInstalled[] = \"CoreHome\"\n";
+
+	private String edit(MatomoConfigEditor editor) {
+		return new String(editor.toBytes(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	void testNoEdit() {
+		Assertions.assertEquals(CONFINI, edit(new MatomoConfigEditor(CONFINI.getBytes(StandardCharsets.UTF_8))));
+	}
+
+	@Test
+	void testClusterModeAndDebug() {
+		MatomoConfigEditor editor = new MatomoConfigEditor(CONFINI.getBytes(StandardCharsets.UTF_8))
+				.clusterMode(true)
+				.trackerDebug(true);
+		String conf = edit(editor);
+		Assertions.assertTrue(conf.contains("trusted_hosts[] = \"myinst.mydomain.com\"\n"
+				+ "session_save_handler = \"dbtable\"\n"
+				+ "multi_server_environment = 1\n\n[PluginsInstalled]\n"));
+		Assertions.assertTrue(conf.endsWith("[Tracker]\ndebug = 1\nenable_sql_profiler = 1\n"));
+		Assertions.assertEquals("dbtable", editor.get(MatomoConfigEditor.GENERAL, "session_save_handler"));
+		// edits are idempotent and can be reverted
+		editor.clusterMode(true).clusterMode(false).trackerDebug(false);
+		conf = edit(editor);
+		Assertions.assertFalse(conf.contains("session_save_handler"));
+		Assertions.assertFalse(conf.contains("enable_sql_profiler"));
+	}
+
+	@Test
+	void testSetAndArrays() {
+		MatomoConfigEditor editor = new MatomoConfigEditor(CONFINI.getBytes(StandardCharsets.UTF_8))
+				.set("database", "host", "other\"Host")
+				.setArray(MatomoConfigEditor.GENERAL, "trusted_hosts", Arrays.asList("a.mydomain.com", "b.mydomain.com"))
+				.set(MatomoConfigEditor.GENERAL, "force_ssl", true);
+		String conf = edit(editor);
+		Assertions.assertTrue(conf.contains("[database]\nhost = \"other\\\"Host\"\n\n[General]\n"));
+		Assertions.assertEquals("other\"Host", editor.get("database", "host"));
+		Assertions.assertTrue(conf.contains("trusted_hosts[] = \"a.mydomain.com\"\ntrusted_hosts[] = \"b.mydomain.com\"\nforce_ssl = 1\n"));
+		Assertions.assertFalse(conf.contains("myinst.mydomain.com"));
+	}
+}
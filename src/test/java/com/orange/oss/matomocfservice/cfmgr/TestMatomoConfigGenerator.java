@@ -0,0 +1,79 @@
+/**
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * @author P. Déchamboux
+ *
+ */
+@SpringBootTest
+public class TestMatomoConfigGenerator {
+	@Value("${test.currentRelease}")
+	private String currentRelease;
+
+	private Map<String, String> dbCreds() {
+		Map<String, String> creds = new HashMap<String, String>();
+		creds.put("name", "fakeDbName");
+		creds.put("host", "fakeHostName");
+		creds.put("port", "3306");
+		creds.put("user", "fakeUserName");
+		creds.put("password", "fake\"Password");
+		return creds;
+	}
+
+	@Test
+	void testGenerate() {
+		String conf = new String(new MatomoConfigGenerator(currentRelease)
+				.database(dbCreds(), "MCFS")
+				.trustedHost("myinst.mydomain.com")
+				.generate(), StandardCharsets.UTF_8);
+		Assertions.assertTrue(conf.startsWith("; <?php exit; ?> DO NOT REMOVE THIS LINE"));
+		Assertions.assertTrue(conf.contains("host = \"fakeHostName\"\n"));
+		Assertions.assertTrue(conf.contains("password = \"fake\\\"Password\"\n"));
+		Assertions.assertTrue(conf.contains("tables_prefix = \"MCFS_\"\n"));
+		Assertions.assertTrue(conf.contains("trusted_hosts[] = \"myinst.mydomain.com\"\n"));
+		Assertions.assertTrue(conf.contains("PluginsInstalled[] = \"CoreHome\"\n"));
+		Assertions.assertFalse(conf.contains("multi_server_environment"));
+		Assertions.assertFalse(conf.contains("[mail]"));
+		Assertions.assertFalse(conf.contains("{{"));
+	}
+
+	@Test
+	void testGenerateClusterModeAndSmtp() {
+		Map<String, String> smtp = new HashMap<String, String>();
+		smtp.put("host", "smtp.mydomain.com");
+		smtp.put("port", "25");
+		String conf = new String(new MatomoConfigGenerator(currentRelease)
+				.database(dbCreds(), "MCFS")
+				.trustedHost("myinst.mydomain.com")
+				.smtp(smtp)
+				.clusterMode(true)
+				.debug(true)
+				.generate(), StandardCharsets.UTF_8);
+		Assertions.assertTrue(conf.contains("proxy_host_headers[] = \"HTTP_X_FORWARDED_HOST\"\nsession_save_handler = \"dbtable\"\nmulti_server_environment = 1\n"));
+		Assertions.assertTrue(conf.contains("[mail]\ntransport = \"smtp\"\nport = 25\n"));
+		Assertions.assertTrue(conf.contains("[Tracker]\ndebug = 1\nenable_sql_profiler = 1\n"));
+	}
+}
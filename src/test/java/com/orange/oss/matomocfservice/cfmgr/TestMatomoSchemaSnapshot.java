@@ -0,0 +1,137 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author P. Déchamboux
+ *
+ */
+public class TestMatomoSchemaSnapshot {
+	@Test
+	void testStringLiteral() {
+		Assertions.assertEquals("NULL", MatomoSchemaSnapshot.stringLiteral(null));
+		Assertions.assertEquals("'UTC'", MatomoSchemaSnapshot.stringLiteral("UTC"));
+		Assertions.assertEquals("'it\\'s\\\\a\\nb\\0c\\Z'", MatomoSchemaSnapshot.stringLiteral("it's\\a\nb\0c\032"));
+	}
+
+	@Test
+	void testBinaryLiteral() {
+		Assertions.assertEquals("NULL", MatomoSchemaSnapshot.binaryLiteral(null));
+		Assertions.assertEquals("''", MatomoSchemaSnapshot.binaryLiteral(new byte[0]));
+		Assertions.assertEquals("X'00ff7f'", MatomoSchemaSnapshot.binaryLiteral(new byte[] {0, (byte) 0xff, 0x7f}));
+	}
+
+	@Test
+	void testCaptureSeedRowsOnly() throws SQLException {
+		try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:snapshotrows;MODE=MySQL");
+				Statement stmt = conn.createStatement()) {
+			stmt.execute("CREATE TABLE `mcfs_option` (option_name VARCHAR(255) PRIMARY KEY, option_value VARCHAR(255), autoload TINYINT)");
+			stmt.execute("INSERT INTO `mcfs_option` VALUES ('version_core', '3.13.0', 1), ('versionning', 'x', 1), "
+					+ "('piwikUrl', 'https://tenant1.example.com/', 1), ('MatomoInstallationId', 'secret', 1)");
+			stmt.execute("CREATE TABLE `mcfs_user` (login VARCHAR(100) PRIMARY KEY, password VARCHAR(255), email VARCHAR(100), "
+					+ "token_auth VARCHAR(32), superuser_access TINYINT)");
+			stmt.execute("INSERT INTO `mcfs_user` VALUES ('admin', 'hash', 'tenant1@example.com', 'abcdef', 1), "
+					+ "('viewer', 'hash2', 'viewer@example.com', '012345', 0)");
+			stmt.execute("CREATE TABLE `mcfs_log_visit` (idvisit INT PRIMARY KEY, location_ip VARCHAR(16))");
+			stmt.execute("INSERT INTO `mcfs_log_visit` VALUES (1, '10.0.0.1')");
+			List<String> statements = new ArrayList<String>();
+			for (String name : Arrays.asList("option", "user", "log_visit")) {
+				MatomoSchemaSnapshot.captureRows(stmt, "mcfs_" + name, name, statements);
+			}
+			Assertions.assertEquals(2, statements.size(), "Only seed tables should have rows in the snapshot");
+			String rows = String.join("\n", statements);
+			Assertions.assertTrue(rows.contains("'version_core','3.13.0'"));
+			Assertions.assertTrue(rows.contains("'admin'"));
+			for (String tenantval : Arrays.asList("versionning", "tenant1", "secret", "hash", "abcdef", "viewer", "10.0.0.1")) {
+				Assertions.assertFalse(rows.contains(tenantval), "Snapshot should not hold " + tenantval);
+			}
+		}
+	}
+
+	private final static List<String> TEMPLATE_STATEMENTS = Arrays.asList(
+			"CREATE TABLE `{{TABLE_PREFIX}}option` (option_name VARCHAR(255) PRIMARY KEY, option_value VARCHAR(255))",
+			"INSERT INTO `{{TABLE_PREFIX}}option` VALUES ('version_core','3.13.0')",
+			"CREATE TABLE `{{TABLE_PREFIX}}site` (idsite INT PRIMARY KEY)");
+
+	private int countRows(Statement stmt, String query) throws SQLException {
+		try (ResultSet rs = stmt.executeQuery(query)) {
+			rs.next();
+			return rs.getInt(1);
+		}
+	}
+
+	private List<String> listTables(Connection conn, String prefix) throws SQLException {
+		List<String> tables = new ArrayList<String>();
+		try (ResultSet rs = conn.getMetaData().getTables(conn.getCatalog(), null, "%", new String[] {"TABLE"})) {
+			while (rs.next()) {
+				if (rs.getString(3).startsWith(prefix)) {
+					tables.add(rs.getString(3));
+				}
+			}
+		}
+		return tables;
+	}
+
+	@Test
+	void testEnsureTemplate() throws SQLException {
+		try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:snapshottpl;MODE=MySQL");
+				Statement stmt = conn.createStatement()) {
+			MatomoSchemaSnapshot.ensureTemplate(conn, "tpl_", TEMPLATE_STATEMENTS);
+			stmt.execute("INSERT INTO `tpl_site` VALUES (1)");
+			// complete template of the same snapshot: kept as is
+			MatomoSchemaSnapshot.ensureTemplate(conn, "tpl_", TEMPLATE_STATEMENTS);
+			Assertions.assertEquals(1, countRows(stmt, "SELECT COUNT(*) FROM `tpl_site`"));
+			// same tables but another snapshot: template created again
+			List<String> changed = new ArrayList<String>(TEMPLATE_STATEMENTS);
+			changed.set(1, "INSERT INTO `{{TABLE_PREFIX}}option` VALUES ('version_core','3.14.0')");
+			MatomoSchemaSnapshot.ensureTemplate(conn, "tpl_", changed);
+			Assertions.assertEquals(0, countRows(stmt, "SELECT COUNT(*) FROM `tpl_site`"));
+			Assertions.assertEquals(1, countRows(stmt, "SELECT COUNT(*) FROM `tpl_option` WHERE option_value='3.14.0'"));
+			// interrupted creation (all tables there but not marked complete): template created again
+			stmt.execute("DROP TABLE `tpl_mcfs_snapshot`");
+			stmt.execute("INSERT INTO `tpl_site` VALUES (2)");
+			MatomoSchemaSnapshot.ensureTemplate(conn, "tpl_", changed);
+			Assertions.assertEquals(0, countRows(stmt, "SELECT COUNT(*) FROM `tpl_site`"));
+			Assertions.assertEquals(3, listTables(conn, "tpl_").size());
+		}
+	}
+
+	@Test
+	void testFailedCloneLeavesNoTables() throws SQLException {
+		try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:snapshotclone;MODE=MySQL");
+				Statement stmt = conn.createStatement()) {
+			MatomoSchemaSnapshot.ensureTemplate(conn, "tpl_", TEMPLATE_STATEMENTS);
+			// left by a previous clone that has been interrupted
+			stmt.execute("CREATE TABLE `inst_option` (option_name VARCHAR(255))");
+			// H2 has no CREATE TABLE ... LIKE: the clone fails once leftovers have been dropped
+			Assertions.assertThrows(SQLException.class, () -> MatomoSchemaSnapshot.cloneTemplate(conn, "tpl_", "inst_"));
+			Assertions.assertTrue(listTables(conn, "inst_").isEmpty(), "No table of a failed clone should be left");
+			Assertions.assertEquals(3, listTables(conn, "tpl_").size());
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+
+import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.client.v2.ClientV2Exception;
+import org.cloudfoundry.client.v2.applications.ApplicationsV2;
+import org.cloudfoundry.client.v2.applications.SummaryApplicationRequest;
+import org.cloudfoundry.client.v2.applications.SummaryApplicationResponse;
+import org.cloudfoundry.client.v2.applications.UpdateApplicationRequest;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Mono;
+
+/**
+ * @author P. Déchamboux
+ *
+ */
+public class TestRateLimitedCloudFoundryClient {
+	private final static Duration TIMEOUT = Duration.ofSeconds(10);
+
+	private ClientV2Exception throttled() {
+		return new ClientV2Exception(429, 10013, "Rate Limit Exceeded", "CF-RateLimitExceeded");
+	}
+
+	@Test
+	void testEachRequestPaced() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		CloudFoundryClient client = mock(CloudFoundryClient.class);
+		ApplicationsV2 apps = mock(ApplicationsV2.class);
+		when(client.applicationsV2()).thenReturn(apps);
+		SummaryApplicationResponse summary = mock(SummaryApplicationResponse.class);
+		when(apps.summary(any())).thenReturn(Mono.error(throttled()), Mono.just(summary));
+		CloudFoundryClient limited = RateLimitedCloudFoundryClient.wrap(client, new CfRateLimiter(10, 1, 0, 2, registry));
+		Assertions.assertSame(summary, limited.applicationsV2().summary(SummaryApplicationRequest.builder().applicationId("app").build()).block(TIMEOUT));
+		// the throttled read is sent again on its own, not the operation it belongs to
+		verify(apps, times(2)).summary(any());
+		Assertions.assertEquals(1.0, registry.get("matomo.cf.ratelimit.retries").counter().count());
+		Assertions.assertSame(limited.applicationsV2(), limited.applicationsV2());
+	}
+
+	@Test
+	void testWriteNotRetried() {
+		CloudFoundryClient client = mock(CloudFoundryClient.class);
+		ApplicationsV2 apps = mock(ApplicationsV2.class);
+		when(client.applicationsV2()).thenReturn(apps);
+		when(apps.update(any())).thenReturn(Mono.error(throttled()));
+		CloudFoundryClient limited = RateLimitedCloudFoundryClient.wrap(client, new CfRateLimiter(10, 1, 0, 2, new SimpleMeterRegistry()));
+		Assertions.assertThrows(ClientV2Exception.class,
+				() -> limited.applicationsV2().update(UpdateApplicationRequest.builder().applicationId("app").build()).block(TIMEOUT));
+		verify(apps, times(1)).update(any());
+	}
+}
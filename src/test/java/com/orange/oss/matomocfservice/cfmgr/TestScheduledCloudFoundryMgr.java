@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.orange.oss.matomocfservice.cfmgr.CfOperationScheduler.Lane;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+
+/**
+ * @author P. Déchamboux
+ *
+ */
+public class TestScheduledCloudFoundryMgr {
+	private final static String PLANID = "plan";
+
+	@Test
+	void testDbWaitOutsideOfServiceLane() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		CfOperationScheduler scheduler = new CfOperationScheduler(8, 1, 1, 1, registry);
+		CloudFoundryMgr delegate = mock(CloudFoundryMgr.class);
+		when(delegate.createDedicatedDb("inst1", PLANID)).thenReturn(Mono.empty());
+		when(delegate.awaitDedicatedDb("inst1", PLANID)).thenReturn(Mono.never());
+		when(delegate.createDedicatedDb("inst2", PLANID)).thenReturn(Mono.empty());
+		ScheduledCloudFoundryMgr cfmgr = new ScheduledCloudFoundryMgr(delegate, scheduler);
+		Disposable creation = cfmgr.createDedicatedDb("inst1", PLANID)
+				.then(cfmgr.awaitDedicatedDb("inst1", PLANID))
+				.subscribe();
+		try {
+			// the first DB is still being created, but the service lane is free again
+			cfmgr.createDedicatedDb("inst2", PLANID).block(Duration.ofSeconds(5));
+			Assertions.assertEquals(0, scheduler.getRunning(Lane.SERVICE));
+		} finally {
+			creation.dispose();
+		}
+	}
+
+	@Test
+	void testAppDeletionNotBehindServices() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		CfOperationScheduler scheduler = new CfOperationScheduler(8, 1, 1, 1, registry);
+		CloudFoundryMgr delegate = mock(CloudFoundryMgr.class);
+		when(delegate.deleteDedicatedDb("inst1", PLANID)).thenReturn(Mono.never());
+		when(delegate.deleteMatomoCfApp("inst2", PLANID)).thenReturn(Mono.empty());
+		ScheduledCloudFoundryMgr cfmgr = new ScheduledCloudFoundryMgr(delegate, scheduler);
+		Disposable deletion = cfmgr.deleteDedicatedDb("inst1", PLANID).subscribe();
+		try {
+			Assertions.assertEquals(1, scheduler.getRunning(Lane.SERVICE));
+			cfmgr.deleteMatomoCfApp("inst2", PLANID).block(Duration.ofSeconds(5));
+		} finally {
+			deletion.dispose();
+		}
+	}
+
+	@Test
+	void testAppDeletionHoldsSimpleLane() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		CfOperationScheduler scheduler = new CfOperationScheduler(8, 1, 1, 1, registry);
+		CloudFoundryMgr delegate = mock(CloudFoundryMgr.class);
+		when(delegate.deleteMatomoCfApp("inst1", PLANID)).thenReturn(Mono.never());
+		ScheduledCloudFoundryMgr cfmgr = new ScheduledCloudFoundryMgr(delegate, scheduler);
+		Disposable deletion = cfmgr.deleteMatomoCfApp("inst1", PLANID).subscribe();
+		try {
+			// the slot is kept until the app is deleted, not only found
+			Assertions.assertEquals(1, scheduler.getRunning(Lane.SIMPLE));
+		} finally {
+			deletion.dispose();
+		}
+		Assertions.assertEquals(0, scheduler.getRunning(Lane.SIMPLE));
+	}
+}
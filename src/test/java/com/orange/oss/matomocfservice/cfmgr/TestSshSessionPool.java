@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.cfmgr;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.schmizz.sshj.SSHClient;
+
+/**
+ * @author P. Déchamboux
+ *
+ */
+public class TestSshSessionPool {
+	private final static String USER1 = "cf:app1/0";
+	private final static String USER2 = "cf:app2/0";
+
+	/**
+	 * A connection that is always usable until disconnected, which may take some time.
+	 */
+	private static class StubSsh extends SSHClient {
+		private final long disconnectMs;
+		private final CountDownLatch disconnecting = new CountDownLatch(1);
+		private volatile boolean connected = true;
+
+		StubSsh(long disconnectMs) {
+			this.disconnectMs = disconnectMs;
+		}
+
+		@Override
+		public boolean isConnected() {
+			return connected;
+		}
+
+		@Override
+		public boolean isAuthenticated() {
+			return connected;
+		}
+
+		@Override
+		public void disconnect() throws IOException {
+			disconnecting.countDown();
+			try {
+				Thread.sleep(disconnectMs);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			connected = false;
+		}
+	}
+
+	private SshSessionPool.PooledSsh borrow(SshSessionPool pool, String user, long disconnectMs) throws InterruptedException {
+		SshSessionPool.PooledSsh pooled = pool.acquire(user);
+		if (pooled.ssh == null) {
+			pooled.ssh = new StubSsh(disconnectMs);
+		}
+		return pooled;
+	}
+
+	@Test
+	void testReuseIdleSession() throws InterruptedException {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		SshSessionPool pool = new SshSessionPool(2, 60000, 1000, 1000, registry);
+		try {
+			SshSessionPool.PooledSsh pooled = borrow(pool, USER1, 0);
+			SSHClient ssh = pooled.ssh;
+			pool.release(pooled);
+			Assertions.assertSame(ssh, borrow(pool, USER1, 0).ssh, "Idle connection should be reused for the same user");
+			Assertions.assertEquals(1.0, registry.get("matomo.ssh.sessions.open").gauge().value());
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	void testEvictIdleSessionOfOtherUser() throws InterruptedException {
+		SshSessionPool pool = new SshSessionPool(1, 60000, 1000, 100, new SimpleMeterRegistry());
+		try {
+			SshSessionPool.PooledSsh pooled = borrow(pool, USER1, 0);
+			StubSsh ssh = (StubSsh) pooled.ssh;
+			pool.release(pooled);
+			// the only slot is held by the idle connection of another user
+			Assertions.assertNull(pool.acquire(USER2).ssh);
+			Assertions.assertFalse(ssh.isConnected());
+			Assertions.assertThrows(IllegalStateException.class, () -> pool.acquire(USER1));
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	void testSlowDisconnectDoesNotBlockBorrowers() throws InterruptedException {
+		SshSessionPool pool = new SshSessionPool(2, 200, 1000, 1000, new SimpleMeterRegistry());
+		try {
+			SshSessionPool.PooledSsh slow = borrow(pool, USER1, 3000);
+			StubSsh slowssh = (StubSsh) slow.ssh;
+			pool.release(slow);
+			// wait for the evictor to close the idle connection
+			Assertions.assertTrue(slowssh.disconnecting.await(5, TimeUnit.SECONDS));
+			// the slow peer is being disconnected: other users still get their connections
+			long start = System.currentTimeMillis();
+			SshSessionPool.PooledSsh other = borrow(pool, USER2, 0);
+			pool.release(other);
+			Assertions.assertSame(other, pool.acquire(USER2));
+			Assertions.assertTrue(System.currentTimeMillis() - start < 1000, "Borrowers should not wait for a disconnect");
+		} finally {
+			pool.close();
+		}
+	}
+}
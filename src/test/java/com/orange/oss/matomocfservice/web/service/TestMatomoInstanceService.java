@@ -15,7 +15,16 @@
  */
 package com.orange.oss.matomocfservice.web.service;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import javax.persistence.EntityNotFoundException;
@@ -27,6 +36,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.cloud.servicebroker.model.instance.OperationState;
 
 import com.orange.oss.matomocfservice.cfmgr.CfMgr4TResponseMask;
@@ -38,6 +48,8 @@ import com.orange.oss.matomocfservice.web.domain.PMatomoInstance;
 import com.orange.oss.matomocfservice.web.domain.POperationStatus;
 import com.orange.oss.matomocfservice.web.domain.PMatomoInstance.PlatformKind;
 import com.orange.oss.matomocfservice.web.domain.Parameters;
+import com.orange.oss.matomocfservice.web.repository.PMatomoInstanceRepository;
+import com.orange.oss.matomocfservice.web.repository.PMatomoInstanceRepository.UpgradeCandidate;
 import com.orange.oss.matomocfservice.web.service.OperationStatusService.OperationAndState;
 
 /**
@@ -62,10 +74,13 @@ public class TestMatomoInstanceService {
 	CloudFoundryMgrProperties properties;
 	@Autowired
 	CloudFoundryMgr cfMgr;
+	@Autowired
+	PMatomoInstanceRepository miRepo;
 	CloudFoundryMgr4Test cfMgr4T = null;
 	private final static String ID_NO_PF = UUID.randomUUID().toString();
 	private final static String ID_NO_INST = UUID.randomUUID().toString();
 	private String unknownPfId = null;
+	private final static Duration OPERATION_TIMEOUT = Duration.ofSeconds(30);
 
 	@BeforeEach
 	void intializedService() {
@@ -82,6 +97,14 @@ public class TestMatomoInstanceService {
 		LOGGER.debug("Inst allocated: {}", instIdMgr.getNbAllocatedInstanceId());
 	}
 
+	/**
+	 * Wait for the operation launched on an instance, as its steps go on in the background.
+	 */
+	private String awaitOperation(String instid, String emsg) {
+		miService.awaitOperation(instid).block(OPERATION_TIMEOUT);
+		return emsg;
+	}
+
 	@Test
 	void testGetLastOperationAndStateKONoId() {
 		LOGGER.debug("testGetLastOperationAndStateKONoId");
@@ -99,10 +122,10 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
-			miService.createMatomoInstance(instid, "m0", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters());
+			awaitOperation(instid, miService.createMatomoInstance(instid, "m0", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters()));
 			OperationAndState oas = miService.getLastOperationAndState(instid, ID_NO_PF);
 			Assertions.assertNull(oas);
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 		} catch (Exception e) {
 			Assertions.fail(e);
 		}
@@ -133,7 +156,7 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
-			String emsg = miService.createMatomoInstance(instid, "m2", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m2", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNull(emsg);
 			PMatomoInstance pmi = miService.getMatomoInstance(instid, ID_NO_PF);
 			Assertions.assertNull(pmi);
@@ -154,10 +177,10 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
-			String emsg = miService.createMatomoInstance(instid, "m3", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m3", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNull(emsg);
 			Assertions.assertEquals("https://" + instid + "." + properties.getDomain(), miService.getInstanceUrl(instid));
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 		} catch (Exception e) {
 			Assertions.fail(e);
 		}
@@ -169,12 +192,12 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
-			String emsg = miService.createMatomoInstance(instid, "m4", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m4", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNull(emsg);
 			PMatomoInstance pmi = miService.getMatomoInstance(instid, unknownPfId);
 			Assertions.assertNotNull(pmi);
 			Assertions.assertEquals(instid, pmi.getUuid());
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 		} catch (Exception e) {
 			Assertions.fail(e);
 		}
@@ -221,7 +244,7 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask().smtpReady(false));
-			String emsg = miService.createMatomoInstance(instid, "m5", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m5", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNotNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertNull(oas);
@@ -237,7 +260,7 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask().globalSharedReady(false));
-			String emsg = miService.createMatomoInstance(instid, "m6", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m6", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNotNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertNull(oas);
@@ -252,12 +275,12 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
-			String emsg = miService.createMatomoInstance(instid, "m7", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m7", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(POperationStatus.OpCode.CREATE_SERVICE_INSTANCE, oas.getOperation());
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 		} catch (Exception e) {
 			Assertions.fail(e);
 		}
@@ -269,13 +292,13 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
-			String emsg = miService.createMatomoInstance(instid, "m8", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m8", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
-			emsg = miService.createMatomoInstance(instid, "m7", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters());
+			emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m7", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNotNull(emsg);
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 		} catch (Exception e) {
 			Assertions.fail(e);
 		}
@@ -287,11 +310,11 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask().setFailedDeployCfAppAtOccur(1));
-			String emsg = miService.createMatomoInstance(instid, "m9", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m9", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.FAILED, oas.getState());
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 		} catch (Exception e) {
 			Assertions.fail(e);
 		}
@@ -303,11 +326,11 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask().setFailedInitialize());
-			String emsg = miService.createMatomoInstance(instid, "m10", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m10", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.FAILED, oas.getState());
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 		} catch (Exception e) {
 			Assertions.fail(e);
 		}
@@ -319,11 +342,11 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask().setFailedGetConfFile());
-			String emsg = miService.createMatomoInstance(instid, "m11", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m11", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.FAILED, oas.getState());
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 		} catch (Exception e) {
 			Assertions.fail(e);
 		}
@@ -335,11 +358,11 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask().setFailedDeployCfAppAtOccur(2));
-			String emsg = miService.createMatomoInstance(instid, "m12", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m12", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.FAILED, oas.getState());
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 		} catch (Exception e) {
 			Assertions.fail(e);
 		}
@@ -351,11 +374,11 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask().setFailedGetAppEnv());
-			String emsg = miService.createMatomoInstance(instid, "m13", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m13", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.FAILED, oas.getState());
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 		} catch (Exception e) {
 			Assertions.fail(e);
 		}
@@ -367,11 +390,11 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask().setFailedGetApiAccessToken());
-			String emsg = miService.createMatomoInstance(instid, "m14", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m14", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.FAILED, oas.getState());
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 		} catch (Exception e) {
 			Assertions.fail(e);
 		}
@@ -383,11 +406,11 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
-			String emsg = miService.createMatomoInstance(instid, "m15", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m15", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 		} catch (Exception e) {
 			Assertions.fail(e);
 		}
@@ -405,19 +428,19 @@ public class TestMatomoInstanceService {
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
 			for (int i = 0; i < max_instid; i++) {
 				instids[i] = UUID.randomUUID().toString();
-				emsg = miService.createMatomoInstance(instids[i], "mc-" + i, PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters());
+				emsg = awaitOperation(instids[i], miService.createMatomoInstance(instids[i], "mc-" + i, PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters()));
 				Assertions.assertNull(emsg);
 				OperationAndState oas = miService.getLastOperationAndState(instids[i], unknownPfId);
 				Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
 			}
 			for (int i = 0; i < max_instid; i++) {
-				miService.deleteMatomoInstance(instids[i], unknownPfId);
+				awaitOperation(instids[i], miService.deleteMatomoInstance(instids[i], unknownPfId));
 			}
 		} catch (Exception e) {
 			int alloc = 0;
 			for (int i = 0; i < max_instid; i++) {
 				if (instids[i] != null) {
-					miService.deleteMatomoInstance(instids[i], unknownPfId);
+					awaitOperation(instids[i], miService.deleteMatomoInstance(instids[i], unknownPfId));
 					alloc++;
 				}
 			}
@@ -436,9 +459,9 @@ public class TestMatomoInstanceService {
 		cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
 		for (int i = 0; i < max_instid; i++) {
 			instids[i] = UUID.randomUUID().toString();
-			emsg = miService.createMatomoInstance(instids[i], "mf-" + i, PlatformKind.CLOUDFOUNDRY,
+			emsg = awaitOperation(instids[i], miService.createMatomoInstance(instids[i], "mf-" + i, PlatformKind.CLOUDFOUNDRY,
 					"https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId,
-					new Parameters());
+					new Parameters()));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instids[i], unknownPfId);
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
@@ -449,7 +472,7 @@ public class TestMatomoInstanceService {
 		Assertions.assertNotNull(emsg);
 		for (int i = 0; i < max_instid; i++) {
 			if (instids[i] != null) {
-				miService.deleteMatomoInstance(instids[i], unknownPfId);
+				awaitOperation(instids[i], miService.deleteMatomoInstance(instids[i], unknownPfId));
 			}
 		}
 	}
@@ -460,11 +483,11 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask().setFailedCreateDedicatedDB());
-			String emsg = miService.createMatomoInstance(instid, "m16", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m16", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.FAILED, oas.getState());
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 		} catch (Exception e) {
 			Assertions.fail(e);
 		}
@@ -476,11 +499,11 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
-			String emsg = miService.createMatomoInstance(instid, "m17", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANDEDICATEDDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m17", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANDEDICATEDDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 		} catch (Exception e) {
 			Assertions.fail(e);
 		}
@@ -492,11 +515,11 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask().setFailedCreateDedicatedDB());
-			String emsg = miService.createMatomoInstance(instid, "m18", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANDEDICATEDDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m18", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANDEDICATEDDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.FAILED, oas.getState());
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 		} catch (Exception e) {
 			Assertions.fail(e);
 		}
@@ -508,11 +531,11 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
-			String emsg = miService.createMatomoInstance(instid, "m19", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m19", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
-			String msg = miService.deleteMatomoInstance(instid, unknownPfId);
+			String msg = awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 			Assertions.assertNotNull(msg);
 		} catch (Exception e) {
 			Assertions.fail(e);
@@ -524,7 +547,7 @@ public class TestMatomoInstanceService {
 		LOGGER.debug("testDeleteInstanceKOUnexistent");
 		try {
 			String instid = UUID.randomUUID().toString();
-			String msg = miService.deleteMatomoInstance(instid, unknownPfId);
+			String msg = awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 			Assertions.assertNull(msg);
 		} catch (Exception e) {
 			Assertions.fail(e);
@@ -537,13 +560,13 @@ public class TestMatomoInstanceService {
 		String instid = UUID.randomUUID().toString();
 		try {
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
-			String emsg = miService.createMatomoInstance(instid, "m20", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m20", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
-			String msg = miService.deleteMatomoInstance(instid, ID_NO_PF);
+			String msg = awaitOperation(instid, miService.deleteMatomoInstance(instid, ID_NO_PF));
 			Assertions.assertNull(msg);
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 		} catch (Exception e) {
 			Assertions.fail(e);
 		}
@@ -555,15 +578,15 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask().setFailedDeleteMatomoCfApp());
-			String emsg = miService.createMatomoInstance(instid, "m21", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m21", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
-			String msg = miService.deleteMatomoInstance(instid, unknownPfId);
+			String msg = awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 			oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.FAILED, oas.getState());
 			Assertions.assertNotNull(msg);
-			msg = miService.deleteMatomoInstance(instid, unknownPfId);
+			msg = awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 			oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
 			Assertions.assertNotNull(msg);
@@ -578,15 +601,15 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask().setFailedDeleteDedicatedDB());
-			String emsg = miService.createMatomoInstance(instid, "m22", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters());
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m22", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters()));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
-			String msg = miService.deleteMatomoInstance(instid, unknownPfId);
+			String msg = awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 			oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.FAILED, oas.getState());
 			Assertions.assertNotNull(msg);
-			msg = miService.deleteMatomoInstance(instid, unknownPfId);
+			msg = awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 			oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
 			Assertions.assertNotNull(msg);
@@ -602,13 +625,13 @@ public class TestMatomoInstanceService {
 			String TZ1 = "Europe/Dublin", TZ2 = "America/Toronto";
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
-			String emsg = miService.createMatomoInstance(instid, "m23", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters().timeZone(TZ1));
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m23", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters().timeZone(TZ1)));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
-			emsg = miService.updateMatomoInstance(instid, unknownPfId, new Parameters().timeZone(TZ2));
+			emsg = awaitOperation(instid, miService.updateMatomoInstance(instid, unknownPfId, new Parameters().timeZone(TZ2)));
 			oas = miService.getLastOperationAndState(instid, unknownPfId);
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
 			Assertions.assertNull(emsg);
 		} catch (Exception e) {
@@ -623,13 +646,13 @@ public class TestMatomoInstanceService {
 			String TZ1 = "Europe/Dublin", TZ2 = "Europe/Dublin";
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
-			String emsg = miService.createMatomoInstance(instid, "m24", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters().timeZone(TZ1));
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m24", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters().timeZone(TZ1)));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
-			emsg = miService.updateMatomoInstance(instid, unknownPfId, new Parameters().timeZone(TZ2));
+			emsg = awaitOperation(instid, miService.updateMatomoInstance(instid, unknownPfId, new Parameters().timeZone(TZ2)));
 			oas = miService.getLastOperationAndState(instid, unknownPfId);
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
 			Assertions.assertNull(emsg);
 		} catch (Exception e) {
@@ -643,13 +666,13 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
-			String emsg = miService.createMatomoInstance(instid, "m25", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters().cfInstances(2));
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m25", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters().cfInstances(2)));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
-			emsg = miService.updateMatomoInstance(instid, unknownPfId, new Parameters().cfInstances(3));
+			emsg = awaitOperation(instid, miService.updateMatomoInstance(instid, unknownPfId, new Parameters().cfInstances(3)));
 			oas = miService.getLastOperationAndState(instid, unknownPfId);
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
 			Assertions.assertNull(emsg);
 		} catch (Exception e) {
@@ -663,13 +686,13 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
-			String emsg = miService.createMatomoInstance(instid, "m26", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters().cfInstances(2));
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m26", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters().cfInstances(2)));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
-			emsg = miService.updateMatomoInstance(instid, unknownPfId, new Parameters().cfInstances(2));
+			emsg = awaitOperation(instid, miService.updateMatomoInstance(instid, unknownPfId, new Parameters().cfInstances(2)));
 			oas = miService.getLastOperationAndState(instid, unknownPfId);
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
 			Assertions.assertNull(emsg);
 		} catch (Exception e) {
@@ -683,13 +706,13 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
-			String emsg = miService.createMatomoInstance(instid, "m27", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters().memorySize(512));
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m27", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters().memorySize(512)));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
-			emsg = miService.updateMatomoInstance(instid, unknownPfId, new Parameters().memorySize(1024));
+			emsg = awaitOperation(instid, miService.updateMatomoInstance(instid, unknownPfId, new Parameters().memorySize(1024)));
 			oas = miService.getLastOperationAndState(instid, unknownPfId);
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
 			Assertions.assertNull(emsg);
 		} catch (Exception e) {
@@ -703,13 +726,13 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
-			String emsg = miService.createMatomoInstance(instid, "m28", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters().memorySize(512));
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m28", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters().memorySize(512)));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
-			emsg = miService.updateMatomoInstance(instid, unknownPfId, new Parameters().memorySize(512));
+			emsg = awaitOperation(instid, miService.updateMatomoInstance(instid, unknownPfId, new Parameters().memorySize(512)));
 			oas = miService.getLastOperationAndState(instid, unknownPfId);
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
 			Assertions.assertNull(emsg);
 		} catch (Exception e) {
@@ -723,17 +746,167 @@ public class TestMatomoInstanceService {
 		try {
 			String instid = UUID.randomUUID().toString();
 			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
-			String emsg = miService.createMatomoInstance(instid, "m29", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters().autoVersionUpgrade(false));
+			String emsg = awaitOperation(instid, miService.createMatomoInstance(instid, "m29", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANMATOMOSHARDB_UUID, unknownPfId, new Parameters().autoVersionUpgrade(false)));
 			Assertions.assertNull(emsg);
 			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
-			emsg = miService.updateMatomoInstance(instid, unknownPfId, new Parameters().autoVersionUpgrade(true));
+			emsg = awaitOperation(instid, miService.updateMatomoInstance(instid, unknownPfId, new Parameters().autoVersionUpgrade(true)));
 			oas = miService.getLastOperationAndState(instid, unknownPfId);
-			miService.deleteMatomoInstance(instid, unknownPfId);
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
 			Assertions.assertEquals(OperationState.SUCCEEDED, oas.getState());
 			Assertions.assertNull(emsg);
 		} catch (Exception e) {
 			Assertions.fail(e);
 		}
 	}
+
+	@Test
+	void testUpdateDeleteKOInProgress() {
+		LOGGER.debug("testUpdateDeleteKOInProgress");
+		try {
+			String instid = UUID.randomUUID().toString();
+			// the create lasts less than the timeout of frozen operations
+			cfMgr4T.setResponseMask(new CfMgr4TResponseMask().setDelayDeployCfApp(applicationInformation.getTimeoutFrozenInProgress() - 1));
+			String emsg = miService.createMatomoInstance(instid, "m40", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters().timeZone("Europe/Paris"));
+			Assertions.assertNull(emsg);
+			Assertions.assertEquals(OperationState.IN_PROGRESS, miService.getLastOperationAndState(instid, unknownPfId).getState());
+			// neither an update nor a delete can start while the create goes on
+			Assertions.assertNull(miService.updateMatomoInstance(instid, unknownPfId, new Parameters().timeZone("Europe/Dublin")));
+			String msg = miService.deleteMatomoInstance(instid, unknownPfId);
+			Assertions.assertTrue(msg.contains("already in progress"));
+			OperationAndState oas = miService.getLastOperationAndState(instid, unknownPfId);
+			Assertions.assertEquals(POperationStatus.OpCode.CREATE_SERVICE_INSTANCE, oas.getOperation());
+			Assertions.assertEquals(OperationState.IN_PROGRESS, oas.getState());
+			Assertions.assertEquals("Europe/Paris", miService.getMatomoInstance(instid, unknownPfId).getTimeZone());
+			miService.awaitOperation(instid).block(OPERATION_TIMEOUT);
+			// the checkpoints of the create have not been overwritten
+			Assertions.assertEquals(OperationState.SUCCEEDED, miService.getLastOperationAndState(instid, unknownPfId).getState());
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
+		} catch (Exception e) {
+			Assertions.fail(e);
+		}
+	}
+
+	@Test
+	void testScanInstancesByPage() {
+		LOGGER.debug("testScanInstancesByPage");
+		try {
+			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
+			List<String> instids = new ArrayList<String>();
+			for (int i = 0; i < 3; i++) {
+				String instid = UUID.randomUUID().toString();
+				Assertions.assertNull(awaitOperation(instid, miService.createMatomoInstance(instid, "m41", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters())));
+				instids.add(instid);
+			}
+			// pages of one instance go through all installed instances, in order and only once
+			List<String> scanned = new ArrayList<String>();
+			List<UpgradeCandidate> page = miRepo.findUpgradeCandidates(OperationState.SUCCEEDED.getValue(), "", PageRequest.of(0, 1));
+			while (!page.isEmpty()) {
+				Assertions.assertEquals(1, page.size());
+				if (!scanned.isEmpty()) {
+					Assertions.assertTrue(page.get(0).getUuid().compareTo(scanned.get(scanned.size() - 1)) > 0);
+				}
+				scanned.add(page.get(0).getUuid());
+				page = miRepo.findUpgradeCandidates(OperationState.SUCCEEDED.getValue(), page.get(0).getUuid(), PageRequest.of(0, 1));
+			}
+			Assertions.assertTrue(scanned.containsAll(instids));
+			Assertions.assertEquals(scanned.size(), new HashSet<String>(scanned).size());
+			for (String instid : instids) {
+				Assertions.assertFalse(miRepo.findUuidsByState(OperationState.IN_PROGRESS.getValue(), ServiceCatalogConfiguration.PLANSHARED_UUID).contains(instid));
+			}
+			deleteAndWaitFreed(instids, instIdMgr.getNbAllocatedInstanceId() - instids.size());
+		} catch (Exception e) {
+			Assertions.fail(e);
+		}
+	}
+
+	private List<String> createConcurrently(List<String> instids, int nbthreads) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(nbthreads);
+		try {
+			List<Callable<String>> creates = new ArrayList<Callable<String>>();
+			for (String instid : instids) {
+				creates.add(() -> awaitOperation(instid, miService.createMatomoInstance(instid, "mc", PlatformKind.CLOUDFOUNDRY, "https://apicf.foo.com", ServiceCatalogConfiguration.PLANGLOBSHARDB_UUID, unknownPfId, new Parameters())));
+			}
+			List<String> emsgs = new ArrayList<String>();
+			for (Future<String> emsg : executor.invokeAll(creates)) {
+				emsgs.add(emsg.get());
+			}
+			return emsgs;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void deleteAndWaitFreed(List<String> instids, int nballocated) throws InterruptedException {
+		for (String instid : new HashSet<String>(instids)) {
+			awaitOperation(instid, miService.deleteMatomoInstance(instid, unknownPfId));
+		}
+		for (int i = 0; (i < 100) && (instIdMgr.getNbAllocatedInstanceId() > nballocated); i++) {
+			TimeUnit.MILLISECONDS.sleep(100);
+		}
+	}
+
+	@Test
+	void testCreateInstancesConcurrently() {
+		LOGGER.debug("testCreateInstancesConcurrently");
+		try {
+			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
+			int nballocated = instIdMgr.getNbAllocatedInstanceId();
+			final int nbinst = 6;
+			long rates[] = new long[nbinst + 1];
+			// the first round only warms up the create path
+			for (int nbthreads : new int[] {nbinst, 1, nbinst}) {
+				List<String> instids = new ArrayList<String>();
+				for (int i = 0; i < nbinst; i++) {
+					instids.add(UUID.randomUUID().toString());
+				}
+				long start = System.nanoTime();
+				List<String> emsgs = createConcurrently(instids, nbthreads);
+				long elapsed = System.nanoTime() - start;
+				rates[nbthreads] = nbinst * TimeUnit.SECONDS.toNanos(1) / Math.max(elapsed, 1);
+				LOGGER.info("testCreateInstancesConcurrently: {} creates with {} threads -> {} creates/s",
+						nbinst, nbthreads, rates[nbthreads]);
+				// each instance is created, with its own instance ID
+				Set<Integer> idurls = new HashSet<Integer>();
+				for (int i = 0; i < nbinst; i++) {
+					Assertions.assertNull(emsgs.get(i));
+					idurls.add(miService.getMatomoInstance(instids.get(i), unknownPfId).getIdUrl());
+				}
+				Assertions.assertEquals(nbinst, idurls.size());
+				Assertions.assertEquals(nballocated + nbinst, instIdMgr.getNbAllocatedInstanceId());
+				deleteAndWaitFreed(instids, nballocated);
+				Assertions.assertEquals(nballocated, instIdMgr.getNbAllocatedInstanceId());
+			}
+			// concurrent creates are not serialized behind each other
+			Assertions.assertTrue(rates[nbinst] >= rates[1], "Concurrent creates: " + rates[nbinst] + "/s, serial creates: " + rates[1] + "/s");
+		} catch (Exception e) {
+			Assertions.fail(e);
+		}
+	}
+
+	@Test
+	void testCreateSameInstanceConcurrently() {
+		LOGGER.debug("testCreateSameInstanceConcurrently");
+		try {
+			cfMgr4T.setResponseMask(new CfMgr4TResponseMask());
+			int nballocated = instIdMgr.getNbAllocatedInstanceId();
+			String instid = UUID.randomUUID().toString();
+			List<String> instids = new ArrayList<String>();
+			for (int i = 0; i < 4; i++) {
+				instids.add(instid);
+			}
+			int nbcreated = 0;
+			for (String emsg : createConcurrently(instids, instids.size())) {
+				if (emsg == null) {
+					nbcreated++;
+				}
+			}
+			// only one create succeeds, and the others do not keep any instance ID
+			Assertions.assertEquals(1, nbcreated);
+			Assertions.assertEquals(nballocated + 1, instIdMgr.getNbAllocatedInstanceId());
+			deleteAndWaitFreed(instids, nballocated);
+		} catch (Exception e) {
+			Assertions.fail(e);
+		}
+	}
 }
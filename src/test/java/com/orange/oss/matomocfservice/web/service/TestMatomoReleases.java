@@ -17,15 +17,21 @@ package com.orange.oss.matomocfservice.web.service;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.util.StreamUtils;
 
 /**
  * @author P. Déchamboux
@@ -40,6 +46,9 @@ public class TestMatomoReleases {
 	private final static String INSTID1 = "000000001";
 	private final static String INSTID2 = "000000002";
 	private final static String INSTID3 = "000000003";
+	private final static String INSTID4 = "000000004";
+	private final static String INSTID5 = "000000005";
+	private final static String INSTID6 = "000000006";
 	private final static String CONTENTCONFINI = "content for config ini";
 
 	@Test
@@ -69,6 +78,12 @@ public class TestMatomoReleases {
 		Assertions.assertFalse(MatomoReleases.isVersionAvailable(lowerReleaseNotAvailable), "Lower release should not exist");
 	}
 
+	@Test
+	void testProfileScript() {
+		Assertions.assertTrue(MatomoReleases.hasProfileScript(currentRelease), "Current release should install the config file passed through the environment");
+		Assertions.assertFalse(MatomoReleases.hasProfileScript(lowerReleaseNotAvailable));
+	}
+
 	@Test
 	void testHigherVersion() {
 		Assertions.assertTrue(MatomoReleases.isHigherVersion(lowerReleaseNotAvailable, currentRelease));
@@ -124,4 +139,100 @@ public class TestMatomoReleases {
 			Assertions.fail(e);
 		}
 	}
+
+	@Test
+	void testLinkWorkspace() {
+		MatomoReleases.setWorkspaceMode(MatomoReleases.WorkspaceMode.LINK);
+		try {
+			MatomoReleases.createLinkedTree(currentRelease, INSTID5);
+			File rootdir = new File(MatomoReleases.getVersionPath(currentRelease, INSTID5));
+			Assertions.assertTrue(new File(rootdir.getPath(), "matomo.js").exists());
+			Path globalini = Paths.get(rootdir.getPath(), "config", "global.ini.php");
+			Assertions.assertEquals(1, ((Number) Files.getAttribute(globalini, "unix:nlink")).intValue(), "Config files should be real copies");
+			MatomoReleases.setConfigIni(currentRelease, INSTID5, CONTENTCONFINI.getBytes());
+			MatomoReleases.deleteLinkedTree(INSTID5);
+			Assertions.assertFalse(rootdir.exists());
+		} catch (IOException e) {
+			Assertions.fail(e);
+		} finally {
+			MatomoReleases.setWorkspaceMode(MatomoReleases.WorkspaceMode.COPY);
+		}
+	}
+
+	@Test
+	void testDeployableIndex() {
+		try {
+			MatomoReleases.createLinkedTree(currentRelease, INSTID6);
+			MatomoReleases.setConfigIni(currentRelease, INSTID6, CONTENTCONFINI.getBytes());
+			List<ReleaseIndex.Entry> index = MatomoReleases.getDeployableIndex(currentRelease, INSTID6);
+			Assertions.assertNotNull(index);
+			ReleaseIndex.Entry matomojs = null, configini = null;
+			for (ReleaseIndex.Entry entry : index) {
+				if (entry.getPath().equals("matomo.js")) {
+					matomojs = entry;
+				} else if (entry.getPath().equals("config/config.ini.php")) {
+					configini = entry;
+				}
+			}
+			Assertions.assertNotNull(matomojs);
+			Assertions.assertEquals(ReleaseIndex.sha1(matomojs.getFile()), matomojs.getSha1());
+			Assertions.assertNotNull(configini, "Instance config file should be part of the index");
+			Assertions.assertEquals(CONTENTCONFINI.length(), (int) configini.getSize());
+			Path delta = MatomoReleases.buildDeltaArchive(INSTID6, Collections.singletonList(configini));
+			try (ZipFile zf = new ZipFile(delta.toFile())) {
+				Assertions.assertEquals(1, zf.size());
+				Assertions.assertNotNull(zf.getEntry("config/config.ini.php"));
+			}
+			try (org.apache.commons.compress.archivers.zip.ZipFile zf = new org.apache.commons.compress.archivers.zip.ZipFile(delta.toFile())) {
+				Assertions.assertEquals(Integer.parseInt(configini.getMode(), 8), zf.getEntry("config/config.ini.php").getUnixMode() & 0777, "File modes should be kept in the delta");
+			}
+			Assertions.assertTrue(matomojs.getMode().matches("[0-7]{3}"));
+			MatomoReleases.deleteDeltaArchive(INSTID6);
+			Assertions.assertFalse(Files.exists(delta));
+		} catch (IOException e) {
+			Assertions.fail(e);
+		} finally {
+			MatomoReleases.deleteLinkedTree(INSTID6);
+		}
+	}
+
+	@Test
+	void testArchiveWorkspace() {
+		MatomoReleases.setWorkspaceMode(MatomoReleases.WorkspaceMode.ARCHIVE);
+		try {
+			MatomoReleases.createLinkedTree(currentRelease, INSTID4);
+			File rootdir = new File(MatomoReleases.getVersionPath(currentRelease, INSTID4));
+			Assertions.assertTrue(rootdir.exists());
+			Assertions.assertFalse(new File(rootdir.getPath(), "matomo.js").exists(), "Release bits should not be copied in archive mode");
+			MatomoReleases.setConfigIni(currentRelease, INSTID4, CONTENTCONFINI.getBytes());
+			Path archive = MatomoReleases.getDeployablePath(currentRelease, INSTID4);
+			Assertions.assertTrue(Files.isRegularFile(archive));
+			boolean shared = MatomoReleases.hasProfileScript(currentRelease);
+			if (shared) {
+				Assertions.assertEquals(MatomoReleases.getReleaseArchive(currentRelease), archive, "Instances of a release with a .profile script should share its archive");
+			}
+			try (ZipFile zf = new ZipFile(archive.toFile())) {
+				Assertions.assertNotNull(zf.getEntry("matomo.js"));
+				ZipEntry configini = zf.getEntry("config/config.ini.php");
+				if (shared) {
+					Assertions.assertNull(configini, "The config file should go with the environment");
+				} else {
+					Assertions.assertNotNull(configini);
+					try (InputStream is = zf.getInputStream(configini)) {
+						Assertions.assertEquals(CONTENTCONFINI, new String(StreamUtils.copyToByteArray(is)));
+					}
+				}
+			}
+			try (org.apache.commons.compress.archivers.zip.ZipFile zf = new org.apache.commons.compress.archivers.zip.ZipFile(archive.toFile())) {
+				Assertions.assertNotEquals(0, zf.getEntry("matomo.js").getUnixMode(), "File modes should be kept in the archive");
+			}
+			MatomoReleases.deleteLinkedTree(INSTID4);
+			Assertions.assertFalse(rootdir.exists());
+			Assertions.assertEquals(shared, Files.exists(archive), "Only the archive of the instance should be removed");
+		} catch (IOException e) {
+			Assertions.fail(e);
+		} finally {
+			MatomoReleases.setWorkspaceMode(MatomoReleases.WorkspaceMode.COPY);
+		}
+	}
 }
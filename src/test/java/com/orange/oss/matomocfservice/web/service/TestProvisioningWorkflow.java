@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.web.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * @author P. Déchamboux
+ *
+ */
+public class TestProvisioningWorkflow {
+
+	private ProvisioningWorkflow workflow(List<String> ran) {
+		return new ProvisioningWorkflow("inst")
+				.step("a", () -> Mono.fromRunnable(() -> ran.add("a")))
+				.step("b", () -> Mono.fromRunnable(() -> ran.add("b")))
+				.step("c", () -> Mono.fromRunnable(() -> ran.add("c")));
+	}
+
+	@Test
+	void testRunAllSteps() {
+		List<String> ran = new ArrayList<String>();
+		List<String> checkpoints = new ArrayList<String>();
+		workflow(ran).resume(Collections.<String>emptyList(), step -> checkpoints.add(step)).block();
+		Assertions.assertEquals(3, ran.size());
+		Assertions.assertEquals(ran, checkpoints);
+	}
+
+	@Test
+	void testResumeAfterStep() {
+		List<String> ran = new ArrayList<String>();
+		List<String> checkpoints = new ArrayList<String>();
+		workflow(ran).resume(Arrays.asList("a"), step -> checkpoints.add(step)).block();
+		Assertions.assertEquals(2, ran.size());
+		Assertions.assertEquals("b", ran.get(0));
+		Assertions.assertEquals(ran, checkpoints);
+		ran.clear();
+		workflow(ran).resume(Arrays.asList("a", "b", "c"), step -> true).block();
+		Assertions.assertTrue(ran.isEmpty());
+	}
+
+	@Test
+	void testStopWhenCheckpointRefused() {
+		List<String> ran = new ArrayList<String>();
+		Assertions.assertThrows(IllegalStateException.class, () -> workflow(ran).resume(Collections.<String>emptyList(), step -> !step.equals("b")).block());
+		Assertions.assertEquals(2, ran.size());
+	}
+
+	@Test
+	void testStopOnFailingStep() {
+		List<String> ran = new ArrayList<String>();
+		List<String> checkpoints = new ArrayList<String>();
+		ProvisioningWorkflow wf = new ProvisioningWorkflow("inst")
+				.step("a", () -> Mono.fromRunnable(() -> ran.add("a")))
+				.step("b", () -> Mono.error(new IllegalArgumentException("b failed")))
+				.step("c", () -> Mono.fromRunnable(() -> ran.add("c")));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> wf.resume(Collections.<String>emptyList(), step -> checkpoints.add(step)).block());
+		Assertions.assertEquals(1, ran.size());
+		Assertions.assertEquals(1, checkpoints.size());
+	}
+
+	@Test
+	void testUnknownStep() {
+		Assertions.assertThrows(IllegalStateException.class, () -> workflow(new ArrayList<String>()).resume(Arrays.asList("z"), step -> true).block());
+	}
+
+	@Test
+	void testIndependentStepsRunConcurrently() {
+		List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+		ProvisioningWorkflow wf = new ProvisioningWorkflow("inst")
+				.step("db", () -> Mono.delay(Duration.ofMillis(400)).doOnNext(t -> ran.add("db")))
+				.step("tree", ProvisioningWorkflow.after(), () -> Mono.delay(Duration.ofMillis(100)).doOnNext(t -> ran.add("tree")))
+				.step("deploy", ProvisioningWorkflow.after("db", "tree"), () -> Mono.fromRunnable(() -> ran.add("deploy")));
+		long start = System.currentTimeMillis();
+		wf.resume(Collections.<String>emptyList(), step -> true).block();
+		Assertions.assertTrue(System.currentTimeMillis() - start < 500);
+		Assertions.assertEquals(Arrays.asList("tree", "db", "deploy"), ran);
+		Assertions.assertEquals(Arrays.asList("db", "deploy"), wf.getCriticalPath());
+	}
+
+	@Test
+	void testResumeCompletedSteps() {
+		List<String> ran = new ArrayList<String>();
+		ProvisioningWorkflow wf = new ProvisioningWorkflow("inst")
+				.step("a", () -> Mono.fromRunnable(() -> ran.add("a")))
+				.step("b", ProvisioningWorkflow.after(), () -> Mono.fromRunnable(() -> ran.add("b")))
+				.step("c", ProvisioningWorkflow.after("a", "b"), () -> Mono.fromRunnable(() -> ran.add("c")));
+		wf.resume(Arrays.asList("b"), step -> true).block();
+		Assertions.assertEquals(Arrays.asList("a", "c"), ran);
+	}
+
+	@Test
+	void testFailureSkipsDependentSteps() {
+		List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+		ProvisioningWorkflow wf = new ProvisioningWorkflow("inst")
+				.step("a", () -> Mono.error(new IllegalArgumentException("a failed")))
+				.step("b", ProvisioningWorkflow.after(), () -> Mono.delay(Duration.ofMillis(100)).doOnNext(t -> ran.add("b")))
+				.step("c", ProvisioningWorkflow.after("a", "b"), () -> Mono.fromRunnable(() -> ran.add("c")));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> wf.resume(Collections.<String>emptyList(), step -> true).block());
+		// the independent step is let to complete before the failure is reported
+		Assertions.assertEquals(Arrays.asList("b"), ran);
+	}
+
+	@Test
+	void testUnknownDependency() {
+		Assertions.assertThrows(IllegalArgumentException.class, () -> new ProvisioningWorkflow("inst")
+				.step("a", ProvisioningWorkflow.after("z"), () -> Mono.empty()));
+	}
+}
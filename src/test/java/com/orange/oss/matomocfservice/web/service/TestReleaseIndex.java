@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.web.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author P. Déchamboux
+ *
+ */
+public class TestReleaseIndex {
+	private final static String SHA1ABC = "a9993e364706816aba3e25717850c26c9cd0d89d";
+	private final static String SHA1EMPTY = "da39a3ee5e6b4b0d3255bfef95601890afd80709";
+
+	private Map<String, ReleaseIndex.Entry> byPath(ReleaseIndex index) {
+		Map<String, ReleaseIndex.Entry> entries = new HashMap<String, ReleaseIndex.Entry>();
+		for (ReleaseIndex.Entry entry : index.getEntries()) {
+			entries.put(entry.getPath(), entry);
+		}
+		return entries;
+	}
+
+	@Test
+	void testComputeStoreAndLoad(@TempDir Path tmp) throws IOException {
+		Path root = tmp.resolve("release");
+		Files.createDirectories(root.resolve("config"));
+		Files.write(root.resolve("matomo.js"), "abc".getBytes(StandardCharsets.UTF_8));
+		Files.write(root.resolve("config").resolve("global.ini.php"), new byte[0]);
+		Path indexfile = tmp.resolve("release.sha1");
+		Map<String, ReleaseIndex.Entry> entries = byPath(ReleaseIndex.load(root, indexfile));
+		Assertions.assertEquals(2, entries.size());
+		Assertions.assertEquals(SHA1ABC, entries.get("matomo.js").getSha1());
+		Assertions.assertEquals(3, (int) entries.get("matomo.js").getSize());
+		Assertions.assertEquals(SHA1EMPTY, entries.get("config/global.ini.php").getSha1());
+		// the computed index is stored in the format of sha1sum, and read from there next time
+		String stored = new String(Files.readAllBytes(indexfile), StandardCharsets.UTF_8);
+		Assertions.assertTrue(stored.contains(SHA1ABC + "  matomo.js\n"));
+		Files.write(root.resolve("matomo.js"), "abcd".getBytes(StandardCharsets.UTF_8));
+		entries = byPath(ReleaseIndex.load(root, indexfile));
+		Assertions.assertEquals(SHA1ABC, entries.get("matomo.js").getSha1());
+		Assertions.assertEquals(4, (int) entries.get("matomo.js").getSize());
+		Assertions.assertEquals(root.resolve("matomo.js"), entries.get("matomo.js").getFile());
+	}
+}
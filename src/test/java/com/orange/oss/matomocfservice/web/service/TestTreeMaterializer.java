@@ -0,0 +1,96 @@
+/**
+ * Copyright 2019 Orange and the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orange.oss.matomocfservice.web.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author P. Déchamboux
+ *
+ */
+public class TestTreeMaterializer {
+	private final static int NBDIRS = 5;
+	private final static int NBFILES = 20;
+
+	@Test
+	void testCopyAndDeleteTree(@TempDir Path tmp) throws IOException {
+		Path src = tmp.resolve("src");
+		long size = 0;
+		for (int d = 0; d < NBDIRS; d++) {
+			Path dir = Files.createDirectories(src.resolve("d" + d).resolve("sub"));
+			for (int f = 0; f < NBFILES; f++) {
+				byte content[] = new byte[(d + 1) * (f + 1) * 100];
+				content[content.length - 1] = (byte) f;
+				Files.write(dir.resolve("f" + f), content);
+				size += content.length;
+			}
+		}
+		Path dst = tmp.resolve("dst");
+		TreeMaterializer.Stats stats = TreeMaterializer.copyTree(src, dst, null);
+		Assertions.assertEquals(NBDIRS * NBFILES, stats.getFiles());
+		Assertions.assertEquals(size, stats.getBytes());
+		Assertions.assertEquals(0, stats.getLinks());
+		Assertions.assertTrue(stats.getDuration() >= 0);
+		Path last = dst.resolve("d" + (NBDIRS - 1)).resolve("sub").resolve("f" + (NBFILES - 1));
+		byte copied[] = Files.readAllBytes(last);
+		Assertions.assertEquals(NBDIRS * NBFILES * 100, copied.length);
+		Assertions.assertEquals((byte) (NBFILES - 1), copied[copied.length - 1]);
+		stats = TreeMaterializer.deleteTree(dst);
+		Assertions.assertEquals(NBDIRS * NBFILES, stats.getFiles());
+		Assertions.assertFalse(Files.exists(dst));
+		Assertions.assertTrue(Files.exists(src));
+	}
+
+	@Test
+	void testFileNotLinkedIsCopied(@TempDir Path tmp) throws IOException {
+		Path src = Files.createDirectories(tmp.resolve("src"));
+		for (int f = 0; f < NBFILES; f++) {
+			Files.write(src.resolve("f" + f), new byte[100]);
+		}
+		Path dst = Files.createDirectories(tmp.resolve("dst"));
+		Assumptions.assumeTrue(TreeMaterializer.areLinksSupported(src, dst), "Hard links are not supported here");
+		// a directory in the way of one link only makes that file fail
+		Files.createDirectories(dst.resolve("f0").resolve("busy"));
+		Assertions.assertThrows(UncheckedIOException.class, () -> TreeMaterializer.copyTree(src, dst, p -> true));
+		Files.delete(dst.resolve("f0").resolve("busy"));
+		Files.delete(dst.resolve("f0"));
+		TreeMaterializer.Stats stats = TreeMaterializer.copyTree(src, dst, p -> true);
+		Assertions.assertEquals(NBFILES, stats.getLinks(), "A previous link failure should not stop linking");
+		Assertions.assertEquals(0, stats.getBytes());
+	}
+
+	@Test
+	void testDeleteTreeWithDanglingLink(@TempDir Path tmp) throws IOException {
+		Path dir = Files.createDirectories(tmp.resolve("ws"));
+		// a dangling link among the entries must not stop the deletion of the other entries
+		Files.createSymbolicLink(dir.resolve("a-link"), tmp.resolve("missing"));
+		for (int f = 0; f < NBFILES; f++) {
+			Files.write(dir.resolve("f" + f), new byte[100]);
+		}
+		TreeMaterializer.Stats stats = TreeMaterializer.deleteTree(dir);
+		Assertions.assertEquals(NBFILES + 1, stats.getFiles());
+		Assertions.assertFalse(Files.exists(dir, LinkOption.NOFOLLOW_LINKS));
+	}
+}